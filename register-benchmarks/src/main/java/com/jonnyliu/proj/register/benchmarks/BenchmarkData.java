@@ -0,0 +1,63 @@
+package com.jonnyliu.proj.register.benchmarks;
+
+import com.jonnyliu.proj.register.commons.ServiceInstance;
+import com.jonnyliu.proj.register.server.ServiceRegistry;
+
+/**
+ * 基准测试用的注册表数据
+ * <p>
+ * 每个服务固定{@link #INSTANCES_PER_SERVICE}个实例,实例总数决定服务个数
+ *
+ * @author liujie
+ */
+final class BenchmarkData {
+
+    /**
+     * 每个服务的实例个数
+     */
+    static final int INSTANCES_PER_SERVICE = 100;
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * 生成指定个数的服务实例,第i个实例属于service-(i / 100),实例ID是instance-(i % 100)
+     *
+     * @param instanceCount 实例总数
+     * @return 服务实例
+     */
+    static ServiceInstance[] newInstances(int instanceCount) {
+        ServiceInstance[] instances = new ServiceInstance[instanceCount];
+        for (int i = 0; i < instanceCount; i++) {
+            instances[i] = newInstance(serviceName(i), instanceId(i));
+        }
+        return instances;
+    }
+
+    /**
+     * 把服务实例都注册到注册表里
+     *
+     * @param registry  注册表
+     * @param instances 服务实例
+     */
+    static void registerAll(ServiceRegistry registry, ServiceInstance[] instances) {
+        for (ServiceInstance instance : instances) {
+            registry.register(instance);
+        }
+    }
+
+    static ServiceInstance newInstance(String serviceName, String instanceId) {
+        ServiceInstance serviceInstance = new ServiceInstance();
+        serviceInstance.setServiceName(serviceName);
+        serviceInstance.setInstanceId(instanceId);
+        return serviceInstance;
+    }
+
+    static String serviceName(int index) {
+        return "service-" + index / INSTANCES_PER_SERVICE;
+    }
+
+    static String instanceId(int index) {
+        return "instance-" + index % INSTANCES_PER_SERVICE;
+    }
+}
@@ -0,0 +1,80 @@
+package com.jonnyliu.proj.register.benchmarks;
+
+import com.jonnyliu.proj.register.client.ClientCachedServiceRegistry;
+import com.jonnyliu.proj.register.commons.Applications;
+import com.jonnyliu.proj.register.commons.ChangedType;
+import com.jonnyliu.proj.register.commons.DeltaRegistry;
+import com.jonnyliu.proj.register.commons.RecentlyChangedServiceInstance;
+import com.jonnyliu.proj.register.commons.RegistryHash;
+import com.jonnyliu.proj.register.commons.ServiceInstance;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 客户端把一次增量拉取合并到本地缓存的注册表
+ * <p>
+ * 增量里是成对的下线和重新注册,反复合并同一个增量,本地注册表的内容保持不变
+ *
+ * @author liujie
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientDeltaMergeBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int instanceCount;
+
+    @Param({"100"})
+    public int changeCount;
+
+    private ClientCachedServiceRegistry cachedRegistry;
+    private DeltaRegistry deltaRegistry;
+
+    @Setup
+    public void setUp() {
+        Map<String, Map<String, ServiceInstance>> registry = new HashMap<>();
+        ServiceInstance[] instances = BenchmarkData.newInstances(instanceCount);
+        for (ServiceInstance instance : instances) {
+            registry.computeIfAbsent(instance.getServiceName(), k -> new HashMap<>())
+                    .put(instance.getInstanceId(), instance);
+        }
+        cachedRegistry = new ClientCachedServiceRegistry(null, null);
+        cachedRegistry.replaceRegistry(new Applications(registry, instanceCount, RegistryHash.compute(registry)));
+
+        LinkedList<RecentlyChangedServiceInstance> changes = new LinkedList<>();
+        long version = instanceCount;
+        int step = Math.max(1, instanceCount / (changeCount / 2));
+        for (int i = 0; i < changeCount / 2; i++) {
+            int index = (i * step) % instanceCount;
+            ServiceInstance changed = BenchmarkData.newInstance(BenchmarkData.serviceName(index),
+                    BenchmarkData.instanceId(index));
+            changes.add(new RecentlyChangedServiceInstance(changed, ChangedType.REMOVE, ++version));
+            changes.add(new RecentlyChangedServiceInstance(changed, ChangedType.REGISTER, ++version));
+        }
+        deltaRegistry = new DeltaRegistry(changes, (long) instanceCount, version, RegistryHash.compute(registry),
+                false);
+    }
+
+    @Benchmark
+    public long merge() {
+        cachedRegistry.mergerDeltaRegistry(deltaRegistry);
+        return cachedRegistry.getRegistry().size();
+    }
+}
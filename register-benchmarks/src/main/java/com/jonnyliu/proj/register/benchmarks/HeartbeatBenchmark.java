@@ -0,0 +1,79 @@
+package com.jonnyliu.proj.register.benchmarks;
+
+import com.jonnyliu.proj.register.commons.HeartbeatRequest;
+import com.jonnyliu.proj.register.commons.HeartbeatResponse;
+import com.jonnyliu.proj.register.commons.ServiceInstance;
+import com.jonnyliu.proj.register.server.PeerReplicator;
+import com.jonnyliu.proj.register.server.RegisterServerController;
+import com.jonnyliu.proj.register.server.ServiceRegistry;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 控制器处理一次心跳: 查找实例、续约、计数
+ * <p>
+ * 没有对等节点,不包括复制的开销。{@link #renew()}是心跳的热点路径,加上-prof gc看gc.alloc.rate.norm应该接近0 B/op,
+ * {@link #heartbeat()}多出来的只是请求和响应对象
+ *
+ * @author liujie
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeartbeatBenchmark {
+
+    @Param({"10000"})
+    public int instanceCount;
+
+    private ServiceRegistry registry;
+    private RegisterServerController controller;
+    private HeartbeatRequest[] heartbeatRequests;
+
+    @Setup
+    public void setUp() {
+        registry = new ServiceRegistry();
+        controller = new RegisterServerController(registry, PeerReplicator.none(registry));
+        ServiceInstance[] instances = BenchmarkData.newInstances(instanceCount);
+        BenchmarkData.registerAll(registry, instances);
+
+        heartbeatRequests = new HeartbeatRequest[instanceCount];
+        for (int i = 0; i < instanceCount; i++) {
+            HeartbeatRequest heartbeatRequest = new HeartbeatRequest();
+            heartbeatRequest.setServiceName(instances[i].getServiceName());
+            heartbeatRequest.setServiceInstanceId(instances[i].getInstanceId());
+            heartbeatRequests[i] = heartbeatRequest;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        registry.getResponseCache().stop();
+    }
+
+    @Benchmark
+    public HeartbeatResponse heartbeat() {
+        return controller.heartbeat(heartbeatRequests[ThreadLocalRandom.current().nextInt(heartbeatRequests.length)]);
+    }
+
+    @Benchmark
+    public boolean renew() {
+        HeartbeatRequest heartbeatRequest = heartbeatRequests[ThreadLocalRandom.current().nextInt(
+                heartbeatRequests.length)];
+        return controller.renew(heartbeatRequest.getServiceName(), heartbeatRequest.getServiceInstanceId());
+    }
+}
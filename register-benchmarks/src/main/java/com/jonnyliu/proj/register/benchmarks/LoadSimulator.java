@@ -0,0 +1,526 @@
+package com.jonnyliu.proj.register.benchmarks;
+
+import com.jonnyliu.proj.register.commons.DeltaRegistry;
+import com.jonnyliu.proj.register.commons.HeartbeatRequest;
+import com.jonnyliu.proj.register.commons.HeartbeatResponse;
+import com.jonnyliu.proj.register.commons.RegisterRequest;
+import com.jonnyliu.proj.register.commons.RegistryCodec;
+import com.jonnyliu.proj.register.server.HeartbeatCounter;
+import com.jonnyliu.proj.register.server.LatencyHistogram;
+import com.jonnyliu.proj.register.server.OffHeapInstanceStore;
+import com.jonnyliu.proj.register.server.RegisterServerController;
+import com.jonnyliu.proj.register.server.SelfProtectionPolicy;
+import com.jonnyliu.proj.register.server.ServiceAliveMonitor;
+import com.jonnyliu.proj.register.server.ServiceRegistry;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 进程内的负载模拟器: 用一个很小的线程池模拟大量服务实例,直接调用{@link RegisterServerController}
+ * <p>
+ * 每个虚拟实例按心跳间隔错开时间发心跳,同时按配置的速率下线再重新注册(实例变动)、拉取增量和全量注册表,
+ * 还可以让一部分实例在某个时刻之后不再发心跳,观察摘除和自我保护。每隔一段时间输出一行:
+ * 各种操作的吞吐量和延迟百分位、堆内存和GC、注册表实例个数、自我保护状态。
+ * <pre>
+ * java -cp register-benchmarks/target/benchmarks.jar com.jonnyliu.proj.register.benchmarks.LoadSimulator \
+ *     --instances=100000 --duration=300 --silent-percent=10 --csv=simulation.csv
+ * </pre>
+ * 自我保护和心跳计数是整个JVM共享的,所以模拟器使用默认的注册表,一个JVM里只跑一次模拟。
+ * {@code --storage=offheap}让默认的注册表使用堆外存储,结束时输出GC之后的堆内存和堆外内存,用来对比两种存储
+ *
+ * @author liujie
+ */
+public class LoadSimulator {
+
+    /**
+     * 心跳和各种操作的调度粒度
+     */
+    private static final long TICK_MILLIS = 100L;
+    private static final String THREAD_LOAD_SIMULATOR = "THREAD-LOAD-SIMULATOR-";
+
+    /**
+     * 模拟的操作
+     */
+    enum Operation {
+        REGISTER, HEARTBEAT, CANCEL, DELTA_FETCH, FULL_FETCH
+    }
+
+    private final Config config;
+    private final ServiceRegistry registry = ServiceRegistry.getInstance();
+    private final RegisterServerController controller = new RegisterServerController();
+    private final ServiceAliveMonitor aliveMonitor = new ServiceAliveMonitor(registry,
+            ServiceAliveMonitor.DEFAULT_CHECK_TICK);
+    private final ScheduledExecutorService scheduler;
+
+    private final Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+    private final LongAdder heartbeatFailures = new LongAdder();
+    private final LongAdder fullFetchFallbacks = new LongAdder();
+
+    private final HeartbeatRequest[] heartbeatRequests;
+    /**
+     * 每个虚拟实例上的客户端最后看到的注册表版本号
+     */
+    private final long[] clientVersions;
+    private final AtomicInteger nextFetchingClient = new AtomicInteger();
+
+    /**
+     * 到了配置的时刻之后,一部分实例不再发心跳
+     */
+    private volatile boolean silenced;
+
+    public LoadSimulator(Config config) {
+        this.config = config;
+        for (Operation operation : Operation.values()) {
+            latencies.put(operation, new LatencyHistogram());
+        }
+        this.heartbeatRequests = new HeartbeatRequest[config.instances];
+        for (int i = 0; i < config.instances; i++) {
+            HeartbeatRequest heartbeatRequest = new HeartbeatRequest();
+            heartbeatRequest.setServiceName(serviceName(i));
+            heartbeatRequest.setServiceInstanceId(instanceId(i));
+            heartbeatRequests[i] = heartbeatRequest;
+        }
+        this.clientVersions = new long[config.instances];
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.scheduler = Executors.newScheduledThreadPool(config.threads, r -> {
+            Thread thread = new Thread(r, THREAD_LOAD_SIMULATOR + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static void main(String[] args) throws Exception {
+        Config config = Config.parse(args);
+        // 必须在第一次用到默认的注册表之前设置
+        System.setProperty(ServiceRegistry.STORAGE_PROPERTY, config.storage);
+        new LoadSimulator(config).run();
+    }
+
+    /**
+     * 注册所有实例,然后按配置的时长施加负载,期间定时输出报告
+     */
+    public void run() throws InterruptedException, FileNotFoundException {
+        System.out.println("simulating " + config);
+        long start = System.nanoTime();
+        for (int i = 0; i < config.instances; i++) {
+            register(i);
+        }
+        long registeredVersion = registry.getVersion();
+        for (int i = 0; i < config.instances; i++) {
+            clientVersions[i] = registeredVersion;
+        }
+        System.out.printf("registered %d instances in %d ms%n", config.instances,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        SelfProtectionPolicy.getInstance().recompute();
+        aliveMonitor.start();
+        scheduleHeartbeats();
+        scheduleAtRate(config.churnPerSecond, this::churn);
+        scheduleAtRate(config.deltaFetchPerSecond, this::deltaFetch);
+        scheduleAtRate(config.fullFetchPerSecond, this::fullFetch);
+        scheduler.schedule(() -> silenced = true, config.silentAfterSeconds, TimeUnit.SECONDS);
+
+        try (Reporter reporter = new Reporter(config.csv)) {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.durationSeconds);
+            while (System.nanoTime() < deadline) {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(config.reportIntervalSeconds));
+                reporter.report();
+            }
+            scheduler.shutdownNow();
+            aliveMonitor.stop();
+            reporter.summary();
+        }
+    }
+
+    /**
+     * 心跳间隔按{@link #TICK_MILLIS}切成若干个时间片,每个实例固定在其中一个时间片里发心跳,
+     * 每个时间片是一个周期任务,不需要为每个实例调度一个任务
+     */
+    private void scheduleHeartbeats() {
+        long intervalMillis = TimeUnit.SECONDS.toMillis(config.heartbeatIntervalSeconds);
+        int slotCount = (int) Math.max(1L, intervalMillis / TICK_MILLIS);
+        for (int slot = 0; slot < slotCount; slot++) {
+            int firstInstance = slot;
+            scheduler.scheduleAtFixedRate(() -> {
+                for (int i = firstInstance; i < config.instances; i += slotCount) {
+                    if (!(silenced && isSilent(i))) {
+                        heartbeat(i);
+                    }
+                }
+            }, slot * TICK_MILLIS, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 按速率执行一个操作,拆成和线程数一样多的周期任务,每个{@link #TICK_MILLIS}执行一批
+     */
+    private void scheduleAtRate(double perSecond, Runnable operation) {
+        if (perSecond <= 0) {
+            return;
+        }
+        double perTick = perSecond * TICK_MILLIS / 1000D / config.threads;
+        for (int t = 0; t < config.threads; t++) {
+            scheduler.scheduleAtFixedRate(new Runnable() {
+
+                private double due;
+
+                @Override
+                public void run() {
+                    due += perTick;
+                    for (; due >= 1D; due -= 1D) {
+                        operation.run();
+                    }
+                }
+            }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void register(int index) {
+        RegisterRequest registerRequest = new RegisterRequest();
+        registerRequest.setServiceName(serviceName(index));
+        registerRequest.setServiceInstanceId(instanceId(index));
+        registerRequest.setIp("10.0." + (index >>> 8 & 0xff) + "." + (index & 0xff));
+        registerRequest.setHostname("host-" + index);
+        registerRequest.setPort(8080);
+        long start = System.nanoTime();
+        controller.register(registerRequest);
+        latencies.get(Operation.REGISTER).record(System.nanoTime() - start);
+    }
+
+    private void heartbeat(int index) {
+        long start = System.nanoTime();
+        HeartbeatResponse heartbeatResponse = controller.heartbeat(heartbeatRequests[index]);
+        latencies.get(Operation.HEARTBEAT).record(System.nanoTime() - start);
+        if (!HeartbeatResponse.SUCCESS.equals(heartbeatResponse.getStatus())) {
+            heartbeatFailures.increment();
+        }
+    }
+
+    /**
+     * 一个实例下线之后马上用同样的实例ID重新注册,好比滚动发布
+     */
+    private void churn() {
+        int index = ThreadLocalRandom.current().nextInt(config.instances);
+        if (isSilent(index)) {
+            return;
+        }
+        long start = System.nanoTime();
+        controller.unregister(serviceName(index), instanceId(index));
+        latencies.get(Operation.CANCEL).record(System.nanoTime() - start);
+        register(index);
+    }
+
+    /**
+     * 虚拟实例轮流用自己最后看到的版本号拉取增量,编码成响应的字节;版本号太旧时改成全量拉取
+     */
+    private void deltaFetch() {
+        int client = Math.floorMod(nextFetchingClient.getAndIncrement(), config.instances);
+        long start = System.nanoTime();
+        DeltaRegistry deltaRegistry = controller.fetchDeltaRegistry(clientVersions[client]);
+        if (deltaRegistry.isFullFetchRequired()) {
+            controller.fetchFullRegistryPayload((String) null);
+            fullFetchFallbacks.increment();
+        } else {
+            RegistryCodec.encode(deltaRegistry);
+        }
+        latencies.get(Operation.DELTA_FETCH).record(System.nanoTime() - start);
+        clientVersions[client] = deltaRegistry.getVersion();
+    }
+
+    private void fullFetch() {
+        long start = System.nanoTime();
+        controller.fetchFullRegistryPayload((String) null);
+        latencies.get(Operation.FULL_FETCH).record(System.nanoTime() - start);
+    }
+
+    private boolean isSilent(int index) {
+        return index % 100 < config.silentPercent;
+    }
+
+    private String serviceName(int index) {
+        return "service-" + index % config.services;
+    }
+
+    private static String instanceId(int index) {
+        return "instance-" + index;
+    }
+
+    /**
+     * 定时输出一行报告,可以同时写到一个CSV文件里
+     */
+    private class Reporter implements AutoCloseable {
+
+        private final long startNanos = System.nanoTime();
+        private final PrintStream csv;
+        private final Map<Operation, LatencyHistogram.Snapshot> lastSnapshots = new EnumMap<>(Operation.class);
+        private final Map<Operation, LatencyHistogram.Snapshot> firstSnapshots = new EnumMap<>(Operation.class);
+        private long lastReportNanos = startNanos;
+        private long lastGcCount;
+        private long lastGcMillis;
+        private final long firstGcCount;
+        private final long firstGcMillis;
+
+        Reporter(String csvFile) throws FileNotFoundException {
+            this.csv = csvFile == null ? null : new PrintStream(csvFile);
+            for (Operation operation : Operation.values()) {
+                LatencyHistogram.Snapshot snapshot = latencies.get(operation).snapshot();
+                lastSnapshots.put(operation, snapshot);
+                firstSnapshots.put(operation, snapshot);
+            }
+            lastGcCount = gcCount();
+            lastGcMillis = gcMillis();
+            firstGcCount = lastGcCount;
+            firstGcMillis = lastGcMillis;
+            String[] header = {"time_s", "instances", "heartbeat_per_s", "heartbeat_p50_us", "heartbeat_p99_us",
+                    "heartbeat_p999_us", "heartbeat_failures", "register_per_s", "cancel_per_s", "delta_per_s",
+                    "delta_p99_us", "full_per_s", "full_p99_us", "heap_used_mb", "gc_count", "gc_ms",
+                    "heartbeat_last_min", "protect_threshold", "self_protection"};
+            System.out.println(String.join(" ", header));
+            if (csv != null) {
+                csv.println(String.join(",", header));
+            }
+        }
+
+        void report() {
+            long now = System.nanoTime();
+            double seconds = (now - lastReportNanos) / 1e9D;
+            Map<Operation, LatencyHistogram.Snapshot> interval = new EnumMap<>(Operation.class);
+            for (Operation operation : Operation.values()) {
+                LatencyHistogram.Snapshot snapshot = latencies.get(operation).snapshot();
+                interval.put(operation, snapshot.since(lastSnapshots.get(operation)));
+                lastSnapshots.put(operation, snapshot);
+            }
+            long gcCount = gcCount();
+            long gcMillis = gcMillis();
+            SelfProtectionPolicy selfProtectionPolicy = SelfProtectionPolicy.getInstance();
+
+            List<Object> row = new ArrayList<>();
+            row.add(TimeUnit.NANOSECONDS.toSeconds(now - startNanos));
+            row.add(registry.getSnapshot().getInstanceCount());
+            row.add(perSecond(interval.get(Operation.HEARTBEAT), seconds));
+            row.add(micros(interval.get(Operation.HEARTBEAT), 0.5D));
+            row.add(micros(interval.get(Operation.HEARTBEAT), 0.99D));
+            row.add(micros(interval.get(Operation.HEARTBEAT), 0.999D));
+            row.add(heartbeatFailures.sum());
+            row.add(perSecond(interval.get(Operation.REGISTER), seconds));
+            row.add(perSecond(interval.get(Operation.CANCEL), seconds));
+            row.add(perSecond(interval.get(Operation.DELTA_FETCH), seconds));
+            row.add(micros(interval.get(Operation.DELTA_FETCH), 0.99D));
+            row.add(perSecond(interval.get(Operation.FULL_FETCH), seconds));
+            row.add(micros(interval.get(Operation.FULL_FETCH), 0.99D));
+            row.add(ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() >> 20);
+            row.add(gcCount - lastGcCount);
+            row.add(gcMillis - lastGcMillis);
+            row.add(HeartbeatCounter.getInstance().getLastMinuteHeartbeatRate());
+            row.add(selfProtectionPolicy.getExpectedHeartbeatThreshold());
+            row.add(selfProtectionPolicy.isSelfProtectionActivated());
+            print(row);
+
+            lastReportNanos = now;
+            lastGcCount = gcCount;
+            lastGcMillis = gcMillis;
+        }
+
+        /**
+         * 整个模拟期间每种操作的总数、吞吐量和延迟分布
+         */
+        void summary() {
+            double seconds = (System.nanoTime() - startNanos) / 1e9D;
+            System.out.printf("%-12s %10s %10s %10s %10s %10s %10s%n", "operation", "count", "per_s", "p50_us",
+                    "p99_us", "p999_us", "max_us");
+            for (Operation operation : Operation.values()) {
+                LatencyHistogram.Snapshot total = lastSnapshots.get(operation).since(firstSnapshots.get(operation));
+                System.out.printf("%-12s %10d %10d %10d %10d %10d %10d%n", operation, total.getCount(),
+                        perSecond(total, seconds), micros(total, 0.5D), micros(total, 0.99D), micros(total, 0.999D),
+                        total.getMax() / 1000L);
+            }
+            System.out.printf("heartbeat failures: %d, delta fetches that fell back to full fetch: %d%n",
+                    heartbeatFailures.sum(), fullFetchFallbacks.sum());
+
+            long offHeapBytes = registry.getInstanceStore() instanceof OffHeapInstanceStore
+                    ? ((OffHeapInstanceStore) registry.getInstanceStore()).getOffHeapBytes() : 0L;
+            System.out.printf("storage: %s, gc: %d collections %d ms, heap used after full gc: %d MB, "
+                            + "off-heap: %d MB%n", registry.getInstanceStore().getClass().getSimpleName(),
+                    gcCount() - firstGcCount, gcMillis() - firstGcMillis, heapUsedAfterGc() >> 20,
+                    offHeapBytes >> 20);
+        }
+
+        private long heapUsedAfterGc() {
+            System.gc();
+            return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        }
+
+        private void print(List<Object> row) {
+            StringBuilder line = new StringBuilder();
+            StringBuilder csvLine = new StringBuilder();
+            for (Object value : row) {
+                if (line.length() > 0) {
+                    line.append(' ');
+                    csvLine.append(',');
+                }
+                line.append(value);
+                csvLine.append(value);
+            }
+            System.out.println(line);
+            if (csv != null) {
+                csv.println(csvLine);
+                csv.flush();
+            }
+        }
+
+        private long perSecond(LatencyHistogram.Snapshot snapshot, double seconds) {
+            return Math.round(snapshot.getCount() / seconds);
+        }
+
+        private long micros(LatencyHistogram.Snapshot snapshot, double quantile) {
+            return snapshot.getValueAtQuantile(quantile) / 1000L;
+        }
+
+        private long gcCount() {
+            long count = 0L;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                count += Math.max(0L, gc.getCollectionCount());
+            }
+            return count;
+        }
+
+        private long gcMillis() {
+            long millis = 0L;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                millis += Math.max(0L, gc.getCollectionTime());
+            }
+            return millis;
+        }
+
+        @Override
+        public void close() {
+            if (csv != null) {
+                csv.close();
+            }
+        }
+    }
+
+    /**
+     * 模拟的参数,命令行里用--名称=值指定
+     */
+    static final class Config {
+
+        /**
+         * 虚拟实例个数
+         */
+        int instances = 100000;
+        /**
+         * 服务个数,实例平均分到各个服务里
+         */
+        int services = 1000;
+        int heartbeatIntervalSeconds = (int) TimeUnit.MILLISECONDS.toSeconds(SelfProtectionPolicy.HEARTBEAT_INTERVAL);
+        int durationSeconds = 180;
+        int reportIntervalSeconds = 5;
+        /**
+         * 每秒下线再重新注册的实例个数
+         */
+        double churnPerSecond = 50D;
+        /**
+         * 每秒增量拉取的次数,默认每个实例每个心跳间隔拉取一次
+         */
+        double deltaFetchPerSecond = -1D;
+        double fullFetchPerSecond = 1D;
+        /**
+         * 不再发心跳的实例的百分比,以及从第几秒开始
+         */
+        int silentPercent = 0;
+        int silentAfterSeconds = 60;
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        /**
+         * 同时写一份CSV报告的文件
+         */
+        String csv;
+        /**
+         * 注册表的存储方式: heap或者offheap
+         */
+        String storage = "heap";
+
+        static Config parse(String[] args) {
+            Config config = new Config();
+            for (String arg : args) {
+                int eq = arg.indexOf('=');
+                if (!arg.startsWith("--") || eq < 0) {
+                    throw new IllegalArgumentException("expected --name=value but was: " + arg);
+                }
+                String name = arg.substring(2, eq);
+                String value = arg.substring(eq + 1);
+                switch (name) {
+                    case "instances":
+                        config.instances = Integer.parseInt(value);
+                        break;
+                    case "services":
+                        config.services = Integer.parseInt(value);
+                        break;
+                    case "heartbeat-interval":
+                        config.heartbeatIntervalSeconds = Integer.parseInt(value);
+                        break;
+                    case "duration":
+                        config.durationSeconds = Integer.parseInt(value);
+                        break;
+                    case "report-interval":
+                        config.reportIntervalSeconds = Integer.parseInt(value);
+                        break;
+                    case "churn":
+                        config.churnPerSecond = Double.parseDouble(value);
+                        break;
+                    case "delta-fetch":
+                        config.deltaFetchPerSecond = Double.parseDouble(value);
+                        break;
+                    case "full-fetch":
+                        config.fullFetchPerSecond = Double.parseDouble(value);
+                        break;
+                    case "silent-percent":
+                        config.silentPercent = Integer.parseInt(value);
+                        break;
+                    case "silent-after":
+                        config.silentAfterSeconds = Integer.parseInt(value);
+                        break;
+                    case "threads":
+                        config.threads = Integer.parseInt(value);
+                        break;
+                    case "csv":
+                        config.csv = value;
+                        break;
+                    case "storage":
+                        if (!"heap".equals(value) && !"offheap".equals(value)) {
+                            throw new IllegalArgumentException("storage must be heap or offheap: " + value);
+                        }
+                        config.storage = value;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown option: " + name);
+                }
+            }
+            if (config.deltaFetchPerSecond < 0) {
+                config.deltaFetchPerSecond = (double) config.instances / config.heartbeatIntervalSeconds;
+            }
+            return config;
+        }
+
+        @Override
+        public String toString() {
+            return "instances=" + instances + ", services=" + services + ", heartbeatInterval="
+                    + heartbeatIntervalSeconds + "s, duration=" + durationSeconds + "s, churn=" + churnPerSecond
+                    + "/s, deltaFetch=" + deltaFetchPerSecond + "/s, fullFetch=" + fullFetchPerSecond
+                    + "/s, silent=" + silentPercent + "% after " + silentAfterSeconds + "s, threads=" + threads
+                    + ", storage=" + storage;
+        }
+    }
+}
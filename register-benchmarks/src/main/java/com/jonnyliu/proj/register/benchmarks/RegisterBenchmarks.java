@@ -0,0 +1,85 @@
+package com.jonnyliu.proj.register.benchmarks;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatFactory;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * 基准测试的入口: java -jar register-benchmarks/target/benchmarks.jar [JMH参数]
+ * <p>
+ * 不指定要跑的基准测试时跑全套,{@link ServiceRegistryBenchmark}按1、2、4...直到cpu核数的线程数各跑一遍。
+ * 所有结果合并写到一个文件里,默认是JSON格式的jmh-result.json,可以用-rf、-rff修改,
+ * 每次跑完把文件存下来就能对比不同提交之间的性能变化
+ *
+ * @author liujie
+ */
+public class RegisterBenchmarks {
+
+    /**
+     * 默认的结果文件
+     */
+    private static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+    public static void main(String[] args) throws CommandLineOptionException, RunnerException, IOException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        if (commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListProfilers()
+                || commandLine.shouldListResultFormats() || commandLine.shouldListWithParams()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        List<RunResult> results = new ArrayList<>();
+        if (commandLine.getIncludes().isEmpty()) {
+            for (int threads : threadCounts()) {
+                results.addAll(new Runner(new OptionsBuilder().parent(commandLine)
+                        .include(ServiceRegistryBenchmark.class.getSimpleName())
+                        .threads(threads)
+                        .build()).run());
+            }
+            results.addAll(new Runner(new OptionsBuilder().parent(commandLine)
+                    .include(HeartbeatBenchmark.class.getSimpleName())
+                    .include(RegistryFetchBenchmark.class.getSimpleName())
+                    .include(RegistryCodecBenchmark.class.getSimpleName())
+                    .include(RegistrySnapshotBenchmark.class.getSimpleName())
+                    .include(RegistryRecoveryBenchmark.class.getSimpleName())
+                    .include(RegistryWatchBenchmark.class.getSimpleName())
+                    .include(ClientDeltaMergeBenchmark.class.getSimpleName())
+                    .build()).run());
+        } else {
+            results.addAll(new Runner(commandLine).run());
+        }
+        writeResults(results, commandLine.getResultFormat().orElse(ResultFormatType.JSON),
+                commandLine.getResult().orElse(DEFAULT_RESULT_FILE));
+    }
+
+    /**
+     * 1、2、4...直到cpu核数
+     */
+    private static List<Integer> threadCounts() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        List<Integer> threadCounts = new ArrayList<>();
+        for (int threads = 1; threads < processors; threads <<= 1) {
+            threadCounts.add(threads);
+        }
+        threadCounts.add(processors);
+        return threadCounts;
+    }
+
+    private static void writeResults(Collection<RunResult> results, ResultFormatType format, String file)
+            throws IOException {
+        try (PrintStream out = new PrintStream(file, "UTF-8")) {
+            ResultFormatFactory.getInstance(format, out).writeOut(results);
+        }
+        System.out.println("benchmark results: " + file);
+    }
+}
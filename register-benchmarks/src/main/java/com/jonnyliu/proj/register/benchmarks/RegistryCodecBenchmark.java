@@ -0,0 +1,108 @@
+package com.jonnyliu.proj.register.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jonnyliu.proj.register.commons.Applications;
+import com.jonnyliu.proj.register.commons.RegistryCodec;
+import com.jonnyliu.proj.register.commons.RegistryHash;
+import com.jonnyliu.proj.register.commons.ServiceInstance;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 全量注册表的二进制编码和java序列化、JSON的编码、解码耗时对比
+ * <p>
+ * 每个实例的ip、主机名都不一样,几个实例共用一个主机名,和真实的注册表接近;编码之后的大小在RegistryCodecSizeTest里比较
+ *
+ * @author liujie
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class RegistryCodecBenchmark {
+
+    private static final int INSTANCES_PER_HOST = 4;
+
+    @Param({"10000", "100000"})
+    public int instanceCount;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private Applications applications;
+    private ByteBuffer binary;
+    private byte[] javaSerialized;
+    private byte[] json;
+
+    @Setup
+    public void setUp() throws IOException {
+        Map<String, Map<String, ServiceInstance>> registry = new HashMap<>();
+        for (int i = 0; i < instanceCount; i++) {
+            ServiceInstance serviceInstance = BenchmarkData.newInstance(BenchmarkData.serviceName(i),
+                    BenchmarkData.instanceId(i));
+            serviceInstance.setIp("10." + (i >>> 16 & 0xFF) + "." + (i >>> 8 & 0xFF) + "." + (i & 0xFF));
+            serviceInstance.setHostname("host-" + i / INSTANCES_PER_HOST + ".prod.example.com");
+            serviceInstance.setPort(8000 + i % 1000);
+            registry.computeIfAbsent(serviceInstance.getServiceName(), k -> new HashMap<>())
+                    .put(serviceInstance.getInstanceId(), serviceInstance);
+        }
+        applications = new Applications(registry, instanceCount, RegistryHash.compute(registry));
+        binary = RegistryCodec.encode(applications);
+        javaSerialized = javaSerializationEncode();
+        json = jsonEncode();
+    }
+
+    @Benchmark
+    public ByteBuffer binaryEncode() {
+        return RegistryCodec.encode(applications);
+    }
+
+    @Benchmark
+    public Applications binaryDecode() {
+        return RegistryCodec.decodeApplications(binary.duplicate());
+    }
+
+    @Benchmark
+    public byte[] javaSerializationEncode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(applications);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public Object javaSerializationDecode() throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(javaSerialized))) {
+            return in.readObject();
+        }
+    }
+
+    @Benchmark
+    public byte[] jsonEncode() throws IOException {
+        return objectMapper.writeValueAsBytes(applications);
+    }
+
+    @Benchmark
+    public Applications jsonDecode() throws IOException {
+        return objectMapper.readValue(json, Applications.class);
+    }
+}
@@ -0,0 +1,99 @@
+package com.jonnyliu.proj.register.benchmarks;
+
+import com.jonnyliu.proj.register.commons.Applications;
+import com.jonnyliu.proj.register.commons.DeltaRegistry;
+import com.jonnyliu.proj.register.commons.RegistryCodec;
+import com.jonnyliu.proj.register.server.RegistrySnapshot;
+import com.jonnyliu.proj.register.server.ResponseCache;
+import com.jonnyliu.proj.register.server.ServiceRegistry;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 全量拉取和增量拉取在不同注册表规模下的代价
+ * <p>
+ * 全量拉取分成缓存失效之后重新编码、命中缓存、客户端解码三部分,另外是只订阅了两个服务的客户端的全量拉取,
+ * 代价应该和注册表规模无关;增量拉取是最近{@link #DELTA_CHANGES}条变更的查询和编码
+ *
+ * @author liujie
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class RegistryFetchBenchmark {
+
+    /**
+     * 增量拉取带的变更条数
+     */
+    private static final int DELTA_CHANGES = 100;
+    /**
+     * 只订阅部分服务的客户端订阅的服务
+     */
+    private static final Set<String> SUBSCRIBED = new HashSet<>(Arrays.asList("service-1", "service-2"));
+
+    @Param({"1000", "10000", "100000"})
+    public int instanceCount;
+
+    private ServiceRegistry registry;
+    private ResponseCache responseCache;
+    private ByteBuffer fullPayload;
+
+    @Setup
+    public void setUp() {
+        registry = new ServiceRegistry();
+        responseCache = registry.getResponseCache();
+        BenchmarkData.registerAll(registry, BenchmarkData.newInstances(instanceCount));
+        fullPayload = responseCache.getFullRegistryPayload();
+    }
+
+    @TearDown
+    public void tearDown() {
+        responseCache.stop();
+    }
+
+    @Benchmark
+    public ByteBuffer fullFetchEncode() {
+        RegistrySnapshot snapshot = registry.getSnapshot();
+        return RegistryCodec.encode(new Applications(snapshot.getRegistry(), snapshot.getVersion(),
+                snapshot.getRegistryHash()));
+    }
+
+    @Benchmark
+    public ByteBuffer fullFetchCached() {
+        return responseCache.getFullRegistryPayload();
+    }
+
+    @Benchmark
+    public ByteBuffer subscribedFetch() {
+        return responseCache.getServiceRegistryPayload(SUBSCRIBED);
+    }
+
+    @Benchmark
+    public Applications fullFetchDecode() {
+        return RegistryCodec.decodeApplications(fullPayload.duplicate());
+    }
+
+    @Benchmark
+    public ByteBuffer deltaFetch() {
+        DeltaRegistry deltaRegistry = registry.getDeltaRegistry(registry.getVersion() - DELTA_CHANGES);
+        return RegistryCodec.encode(deltaRegistry);
+    }
+}
@@ -0,0 +1,144 @@
+package com.jonnyliu.proj.register.benchmarks;
+
+import com.jonnyliu.proj.register.commons.Applications;
+import com.jonnyliu.proj.register.commons.ChangedType;
+import com.jonnyliu.proj.register.commons.RegistryHash;
+import com.jonnyliu.proj.register.commons.ServiceInstance;
+import com.jonnyliu.proj.register.server.MappedSnapshotFile;
+import com.jonnyliu.proj.register.server.RegistryPersistence;
+import com.jonnyliu.proj.register.server.ServiceRegistry;
+import com.jonnyliu.proj.register.server.WriteAheadLog;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 持久化的代价: 写一次全量快照、追加一条预写日志,以及从快照加上{@link #LOG_TAIL}条日志恢复注册表
+ * <p>
+ * 追加日志的目录每轮迭代重新创建,避免日志文件一直变大
+ *
+ * @author liujie
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class RegistryRecoveryBenchmark {
+
+    /**
+     * 快照之后的日志条数
+     */
+    private static final int LOG_TAIL = 10000;
+    /**
+     * 追加多少条日志刷一次盘
+     */
+    private static final int FLUSH_BATCH = 10000;
+
+    @Param({"100000"})
+    public int instanceCount;
+
+    private File recoveryDirectory;
+    private File snapshotDirectory;
+    private File logDirectory;
+    private Applications applications;
+    private ServiceRegistry serviceRegistry;
+    private RegistryPersistence persistence;
+    private WriteAheadLog writeAheadLog;
+    private ServiceInstance[] instances;
+    private long version;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        instances = BenchmarkData.newInstances(instanceCount);
+        Map<String, Map<String, ServiceInstance>> registry = new HashMap<>();
+        for (ServiceInstance instance : instances) {
+            registry.computeIfAbsent(instance.getServiceName(), k -> new HashMap<>())
+                    .put(instance.getInstanceId(), instance);
+        }
+        applications = new Applications(registry, instanceCount, RegistryHash.compute(registry));
+
+        recoveryDirectory = Files.createTempDirectory("register-recovery").toFile();
+        snapshotDirectory = Files.createTempDirectory("register-snapshot").toFile();
+        new MappedSnapshotFile(new File(recoveryDirectory, "snapshot.dat")).write(applications);
+        WriteAheadLog tail = new WriteAheadLog(recoveryDirectory, instanceCount);
+        for (int i = 0; i < LOG_TAIL; i++) {
+            tail.append(ChangedType.REGISTER, instances[i % instanceCount], instanceCount + i + 1L);
+        }
+        tail.flush();
+        tail.close();
+        serviceRegistry = new ServiceRegistry();
+        persistence = new RegistryPersistence(recoveryDirectory, serviceRegistry);
+    }
+
+    @Setup(Level.Iteration)
+    public void openLog() throws IOException {
+        logDirectory = Files.createTempDirectory("register-log").toFile();
+        version = 0L;
+        writeAheadLog = new WriteAheadLog(logDirectory, version);
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeLog() {
+        writeAheadLog.close();
+        delete(logDirectory);
+    }
+
+    @TearDown
+    public void tearDown() {
+        serviceRegistry.getResponseCache().stop();
+        delete(recoveryDirectory);
+        delete(snapshotDirectory);
+    }
+
+    @Benchmark
+    public void writeSnapshot() throws IOException {
+        new MappedSnapshotFile(new File(snapshotDirectory, "snapshot.dat")).write(applications);
+    }
+
+    /**
+     * 追加只写内存,每FLUSH_BATCH条写一次段文件并刷盘,相当于一个刷盘间隔内攒下的一批变更
+     */
+    @Benchmark
+    public void appendLog() {
+        ServiceInstance instance = instances[next];
+        next = (next + 1) % instances.length;
+        writeAheadLog.append(ChangedType.REGISTER, instance, ++version);
+        if (version % FLUSH_BATCH == 0) {
+            writeAheadLog.flush();
+        }
+    }
+
+    @Benchmark
+    public Applications recover() throws IOException {
+        return persistence.recover();
+    }
+
+    private static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
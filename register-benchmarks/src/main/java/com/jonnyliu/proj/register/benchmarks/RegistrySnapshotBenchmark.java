@@ -0,0 +1,75 @@
+package com.jonnyliu.proj.register.benchmarks;
+
+import com.jonnyliu.proj.register.commons.ServiceInstance;
+import com.jonnyliu.proj.register.server.RegistrySnapshot;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 一次变更重建注册表快照的代价
+ * <p>
+ * 每个服务固定{@link #INSTANCES_PER_SERVICE}个实例,每次在下一个服务里替换一个实例。
+ * 重建只复制服务名称到实例表的映射,代价应该只随服务个数增长,和实例总数无关
+ *
+ * @author liujie
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegistrySnapshotBenchmark {
+
+    private static final int INSTANCES_PER_SERVICE = 10;
+
+    @Param({"100", "1000", "10000"})
+    public int serviceCount;
+
+    private RegistrySnapshot snapshot;
+    private String[] serviceNames;
+    private Map<String, ServiceInstance>[] services;
+    private long version;
+    private int next;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        snapshot = RegistrySnapshot.EMPTY;
+        serviceNames = new String[serviceCount];
+        services = (Map<String, ServiceInstance>[]) new Map<?, ?>[serviceCount];
+        for (int i = 0; i < serviceCount; i++) {
+            serviceNames[i] = "service-" + i;
+            services[i] = new HashMap<>();
+            for (int j = 0; j < INSTANCES_PER_SERVICE; j++) {
+                services[i].put("instance-" + j, BenchmarkData.newInstance(serviceNames[i], "instance-" + j));
+            }
+            snapshot = snapshot.withService(serviceNames[i], Collections.unmodifiableMap(new HashMap<>(services[i])),
+                    ++version, null, null);
+        }
+    }
+
+    @Benchmark
+    public RegistrySnapshot rebuild() {
+        int i = next;
+        next = (i + 1) % serviceCount;
+        ServiceInstance churn = BenchmarkData.newInstance(serviceNames[i], "churn");
+        ServiceInstance old = services[i].put("churn", churn);
+        snapshot = snapshot.withService(serviceNames[i], Collections.unmodifiableMap(new HashMap<>(services[i])),
+                ++version, old, churn);
+        return snapshot;
+    }
+}
@@ -0,0 +1,69 @@
+package com.jonnyliu.proj.register.benchmarks;
+
+import com.jonnyliu.proj.register.server.HttpResponder;
+import com.jonnyliu.proj.register.server.RegistryWatchManager;
+import com.jonnyliu.proj.register.server.ServiceRegistry;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 长轮询: 挂起一批watch请求,注册表发生一次变更之后把它们全部唤醒并返回增量的耗时
+ *
+ * @author liujie
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegistryWatchBenchmark {
+
+    @Param({"1000", "50000"})
+    public int watchCount;
+
+    private ServiceRegistry registry;
+    private RegistryWatchManager watchManager;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        registry = new ServiceRegistry();
+        watchManager = new RegistryWatchManager(registry);
+        registry.addChangeListener(watchManager);
+        watchManager.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        registry.removeChangeListener(watchManager);
+        watchManager.stop();
+        registry.getResponseCache().stop();
+    }
+
+    @Benchmark
+    public void parkAndWakeAll() throws InterruptedException {
+        CountDownLatch responses = new CountDownLatch(watchCount);
+        HttpResponder responder = response -> responses.countDown();
+        long version = registry.getVersion();
+        for (int i = 0; i < watchCount; i++) {
+            watchManager.watch(version, RegistryWatchManager.MAX_WATCH_TIMEOUT, responder);
+        }
+        registry.register(BenchmarkData.newInstance("watch-service", "instance-" + next++ % 100));
+        if (!responses.await(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException(responses.getCount() + " watches were not woken up");
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.jonnyliu.proj.register.benchmarks;
+
+import com.jonnyliu.proj.register.commons.ServiceInstance;
+import com.jonnyliu.proj.register.server.ServiceRegistry;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 注册表的注册、下线、续约、查询
+ * <p>
+ * 注册表在所有线程之间共享,线程数由{@link RegisterBenchmarks}从1到cpu核数依次跑一遍,
+ * 看加锁和发布快照在并发下的伸缩性。注册是覆盖已有的实例,下线之后马上重新注册,注册表的大小保持不变
+ *
+ * @author liujie
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServiceRegistryBenchmark {
+
+    @Param({"10000"})
+    public int instanceCount;
+
+    private ServiceRegistry registry;
+    private ServiceInstance[] instances;
+
+    @Setup
+    public void setUp() {
+        registry = new ServiceRegistry();
+        instances = BenchmarkData.newInstances(instanceCount);
+        BenchmarkData.registerAll(registry, instances);
+    }
+
+    @TearDown
+    public void tearDown() {
+        registry.getResponseCache().stop();
+    }
+
+    @Benchmark
+    public void register() {
+        registry.register(randomInstance());
+    }
+
+    @Benchmark
+    public void removeAndRegister() {
+        ServiceInstance instance = randomInstance();
+        registry.remove(instance.getServiceName(), instance.getInstanceId());
+        registry.register(instance);
+    }
+
+    @Benchmark
+    public boolean renew() {
+        ServiceInstance instance = randomInstance();
+        return registry.renew(instance.getServiceName(), instance.getInstanceId());
+    }
+
+    @Benchmark
+    public ServiceInstance getServiceInstance() {
+        ServiceInstance instance = randomInstance();
+        return registry.getServiceInstance(instance.getServiceName(), instance.getInstanceId());
+    }
+
+    private ServiceInstance randomInstance() {
+        return instances[ThreadLocalRandom.current().nextInt(instances.length)];
+    }
+}
@@ -0,0 +1,45 @@
+package com.jonnyliu.proj.register.benchmarks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collection;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+import org.junit.Test;
+
+/**
+ * 用JMH的GC profiler检查心跳续约的热点路径不分配对象
+ */
+public class HeartbeatAllocationTest {
+
+    /**
+     * JMH测量本身每次调用会摊到零点几个字节,超过这个值说明续约路径上有对象分配
+     */
+    private static final double MAX_BYTES_PER_OPERATION = 1D;
+
+    @Test
+    public void renewAllocatesNothing() throws Exception {
+        Collection<RunResult> results = new Runner(new OptionsBuilder()
+                .include(HeartbeatBenchmark.class.getName() + ".renew$")
+                .addProfiler(GCProfiler.class)
+                .forks(1)
+                .warmupIterations(3)
+                .warmupTime(TimeValue.seconds(1))
+                .measurementIterations(3)
+                .measurementTime(TimeValue.seconds(1))
+                .build()).run();
+
+        assertEquals(1, results.size());
+        RunResult result = results.iterator().next();
+        Result<?> allocated = result.getSecondaryResults().get("gc.alloc.rate.norm");
+        assertNotNull(result.getSecondaryResults().keySet().toString(), allocated);
+        assertTrue("renew allocates " + allocated.getScore() + " B/op",
+                allocated.getScore() < MAX_BYTES_PER_OPERATION);
+    }
+}
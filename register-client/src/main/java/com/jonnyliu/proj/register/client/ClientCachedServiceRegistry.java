@@ -4,16 +4,24 @@ import com.jonnyliu.proj.register.commons.Applications;
 import com.jonnyliu.proj.register.commons.ChangedType;
 import com.jonnyliu.proj.register.commons.DeltaRegistry;
 import com.jonnyliu.proj.register.commons.RecentlyChangedServiceInstance;
+import com.jonnyliu.proj.register.commons.RegistryHash;
 import com.jonnyliu.proj.register.commons.ServiceInstance;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicStampedReference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * 服务注册中心的客户端缓存的一个服务注册表
+ * <p>
+ * 可以只订阅这个服务需要调用的那几个服务,拉取的字节数和缓存占用的内存只和订阅的服务有关,
+ * 和整个集群的规模无关;没有订阅时缓存所有服务
  *
  * @author liujie
  */
@@ -22,16 +30,22 @@ public class ClientCachedServiceRegistry {
     private static final Logger log = LoggerFactory.getLogger(ClientCachedServiceRegistry.class);
 
     /**
-     * 服务注册表拉取间隔时间
+     * 长轮询增量注册表时,服务端最长挂起的时间
      */
-    private static final Long SERVICE_REGISTRY_FETCH_INTERVAL = 30 * 1000L;
+    private static final Long SERVICE_REGISTRY_WATCH_TIMEOUT = 30 * 1000L;
+    /**
+     * 拉取失败之后的重试间隔
+     */
+    private static final Long SERVICE_REGISTRY_RETRY_INTERVAL = 5 * 1000L;
     private static final String THREAD_FETCH_FULL_SERVICE_REGISTER = "THREAD-FETCH-FULL-SERVICE-REGISTER";
     private static final String THREAD_FETCH_DELTA_SERVICE_REGISTER = "THREAD-FETCH-DELTA-SERVICE-REGISTER";
 
     /**
      * 客户端缓存的服务注册表
+     * <p>
+     * 全量替换和增量合并都在这个对象的锁里进行,合并不会改到已经被替换掉的注册表上,替换也不会插进合并的中间
      */
-    private AtomicStampedReference<Applications> apps = new AtomicStampedReference<>(new Applications(), 0);
+    private final AtomicStampedReference<Applications> apps = new AtomicStampedReference<>(new Applications(), 0);
 
     /**
      * 拉取增量注册表信息的线程
@@ -45,10 +59,25 @@ public class ClientCachedServiceRegistry {
      * http通信组件
      */
     private HttpSender httpSender;
+    /**
+     * 订阅的服务名称,空表示订阅所有服务
+     */
+    private final Set<String> subscribedServiceNames;
 
     public ClientCachedServiceRegistry(RegisterClient registerClient, HttpSender httpSender) {
+        this(registerClient, httpSender, Collections.<String>emptySet());
+    }
+
+    /**
+     * @param registerClient         RegisterClient
+     * @param httpSender             http通信组件
+     * @param subscribedServiceNames 订阅的服务名称,空表示订阅所有服务
+     */
+    public ClientCachedServiceRegistry(RegisterClient registerClient, HttpSender httpSender,
+            Collection<String> subscribedServiceNames) {
         this.registerClient = registerClient;
         this.httpSender = httpSender;
+        this.subscribedServiceNames = Collections.unmodifiableSet(new LinkedHashSet<>(subscribedServiceNames));
     }
 
     /**
@@ -80,6 +109,57 @@ public class ClientCachedServiceRegistry {
         return apps.getReference().getRegistry();
     }
 
+    /**
+     * 用全量拉取的注册表替换本地缓存的注册表
+     *
+     * @param fetchedRegistry 全量注册表
+     */
+    public void replaceRegistry(Applications fetchedRegistry) {
+        synchronized (apps) {
+            apps.set(fetchedRegistry, apps.getStamp() + 1);
+        }
+    }
+
+    /**
+     * 增量注册表与本地注册表合并
+     *
+     * @param deltaRegistry 增量注册表
+     */
+    public void mergerDeltaRegistry(DeltaRegistry deltaRegistry) {
+        synchronized (apps) {
+            Applications current = apps.getReference();
+            Map<String, Map<String, ServiceInstance>> registry = current.getRegistry();
+            // 注册表的哈希值是每个实例哈希值的累加和,每条变更只需要O(1)的更新
+            long registryHash = current.getRegistryHash();
+            LinkedList<RecentlyChangedServiceInstance> recentlyChangedServiceInstances =
+                    deltaRegistry.getRecentlyChangedServiceInstances();
+            for (RecentlyChangedServiceInstance recentlyChangedServiceInstance : recentlyChangedServiceInstances) {
+                String changedType = recentlyChangedServiceInstance.getChangedType();
+                ServiceInstance serviceInstance = recentlyChangedServiceInstance.getServiceInstance();
+                if (ChangedType.REGISTER.equals(changedType)) {
+                    // 注册
+                    Map<String, ServiceInstance> serviceInstanceMap = registry.get(
+                            serviceInstance.getServiceName());
+                    if (serviceInstanceMap == null) {
+                        serviceInstanceMap = new HashMap<>();
+                    }
+                    ServiceInstance oldInstance = serviceInstanceMap.put(serviceInstance.getInstanceId(),
+                            serviceInstance);
+                    registry.put(serviceInstance.getServiceName(), serviceInstanceMap);
+                    registryHash = RegistryHash.update(registryHash, oldInstance, serviceInstance);
+                } else if (ChangedType.REMOVE.equals(changedType)) {
+                    if (registry.containsKey(serviceInstance.getServiceName())) {
+                        ServiceInstance removedInstance = registry.get(serviceInstance.getServiceName())
+                                .remove(serviceInstance.getInstanceId());
+                        registryHash = RegistryHash.update(registryHash, removedInstance, null);
+                    }
+                }
+            }
+            current.setVersion(deltaRegistry.getVersion());
+            current.setRegistryHash(registryHash);
+        }
+    }
+
     /**
      * 负责定时拉取注册表到本地来进行缓存(全量拉取)
      *
@@ -95,14 +175,7 @@ public class ClientCachedServiceRegistry {
         public void run() {
             try {
                 if (registerClient.isRunning()) {
-                    Applications newValue = httpSender.fetchFullServiceRegistry();
-                    while (true) {
-                        Applications expected = apps.getReference();
-                        int stamp = apps.getStamp();
-                        if (apps.compareAndSet(expected, newValue, stamp, stamp + 1)) {
-                            break;
-                        }
-                    }
+                    replaceRegistry(httpSender.fetchFullServiceRegistry(subscribedServiceNames));
                 }
             } catch (Exception e) {
                 log.error("fetch full service registry error", e);
@@ -111,7 +184,9 @@ public class ClientCachedServiceRegistry {
     }
 
     /**
-     * 负责定时拉取注册表到本地来进行缓存(增量拉取)
+     * 负责拉取注册表到本地来进行缓存(增量拉取)
+     * <p>
+     * 用长轮询代替定时拉取:服务端有新的变更时请求马上返回,没有变更时最多挂起30秒
      *
      * @author liujie
      */
@@ -125,89 +200,60 @@ public class ClientCachedServiceRegistry {
         public void run() {
             while (registerClient.isRunning()) {
                 try {
-                    Thread.sleep(SERVICE_REGISTRY_FETCH_INTERVAL);
                     /**
-                     * 最近变更的服务实例列表
+                     * 客户端最后看到的版本号之后的变更
                      */
-                    DeltaRegistry deltaRegistry = httpSender.fetchDeltaServiceRegistry();
+                    DeltaRegistry deltaRegistry = httpSender.watchDeltaServiceRegistry(
+                            apps.getReference().getVersion(), SERVICE_REGISTRY_WATCH_TIMEOUT, subscribedServiceNames);
+                    //版本号太旧,服务端已经没有对应的变更了,只能全量拉取
+                    if (deltaRegistry.isFullFetchRequired()) {
+                        log.info("client side registry version is too old, prepare to fetch full registry");
+                        replaceRegistry(httpSender.fetchFullServiceRegistry(subscribedServiceNames));
+                        continue;
+                    }
                     //增量注册表与本地缓存注册表合并
                     mergerDeltaRegistry(deltaRegistry);
                     //调整注册表
                     reconcileRegistryIfNecessary(deltaRegistry);
                 } catch (Exception e) {
                     log.error("error", e);
-                }
-            }
-        }
-
-        /**
-         * 调整注册表
-         *
-         * @param deltaRegistry 增量注册表
-         */
-        private void reconcileRegistryIfNecessary(DeltaRegistry deltaRegistry) {
-            // 服务端的实例总个数
-            Long serverSideServiceInstanceTotalCount = deltaRegistry.getServiceInstanceTotalCount();
-            // 客户端缓存的服务实例个数
-            Long clientSideServiceInstanceTotalCount = getClientSideServiceInstanceTotalCount();
-            //客户端和服务端的服务实例总个数不一致,则需要全量拉取
-            if (!serverSideServiceInstanceTotalCount.equals(clientSideServiceInstanceTotalCount)) {
-                log.info(
-                        "fetch delta registry, client side instance count: {} not equals server side instance count: {}, prepare to fetch full registry",
-                        clientSideServiceInstanceTotalCount, serverSideServiceInstanceTotalCount);
-                Applications fetchedRegistry = httpSender.fetchFullServiceRegistry();
-                while (true) {
-                    Applications expected = apps.getReference();
-                    int expectedStamp = apps.getStamp();
-                    if (apps.compareAndSet(expected, fetchedRegistry, expectedStamp, expectedStamp + 1)) {
-                        break;
+                    if (!sleepBeforeRetry()) {
+                        return;
                     }
                 }
             }
         }
 
         /**
-         * 获取客户端缓存的服务实例总数
+         * 拉取失败之后等一会儿再重试,避免服务端不可用时空转
          *
-         * @return 客户端缓存的服务实例总数
+         * @return 是否需要继续拉取, 线程被打断时返回false
          */
-        private Long getClientSideServiceInstanceTotalCount() {
-            Long total = 0L;
-            for (Map<String, ServiceInstance> instanceMap : apps.getReference().getRegistry().values()) {
-                total += instanceMap.size();
+        private boolean sleepBeforeRetry() {
+            try {
+                Thread.sleep(SERVICE_REGISTRY_RETRY_INTERVAL);
+                return true;
+            } catch (InterruptedException e) {
+                return false;
             }
-            return total;
         }
 
         /**
-         * 增量注册表与本地注册表
+         * 调整注册表
          *
          * @param deltaRegistry 增量注册表
          */
-        private void mergerDeltaRegistry(DeltaRegistry deltaRegistry) {
-            synchronized (apps) {
-                LinkedList<RecentlyChangedServiceInstance> recentlyChangedServiceInstances =
-                        deltaRegistry.getRecentlyChangedServiceInstances();
-                for (RecentlyChangedServiceInstance recentlyChangedServiceInstance : recentlyChangedServiceInstances) {
-                    String changedType = recentlyChangedServiceInstance.getChangedType();
-                    ServiceInstance serviceInstance = recentlyChangedServiceInstance.getServiceInstance();
-                    Map<String, Map<String, ServiceInstance>> registry = apps.getReference().getRegistry();
-                    if (ChangedType.REGISTER.equals(changedType)) {
-                        // 注册
-                        Map<String, ServiceInstance> serviceInstanceMap = registry.get(
-                                serviceInstance.getServiceName());
-                        if (serviceInstanceMap == null) {
-                            serviceInstanceMap = new HashMap<>();
-                        }
-                        serviceInstanceMap.put(serviceInstance.getInstanceId(), serviceInstance);
-                        registry.put(serviceInstance.getServiceName(), serviceInstanceMap);
-                    } else if (ChangedType.REMOVE.equals(serviceInstance.getServiceName())) {
-                        if (registry.containsKey(serviceInstance.getServiceName())) {
-                            registry.get(serviceInstance.getServiceName())
-                                    .remove(serviceInstance.getInstanceId());
-                        }
-                    }
-                }
+        private void reconcileRegistryIfNecessary(DeltaRegistry deltaRegistry) {
+            // 服务端注册表的哈希值
+            long serverSideRegistryHash = deltaRegistry.getRegistryHash();
+            // 客户端合并完增量之后的哈希值
+            long clientSideRegistryHash = apps.getReference().getRegistryHash();
+            //客户端和服务端的注册表内容不一致,则需要全量拉取
+            if (serverSideRegistryHash != clientSideRegistryHash) {
+                log.info(
+                        "fetch delta registry, client side registry hash: {} not equals server side registry hash: {}, prepare to fetch full registry",
+                        clientSideRegistryHash, serverSideRegistryHash);
+                replaceRegistry(httpSender.fetchFullServiceRegistry(subscribedServiceNames));
             }
         }
     }
@@ -1,22 +1,35 @@
 package com.jonnyliu.proj.register.client;
 
 import com.jonnyliu.proj.register.commons.Applications;
-import com.jonnyliu.proj.register.commons.ChangedType;
+import com.jonnyliu.proj.register.commons.BatchHeartbeatRequest;
+import com.jonnyliu.proj.register.commons.BatchHeartbeatResponse;
 import com.jonnyliu.proj.register.commons.DeltaRegistry;
 import com.jonnyliu.proj.register.commons.HeartbeatRequest;
 import com.jonnyliu.proj.register.commons.HeartbeatResponse;
-import com.jonnyliu.proj.register.commons.RecentlyChangedServiceInstance;
 import com.jonnyliu.proj.register.commons.RegisterRequest;
 import com.jonnyliu.proj.register.commons.RegisterResponse;
-import com.jonnyliu.proj.register.commons.ServiceInstance;
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import com.jonnyliu.proj.register.commons.RegistryCodec;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * 负责发送各种http请求的组件
+ * <p>
+ * 基于HttpURLConnection,每次都把响应读完并关闭输入流,底层的tcp连接会被放回keep-alive连接池复用
  *
  * @author liujie
  */
@@ -24,6 +37,28 @@ public class HttpSender {
 
     private static final Logger log = LoggerFactory.getLogger(HttpSender.class);
 
+    /**
+     * 默认的register-server地址
+     */
+    public static final String DEFAULT_SERVER_ADDRESS = "http://localhost:8080";
+    private static final int CONNECT_TIMEOUT = 3000;
+    private static final int READ_TIMEOUT = 10000;
+    private static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded";
+    private static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    /**
+     * register-server地址
+     */
+    private final String serverAddress;
+
+    public HttpSender() {
+        this(DEFAULT_SERVER_ADDRESS);
+    }
+
+    public HttpSender(String serverAddress) {
+        this.serverAddress = serverAddress;
+    }
+
 	/**
 	 * 发送注册请求
 	 *
@@ -31,14 +66,21 @@ public class HttpSender {
 	 * @return 注册响应
 	 */
 	public RegisterResponse register(RegisterRequest request) {
-		// 实际上会基于类似HttpClient这种开源的网络包
-		// 你可以去构造一个请求，里面放入这个服务实例的信息，比如服务名称，ip地址，端口号
-		// 然后通过这个请求发送过去
         log.info("服务实例【{}】，发送请求进行注册......", request);
 
 		// 收到register-server响应之后，封装一个Response对象
 		RegisterResponse response = new RegisterResponse();
-		response.setStatus(RegisterResponse.SUCCESS);
+		try {
+			String form = form("serviceName", request.getServiceName(),
+					"serviceInstanceId", request.getServiceInstanceId(),
+					"ip", request.getIp(),
+					"hostname", request.getHostname(),
+					"port", String.valueOf(request.getPort()));
+			response.setStatus(text(post("/register", form)));
+		} catch (IOException e) {
+			log.error("register error", e);
+			response.setStatus(RegisterResponse.FAILURE);
+		}
 
 		return response;
 	}
@@ -50,10 +92,46 @@ public class HttpSender {
      * @return 心跳响应
      */
     public HeartbeatResponse heartbeat(HeartbeatRequest request) {
-        log.info("服务实例【{}】，发送请求进行心跳......", request.getServiceInstanceId());
-
         HeartbeatResponse response = new HeartbeatResponse();
-        response.setStatus(RegisterResponse.SUCCESS);
+        try {
+            String form = form("serviceName", request.getServiceName(),
+                    "serviceInstanceId", request.getServiceInstanceId());
+            response.setStatus(text(post("/heartbeat", form)));
+        } catch (IOException e) {
+            log.error("heartbeat error", e);
+            response.setStatus(HeartbeatResponse.FAILURE);
+        }
+
+        return response;
+    }
+
+    /**
+     * 发送批量心跳请求,一次为多个服务实例续约
+     *
+     * @param request 批量心跳请求
+     * @return 每个服务实例的心跳结果
+     */
+    public BatchHeartbeatResponse heartbeat(BatchHeartbeatRequest request) {
+        BatchHeartbeatResponse response = new BatchHeartbeatResponse();
+        try {
+            String[] pairs = new String[request.getHeartbeatRequests().size() * 4];
+            int i = 0;
+            for (HeartbeatRequest heartbeatRequest : request.getHeartbeatRequests()) {
+                pairs[i++] = "serviceName";
+                pairs[i++] = heartbeatRequest.getServiceName();
+                pairs[i++] = "serviceInstanceId";
+                pairs[i++] = heartbeatRequest.getServiceInstanceId();
+            }
+            String statuses = text(post("/heartbeat/batch", form(pairs)));
+            if (!statuses.isEmpty()) {
+                response.getStatuses().addAll(Arrays.asList(statuses.split("\n")));
+            }
+        } catch (IOException e) {
+            log.error("batch heartbeat error", e);
+            for (int i = 0; i < request.getHeartbeatRequests().size(); i++) {
+                response.getStatuses().add(HeartbeatResponse.FAILURE);
+            }
+        }
 
         return response;
     }
@@ -64,51 +142,85 @@ public class HttpSender {
      * @return 全量注册表信息
      */
     public Applications fetchFullServiceRegistry() {
-        Map<String, Map<String, ServiceInstance>> registry =
-                new ConcurrentHashMap<>();
-
-        ServiceInstance serviceInstance = new ServiceInstance();
-        serviceInstance.setHostname("finance-service-01");
-        serviceInstance.setIp("192.168.31.207");
-        serviceInstance.setPort(9000);
-        serviceInstance.setInstanceId("FINANCE-SERVICE-192.168.31.207:9000");
-        serviceInstance.setServiceName("FINANCE-SERVICE");
-
-        Map<String, ServiceInstance> serviceInstances = new ConcurrentHashMap<>();
-        serviceInstances.put("FINANCE-SERVICE-192.168.31.207:9000", serviceInstance);
-
-        registry.put("FINANCE-SERVICE", serviceInstances);
-
-        log.info("拉取全量注册表：{}", registry);
+        return fetchFullServiceRegistry(null);
+    }
 
-        return new Applications(registry);
+    /**
+     * 拉取只包含订阅的服务的全量注册表信息
+     *
+     * @param serviceNames 订阅的服务名称, null或者空表示所有服务
+     * @return 全量注册表信息
+     */
+    public Applications fetchFullServiceRegistry(Collection<String> serviceNames) {
+        try {
+            // 解码出来的注册表是可以修改的,客户端在本地合并增量
+            Applications applications = RegistryCodec.decodeApplications(
+                    ByteBuffer.wrap(get("/registry/full" + serviceQuery('?', serviceNames), ACCEPT_ENCODING)));
+            log.info("拉取全量注册表,版本号: {}", applications.getVersion());
+            return applications;
+        } catch (IOException e) {
+            throw new IllegalStateException("fetch full registry error", e);
+        }
     }
 
     /**
      * 增量拉取服务注册表
      *
+     * @param sinceVersion 客户端最后看到的注册表版本号
      * @return 增量注册表
      */
-    public DeltaRegistry fetchDeltaServiceRegistry() {
-        LinkedList<RecentlyChangedServiceInstance> recentlyChangedQueue =
-                new LinkedList<>();
-
-        ServiceInstance serviceInstance = new ServiceInstance();
-        serviceInstance.setHostname("order-service-01");
-        serviceInstance.setIp("192.168.31.288");
-        serviceInstance.setPort(9000);
-        serviceInstance.setInstanceId("ORDER-SERVICE-192.168.31.288:9000");
-        serviceInstance.setServiceName("ORDER-SERVICE");
-
-        RecentlyChangedServiceInstance recentlyChangedItem = new RecentlyChangedServiceInstance(
-                serviceInstance,
-                ChangedType.REGISTER);
+    public DeltaRegistry fetchDeltaServiceRegistry(long sinceVersion) {
+        return fetchDeltaServiceRegistry(sinceVersion, null);
+    }
 
-        recentlyChangedQueue.add(recentlyChangedItem);
+    /**
+     * 增量拉取只涉及订阅的服务的服务注册表
+     *
+     * @param sinceVersion 客户端最后看到的注册表版本号
+     * @param serviceNames 订阅的服务名称, null或者空表示所有服务
+     * @return 增量注册表
+     */
+    public DeltaRegistry fetchDeltaServiceRegistry(long sinceVersion, Collection<String> serviceNames) {
+        try {
+            DeltaRegistry deltaRegistry = RegistryCodec.decodeDeltaRegistry(ByteBuffer.wrap(get(
+                    "/registry/delta?sinceVersion=" + sinceVersion + serviceQuery('&', serviceNames), null)));
+            log.info("拉取增量注册表,变更个数: {}", deltaRegistry.getRecentlyChangedServiceInstances().size());
+            return deltaRegistry;
+        } catch (IOException e) {
+            throw new IllegalStateException("fetch delta registry error", e);
+        }
+    }
 
-        log.info("拉取增量注册表：{}", recentlyChangedQueue);
+    /**
+     * 长轮询增量注册表: 服务端有比sinceVersion更新的变更时马上返回,否则最多挂起timeoutMillis再返回
+     *
+     * @param sinceVersion  客户端最后看到的注册表版本号
+     * @param timeoutMillis 最长挂起时间
+     * @return 增量注册表
+     */
+    public DeltaRegistry watchDeltaServiceRegistry(long sinceVersion, long timeoutMillis) {
+        return watchDeltaServiceRegistry(sinceVersion, timeoutMillis, null);
+    }
 
-        return new DeltaRegistry(recentlyChangedQueue, 2L);
+    /**
+     * 长轮询只涉及订阅的服务的增量注册表: 订阅的服务有变更时马上返回,否则最多挂起timeoutMillis再返回
+     *
+     * @param sinceVersion  客户端最后看到的注册表版本号
+     * @param timeoutMillis 最长挂起时间
+     * @param serviceNames  订阅的服务名称, null或者空表示所有服务
+     * @return 增量注册表
+     */
+    public DeltaRegistry watchDeltaServiceRegistry(long sinceVersion, long timeoutMillis,
+            Collection<String> serviceNames) {
+        try {
+            HttpURLConnection connection = open("/registry/watch?sinceVersion=" + sinceVersion
+                    + "&timeout=" + timeoutMillis + serviceQuery('&', serviceNames));
+            connection.setReadTimeout((int) (timeoutMillis + READ_TIMEOUT));
+            connection.setRequestMethod("GET");
+            return RegistryCodec.decodeDeltaRegistry(ByteBuffer.wrap(readResponse(connection)));
+        } catch (IOException e) {
+            throw new IllegalStateException("watch delta registry error", e);
+        }
     }
 
     /**
@@ -119,5 +231,116 @@ public class HttpSender {
      */
     public void cancel(String serviceName, String instanceId) {
         log.info("服务实例下线：serviceName: [{}], 实例ID: [{}]", serviceName, instanceId);
+        try {
+            post("/cancel", form("serviceName", serviceName, "serviceInstanceId", instanceId));
+        } catch (IOException e) {
+            log.error("cancel error", e);
+        }
+    }
+
+    /**
+     * @param acceptEncoding 接受的压缩方式, null表示不压缩
+     */
+    private byte[] get(String path, String acceptEncoding) throws IOException {
+        HttpURLConnection connection = open(path);
+        connection.setRequestMethod("GET");
+        if (acceptEncoding != null) {
+            connection.setRequestProperty("Accept-Encoding", acceptEncoding);
+        }
+        return readResponse(connection);
+    }
+
+    private byte[] post(String path, String form) throws IOException {
+        HttpURLConnection connection = open(path);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", FORM_CONTENT_TYPE);
+        byte[] body = form.getBytes(StandardCharsets.UTF_8);
+        connection.setFixedLengthStreamingMode(body.length);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body);
+        }
+        return readResponse(connection);
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(serverAddress + path).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        return connection;
+    }
+
+    /**
+     * 读完响应体并关闭输入流,连接才会被放回连接池;响应体压缩过的话透明解压
+     */
+    private byte[] readResponse(HttpURLConnection connection) throws IOException {
+        int status = connection.getResponseCode();
+        InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        String contentEncoding = connection.getContentEncoding();
+        if (in != null && "gzip".equalsIgnoreCase(contentEncoding)) {
+            in = new GZIPInputStream(in);
+        } else if (in != null && "deflate".equalsIgnoreCase(contentEncoding)) {
+            in = new InflaterInputStream(in);
+        }
+        byte[] body = readFully(in);
+        if (status >= 400) {
+            throw new IOException("register-server response status " + status + ": "
+                    + new String(body, StandardCharsets.UTF_8));
+        }
+        return body;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        if (in == null) {
+            return new byte[0];
+        }
+        try (InputStream input = in) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = input.read(buffer)) != -1) {
+                bytes.write(buffer, 0, n);
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    private static String text(byte[] body) {
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 订阅的服务名称拼成url参数
+     *
+     * @param separator    第一个参数前面的分隔符
+     * @param serviceNames 订阅的服务名称
+     * @return url参数, 没有订阅时是空字符串
+     */
+    private static String serviceQuery(char separator, Collection<String> serviceNames)
+            throws UnsupportedEncodingException {
+        if (serviceNames == null || serviceNames.isEmpty()) {
+            return "";
+        }
+        StringBuilder query = new StringBuilder();
+        for (String serviceName : serviceNames) {
+            query.append(query.length() == 0 ? separator : '&').append("serviceName=")
+                    .append(URLEncoder.encode(serviceName, "UTF-8"));
+        }
+        return query.toString();
+    }
+
+    private static String form(String... nameValues) throws UnsupportedEncodingException {
+        StringBuilder form = new StringBuilder();
+        for (int i = 0; i < nameValues.length; i += 2) {
+            if (nameValues[i + 1] == null) {
+                continue;
+            }
+            if (form.length() > 0) {
+                form.append('&');
+            }
+            form.append(URLEncoder.encode(nameValues[i], "UTF-8")).append('=')
+                    .append(URLEncoder.encode(nameValues[i + 1], "UTF-8"));
+        }
+        return form.toString();
     }
-}
\ No newline at end of file
+}
@@ -4,6 +4,8 @@ import com.jonnyliu.proj.register.commons.HeartbeatRequest;
 import com.jonnyliu.proj.register.commons.HeartbeatResponse;
 import com.jonnyliu.proj.register.commons.RegisterRequest;
 import com.jonnyliu.proj.register.commons.RegisterResponse;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.UUID;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,10 +49,17 @@ public class RegisterClient {
     private String serviceInstanceId;
 
     public RegisterClient() {
+        this(Collections.<String>emptySet());
+    }
+
+    /**
+     * @param subscribedServiceNames 这个服务要调用的服务名称,只缓存这些服务的注册表;空表示缓存所有服务
+     */
+    public RegisterClient(Collection<String> subscribedServiceNames) {
         this.serviceInstanceId = UUID.randomUUID().toString().replace("-", "");
         this.httpSender = new HttpSender();
         this.heartbeatWorker = new HeartbeatWorker("THREAD-HEARTBEAT");
-        this.registry = new ClientCachedServiceRegistry(this, httpSender);
+        this.registry = new ClientCachedServiceRegistry(this, httpSender, subscribedServiceNames);
     }
 
     /**
@@ -0,0 +1,142 @@
+package com.jonnyliu.proj.register.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.jonnyliu.proj.register.commons.Applications;
+import com.jonnyliu.proj.register.commons.BatchHeartbeatRequest;
+import com.jonnyliu.proj.register.commons.BatchHeartbeatResponse;
+import com.jonnyliu.proj.register.commons.ChangedType;
+import com.jonnyliu.proj.register.commons.DeltaRegistry;
+import com.jonnyliu.proj.register.commons.HeartbeatRequest;
+import com.jonnyliu.proj.register.commons.HeartbeatResponse;
+import com.jonnyliu.proj.register.commons.RegisterRequest;
+import com.jonnyliu.proj.register.commons.RegisterResponse;
+import com.jonnyliu.proj.register.commons.RegistryHash;
+import com.jonnyliu.proj.register.server.RegisterServer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 在本机回环地址上启动register-server,通过HttpSender走一遍完整的http调用
+ */
+public class HttpSenderTest {
+
+    private static final String SERVICE_NAME = "http-sender-service";
+
+    private RegisterServer registerServer;
+    private HttpSender httpSender;
+
+    @Before
+    public void setUp() throws Exception {
+        registerServer = new RegisterServer(0, 2);
+        registerServer.start();
+        httpSender = new HttpSender("http://127.0.0.1:" + registerServer.getPort());
+    }
+
+    @After
+    public void tearDown() {
+        registerServer.stop();
+    }
+
+    @Test
+    public void registerHeartbeatFetchAndCancelOverLoopback() {
+        assertEquals(RegisterResponse.SUCCESS, httpSender.register(registerRequest("http-sender-instance-1")).getStatus());
+        assertEquals(RegisterResponse.SUCCESS, httpSender.register(registerRequest("http-sender-instance-2")).getStatus());
+
+        HeartbeatRequest heartbeatRequest = new HeartbeatRequest();
+        heartbeatRequest.setServiceName(SERVICE_NAME);
+        heartbeatRequest.setServiceInstanceId("http-sender-instance-1");
+        assertEquals(HeartbeatResponse.SUCCESS, httpSender.heartbeat(heartbeatRequest).getStatus());
+
+        BatchHeartbeatRequest batchHeartbeatRequest = new BatchHeartbeatRequest();
+        batchHeartbeatRequest.add(SERVICE_NAME, "http-sender-instance-1");
+        batchHeartbeatRequest.add(SERVICE_NAME, "http-sender-instance-2");
+        batchHeartbeatRequest.add(SERVICE_NAME, "unknown-instance");
+        BatchHeartbeatResponse batchHeartbeatResponse = httpSender.heartbeat(batchHeartbeatRequest);
+        assertEquals(3, batchHeartbeatResponse.getStatuses().size());
+        assertEquals(2, batchHeartbeatResponse.getSuccessCount());
+
+        Applications applications = httpSender.fetchFullServiceRegistry();
+        assertEquals(2, applications.getRegistry().get(SERVICE_NAME).size());
+        assertEquals("10.0.0.1", applications.getRegistry().get(SERVICE_NAME).get("http-sender-instance-1").getIp());
+        assertTrue(applications.getVersion() >= 2);
+
+        // 全量注册表走只读缓存,下线之后用版本号增量拉取确认
+        httpSender.cancel(SERVICE_NAME, "http-sender-instance-1");
+        DeltaRegistry deltaRegistry = httpSender.fetchDeltaServiceRegistry(applications.getVersion());
+        assertFalse(deltaRegistry.isFullFetchRequired());
+        assertEquals(1, deltaRegistry.getRecentlyChangedServiceInstances().size());
+        assertEquals(ChangedType.REMOVE,
+                deltaRegistry.getRecentlyChangedServiceInstances().get(0).getChangedType());
+        assertEquals(applications.getVersion() + 1, deltaRegistry.getVersion());
+    }
+
+    @Test
+    public void watchReturnsAsSoonAsTheRegistryChanges() throws Exception {
+        long version = httpSender.watchDeltaServiceRegistry(0L, 0L).getVersion();
+        Thread registerThread = new Thread(() -> {
+            try {
+                Thread.sleep(300);
+            } catch (InterruptedException e) {
+                return;
+            }
+            RegisterRequest registerRequest = registerRequest("http-sender-watched");
+            registerRequest.setServiceName("http-sender-watch-service");
+            httpSender.register(registerRequest);
+        });
+        registerThread.start();
+
+        long start = System.currentTimeMillis();
+        DeltaRegistry deltaRegistry = httpSender.watchDeltaServiceRegistry(version, 20000L);
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertEquals(version + 1, deltaRegistry.getVersion());
+        assertEquals("http-sender-watched",
+                deltaRegistry.getRecentlyChangedServiceInstances().get(0).getServiceInstance().getInstanceId());
+        assertTrue("elapsed " + elapsed, elapsed < 10000L);
+        registerThread.join();
+    }
+
+    @Test
+    public void subscribedFetchOnlyCarriesSubscribedServices() {
+        List<String> subscribed = Arrays.asList("http-sender-subscribed-a", "http-sender-subscribed-b");
+        for (String serviceName : Arrays.asList("http-sender-subscribed-a", "http-sender-unsubscribed")) {
+            RegisterRequest registerRequest = registerRequest(serviceName + "-1");
+            registerRequest.setServiceName(serviceName);
+            httpSender.register(registerRequest);
+        }
+
+        Applications applications = httpSender.fetchFullServiceRegistry(subscribed);
+        assertEquals(Collections.singleton("http-sender-subscribed-a"), applications.getRegistry().keySet());
+        assertEquals(RegistryHash.compute(applications.getRegistry()), applications.getRegistryHash());
+
+        RegisterRequest registerRequest = registerRequest("http-sender-subscribed-b-1");
+        registerRequest.setServiceName("http-sender-subscribed-b");
+        httpSender.register(registerRequest);
+        registerRequest = registerRequest("http-sender-unsubscribed-2");
+        registerRequest.setServiceName("http-sender-unsubscribed");
+        httpSender.register(registerRequest);
+
+        DeltaRegistry deltaRegistry = httpSender.fetchDeltaServiceRegistry(applications.getVersion(), subscribed);
+        assertEquals(applications.getVersion() + 2, deltaRegistry.getVersion());
+        assertEquals(1, deltaRegistry.getRecentlyChangedServiceInstances().size());
+        assertEquals("http-sender-subscribed-b-1",
+                deltaRegistry.getRecentlyChangedServiceInstances().get(0).getServiceInstance().getInstanceId());
+    }
+
+    private static RegisterRequest registerRequest(String instanceId) {
+        RegisterRequest registerRequest = new RegisterRequest();
+        registerRequest.setServiceName(SERVICE_NAME);
+        registerRequest.setServiceInstanceId(instanceId);
+        registerRequest.setIp("10.0.0.1");
+        registerRequest.setHostname(instanceId);
+        registerRequest.setPort(9000);
+        return registerRequest;
+    }
+}
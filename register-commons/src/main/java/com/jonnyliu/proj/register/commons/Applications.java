@@ -11,6 +11,16 @@ public class Applications implements Serializable {
 
     private Map<String, Map<String, ServiceInstance>> registry = new ConcurrentHashMap<>();
 
+    /**
+     * 注册表的版本号,即已经包含的最后一次变更的序列号
+     */
+    private volatile long version;
+
+    /**
+     * 注册表内容的哈希值,参见{@link RegistryHash}
+     */
+    private volatile long registryHash;
+
     public Applications() {
     }
 
@@ -19,7 +29,30 @@ public class Applications implements Serializable {
         this.registry = registry;
     }
 
+    public Applications(
+            Map<String, Map<String, ServiceInstance>> registry, long version, long registryHash) {
+        this.registry = registry;
+        this.version = version;
+        this.registryHash = registryHash;
+    }
+
     public Map<String, Map<String, ServiceInstance>> getRegistry() {
         return registry;
     }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    public long getRegistryHash() {
+        return registryHash;
+    }
+
+    public void setRegistryHash(long registryHash) {
+        this.registryHash = registryHash;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,44 @@
+package com.jonnyliu.proj.register.commons;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 批量心跳请求,一次请求为多个服务实例续约
+ *
+ * @author liujie
+ */
+public class BatchHeartbeatRequest {
+
+    /**
+     * 每个服务实例的心跳请求
+     */
+    private List<HeartbeatRequest> heartbeatRequests = new ArrayList<>();
+
+    public List<HeartbeatRequest> getHeartbeatRequests() {
+        return heartbeatRequests;
+    }
+
+    public void setHeartbeatRequests(List<HeartbeatRequest> heartbeatRequests) {
+        this.heartbeatRequests = heartbeatRequests;
+    }
+
+    /**
+     * 添加一个服务实例的心跳
+     *
+     * @param serviceName       服务名称
+     * @param serviceInstanceId 服务实例id
+     */
+    public void add(String serviceName, String serviceInstanceId) {
+        HeartbeatRequest heartbeatRequest = new HeartbeatRequest();
+        heartbeatRequest.setServiceName(serviceName);
+        heartbeatRequest.setServiceInstanceId(serviceInstanceId);
+        heartbeatRequests.add(heartbeatRequest);
+    }
+
+    @Override
+    public String toString() {
+        return "BatchHeartbeatRequest [heartbeatRequests=" + heartbeatRequests + "]";
+    }
+
+}
@@ -0,0 +1,47 @@
+package com.jonnyliu.proj.register.commons;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 批量心跳响应
+ *
+ * @author liujie
+ */
+public class BatchHeartbeatResponse {
+
+    /**
+     * 每个服务实例的心跳状态：{@link HeartbeatResponse#SUCCESS}、{@link HeartbeatResponse#FAILURE},
+     * 顺序与请求中的顺序一致
+     */
+    private List<String> statuses = new ArrayList<>();
+
+    public List<String> getStatuses() {
+        return statuses;
+    }
+
+    public void setStatuses(List<String> statuses) {
+        this.statuses = statuses;
+    }
+
+    /**
+     * 续约成功的实例个数
+     *
+     * @return 成功个数
+     */
+    public int getSuccessCount() {
+        int count = 0;
+        for (String status : statuses) {
+            if (HeartbeatResponse.SUCCESS.equals(status)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchHeartbeatResponse [statuses=" + statuses + "]";
+    }
+
+}
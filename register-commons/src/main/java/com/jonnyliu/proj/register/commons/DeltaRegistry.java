@@ -1,5 +1,6 @@
 package com.jonnyliu.proj.register.commons;
 
+import java.io.Serializable;
 import java.util.LinkedList;
 
 /**
@@ -7,7 +8,7 @@ import java.util.LinkedList;
  *
  * @author liujie
  */
-public class DeltaRegistry {
+public class DeltaRegistry implements Serializable {
 
     /**
      * 最近变更的服务实例队列
@@ -17,12 +18,33 @@ public class DeltaRegistry {
      * 服务端的实例总数,用于纠正客户端缓存的注册信息
      */
     private final Long serviceInstanceTotalCount;
+    /**
+     * 合并完这批变更之后客户端注册表的版本号,下次增量拉取时带上
+     */
+    private final long version;
+    /**
+     * 服务端注册表在这个版本号时的内容哈希值,客户端合并完之后用来校验
+     */
+    private final long registryHash;
+    /**
+     * 客户端的版本号太旧,服务端已经没有对应的变更记录,需要全量拉取
+     */
+    private final boolean fullFetchRequired;
 
     public DeltaRegistry(
             LinkedList<RecentlyChangedServiceInstance> recentlyChangedServiceInstances,
             Long serviceInstanceTotalCount) {
+        this(recentlyChangedServiceInstances, serviceInstanceTotalCount, 0L, 0L, false);
+    }
+
+    public DeltaRegistry(
+            LinkedList<RecentlyChangedServiceInstance> recentlyChangedServiceInstances,
+            Long serviceInstanceTotalCount, long version, long registryHash, boolean fullFetchRequired) {
         this.recentlyChangedServiceInstances = recentlyChangedServiceInstances;
         this.serviceInstanceTotalCount = serviceInstanceTotalCount;
+        this.version = version;
+        this.registryHash = registryHash;
+        this.fullFetchRequired = fullFetchRequired;
     }
 
     public LinkedList<RecentlyChangedServiceInstance> getRecentlyChangedServiceInstances() {
@@ -33,4 +55,16 @@ public class DeltaRegistry {
         return serviceInstanceTotalCount;
     }
 
+    public long getVersion() {
+        return version;
+    }
+
+    public long getRegistryHash() {
+        return registryHash;
+    }
+
+    public boolean isFullFetchRequired() {
+        return fullFetchRequired;
+    }
+
 }
\ No newline at end of file
@@ -1,5 +1,6 @@
 package com.jonnyliu.proj.register.commons;
 
+import java.io.Serializable;
 import java.util.StringJoiner;
 
 /**
@@ -7,7 +8,7 @@ import java.util.StringJoiner;
  *
  * @author liujie
  */
-public class RecentlyChangedServiceInstance {
+public class RecentlyChangedServiceInstance implements Serializable {
 
     /**
      * 服务实例
@@ -24,10 +25,25 @@ public class RecentlyChangedServiceInstance {
      */
     private final String changedType;
 
+    /**
+     * 变更的序列号,服务端单调递增,同时也是这次变更之后注册表的版本号
+     */
+    private final long version;
+
     public RecentlyChangedServiceInstance(ServiceInstance serviceInstance, String changedType) {
-        this.changedTimestamp = System.currentTimeMillis();
+        this(serviceInstance, changedType, 0L);
+    }
+
+    public RecentlyChangedServiceInstance(ServiceInstance serviceInstance, String changedType, long version) {
+        this(serviceInstance, changedType, version, System.currentTimeMillis());
+    }
+
+    public RecentlyChangedServiceInstance(ServiceInstance serviceInstance, String changedType, long version,
+            long changedTimestamp) {
+        this.changedTimestamp = changedTimestamp;
         this.serviceInstance = serviceInstance;
         this.changedType = changedType;
+        this.version = version;
     }
 
     public ServiceInstance getServiceInstance() {
@@ -42,12 +58,17 @@ public class RecentlyChangedServiceInstance {
         return changedType;
     }
 
+    public long getVersion() {
+        return version;
+    }
+
     @Override
     public String toString() {
         return new StringJoiner(", ", RecentlyChangedServiceInstance.class.getSimpleName() + "[", "]")
                 .add("serviceInstance=" + serviceInstance)
                 .add("changedTimestamp=" + changedTimestamp)
                 .add("changedType='" + changedType + "'")
+                .add("version=" + version)
                 .toString();
     }
 }
\ No newline at end of file
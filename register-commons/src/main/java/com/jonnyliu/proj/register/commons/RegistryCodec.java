@@ -0,0 +1,568 @@
+package com.jonnyliu.proj.register.commons;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 注册表的二进制编解码,用于register-server和register-client之间传输全量和增量注册表
+ * <p>
+ * 整数都用varint编码;服务名称、主机名、变更类型这类大量重复的字符串放进每个payload自己的字典,
+ * 第一次出现时写原文,之后只写编号;IPv4地址打包成4个字节。直接读写{@link ByteBuffer},
+ * 不经过中间的字节数组或者流
+ * <p>
+ * 格式:
+ * <pre>
+ * 全量: TYPE_APPLICATIONS version registryHash(8字节) 服务个数 {服务名称 实例个数 {实例}}
+ * 按服务拼成的全量: TYPE_SERVICE_APPLICATIONS version registryHash(8字节) 服务个数 {字节数 单个服务}
+ * 单个服务: TYPE_SERVICE 服务名称 实例个数 {实例}
+ * 增量: TYPE_DELTA_REGISTRY version registryHash(8字节) fullFetchRequired 实例总数 变更个数
+ *       {变更类型 变更版本号 变更时间戳 服务名称 实例}
+ * 实例: instanceId ip hostname port
+ * </pre>
+ * 单个服务用自己的字典独立编码,服务端按服务缓存编码结果,只订阅了部分服务的客户端拉取时直接拼起来;
+ * 租约只在服务端有意义,不参与编码
+ * <p>
+ * 全量注册表和单个服务的编码结果会被服务端长期缓存、被很多响应共享,放在大小正好的direct buffer里;
+ * 增量注册表和按服务拼成的全量是每个请求各自编码、用完就丢的,放在堆上,不占用direct内存
+ *
+ * @author liujie
+ */
+public final class RegistryCodec {
+
+    private static final byte TYPE_APPLICATIONS = 1;
+    private static final byte TYPE_DELTA_REGISTRY = 2;
+    private static final byte TYPE_SERVICE = 3;
+    private static final byte TYPE_SERVICE_APPLICATIONS = 4;
+
+    private static final byte IP_NULL = 0;
+    private static final byte IP_V4 = 1;
+    private static final byte IP_TEXT = 2;
+
+    /**
+     * 预估的每个实例编码之后的字节数,用来分配缓冲区,不够时会翻倍重试
+     */
+    private static final int ESTIMATED_INSTANCE_SIZE = 48;
+    private static final int HEADER_SIZE = 64;
+
+    private RegistryCodec() {
+    }
+
+    /**
+     * 把全量注册表编码到一个新分配的direct buffer里,先在堆上编码,再复制到大小正好的direct buffer
+     *
+     * @param applications 全量注册表
+     * @return 编码之后的字节, position为0, limit为结尾
+     */
+    public static ByteBuffer encode(Applications applications) {
+        int instanceCount = 0;
+        for (Map<String, ServiceInstance> instances : applications.getRegistry().values()) {
+            instanceCount += instances.size();
+        }
+        int capacity = HEADER_SIZE + instanceCount * ESTIMATED_INSTANCE_SIZE;
+        while (true) {
+            ByteBuffer buffer = ByteBuffer.allocate(capacity);
+            try {
+                encode(applications, buffer);
+                buffer.flip();
+                return toDirect(buffer);
+            } catch (BufferOverflowException e) {
+                capacity *= 2;
+            }
+        }
+    }
+
+    /**
+     * 把增量注册表编码到一个新分配的堆上的buffer里
+     *
+     * @param deltaRegistry 增量注册表
+     * @return 编码之后的字节, position为0, limit为结尾
+     */
+    public static ByteBuffer encode(DeltaRegistry deltaRegistry) {
+        List<RecentlyChangedServiceInstance> changes = deltaRegistry.getRecentlyChangedServiceInstances();
+        int capacity = HEADER_SIZE + (changes == null ? 0 : changes.size()) * (ESTIMATED_INSTANCE_SIZE + 16);
+        while (true) {
+            ByteBuffer buffer = ByteBuffer.allocate(capacity);
+            try {
+                encode(deltaRegistry, buffer);
+                buffer.flip();
+                return buffer;
+            } catch (BufferOverflowException e) {
+                capacity *= 2;
+            }
+        }
+    }
+
+    /**
+     * 把一个服务的所有实例单独编码到一个新分配的direct buffer里,先在堆上编码,再复制到大小正好的direct buffer
+     *
+     * @param serviceName 服务名称
+     * @param instances   这个服务的所有实例
+     * @return 编码之后的字节, position为0, limit为结尾
+     */
+    public static ByteBuffer encodeService(String serviceName, Map<String, ServiceInstance> instances) {
+        int capacity = HEADER_SIZE + instances.size() * ESTIMATED_INSTANCE_SIZE;
+        while (true) {
+            ByteBuffer buffer = ByteBuffer.allocate(capacity);
+            try {
+                Writer writer = new Writer(buffer);
+                buffer.put(TYPE_SERVICE);
+                writer.writeDictionaryString(serviceName);
+                writer.writeVarInt(instances.size());
+                for (ServiceInstance serviceInstance : instances.values()) {
+                    writer.writeInstance(serviceInstance);
+                }
+                buffer.flip();
+                return toDirect(buffer);
+            } catch (BufferOverflowException e) {
+                capacity *= 2;
+            }
+        }
+    }
+
+    /**
+     * 把单独编码好的多个服务拼成一个全量注册表,用{@link #decodeApplications(ByteBuffer)}解码,结果放在堆上
+     *
+     * @param version      注册表的版本号
+     * @param registryHash 这些服务的哈希值之和
+     * @param services     {@link #encodeService(String, Map)}编码好的服务,不会修改它们的position
+     * @return 编码之后的字节, position为0, limit为结尾
+     */
+    public static ByteBuffer encodeServices(long version, long registryHash, List<ByteBuffer> services) {
+        int capacity = HEADER_SIZE;
+        for (ByteBuffer service : services) {
+            capacity += 5 + service.remaining();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(capacity);
+        Writer writer = new Writer(buffer);
+        buffer.put(TYPE_SERVICE_APPLICATIONS);
+        writer.writeVarLong(version);
+        buffer.putLong(registryHash);
+        writer.writeVarInt(services.size());
+        for (ByteBuffer service : services) {
+            writer.writeVarInt(service.remaining());
+            buffer.put(service.duplicate());
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * 把编码好的字节复制到一个大小正好的direct buffer里
+     *
+     * @param encoded 编码好的字节
+     * @return position为0, limit为结尾的direct buffer
+     */
+    private static ByteBuffer toDirect(ByteBuffer encoded) {
+        ByteBuffer direct = ByteBuffer.allocateDirect(encoded.remaining());
+        direct.put(encoded);
+        direct.flip();
+        return direct;
+    }
+
+    /**
+     * 把全量注册表编码到指定的缓冲区
+     *
+     * @param applications 全量注册表
+     * @param buffer       缓冲区
+     * @throws BufferOverflowException 缓冲区不够大
+     */
+    public static void encode(Applications applications, ByteBuffer buffer) {
+        Writer writer = new Writer(buffer);
+        buffer.put(TYPE_APPLICATIONS);
+        writer.writeVarLong(applications.getVersion());
+        buffer.putLong(applications.getRegistryHash());
+        Map<String, Map<String, ServiceInstance>> registry = applications.getRegistry();
+        writer.writeVarInt(registry.size());
+        for (Entry<String, Map<String, ServiceInstance>> service : registry.entrySet()) {
+            writer.writeDictionaryString(service.getKey());
+            Map<String, ServiceInstance> instances = service.getValue();
+            writer.writeVarInt(instances.size());
+            for (ServiceInstance serviceInstance : instances.values()) {
+                writer.writeInstance(serviceInstance);
+            }
+        }
+    }
+
+    /**
+     * 把增量注册表编码到指定的缓冲区
+     *
+     * @param deltaRegistry 增量注册表
+     * @param buffer        缓冲区
+     * @throws BufferOverflowException 缓冲区不够大
+     */
+    public static void encode(DeltaRegistry deltaRegistry, ByteBuffer buffer) {
+        Writer writer = new Writer(buffer);
+        buffer.put(TYPE_DELTA_REGISTRY);
+        writer.writeVarLong(deltaRegistry.getVersion());
+        buffer.putLong(deltaRegistry.getRegistryHash());
+        buffer.put((byte) (deltaRegistry.isFullFetchRequired() ? 1 : 0));
+        Long totalCount = deltaRegistry.getServiceInstanceTotalCount();
+        // 0表示null
+        writer.writeVarLong(totalCount == null ? 0L : totalCount + 1);
+        List<RecentlyChangedServiceInstance> changes = deltaRegistry.getRecentlyChangedServiceInstances();
+        if (changes == null) {
+            writer.writeVarInt(0);
+            return;
+        }
+        writer.writeVarInt(changes.size());
+        for (RecentlyChangedServiceInstance change : changes) {
+            ServiceInstance serviceInstance = change.getServiceInstance();
+            writer.writeDictionaryString(change.getChangedType());
+            writer.writeVarLong(change.getVersion());
+            writer.writeVarLong(change.getChangedTimestamp() == null ? 0L : change.getChangedTimestamp());
+            writer.writeDictionaryString(serviceInstance.getServiceName());
+            writer.writeInstance(serviceInstance);
+        }
+    }
+
+    /**
+     * 解码全量注册表,注册表里的map都是可以修改的ConcurrentHashMap
+     *
+     * @param buffer 从position开始的编码之后的字节
+     * @return 全量注册表
+     */
+    public static Applications decodeApplications(ByteBuffer buffer) {
+        if (buffer.get(buffer.position()) == TYPE_SERVICE_APPLICATIONS) {
+            return decodeServiceApplications(buffer);
+        }
+        Reader reader = new Reader(buffer);
+        reader.expectType(TYPE_APPLICATIONS);
+        long version = reader.readVarLong();
+        long registryHash = buffer.getLong();
+        int serviceCount = reader.readVarInt();
+        Map<String, Map<String, ServiceInstance>> registry = new ConcurrentHashMap<>(capacity(serviceCount));
+        for (int i = 0; i < serviceCount; i++) {
+            String serviceName = reader.readDictionaryString();
+            int instanceCount = reader.readVarInt();
+            Map<String, ServiceInstance> instances = new ConcurrentHashMap<>(capacity(instanceCount));
+            for (int j = 0; j < instanceCount; j++) {
+                ServiceInstance serviceInstance = reader.readInstance(serviceName);
+                instances.put(serviceInstance.getInstanceId(), serviceInstance);
+            }
+            registry.put(serviceName, instances);
+        }
+        return new Applications(registry, version, registryHash);
+    }
+
+    /**
+     * 解码按服务拼成的全量注册表,每个服务有自己的字典
+     */
+    private static Applications decodeServiceApplications(ByteBuffer buffer) {
+        Reader reader = new Reader(buffer);
+        reader.expectType(TYPE_SERVICE_APPLICATIONS);
+        long version = reader.readVarLong();
+        long registryHash = buffer.getLong();
+        int serviceCount = reader.readVarInt();
+        Map<String, Map<String, ServiceInstance>> registry = new ConcurrentHashMap<>(capacity(serviceCount));
+        for (int i = 0; i < serviceCount; i++) {
+            int length = reader.readVarInt();
+            int end = buffer.position() + length;
+            Reader serviceReader = new Reader(buffer);
+            serviceReader.expectType(TYPE_SERVICE);
+            String serviceName = serviceReader.readDictionaryString();
+            int instanceCount = serviceReader.readVarInt();
+            Map<String, ServiceInstance> instances = new ConcurrentHashMap<>(capacity(instanceCount));
+            for (int j = 0; j < instanceCount; j++) {
+                ServiceInstance serviceInstance = serviceReader.readInstance(serviceName);
+                instances.put(serviceInstance.getInstanceId(), serviceInstance);
+            }
+            buffer.position(end);
+            registry.put(serviceName, instances);
+        }
+        return new Applications(registry, version, registryHash);
+    }
+
+    /**
+     * 解码增量注册表
+     *
+     * @param buffer 从position开始的编码之后的字节
+     * @return 增量注册表
+     */
+    public static DeltaRegistry decodeDeltaRegistry(ByteBuffer buffer) {
+        Reader reader = new Reader(buffer);
+        reader.expectType(TYPE_DELTA_REGISTRY);
+        long version = reader.readVarLong();
+        long registryHash = buffer.getLong();
+        boolean fullFetchRequired = buffer.get() != 0;
+        long totalCount = reader.readVarLong();
+        int changeCount = reader.readVarInt();
+        LinkedList<RecentlyChangedServiceInstance> changes = new LinkedList<>();
+        for (int i = 0; i < changeCount; i++) {
+            String changedType = reader.readDictionaryString();
+            long changeVersion = reader.readVarLong();
+            long changedTimestamp = reader.readVarLong();
+            String serviceName = reader.readDictionaryString();
+            ServiceInstance serviceInstance = reader.readInstance(serviceName);
+            changes.add(new RecentlyChangedServiceInstance(serviceInstance, changedType, changeVersion,
+                    changedTimestamp));
+        }
+        return new DeltaRegistry(changes, totalCount == 0L ? null : totalCount - 1, version, registryHash,
+                fullFetchRequired);
+    }
+
+    private static int capacity(int size) {
+        return (int) (size / 0.75f) + 1;
+    }
+
+    /**
+     * 编码时的状态:缓冲区和这个payload的字符串字典
+     */
+    private static final class Writer {
+
+        private final ByteBuffer buffer;
+        private final Map<String, Integer> dictionary = new HashMap<>();
+
+        Writer(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        void writeInstance(ServiceInstance serviceInstance) {
+            writeString(serviceInstance.getInstanceId());
+            writeIp(serviceInstance.getIp());
+            writeDictionaryString(serviceInstance.getHostname());
+            writeVarInt(serviceInstance.getPort());
+        }
+
+        void writeVarInt(int value) {
+            while ((value & ~0x7F) != 0) {
+                buffer.put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            buffer.put((byte) value);
+        }
+
+        void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                buffer.put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            buffer.put((byte) value);
+        }
+
+        /**
+         * 字典字符串: 0表示null,奇数表示原文(长度左移一位),偶数表示字典编号(从1开始,左移一位)
+         */
+        void writeDictionaryString(String value) {
+            if (value == null) {
+                writeVarInt(0);
+                return;
+            }
+            Integer id = dictionary.get(value);
+            if (id != null) {
+                writeVarInt(id << 1);
+                return;
+            }
+            dictionary.put(value, dictionary.size() + 1);
+            writeVarInt(utf8Length(value) << 1 | 1);
+            writeUtf8(value);
+        }
+
+        /**
+         * 普通字符串: 0表示null,否则是UTF-8字节数加1
+         */
+        void writeString(String value) {
+            if (value == null) {
+                writeVarInt(0);
+                return;
+            }
+            writeVarInt(utf8Length(value) + 1);
+            writeUtf8(value);
+        }
+
+        void writeIp(String ip) {
+            if (ip == null) {
+                buffer.put(IP_NULL);
+                return;
+            }
+            int packed = parseIpv4(ip);
+            if (packed != -1 || "255.255.255.255".equals(ip)) {
+                buffer.put(IP_V4);
+                buffer.putInt(packed);
+                return;
+            }
+            buffer.put(IP_TEXT);
+            writeDictionaryString(ip);
+        }
+
+        /**
+         * 解析标准写法的IPv4地址,不是IPv4或者带前导0(解码回来会不一样)时返回-1
+         */
+        private static int parseIpv4(String ip) {
+            int packed = 0;
+            int octets = 0;
+            int octet = 0;
+            int digits = 0;
+            for (int i = 0; i <= ip.length(); i++) {
+                char c = i < ip.length() ? ip.charAt(i) : '.';
+                if (c >= '0' && c <= '9') {
+                    if (digits > 0 && octet == 0 || digits == 3) {
+                        return -1;
+                    }
+                    octet = octet * 10 + (c - '0');
+                    digits++;
+                } else if (c == '.' && digits > 0 && octet < 256 && octets < 4) {
+                    packed = packed << 8 | octet;
+                    octets++;
+                    octet = 0;
+                    digits = 0;
+                } else {
+                    return -1;
+                }
+            }
+            return octets == 4 ? packed : -1;
+        }
+
+        private void writeUtf8(String value) {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    buffer.put((byte) c);
+                } else if (c < 0x800) {
+                    buffer.put((byte) (0xC0 | c >> 6));
+                    buffer.put((byte) (0x80 | c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    buffer.put((byte) (0xF0 | codePoint >> 18));
+                    buffer.put((byte) (0x80 | codePoint >> 12 & 0x3F));
+                    buffer.put((byte) (0x80 | codePoint >> 6 & 0x3F));
+                    buffer.put((byte) (0x80 | codePoint & 0x3F));
+                } else {
+                    buffer.put((byte) (0xE0 | c >> 12));
+                    buffer.put((byte) (0x80 | c >> 6 & 0x3F));
+                    buffer.put((byte) (0x80 | c & 0x3F));
+                }
+            }
+        }
+
+        private static int utf8Length(String value) {
+            int length = 0;
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    length += 1;
+                } else if (c < 0x800) {
+                    length += 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    length += 4;
+                    i++;
+                } else {
+                    length += 3;
+                }
+            }
+            return length;
+        }
+    }
+
+    /**
+     * 解码时的状态:缓冲区、字符串字典和复用的字符数组
+     */
+    private static final class Reader {
+
+        private final ByteBuffer buffer;
+        private final List<String> dictionary = new ArrayList<>();
+        private char[] chars = new char[64];
+
+        Reader(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        void expectType(byte type) {
+            byte actual = buffer.get();
+            if (actual != type) {
+                throw new IllegalArgumentException("unexpected payload type " + actual + ", expected " + type);
+            }
+        }
+
+        ServiceInstance readInstance(String serviceName) {
+            ServiceInstance serviceInstance = new ServiceInstance();
+            serviceInstance.setServiceName(serviceName);
+            serviceInstance.setInstanceId(readString());
+            serviceInstance.setIp(readIp());
+            serviceInstance.setHostname(readDictionaryString());
+            serviceInstance.setPort(readVarInt());
+            return serviceInstance;
+        }
+
+        int readVarInt() {
+            return (int) readVarLong();
+        }
+
+        long readVarLong() {
+            long value = 0L;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = buffer.get();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("malformed varint");
+        }
+
+        String readDictionaryString() {
+            int value = readVarInt();
+            if (value == 0) {
+                return null;
+            }
+            if ((value & 1) == 0) {
+                return dictionary.get((value >>> 1) - 1);
+            }
+            String string = readUtf8(value >>> 1);
+            dictionary.add(string);
+            return string;
+        }
+
+        String readString() {
+            int value = readVarInt();
+            return value == 0 ? null : readUtf8(value - 1);
+        }
+
+        String readIp() {
+            byte type = buffer.get();
+            if (type == IP_NULL) {
+                return null;
+            }
+            if (type == IP_V4) {
+                return ipToString(buffer.getInt());
+            }
+            return readDictionaryString();
+        }
+
+        private String readUtf8(int byteLength) {
+            if (chars.length < byteLength) {
+                chars = new char[Math.max(byteLength, chars.length * 2)];
+            }
+            int length = 0;
+            int end = buffer.position() + byteLength;
+            while (buffer.position() < end) {
+                int b = buffer.get() & 0xFF;
+                if (b < 0x80) {
+                    chars[length++] = (char) b;
+                } else if (b < 0xE0) {
+                    chars[length++] = (char) ((b & 0x1F) << 6 | buffer.get() & 0x3F);
+                } else if (b < 0xF0) {
+                    chars[length++] = (char) ((b & 0x0F) << 12 | (buffer.get() & 0x3F) << 6 | buffer.get() & 0x3F);
+                } else {
+                    int codePoint = (b & 0x07) << 18 | (buffer.get() & 0x3F) << 12 | (buffer.get() & 0x3F) << 6
+                            | buffer.get() & 0x3F;
+                    chars[length++] = Character.highSurrogate(codePoint);
+                    chars[length++] = Character.lowSurrogate(codePoint);
+                }
+            }
+            return new String(chars, 0, length);
+        }
+    }
+
+    private static String ipToString(int packed) {
+        return (packed >>> 24) + "." + (packed >>> 16 & 0xFF) + "." + (packed >>> 8 & 0xFF) + "." + (packed & 0xFF);
+    }
+}
@@ -0,0 +1,87 @@
+package com.jonnyliu.proj.register.commons;
+
+import java.util.Map;
+
+/**
+ * 注册表内容的哈希值
+ * <p>
+ * 整个注册表的哈希值是每个服务实例哈希值的累加和(对2^64取模),与顺序无关,
+ * 所以注册、下线时只需要加上或减去这一个实例的哈希值,服务端和客户端都是O(1)的
+ *
+ * @author liujie
+ */
+public final class RegistryHash {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private RegistryHash() {
+    }
+
+    /**
+     * 计算单个服务实例的哈希值
+     *
+     * @param serviceInstance 服务实例
+     * @return 哈希值
+     */
+    public static long of(ServiceInstance serviceInstance) {
+        if (serviceInstance == null) {
+            return 0L;
+        }
+        long hash = FNV_OFFSET_BASIS;
+        hash = mix(hash, serviceInstance.getServiceName());
+        hash = mix(hash, serviceInstance.getInstanceId());
+        hash = mix(hash, serviceInstance.getIp());
+        hash = mix(hash, serviceInstance.getHostname());
+        hash = (hash ^ serviceInstance.getPort()) * FNV_PRIME;
+        return fmix(hash);
+    }
+
+    /**
+     * 计算整个注册表的哈希值,只在全量拉取之后用一次,是O(N)的
+     *
+     * @param registry 注册表
+     * @return 哈希值
+     */
+    public static long compute(Map<String, Map<String, ServiceInstance>> registry) {
+        long hash = 0L;
+        for (Map<String, ServiceInstance> instances : registry.values()) {
+            for (ServiceInstance serviceInstance : instances.values()) {
+                hash += of(serviceInstance);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * 注册表中的实例被替换之后的哈希值
+     *
+     * @param registryHash 原来的哈希值
+     * @param oldInstance  被替换或者被删除的实例,可以为null
+     * @param newInstance  新加入的实例,可以为null
+     * @return 新的哈希值
+     */
+    public static long update(long registryHash, ServiceInstance oldInstance, ServiceInstance newInstance) {
+        return registryHash - of(oldInstance) + of(newInstance);
+    }
+
+    private static long mix(long hash, String value) {
+        if (value == null) {
+            return hash * FNV_PRIME;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        // 字段之间加一个分隔,避免 "ab"+"c" 和 "a"+"bc" 冲突
+        return (hash ^ 0xff) * FNV_PRIME;
+    }
+
+    private static long fmix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
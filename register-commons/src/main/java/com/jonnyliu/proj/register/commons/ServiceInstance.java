@@ -1,17 +1,15 @@
 package com.jonnyliu.proj.register.commons;
 
-import java.util.Date;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import java.io.Serializable;
 
 /**
  * 代表一个服务实例
  *
  * @author liujie
  */
-public class ServiceInstance {
+public class ServiceInstance implements Serializable {
 
-    public static final Logger log = LoggerFactory.getLogger(ServiceInstance.class);
+    private static final long serialVersionUID = 1L;
 
     /**
      * 服务实例存活的阈值
@@ -23,88 +21,10 @@ public class ServiceInstance {
     private String hostname = "inventory01";
     private int port = 9000;
     private String instanceId;
-    private Lease lease;
 
     public ServiceInstance() {
     }
 
-    public Lease getLease() {
-        return lease;
-    }
-
-    public void setLease(Lease lease) {
-        this.lease = lease;
-    }
-
-    /**
-     * 服务续约
-     */
-    public void renew() {
-        if (this.lease == null) {
-            this.lease = new Lease();
-        }
-        this.lease.renew();
-    }
-
-    /**
-     * 是否存活
-     *
-     * @return 是否存活
-     */
-    public boolean isAlive() {
-        if (this.lease == null) {
-            this.lease = new Lease();
-        }
-        return this.lease.isAlive();
-    }
-
-    /**
-     * 服务契约
-     */
-    private class Lease {
-
-        /**
-         * 最后一次的心跳时间戳
-         */
-        private volatile Long lastHeartBeatTimestamp;
-
-        public Long getLastHeartBeatTimestamp() {
-            return lastHeartBeatTimestamp;
-        }
-
-        public Lease() {
-        }
-
-        /**
-         * 服务续约
-         */
-        public void renew() {
-            this.lastHeartBeatTimestamp = System.currentTimeMillis();
-            log.info("服务实例【" + instanceId + "】，进行续约：" + new Date(lastHeartBeatTimestamp));
-        }
-
-        /**
-         * 是否存活
-         *
-         * @return 是否存活
-         */
-        public boolean isAlive() {
-            if (System.currentTimeMillis() - this.getLastHeartBeatTimestamp() > ALIVE_TIME_THRESHOLD) {
-                log.info("服务实例【{}】，不再存活", instanceId);
-                return false;
-            }
-            log.info("服务实例【{}】，保持存活", instanceId);
-            return true;
-        }
-
-        @Override
-        public String toString() {
-            return "Lease{" +
-                    "lastHeartBeatTimestamp=" + lastHeartBeatTimestamp +
-                    '}';
-        }
-    }
-
     public String getServiceName() {
         return serviceName;
     }
@@ -148,12 +68,11 @@ public class ServiceInstance {
     @Override
     public String toString() {
         return "ServiceInstance{" +
-                "serviceName='" + serviceName + '\'' +
-                ", ip='" + ip + '\'' +
-                ", hostname='" + hostname + '\'' +
-                ", port=" + port +
-                ", instanceId='" + instanceId + '\'' +
-                ", lease=" + lease +
+                "serviceName='" + getServiceName() + '\'' +
+                ", ip='" + getIp() + '\'' +
+                ", hostname='" + getHostname() + '\'' +
+                ", port=" + getPort() +
+                ", instanceId='" + getInstanceId() + '\'' +
                 '}';
     }
 }
\ No newline at end of file
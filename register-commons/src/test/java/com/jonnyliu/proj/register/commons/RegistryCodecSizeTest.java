@@ -0,0 +1,85 @@
+package com.jonnyliu.proj.register.commons;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+
+/**
+ * 二进制编码和java序列化、JSON的对比: 全量注册表编码之后更小,而且三种格式解码出来的实例个数一样
+ * <p>
+ * 编码、解码的耗时在register-benchmarks的RegistryCodecBenchmark里测
+ */
+public class RegistryCodecSizeTest {
+
+    private static final int INSTANCE_PER_SERVICE = 20;
+    private static final int INSTANCE_PER_HOST = 4;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    public void smallerThanJavaSerializationAndJson() throws Exception {
+        for (int instanceCount : new int[]{10000, 100000}) {
+            Applications applications = newApplications(instanceCount);
+
+            byte[] binary = toArray(RegistryCodec.encode(applications));
+            byte[] javaBytes = javaSerialize(applications);
+            byte[] jsonBytes = objectMapper.writeValueAsBytes(applications);
+            assertTrue(binary.length + " >= " + javaBytes.length, binary.length < javaBytes.length);
+            assertTrue(binary.length + " >= " + jsonBytes.length, binary.length < jsonBytes.length);
+
+            assertEquals(instanceCount, count(RegistryCodec.decodeApplications(ByteBuffer.wrap(binary))));
+            assertEquals(instanceCount, count(javaDeserialize(javaBytes)));
+            assertEquals(instanceCount, count(objectMapper.readValue(jsonBytes, Applications.class)));
+        }
+    }
+
+    private static Applications newApplications(int instanceCount) {
+        Map<String, Map<String, ServiceInstance>> registry = new HashMap<>();
+        for (int i = 0; i < instanceCount; i++) {
+            String serviceName = "benchmark-service-" + (i / INSTANCE_PER_SERVICE);
+            ServiceInstance serviceInstance = RegistryCodecTest.newInstance(serviceName, "instance-" + i,
+                    "10." + (i >>> 16 & 0xFF) + "." + (i >>> 8 & 0xFF) + "." + (i & 0xFF),
+                    "host-" + (i / INSTANCE_PER_HOST) + ".prod.example.com", 8000 + i % 1000);
+            RegistryCodecTest.addInstance(registry, serviceInstance);
+        }
+        return new Applications(registry, instanceCount, RegistryHash.compute(registry));
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] javaSerialize(Applications applications) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(applications);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Applications javaDeserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (Applications) in.readObject();
+        }
+    }
+
+    private static int count(Applications applications) {
+        int count = 0;
+        for (Map<String, ServiceInstance> instances : applications.getRegistry().values()) {
+            count += instances.size();
+        }
+        return count;
+    }
+}
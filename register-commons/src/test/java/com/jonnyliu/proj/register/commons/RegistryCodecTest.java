@@ -0,0 +1,165 @@
+package com.jonnyliu.proj.register.commons;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.Test;
+
+public class RegistryCodecTest {
+
+    @Test
+    public void fullRegistryRoundTrip() {
+        Map<String, Map<String, ServiceInstance>> registry = new HashMap<>();
+        addInstance(registry, newInstance("order-service", "order-1", "192.168.31.207", "order01", 8080));
+        addInstance(registry, newInstance("order-service", "order-2", "10.0.0.255", "order02", 65535));
+        addInstance(registry, newInstance("inventory-service", "inventory-1", "fe80::1", "库存-01", 9000));
+        addInstance(registry, newInstance("inventory-service", "inventory-2", "010.1.1.1", "inventory01", 0));
+        addInstance(registry, newInstance("inventory-service", "inventory-3", null, null, 9000));
+        addInstance(registry, newInstance("inventory-service", "emoji-😀", "255.255.255.255", "host", 1));
+        Applications applications = new Applications(registry, 12345678901L, RegistryHash.compute(registry));
+
+        ByteBuffer buffer = RegistryCodec.encode(applications);
+        assertTrue(buffer.isDirect());
+        assertEquals(buffer.capacity(), buffer.limit());
+        Applications decoded = RegistryCodec.decodeApplications(buffer);
+
+        assertFalse(buffer.hasRemaining());
+        assertEquals(applications.getVersion(), decoded.getVersion());
+        assertEquals(applications.getRegistryHash(), decoded.getRegistryHash());
+        assertEquals(RegistryHash.compute(registry), RegistryHash.compute(decoded.getRegistry()));
+        assertTrue(decoded.getRegistry() instanceof ConcurrentHashMap);
+        assertTrue(decoded.getRegistry().get("order-service") instanceof ConcurrentHashMap);
+        ServiceInstance inventory3 = decoded.getRegistry().get("inventory-service").get("inventory-3");
+        assertNull(inventory3.getIp());
+        assertNull(inventory3.getHostname());
+        assertEquals("010.1.1.1", decoded.getRegistry().get("inventory-service").get("inventory-2").getIp());
+    }
+
+    @Test
+    public void deltaRegistryRoundTrip() {
+        LinkedList<RecentlyChangedServiceInstance> changes = new LinkedList<>();
+        changes.add(new RecentlyChangedServiceInstance(
+                newInstance("order-service", "order-1", "192.168.0.1", "order01", 8080), ChangedType.REGISTER, 7L));
+        changes.add(new RecentlyChangedServiceInstance(
+                newInstance("order-service", "order-2", "192.168.0.2", "order02", 8080), ChangedType.REMOVE, 8L));
+        DeltaRegistry deltaRegistry = new DeltaRegistry(changes, 42L, 8L, -1L, false);
+
+        ByteBuffer buffer = RegistryCodec.encode(deltaRegistry);
+        // 每个请求各自编码的增量放在堆上
+        assertFalse(buffer.isDirect());
+        DeltaRegistry decoded = RegistryCodec.decodeDeltaRegistry(buffer);
+
+        assertEquals(8L, decoded.getVersion());
+        assertEquals(-1L, decoded.getRegistryHash());
+        assertEquals(Long.valueOf(42L), decoded.getServiceInstanceTotalCount());
+        assertFalse(decoded.isFullFetchRequired());
+        assertEquals(2, decoded.getRecentlyChangedServiceInstances().size());
+        for (int i = 0; i < changes.size(); i++) {
+            RecentlyChangedServiceInstance expected = changes.get(i);
+            RecentlyChangedServiceInstance actual = decoded.getRecentlyChangedServiceInstances().get(i);
+            assertEquals(expected.getChangedType(), actual.getChangedType());
+            assertEquals(expected.getVersion(), actual.getVersion());
+            assertEquals(expected.getChangedTimestamp(), actual.getChangedTimestamp());
+            assertEquals(RegistryHash.of(expected.getServiceInstance()), RegistryHash.of(actual.getServiceInstance()));
+        }
+    }
+
+    @Test
+    public void fullFetchRequiredDeltaRoundTrip() {
+        DeltaRegistry deltaRegistry = new DeltaRegistry(new LinkedList<>(), null, 100L, 0L, true);
+
+        DeltaRegistry decoded = RegistryCodec.decodeDeltaRegistry(RegistryCodec.encode(deltaRegistry));
+
+        assertTrue(decoded.isFullFetchRequired());
+        assertNull(decoded.getServiceInstanceTotalCount());
+        assertTrue(decoded.getRecentlyChangedServiceInstances().isEmpty());
+    }
+
+    @Test
+    public void repeatedStringsAreWrittenOnce() {
+        Map<String, Map<String, ServiceInstance>> registry = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            addInstance(registry, newInstance("a-rather-long-service-name", "i" + i, "10.0.0." + i,
+                    "a-rather-long-shared-hostname", 8080));
+        }
+        ByteBuffer buffer = RegistryCodec.encode(new Applications(registry, 1L, 0L));
+
+        // 每个实例: instanceId(3~4字节) + ip(5字节) + hostname编号(1字节) + port(2字节)
+        assertTrue("encoded size " + buffer.remaining(), buffer.remaining() < 100 * 12 + 100);
+    }
+
+    @Test
+    public void encodeIntoSuppliedBuffer() {
+        Map<String, Map<String, ServiceInstance>> registry = new HashMap<>();
+        addInstance(registry, newInstance("order-service", "order-1", "192.168.0.1", "order01", 8080));
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        buffer.position(10);
+
+        RegistryCodec.encode(new Applications(registry, 3L, 4L), buffer);
+        buffer.flip();
+        buffer.position(10);
+        Applications decoded = RegistryCodec.decodeApplications(buffer);
+
+        assertEquals(3L, decoded.getVersion());
+        assertEquals(1, decoded.getRegistry().get("order-service").size());
+    }
+
+    @Test
+    public void servicesEncodedSeparatelyDecodeAsOneRegistry() {
+        Map<String, Map<String, ServiceInstance>> registry = new HashMap<>();
+        addInstance(registry, newInstance("order-service", "order-1", "192.168.0.1", "order01", 8080));
+        addInstance(registry, newInstance("order-service", "order-2", "192.168.0.2", "order01", 8080));
+        addInstance(registry, newInstance("inventory-service", "inventory-1", "fe80::1", "order01", 9000));
+        List<ByteBuffer> services = new ArrayList<>();
+        for (Map.Entry<String, Map<String, ServiceInstance>> service : registry.entrySet()) {
+            services.add(RegistryCodec.encodeService(service.getKey(), service.getValue()));
+        }
+
+        ByteBuffer buffer = RegistryCodec.encodeServices(42L, RegistryHash.compute(registry), services);
+        assertTrue(services.get(0).isDirect());
+        assertFalse(buffer.isDirect());
+        Applications decoded = RegistryCodec.decodeApplications(buffer);
+
+        assertFalse(buffer.hasRemaining());
+        assertEquals(0, services.get(0).position());
+        assertEquals(42L, decoded.getVersion());
+        assertEquals(RegistryHash.compute(registry), decoded.getRegistryHash());
+        assertEquals(RegistryHash.compute(registry), RegistryHash.compute(decoded.getRegistry()));
+        assertTrue(decoded.getRegistry().get("order-service") instanceof ConcurrentHashMap);
+        // 每个服务有自己的字典,在另一个服务里第一次出现的字符串要重新写原文
+        assertEquals("order01", decoded.getRegistry().get("inventory-service").get("inventory-1").getHostname());
+    }
+
+    @Test
+    public void noSubscribedServicesDecodeAsEmptyRegistry() {
+        Applications decoded = RegistryCodec.decodeApplications(
+                RegistryCodec.encodeServices(7L, 0L, new ArrayList<ByteBuffer>()));
+
+        assertEquals(7L, decoded.getVersion());
+        assertTrue(decoded.getRegistry().isEmpty());
+    }
+
+    static ServiceInstance newInstance(String serviceName, String instanceId, String ip, String hostname, int port) {
+        ServiceInstance serviceInstance = new ServiceInstance();
+        serviceInstance.setServiceName(serviceName);
+        serviceInstance.setInstanceId(instanceId);
+        serviceInstance.setIp(ip);
+        serviceInstance.setHostname(hostname);
+        serviceInstance.setPort(port);
+        return serviceInstance;
+    }
+
+    static void addInstance(Map<String, Map<String, ServiceInstance>> registry, ServiceInstance serviceInstance) {
+        registry.computeIfAbsent(serviceInstance.getServiceName(), k -> new HashMap<>())
+                .put(serviceInstance.getInstanceId(), serviceInstance);
+    }
+}
@@ -0,0 +1,19 @@
+package com.jonnyliu.proj.register.server;
+
+/**
+ * 注册中心的时钟,租约、心跳计数、变更日志和存活检测都从这里取当前时间
+ * <p>
+ * 生产环境用{@link CoarseClock},测试和模拟用{@link VirtualClock}手动推进时间,
+ * 几十秒、几分钟的间隔不需要真的等待
+ *
+ * @author liujie
+ */
+public interface Clock {
+
+    /**
+     * 当前时间戳
+     *
+     * @return 毫秒
+     */
+    long currentTimeMillis();
+}
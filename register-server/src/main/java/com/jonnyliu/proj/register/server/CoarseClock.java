@@ -0,0 +1,67 @@
+package com.jonnyliu.proj.register.server;
+
+/**
+ * 粗粒度的时钟: 一个后台线程每隔一个tick读一次系统时间,其他线程只读一个volatile变量
+ * <p>
+ * 心跳、注册的热路径上不再调用{@link System#currentTimeMillis()},代价是时间最多落后一个tick,
+ * 租约、心跳计数这些按秒计算的逻辑不受影响
+ *
+ * @author liujie
+ */
+public final class CoarseClock implements Clock {
+
+    /**
+     * 默认的精度
+     */
+    public static final long DEFAULT_TICK = 10L;
+    private static final String THREAD_COARSE_CLOCK = "THREAD-COARSE-CLOCK";
+
+    private static final CoarseClock INSTANCE = new CoarseClock(DEFAULT_TICK);
+
+    private volatile long now = System.currentTimeMillis();
+
+    private CoarseClock(long tickMillis) {
+        Ticker ticker = new Ticker(THREAD_COARSE_CLOCK, tickMillis);
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    /**
+     * 整个进程共享一个时钟,只有一个后台线程
+     *
+     * @return 时钟
+     */
+    public static CoarseClock getInstance() {
+        return INSTANCE;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return now;
+    }
+
+    /**
+     * 更新时间的后台线程
+     */
+    private class Ticker extends Thread {
+
+        private final long tickMillis;
+
+        Ticker(String name, long tickMillis) {
+            super(name);
+            this.tickMillis = tickMillis;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    Thread.sleep(tickMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                now = System.currentTimeMillis();
+            }
+        }
+    }
+}
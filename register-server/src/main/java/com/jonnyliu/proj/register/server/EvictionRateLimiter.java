@@ -0,0 +1,93 @@
+package com.jonnyliu.proj.register.server;
+
+/**
+ * 摘除过期实例的令牌桶
+ * <p>
+ * 桶的容量是"每个周期最多摘除的个数"和"当前实例总数乘以一个比例"中较小的那个,令牌按容量每个周期匀速补满。
+ * 一个机架整体掉线时,过期的实例分几轮、按固定的速度摘除,不会一次把注册表和客户端的增量冲垮;
+ * 掉线的比例再大一些时,由{@link SelfProtectionPolicy}接手,不再摘除。
+ * <p>
+ * 只由{@link ServiceAliveMonitor}的检测线程调用,不是线程安全的
+ *
+ * @author liujie
+ */
+public class EvictionRateLimiter {
+
+    /**
+     * 默认每个周期最多摘除的实例个数
+     */
+    public static final int DEFAULT_MAX_EVICTIONS_PER_INTERVAL = 1000;
+    /**
+     * 默认每个周期最多摘除实例总数的多少,和自我保护的阈值互补
+     */
+    public static final double DEFAULT_EVICTION_PERCENTAGE = 1 - SelfProtectionPolicy.THRESHOLD_SELF_PROTECTION;
+    /**
+     * 默认的周期
+     */
+    public static final long DEFAULT_INTERVAL = 60 * 1000L;
+
+    private final int maxEvictionsPerInterval;
+    private final double evictionPercentage;
+    private final long intervalMillis;
+
+    /**
+     * 桶里剩余的令牌,小于0表示还没有用过,第一次使用时是满的
+     */
+    private double tokens = -1D;
+    /**
+     * 上一次补充令牌的时间
+     */
+    private long lastRefillTime;
+
+    public EvictionRateLimiter() {
+        this(DEFAULT_MAX_EVICTIONS_PER_INTERVAL, DEFAULT_EVICTION_PERCENTAGE, DEFAULT_INTERVAL);
+    }
+
+    /**
+     * @param maxEvictionsPerInterval 每个周期最多摘除的实例个数
+     * @param evictionPercentage      每个周期最多摘除实例总数的多少,0到1之间
+     * @param intervalMillis          周期
+     */
+    public EvictionRateLimiter(int maxEvictionsPerInterval, double evictionPercentage, long intervalMillis) {
+        if (maxEvictionsPerInterval <= 0 || evictionPercentage <= 0 || evictionPercentage > 1 || intervalMillis <= 0) {
+            throw new IllegalArgumentException("maxEvictionsPerInterval: " + maxEvictionsPerInterval
+                    + ", evictionPercentage: " + evictionPercentage + ", intervalMillis: " + intervalMillis);
+        }
+        this.maxEvictionsPerInterval = maxEvictionsPerInterval;
+        this.evictionPercentage = evictionPercentage;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * 按当前的实例总数计算的桶容量,至少是1,实例很少时也能摘除
+     *
+     * @param instanceCount 注册表里的实例总数
+     * @return 每个周期最多摘除的个数
+     */
+    public int capacity(long instanceCount) {
+        return (int) Math.max(1L, Math.min(maxEvictionsPerInterval, (long) (instanceCount * evictionPercentage)));
+    }
+
+    /**
+     * 申请摘除一批实例
+     *
+     * @param wanted        想要摘除的个数
+     * @param instanceCount 注册表里的实例总数
+     * @param now           当前时间
+     * @return 这一轮可以摘除的个数, 不超过wanted
+     */
+    public int acquire(int wanted, long instanceCount, long now) {
+        int capacity = capacity(instanceCount);
+        if (tokens < 0) {
+            tokens = capacity;
+        } else {
+            long elapsed = Math.max(0L, now - lastRefillTime);
+            // 实例变少之后容量跟着变小
+            tokens = Math.min(capacity, tokens + (double) elapsed * capacity / intervalMillis);
+        }
+        lastRefillTime = Math.max(lastRefillTime, now);
+        int granted = (int) Math.min(wanted, Math.floor(tokens));
+        tokens -= granted;
+        return granted;
+    }
+}
@@ -0,0 +1,152 @@
+package com.jonnyliu.proj.register.server;
+
+import com.jonnyliu.proj.register.commons.ServiceInstance;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 默认的实例存储: 服务实例对象放在堆上的两层Map里,租约放在{@link LeaseTable}里
+ * <p>
+ * 租约句柄记在存储自己的表项上,不放在服务实例上,服务实例仍然是客户端传过来的那个对象
+ *
+ * @author liujie
+ */
+public class HeapInstanceStore implements InstanceStore {
+
+    /**
+     * 核心的内存数据结构：注册表
+     * <p>
+     * Map：key是服务名称，value是这个服务的所有的服务实例
+     * Map<String, LeasedInstance>：key是服务实例id，value是服务实例的信息和它的租约句柄
+     */
+    private final Map<String, Map<String, LeasedInstance>> registerMap = new ConcurrentHashMap<>();
+
+    /**
+     * 所有实例的租约,表项上只记着实例在租约表里的句柄
+     */
+    private final LeaseTable leaseTable = new LeaseTable();
+
+    @Override
+    public ServiceInstance get(String serviceName, String instanceId) {
+        LeasedInstance leasedInstance = find(serviceName, instanceId);
+        return leasedInstance == null ? null : leasedInstance.serviceInstance;
+    }
+
+    @Override
+    public ServiceInstance put(ServiceInstance serviceInstance, ServiceInstance oldInstance, long now) {
+        Map<String, LeasedInstance> serviceInstanceMap = registerMap.computeIfAbsent(
+                serviceInstance.getServiceName(), k -> new ConcurrentHashMap<>());
+        if (oldInstance == serviceInstance) {
+            leaseTable.renew(serviceInstanceMap.get(serviceInstance.getInstanceId()).handle, now);
+            return serviceInstance;
+        }
+        LeasedInstance previous = serviceInstanceMap.put(serviceInstance.getInstanceId(),
+                new LeasedInstance(serviceInstance, leaseTable.allocate(now)));
+        if (previous != null) {
+            releaseLease(previous);
+        }
+        return serviceInstance;
+    }
+
+    @Override
+    public ServiceInstance remove(String serviceName, String instanceId) {
+        Map<String, LeasedInstance> serviceInstances = registerMap.get(serviceName);
+        if (serviceInstances == null) {
+            return null;
+        }
+        LeasedInstance leasedInstance = serviceInstances.remove(instanceId);
+        if (leasedInstance == null) {
+            return null;
+        }
+        releaseLease(leasedInstance);
+        return leasedInstance.serviceInstance;
+    }
+
+    @Override
+    public boolean renew(String serviceName, String instanceId, long now) {
+        LeasedInstance leasedInstance = find(serviceName, instanceId);
+        if (leasedInstance == null) {
+            return false;
+        }
+        int handle = leasedInstance.handle;
+        // 查到之后刚好被摘除了
+        if (handle < 0) {
+            return false;
+        }
+        leaseTable.renew(handle, now);
+        return true;
+    }
+
+    @Override
+    public long getLastRenewTimestamp(ServiceInstance serviceInstance) {
+        LeasedInstance leasedInstance = find(serviceInstance.getServiceName(), serviceInstance.getInstanceId());
+        // 同一个实例ID已经换成了别的实例
+        if (leasedInstance == null || leasedInstance.serviceInstance != serviceInstance) {
+            return -1L;
+        }
+        int handle = leasedInstance.handle;
+        return handle < 0 ? -1L : leaseTable.getLastRenewTimestamp(handle);
+    }
+
+    @Override
+    public Map<String, ServiceInstance> immutableInstances(Collection<ServiceInstance> instances) {
+        Map<String, ServiceInstance> map = new HashMap<>(instances.size() * 4 / 3 + 1);
+        for (ServiceInstance serviceInstance : instances) {
+            map.put(serviceInstance.getInstanceId(), serviceInstance);
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    @Override
+    public void clear() {
+        for (Map<String, LeasedInstance> instances : registerMap.values()) {
+            for (LeasedInstance leasedInstance : instances.values()) {
+                releaseLease(leasedInstance);
+            }
+        }
+        registerMap.clear();
+    }
+
+    public LeaseTable getLeaseTable() {
+        return leaseTable;
+    }
+
+    private LeasedInstance find(String serviceName, String instanceId) {
+        Map<String, LeasedInstance> serviceInstances = registerMap.get(serviceName);
+        if (serviceInstances == null) {
+            return null;
+        }
+        return serviceInstances.get(instanceId);
+    }
+
+    /**
+     * 实例离开注册表时回收它的租约句柄
+     */
+    private void releaseLease(LeasedInstance leasedInstance) {
+        int handle = leasedInstance.handle;
+        if (handle >= 0) {
+            leasedInstance.handle = -1;
+            leaseTable.release(handle);
+        }
+    }
+
+    /**
+     * 注册表里的一项: 服务实例和它在租约表里的句柄
+     */
+    private static final class LeasedInstance {
+
+        private final ServiceInstance serviceInstance;
+        /**
+         * 租约句柄,-1表示已经离开注册表
+         */
+        private volatile int handle;
+
+        LeasedInstance(ServiceInstance serviceInstance, int handle) {
+            this.serviceInstance = serviceInstance;
+            this.handle = handle;
+        }
+    }
+}
@@ -1,41 +1,49 @@
 package com.jonnyliu.proj.register.server;
 
-import java.util.concurrent.atomic.AtomicLong;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * 心跳测量计数器
+ * <p>
+ * 一个按秒划分的环形滑动窗口,每秒一个格子,每个格子用LongAdder计数,多个心跳线程之间没有竞争;
+ * 格子在第一次用到新的一秒时才清零,不需要后台线程,任何时候都能查询最近60秒的心跳次数。
+ * 当前是哪一秒由{@link Clock}决定,心跳的热路径上不读系统时间
  *
  * @author liujie
  */
 public class HeartbeatCounter {
 
-    private static final Logger log = LoggerFactory.getLogger(HeartbeatCounter.class);
-    private static final int ONE_MINUTE = 60 * 1000;
+    /**
+     * 滑动窗口的秒数
+     */
+    private static final int WINDOW_SECONDS = 60;
+    private static final long ONE_SECOND = 1000L;
+
+    private static final HeartbeatCounter INSTANCE = new HeartbeatCounter(CoarseClock.getInstance());
 
-    private static final HeartbeatCounter INSTANCE = new HeartbeatCounter();
+    private final Clock clock;
 
     /**
-     * 最近一分钟的时间戳
+     * 每秒一个格子
      */
-    private long lastMinuteTimestamp;
+    private final Bucket[] buckets;
 
     /**
-     * 最近一分钟的心跳次数
+     * @param clock 时钟
      */
-    private AtomicLong lastMinuteHeartbeatRate;
-
-    private HeartbeatCounter() {
-        this.lastMinuteHeartbeatRate = new AtomicLong();
-        this.lastMinuteTimestamp = System.currentTimeMillis();
-        //开启一个后台线程
-        Daemon daemon = new Daemon();
-        daemon.setDaemon(true);
-        daemon.setName("HEARTBEAT-COUNTER-MONITOR-THREAD");
-        daemon.start();
+    public HeartbeatCounter(Clock clock) {
+        this.clock = clock;
+        this.buckets = new Bucket[WINDOW_SECONDS];
+        for (int i = 0; i < WINDOW_SECONDS; i++) {
+            buckets[i] = new Bucket();
+        }
     }
 
+    /**
+     * 默认注册表的心跳计数器
+     *
+     * @return 心跳计数器
+     */
     public static HeartbeatCounter getInstance() {
         return INSTANCE;
     }
@@ -44,10 +52,21 @@ public class HeartbeatCounter {
      * 增加最近一分钟的心跳次数
      */
     public void increment() {
-        long currentTimeMillis = System.currentTimeMillis();
-        if (currentTimeMillis - lastMinuteTimestamp < ONE_MINUTE) {
-            this.lastMinuteHeartbeatRate.incrementAndGet();
+        increment(1L);
+    }
+
+    /**
+     * 增加最近一分钟的心跳次数
+     *
+     * @param count 增加的心跳次数
+     */
+    public void increment(long count) {
+        long second = clock.currentTimeMillis() / ONE_SECOND;
+        Bucket bucket = buckets[(int) (second % WINDOW_SECONDS)];
+        if (bucket.second != second) {
+            bucket.rollover(second);
         }
+        bucket.count.add(count);
     }
 
     /**
@@ -56,31 +75,39 @@ public class HeartbeatCounter {
      * @return 最近一分钟的心跳次数
      */
     public long getLastMinuteHeartbeatRate() {
-        return this.lastMinuteHeartbeatRate.get();
+        long second = clock.currentTimeMillis() / ONE_SECOND;
+        long total = 0L;
+        for (Bucket bucket : buckets) {
+            long bucketSecond = bucket.second;
+            if (bucketSecond > second - WINDOW_SECONDS && bucketSecond <= second) {
+                total += bucket.count.sum();
+            }
+        }
+        return total;
     }
 
-    private class Daemon extends Thread {
+    /**
+     * 滑动窗口中的一个格子
+     */
+    private static class Bucket {
+
+        /**
+         * 这个格子当前统计的是哪一秒
+         */
+        private volatile long second = -1L;
+
+        private final LongAdder count = new LongAdder();
 
-        @Override
-        public void run() {
-            while (true) {
-                long currentTimeMillis = System.currentTimeMillis();
-                if (currentTimeMillis - lastMinuteTimestamp > ONE_MINUTE) {
-                    log.info("超过一分钟，清空心跳次数");
-                    while (true) {
-                        long expected = lastMinuteHeartbeatRate.get();
-                        if (lastMinuteHeartbeatRate.compareAndSet(expected, 0L)) {
-                            break;
-                        }
-                    }
-                    lastMinuteTimestamp = System.currentTimeMillis();
-                }
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e) {
-                    log.error("error.", e);
-                }
+        /**
+         * 格子转了一圈,清零之后用来统计新的一秒
+         *
+         * @param newSecond 新的一秒
+         */
+        private synchronized void rollover(long newSecond) {
+            if (second != newSecond) {
+                count.reset();
+                second = newSecond;
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,168 @@
+package com.jonnyliu.proj.register.server;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * 分层时间轮
+ * <p>
+ * 第一层每个格子是一个tick,转一圈是 tick * wheelSize;超出第一层范围的任务放到上一层,
+ * 上一层每个格子是下一层转一圈的时间,以此类推。时间推进到某个格子时,把格子里的任务重新放入
+ * 下层更细的格子,到期的任务交给回调。
+ * <p>
+ * 任何线程都可以添加任务,但只能由一个线程推进时间
+ *
+ * @param <T> 任务类型
+ * @author liujie
+ */
+public class HierarchicalTimingWheel<T> {
+
+    /**
+     * 每一层的格子数
+     */
+    public static final int DEFAULT_WHEEL_SIZE = 64;
+
+    /**
+     * 其他线程添加的任务先放到这里,推进时间的线程再放入时间轮
+     */
+    private final Queue<Timeout<T>> pendingTimeouts = new ConcurrentLinkedQueue<>();
+
+    private final Wheel<T> root;
+
+    private final long tickMillis;
+
+    /**
+     * 已经推进到的时间
+     */
+    private long currentTime;
+
+    private int size;
+
+    public HierarchicalTimingWheel(long tickMillis, long startMillis) {
+        this(tickMillis, DEFAULT_WHEEL_SIZE, startMillis);
+    }
+
+    public HierarchicalTimingWheel(long tickMillis, int wheelSize, long startMillis) {
+        if (tickMillis <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("tickMillis and wheelSize must be positive");
+        }
+        this.tickMillis = tickMillis;
+        this.currentTime = startMillis - startMillis % tickMillis;
+        this.root = new Wheel<>(tickMillis, wheelSize, currentTime);
+    }
+
+    /**
+     * 添加一个任务,可以由任意线程调用
+     *
+     * @param item     任务
+     * @param deadline 到期的时间戳
+     */
+    public void schedule(T item, long deadline) {
+        pendingTimeouts.offer(new Timeout<>(item, deadline));
+    }
+
+    /**
+     * 推进时间到now,把到期的任务交给回调,只能由一个线程调用
+     *
+     * @param now     当前时间戳
+     * @param expired 到期任务的回调
+     */
+    public void advance(long now, Consumer<T> expired) {
+        Timeout<T> timeout;
+        while ((timeout = pendingTimeouts.poll()) != null) {
+            add(timeout, expired);
+        }
+        while (currentTime + tickMillis <= now) {
+            currentTime += tickMillis;
+            Wheel<T> wheel = root;
+            // 推进到了哪一层格子的边界,就把那一层对应格子里的任务重新放一次
+            while (wheel != null && currentTime % wheel.tickMillis == 0) {
+                wheel.currentTime = currentTime;
+                ArrayDeque<Timeout<T>> bucket = wheel.bucketOf(currentTime);
+                int count = bucket.size();
+                for (int i = 0; i < count; i++) {
+                    size--;
+                    add(bucket.poll(), expired);
+                }
+                wheel = wheel.overflowWheel;
+            }
+        }
+    }
+
+    /**
+     * 时间轮中的任务数
+     *
+     * @return 任务数
+     */
+    public int size() {
+        return size + pendingTimeouts.size();
+    }
+
+    private void add(Timeout<T> timeout, Consumer<T> expired) {
+        // 到期时间向上取整到tick,保证任务不会提前到期
+        long due = (timeout.deadline + tickMillis - 1) / tickMillis * tickMillis;
+        if (due <= currentTime) {
+            expired.accept(timeout.item);
+            return;
+        }
+        Wheel<T> wheel = root;
+        while (due >= wheel.currentTime + wheel.intervalMillis) {
+            if (wheel.overflowWheel == null) {
+                wheel.overflowWheel = new Wheel<>(wheel.intervalMillis, wheel.buckets.length, currentTime);
+            }
+            wheel = wheel.overflowWheel;
+        }
+        wheel.bucketOf(due).offer(timeout);
+        size++;
+    }
+
+    /**
+     * 时间轮的一层
+     */
+    private static class Wheel<T> {
+
+        private final long tickMillis;
+        private final long intervalMillis;
+        private final ArrayDeque<Timeout<T>>[] buckets;
+        private long currentTime;
+        private Wheel<T> overflowWheel;
+
+        Wheel(long tickMillis, int wheelSize, long startMillis) {
+            this.tickMillis = tickMillis;
+            this.intervalMillis = tickMillis * wheelSize;
+            this.currentTime = startMillis - startMillis % tickMillis;
+            this.buckets = newBuckets(wheelSize);
+            for (int i = 0; i < wheelSize; i++) {
+                buckets[i] = new ArrayDeque<>();
+            }
+        }
+
+        /**
+         * 不能直接创建泛型数组,先创建通配符类型的数组再转换,数组只在这一层内部使用,不会放进其他类型的元素
+         */
+        @SuppressWarnings("unchecked")
+        private static <T> ArrayDeque<Timeout<T>>[] newBuckets(int wheelSize) {
+            return (ArrayDeque<Timeout<T>>[]) new ArrayDeque<?>[wheelSize];
+        }
+
+        ArrayDeque<Timeout<T>> bucketOf(long time) {
+            return buckets[(int) ((time / tickMillis) % buckets.length)];
+        }
+    }
+
+    /**
+     * 一个定时任务
+     */
+    private static class Timeout<T> {
+
+        private final T item;
+        private final long deadline;
+
+        Timeout(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+    }
+}
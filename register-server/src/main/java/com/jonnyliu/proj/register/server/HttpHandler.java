@@ -0,0 +1,17 @@
+package com.jonnyliu.proj.register.server;
+
+/**
+ * 处理http请求,在工作线程中被调用
+ *
+ * @author liujie
+ */
+public interface HttpHandler {
+
+    /**
+     * 处理请求,处理完之后必须调用一次{@link HttpResponder#respond(HttpResponse)}
+     *
+     * @param request   请求
+     * @param responder 用来写回响应,可以在任意线程中调用
+     */
+    void handle(HttpRequest request, HttpResponder responder);
+}
@@ -0,0 +1,119 @@
+package com.jonnyliu.proj.register.server;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 解析好的http请求
+ *
+ * @author liujie
+ */
+public class HttpRequest {
+
+    private final String method;
+    private final String path;
+    /**
+     * 请求头, key都是小写的
+     */
+    private final Map<String, String> headers;
+    private final byte[] body;
+    /**
+     * url上的参数以及application/x-www-form-urlencoded请求体中的参数
+     */
+    private final Map<String, List<String>> parameters = new LinkedHashMap<>();
+
+    public HttpRequest(String method, String uri, Map<String, String> headers, byte[] body) {
+        this.method = method;
+        this.headers = headers;
+        this.body = body;
+        int queryStart = uri.indexOf('?');
+        if (queryStart >= 0) {
+            this.path = uri.substring(0, queryStart);
+            parseParameters(uri.substring(queryStart + 1));
+        } else {
+            this.path = uri;
+        }
+        String contentType = headers.get("content-type");
+        if (contentType != null && contentType.startsWith("application/x-www-form-urlencoded")) {
+            parseParameters(new String(body, StandardCharsets.UTF_8));
+        }
+    }
+
+    private void parseParameters(String query) {
+        for (String pair : query.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int eq = pair.indexOf('=');
+            String name = eq >= 0 ? pair.substring(0, eq) : pair;
+            String value = eq >= 0 ? pair.substring(eq + 1) : "";
+            parameters.computeIfAbsent(decode(name), k -> new ArrayList<>()).add(decode(value));
+        }
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase());
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * 获取参数的第一个值
+     *
+     * @param name 参数名
+     * @return 参数值, 没有这个参数返回null
+     */
+    public String getParameter(String name) {
+        List<String> values = parameters.get(name);
+        return values == null ? null : values.get(0);
+    }
+
+    /**
+     * 获取参数的所有值
+     *
+     * @param name 参数名
+     * @return 按出现顺序排列的参数值
+     */
+    public List<String> getParameters(String name) {
+        List<String> values = parameters.get(name);
+        return values == null ? Collections.<String>emptyList() : values;
+    }
+
+    /**
+     * 客户端是否要求请求完成后关闭连接
+     *
+     * @return 是否保持连接
+     */
+    public boolean isKeepAlive() {
+        return !"close".equalsIgnoreCase(getHeader("connection"));
+    }
+
+    @Override
+    public String toString() {
+        return "HttpRequest [method=" + method + ", path=" + path + ", parameters=" + parameters + "]";
+    }
+}
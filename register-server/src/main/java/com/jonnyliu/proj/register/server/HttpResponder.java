@@ -0,0 +1,16 @@
+package com.jonnyliu.proj.register.server;
+
+/**
+ * 写回某个请求的响应
+ *
+ * @author liujie
+ */
+public interface HttpResponder {
+
+    /**
+     * 写回响应,线程安全,每个请求只能调用一次
+     *
+     * @param response 响应
+     */
+    void respond(HttpResponse response);
+}
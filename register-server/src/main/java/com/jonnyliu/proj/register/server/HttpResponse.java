@@ -0,0 +1,93 @@
+package com.jonnyliu.proj.register.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * http响应
+ *
+ * @author liujie
+ */
+public class HttpResponse {
+
+    public static final String TEXT_PLAIN = "text/plain; charset=UTF-8";
+    public static final String OCTET_STREAM = "application/octet-stream";
+
+    private final int status;
+    private final String reason;
+    private final Map<String, String> headers = new LinkedHashMap<>();
+    /**
+     * 响应体,可以是缓存起来被多个响应共享的direct buffer,写的时候只用它的副本
+     */
+    private final ByteBuffer body;
+
+    public HttpResponse(int status, String reason, String contentType, byte[] body) {
+        this(status, reason, contentType, ByteBuffer.wrap(body));
+    }
+
+    public HttpResponse(int status, String reason, String contentType, ByteBuffer body) {
+        this.status = status;
+        this.reason = reason;
+        this.body = body;
+        headers.put("Content-Type", contentType);
+    }
+
+    public static HttpResponse ok(String text) {
+        return new HttpResponse(200, "OK", TEXT_PLAIN, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static HttpResponse ok(byte[] body, String contentType) {
+        return new HttpResponse(200, "OK", contentType, body);
+    }
+
+    public static HttpResponse ok(ByteBuffer body, String contentType) {
+        return new HttpResponse(200, "OK", contentType, body);
+    }
+
+    public static HttpResponse badRequest(String message) {
+        return new HttpResponse(400, "Bad Request", TEXT_PLAIN, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static HttpResponse notFound() {
+        return new HttpResponse(404, "Not Found", TEXT_PLAIN, "not found".getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static HttpResponse serverError(String message) {
+        return new HttpResponse(500, "Internal Server Error", TEXT_PLAIN,
+                String.valueOf(message).getBytes(StandardCharsets.UTF_8));
+    }
+
+    public HttpResponse header(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public ByteBuffer getBody() {
+        return body.duplicate();
+    }
+
+    /**
+     * 编码成可以直接写到socket上的字节,响应头和响应体分开,用gathering write一起写出去
+     *
+     * @param keepAlive 是否保持连接
+     * @return 响应头和响应体
+     */
+    public ByteBuffer[] encode(boolean keepAlive) {
+        StringBuilder head = new StringBuilder(128);
+        head.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+        for (Entry<String, String> header : headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        head.append("Content-Length: ").append(body.remaining()).append("\r\n");
+        head.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n\r\n");
+        ByteBuffer headBuffer = ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        return new ByteBuffer[]{headBuffer, body.duplicate()};
+    }
+}
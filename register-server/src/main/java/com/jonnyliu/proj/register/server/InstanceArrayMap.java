@@ -0,0 +1,85 @@
+package com.jonnyliu.proj.register.server;
+
+import com.jonnyliu.proj.register.commons.ServiceInstance;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * 用数组保存的不可变实例表,给{@link OffHeapInstanceStore}的快照用
+ * <p>
+ * 不保存服务实例ID这些key,遍历时才从实例上取;快照里的实例表只会被遍历,{@link #get}是线性查找
+ *
+ * @author liujie
+ */
+final class InstanceArrayMap extends AbstractMap<String, ServiceInstance> {
+
+    private final ServiceInstance[] instances;
+
+    InstanceArrayMap(ServiceInstance[] instances) {
+        this.instances = instances;
+    }
+
+    @Override
+    public int size() {
+        return instances.length;
+    }
+
+    @Override
+    public ServiceInstance get(Object key) {
+        for (ServiceInstance serviceInstance : instances) {
+            if (serviceInstance.getInstanceId().equals(key)) {
+                return serviceInstance;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public Collection<ServiceInstance> values() {
+        return Collections.unmodifiableList(Arrays.asList(instances));
+    }
+
+    @Override
+    public Set<Entry<String, ServiceInstance>> entrySet() {
+        return new AbstractSet<Entry<String, ServiceInstance>>() {
+
+            @Override
+            public Iterator<Entry<String, ServiceInstance>> iterator() {
+                return new Iterator<Entry<String, ServiceInstance>>() {
+
+                    private int next;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < instances.length;
+                    }
+
+                    @Override
+                    public Entry<String, ServiceInstance> next() {
+                        if (next >= instances.length) {
+                            throw new NoSuchElementException();
+                        }
+                        ServiceInstance serviceInstance = instances[next++];
+                        return new SimpleImmutableEntry<>(serviceInstance.getInstanceId(), serviceInstance);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return instances.length;
+            }
+        };
+    }
+}
@@ -0,0 +1,75 @@
+package com.jonnyliu.proj.register.server;
+
+import com.jonnyliu.proj.register.commons.ServiceInstance;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * 注册表里服务实例和租约的存储
+ * <p>
+ * 写操作(注册、下线)由{@link ServiceRegistry}按服务名称加分段锁之后调用,同一个服务的写操作是串行的;
+ * 读操作和续约不加锁。快照、变更日志这些结构不归存储管,存储只负责按(服务名称, 实例ID)找到实例和它的租约
+ *
+ * @author liujie
+ */
+public interface InstanceStore {
+
+    /**
+     * 查找服务实例
+     *
+     * @param serviceName 服务名称
+     * @param instanceId  服务实例ID
+     * @return 注册表里的服务实例, 不存在时返回null
+     */
+    ServiceInstance get(String serviceName, String instanceId);
+
+    /**
+     * 注册一个服务实例,并以指定时间作为最后一次续约的时间
+     *
+     * @param serviceInstance 要注册的服务实例
+     * @param oldInstance     同一个服务实例ID当前在注册表里的实例,没有时为null
+     * @param now             当前时间戳
+     * @return 注册表里实际保存的实例, 不一定是传进来的那个对象
+     */
+    ServiceInstance put(ServiceInstance serviceInstance, ServiceInstance oldInstance, long now);
+
+    /**
+     * 删除服务实例,同时回收它的租约
+     *
+     * @param serviceName 服务名称
+     * @param instanceId  服务实例ID
+     * @return 被删除的实例, 不存在时返回null
+     */
+    ServiceInstance remove(String serviceName, String instanceId);
+
+    /**
+     * 续约
+     *
+     * @param serviceName 服务名称
+     * @param instanceId  服务实例ID
+     * @param now         当前时间戳
+     * @return 是否续约成功, 实例不存在时返回false
+     */
+    boolean renew(String serviceName, String instanceId, long now);
+
+    /**
+     * 服务实例最后一次续约的时间戳
+     *
+     * @param serviceInstance {@link #get}或者{@link #put}返回的实例
+     * @return 时间戳, 实例已经不在注册表里时返回-1
+     */
+    long getLastRenewTimestamp(ServiceInstance serviceInstance);
+
+    /**
+     * 把一个服务的所有实例做成快照里用的不可变实例表,key是服务实例ID
+     *
+     * @param instances 这个服务的所有实例,都是这个存储里的实例
+     * @return 不可变的实例表
+     */
+    Map<String, ServiceInstance> immutableInstances(Collection<ServiceInstance> instances);
+
+    /**
+     * 删除所有实例,只在恢复注册表时调用
+     */
+    void clear();
+}
@@ -0,0 +1,110 @@
+package com.jonnyliu.proj.register.server;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 租约表: 所有实例最后一次续约的时间戳放在按页分配的long数组里,用一个int句柄下标
+ * <p>
+ * 注册时分配句柄、记在{@link HeapInstanceStore}的表项上,下线时回收给后来注册的实例复用。
+ * 续约只是往数组里写一个long,不需要每个实例一个租约对象;扩容只新增一页,已有的页不会移动,读写都不加锁。
+ * 句柄回收之后,正在续约的线程可能还拿着旧句柄,最坏情况是复用这个句柄的实例多续约了一次
+ *
+ * @author liujie
+ */
+public class LeaseTable {
+
+    private static final int PAGE_BITS = 12;
+    /**
+     * 每页的时间戳个数
+     */
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    /**
+     * 扩容时整体替换,页本身不会被替换
+     */
+    private volatile AtomicLongArray[] pages = new AtomicLongArray[0];
+
+    /**
+     * 下一个从没用过的句柄
+     */
+    private int nextHandle;
+    /**
+     * 回收的句柄,当作栈使用
+     */
+    private int[] freeHandles = new int[16];
+    private int freeCount;
+
+    /**
+     * 分配一个句柄,并以指定时间作为最后一次续约的时间
+     *
+     * @param now 当前时间戳
+     * @return 句柄
+     */
+    public synchronized int allocate(long now) {
+        int handle;
+        if (freeCount > 0) {
+            handle = freeHandles[--freeCount];
+        } else {
+            handle = nextHandle++;
+            if ((handle >>> PAGE_BITS) >= pages.length) {
+                AtomicLongArray[] grown = Arrays.copyOf(pages, pages.length + 1);
+                grown[pages.length] = new AtomicLongArray(PAGE_SIZE);
+                pages = grown;
+            }
+        }
+        renew(handle, now);
+        return handle;
+    }
+
+    /**
+     * 回收一个句柄
+     *
+     * @param handle 句柄
+     */
+    public synchronized void release(int handle) {
+        if (freeCount == freeHandles.length) {
+            freeHandles = Arrays.copyOf(freeHandles, freeCount * 2);
+        }
+        freeHandles[freeCount++] = handle;
+    }
+
+    /**
+     * 续约,只写一个long
+     *
+     * @param handle 句柄
+     * @param now    当前时间戳
+     */
+    public void renew(int handle, long now) {
+        pages[handle >>> PAGE_BITS].lazySet(handle & PAGE_MASK, now);
+    }
+
+    /**
+     * 最后一次续约的时间戳
+     *
+     * @param handle 句柄
+     * @return 时间戳
+     */
+    public long getLastRenewTimestamp(int handle) {
+        return pages[handle >>> PAGE_BITS].get(handle & PAGE_MASK);
+    }
+
+    /**
+     * 正在使用的句柄个数
+     *
+     * @return 个数
+     */
+    public synchronized int size() {
+        return nextHandle - freeCount;
+    }
+
+    /**
+     * 已经分配的时间戳个数,即占用的内存是这么多个long
+     *
+     * @return 个数
+     */
+    public int capacity() {
+        return pages.length * PAGE_SIZE;
+    }
+}
@@ -0,0 +1,122 @@
+package com.jonnyliu.proj.register.server;
+
+import com.jonnyliu.proj.register.commons.Applications;
+import com.jonnyliu.proj.register.commons.RegistryCodec;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 注册表的快照文件
+ * <p>
+ * 快照内容就是{@link RegistryCodec}编码的全量注册表,直接编码到内存映射的文件里,不经过额外的缓冲区;
+ * 先写到临时文件,刷盘之后再原子地重命名,崩溃时要么是旧的快照,要么是新的快照
+ * <p>
+ * 格式: MAGIC(4字节) payload长度(4字节) payload的CRC(4字节) payload
+ *
+ * @author liujie
+ */
+public class MappedSnapshotFile {
+
+    private static final Logger log = LoggerFactory.getLogger(MappedSnapshotFile.class);
+
+    private static final int MAGIC = 0x52534e50;
+    private static final int HEADER_SIZE = 12;
+    private static final int INITIAL_INSTANCE_SIZE = 64;
+
+    private final File file;
+    private final File tempFile;
+
+    public MappedSnapshotFile(File file) {
+        this.file = file;
+        this.tempFile = new File(file.getPath() + ".tmp");
+    }
+
+    /**
+     * 写快照
+     *
+     * @param applications 全量注册表
+     * @throws IOException 写文件失败
+     */
+    public void write(Applications applications) throws IOException {
+        long instanceCount = 0;
+        for (java.util.Map<String, ?> instances : applications.getRegistry().values()) {
+            instanceCount += instances.size();
+        }
+        long capacity = HEADER_SIZE + 64 + instanceCount * INITIAL_INSTANCE_SIZE;
+        Files.deleteIfExists(tempFile.toPath());
+        try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            while (true) {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+                mapped.position(HEADER_SIZE);
+                try {
+                    RegistryCodec.encode(applications, mapped);
+                } catch (BufferOverflowException e) {
+                    capacity *= 2;
+                    continue;
+                }
+                int payloadLength = mapped.position() - HEADER_SIZE;
+                ByteBuffer payload = mapped.duplicate();
+                payload.position(HEADER_SIZE);
+                payload.limit(HEADER_SIZE + payloadLength);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                mapped.putInt(0, MAGIC);
+                mapped.putInt(4, payloadLength);
+                mapped.putInt(8, (int) crc.getValue());
+                mapped.force();
+                // 映射时按估算的大小扩展了文件,去掉末尾没用到的部分
+                channel.truncate(HEADER_SIZE + payloadLength);
+                break;
+            }
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * 读快照
+     *
+     * @return 快照里的注册表, 没有快照或者快照损坏返回null
+     * @throws IOException 读文件失败
+     */
+    public Applications read() throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                log.warn("snapshot file {} is too short, ignore it", file);
+                return null;
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int magic = mapped.getInt(0);
+            int payloadLength = mapped.getInt(4);
+            int expectedCrc = mapped.getInt(8);
+            if (magic != MAGIC || payloadLength < 0 || HEADER_SIZE + (long) payloadLength > channel.size()) {
+                log.warn("snapshot file {} has a bad header, ignore it", file);
+                return null;
+            }
+            ByteBuffer payload = mapped.duplicate();
+            payload.position(HEADER_SIZE);
+            payload.limit(HEADER_SIZE + payloadLength);
+            CRC32 crc = new CRC32();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != expectedCrc) {
+                log.warn("snapshot file {} checksum mismatch, ignore it", file);
+                return null;
+            }
+            return RegistryCodec.decodeApplications(payload);
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package com.jonnyliu.proj.register.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 基于java nio的http服务端
+ * <p>
+ * 一个selector线程负责所有连接的accept、读、写,解析出完整的请求之后交给固定大小的工作线程池处理,
+ * 不会为每个连接创建一个线程;连接默认是keep-alive的,一个连接上同一时刻只处理一个请求
+ * <p>
+ * 没有请求在处理、超过空闲时间没有读写的连接由selector线程关闭,包括只发了半个请求的连接
+ *
+ * @author liujie
+ */
+public class NioHttpServer {
+
+    private static final Logger log = LoggerFactory.getLogger(NioHttpServer.class);
+
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_REQUEST_SIZE = 4 * 1024 * 1024;
+    /**
+     * 默认的连接空闲时间
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT = 60 * 1000L;
+    private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+    private static final String THREAD_NIO_SELECTOR = "THREAD-NIO-SELECTOR";
+    private static final String THREAD_NIO_WORKER = "THREAD-NIO-WORKER-";
+
+    private final int port;
+    private final HttpHandler handler;
+    private final ExecutorService workers;
+    private final long idleTimeoutMillis;
+    /**
+     * 检查空闲连接的间隔
+     */
+    private final long idleCheckIntervalMillis;
+
+    /**
+     * 工作线程处理完的连接,等待selector线程写回响应
+     */
+    private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread selectorThread;
+    private volatile boolean running;
+
+    /**
+     * @param port          监听的端口, 0表示随机分配
+     * @param handler       请求处理器
+     * @param workerThreads 工作线程数
+     */
+    public NioHttpServer(int port, HttpHandler handler, int workerThreads) {
+        this(port, handler, workerThreads, DEFAULT_IDLE_TIMEOUT);
+    }
+
+    /**
+     * @param port              监听的端口, 0表示随机分配
+     * @param handler           请求处理器
+     * @param workerThreads     工作线程数
+     * @param idleTimeoutMillis 连接空闲多久之后关闭
+     */
+    public NioHttpServer(int port, HttpHandler handler, int workerThreads, long idleTimeoutMillis) {
+        this.port = port;
+        this.handler = handler;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.idleCheckIntervalMillis = Math.max(1L, Math.min(idleTimeoutMillis / 2, 1000L));
+        AtomicInteger workerIndex = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerThreads, r -> {
+            Thread thread = new Thread(r, THREAD_NIO_WORKER + workerIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 启动服务端
+     *
+     * @throws IOException 端口绑定失败
+     */
+    public void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        selectorThread = new Thread(this::selectLoop, THREAD_NIO_SELECTOR);
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+        log.info("register-server 开始监听端口: {}", getPort());
+    }
+
+    /**
+     * 实际监听的端口
+     *
+     * @return 端口
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * 停止服务端
+     */
+    public void stop() {
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        workers.shutdownNow();
+    }
+
+    private void selectLoop() {
+        long lastIdleCheck = System.currentTimeMillis();
+        while (running) {
+            try {
+                selector.select(idleCheckIntervalMillis);
+                Connection connection;
+                while ((connection = pendingWrites.poll()) != null) {
+                    connection.write();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        ((Connection) key.attachment()).read();
+                    } else if (key.isWritable()) {
+                        ((Connection) key.attachment()).write();
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastIdleCheck >= idleCheckIntervalMillis) {
+                    closeIdleConnections(now);
+                    lastIdleCheck = now;
+                }
+            } catch (Exception e) {
+                log.error("error.", e);
+            }
+        }
+        closeQuietly();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new Connection(channel, key));
+        }
+    }
+
+    /**
+     * selector线程: 关闭超过空闲时间的连接,正在处理请求(包括长轮询)的连接不算空闲
+     *
+     * @param now 当前时间
+     */
+    private void closeIdleConnections(long now) {
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (!(attachment instanceof Connection)) {
+                continue;
+            }
+            Connection connection = (Connection) attachment;
+            if (!connection.processing && now - connection.lastActiveTime >= idleTimeoutMillis) {
+                connection.close();
+            }
+        }
+    }
+
+    private void closeQuietly() {
+        for (SelectionKey key : selector.keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException ignored) {
+                // 关闭时的异常不需要处理
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+            // 关闭时的异常不需要处理
+        }
+    }
+
+    /**
+     * 一个客户端连接
+     */
+    private class Connection implements HttpResponder {
+
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private volatile ByteBuffer[] writeBuffers;
+        private boolean keepAlive = true;
+        /**
+         * 是否有请求正在被工作线程处理
+         */
+        private boolean processing;
+        /**
+         * 最后一次读到数据或者写完响应的时间
+         */
+        private long lastActiveTime = System.currentTimeMillis();
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        /**
+         * selector线程: 连接可读
+         */
+        void read() {
+            try {
+                if (!readBuffer.hasRemaining()) {
+                    if (readBuffer.capacity() >= MAX_REQUEST_SIZE) {
+                        close();
+                        return;
+                    }
+                    ByteBuffer bigger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+                    readBuffer.flip();
+                    bigger.put(readBuffer);
+                    readBuffer = bigger;
+                }
+                if (channel.read(readBuffer) < 0) {
+                    close();
+                    return;
+                }
+                lastActiveTime = System.currentTimeMillis();
+                dispatch();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * selector线程: 如果缓冲区里已经有一个完整的请求,交给工作线程
+         */
+        private void dispatch() {
+            if (processing) {
+                return;
+            }
+            HttpRequest request;
+            try {
+                request = parse();
+            } catch (RuntimeException e) {
+                keepAlive = false;
+                processing = true;
+                respond(HttpResponse.badRequest("malformed request"));
+                return;
+            }
+            if (request == null) {
+                return;
+            }
+            processing = true;
+            keepAlive = request.isKeepAlive();
+            // 处理期间不再读这个连接
+            key.interestOps(0);
+            workers.execute(() -> {
+                try {
+                    handler.handle(request, this);
+                } catch (Throwable e) {
+                    log.error("handle request {} error.", request, e);
+                    respond(HttpResponse.serverError(e.getMessage()));
+                }
+            });
+        }
+
+        /**
+         * 从读缓冲区里解析出一个完整的请求,数据还不完整返回null
+         *
+         * @return 请求
+         */
+        private HttpRequest parse() {
+            byte[] data = readBuffer.array();
+            int limit = readBuffer.position();
+            int headerEnd = indexOf(data, limit, HEADER_END);
+            if (headerEnd < 0) {
+                return null;
+            }
+            String head = new String(data, 0, headerEnd, StandardCharsets.ISO_8859_1);
+            String[] lines = head.split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            Map<String, String> headers = new HashMap<>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0) {
+                    headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+                }
+            }
+            String contentLength = headers.get("content-length");
+            int bodyLength = contentLength == null ? 0 : Integer.parseInt(contentLength);
+            int bodyStart = headerEnd + HEADER_END.length;
+            if (bodyLength > MAX_REQUEST_SIZE) {
+                throw new IllegalArgumentException("request too large");
+            }
+            if (limit < bodyStart + bodyLength) {
+                return null;
+            }
+            byte[] body = new byte[bodyLength];
+            System.arraycopy(data, bodyStart, body, 0, bodyLength);
+            // 剩下的字节是下一个请求的
+            int consumed = bodyStart + bodyLength;
+            System.arraycopy(data, consumed, data, 0, limit - consumed);
+            readBuffer.position(limit - consumed);
+            return new HttpRequest(requestLine[0], requestLine[1], headers, body);
+        }
+
+        /**
+         * 任意线程: 写回响应
+         */
+        @Override
+        public void respond(HttpResponse response) {
+            writeBuffers = response.encode(keepAlive);
+            pendingWrites.offer(this);
+            selector.wakeup();
+        }
+
+        /**
+         * selector线程: 写响应
+         */
+        void write() {
+            ByteBuffer[] buffers = writeBuffers;
+            if (buffers == null || !key.isValid()) {
+                return;
+            }
+            try {
+                channel.write(buffers);
+                // 响应体为空时最后一个buffer一开始就写完了,要看每一个buffer
+                for (ByteBuffer buffer : buffers) {
+                    if (buffer.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                writeBuffers = null;
+                lastActiveTime = System.currentTimeMillis();
+                if (!keepAlive) {
+                    close();
+                    return;
+                }
+                processing = false;
+                key.interestOps(SelectionKey.OP_READ);
+                // 客户端可能已经把下一个请求发过来了
+                dispatch();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // 关闭时的异常不需要处理
+            }
+        }
+    }
+
+    private static int indexOf(byte[] data, int limit, byte[] pattern) {
+        outer:
+        for (int i = 0; i <= limit - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
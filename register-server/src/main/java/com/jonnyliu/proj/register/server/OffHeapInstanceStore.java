@@ -0,0 +1,525 @@
+package com.jonnyliu.proj.register.server;
+
+import com.jonnyliu.proj.register.commons.ServiceInstance;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+
+/**
+ * 堆外的实例存储,给几百万实例的注册中心用,减小老年代和GC停顿
+ * <p>
+ * 每个实例一条定长记录,放在按页分配的direct buffer里:
+ * <pre>
+ * 最后一次续约的时间戳(8字节) 代数(4字节) {长度(2字节,-1表示null) UTF-8字节} x (服务实例ID, ip, 主机名)
+ * </pre>
+ * 按(服务名称, 服务实例ID)查找用的是一个堆外的开放寻址哈希表,每一项8个字节: 高32位是哈希值,低32位是记录编号加1,
+ * 0表示空,-1表示删除过。堆上每个实例只剩一个很小的{@link OffHeapServiceInstance},服务名称按字符串共享。
+ * 字段超过记录长度的实例,字段放在堆上,只有租约放在记录里。
+ * <p>
+ * 写操作由存储自己的锁串行,哈希表扩容时整体替换。读和续约不加锁: 查到记录编号之后,
+ * 从volatile的页里取出实例对象,因为实例对象是在记录写完之后才放进去的,之后读到的记录内容都是完整的。
+ * 记录回收时代数加1,实例对象记着注册时的代数;续约在记录编号对应的分段锁里先比较代数再写租约,
+ * 查到实例之后记录刚好被回收、复用的话,代数对不上,不会把时间戳写到复用这条记录的实例上
+ *
+ * @author liujie
+ */
+public class OffHeapInstanceStore implements InstanceStore {
+
+    /**
+     * 默认的记录长度,字段加起来超过这个长度的实例放在堆上
+     */
+    public static final int DEFAULT_RECORD_SIZE = 128;
+
+    static final int INSTANCE_ID = 0;
+    static final int IP = 1;
+    static final int HOSTNAME = 2;
+
+    private static final int PAGE_BITS = 12;
+    /**
+     * 每页的记录条数
+     */
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private static final int LEASE_OFFSET = 0;
+    private static final int GENERATION_OFFSET = 8;
+    private static final int FIELDS_OFFSET = 12;
+    private static final int FIELD_COUNT = 3;
+
+    private static final long EMPTY = 0L;
+    private static final long DELETED = -1L;
+    private static final int MIN_INDEX_CAPACITY = 1024;
+    private static final int LEASE_LOCK_STRIPES = 64;
+
+    private final int recordSize;
+
+    /**
+     * 记录所在的页,扩容时整体替换,页本身不会被替换
+     */
+    private volatile ByteBuffer[] recordPages = new ByteBuffer[0];
+    /**
+     * 每条记录对应的实例对象,和{@link #recordPages}一一对应,记录没有被使用时为null
+     */
+    private volatile AtomicReferenceArray<OffHeapServiceInstance>[] instancePages = newInstancePages(0);
+
+    /**
+     * 开放寻址的哈希表,容量是2的幂,扩容时整体替换
+     */
+    private volatile LongBuffer index = newIndex(MIN_INDEX_CAPACITY);
+    private int size;
+    private int deleted;
+
+    /**
+     * 下一条从没用过的记录
+     */
+    private int nextSlot;
+    /**
+     * 回收的记录编号,当作栈使用
+     */
+    private int[] freeSlots = new int[16];
+    private int freeCount;
+
+    /**
+     * 服务名称,所有实例共享同一个字符串
+     */
+    private final Map<String, String> serviceNames = new ConcurrentHashMap<>();
+
+    /**
+     * 按记录编号分段的锁,续约写租约和回收记录时改代数都要持有
+     */
+    private final Object[] leaseLocks = new Object[LEASE_LOCK_STRIPES];
+
+    public OffHeapInstanceStore() {
+        this(DEFAULT_RECORD_SIZE);
+    }
+
+    /**
+     * @param recordSize 每条记录的字节数
+     */
+    public OffHeapInstanceStore(int recordSize) {
+        if (recordSize < FIELDS_OFFSET + FIELD_COUNT * 2 || recordSize > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("invalid record size: " + recordSize);
+        }
+        this.recordSize = recordSize;
+        for (int i = 0; i < LEASE_LOCK_STRIPES; i++) {
+            leaseLocks[i] = new Object();
+        }
+    }
+
+    @Override
+    public ServiceInstance get(String serviceName, String instanceId) {
+        return find(serviceName, instanceId);
+    }
+
+    @Override
+    public synchronized ServiceInstance put(ServiceInstance serviceInstance, ServiceInstance oldInstance, long now) {
+        if (oldInstance == serviceInstance) {
+            writeLease(((OffHeapServiceInstance) serviceInstance).getSlot(), now);
+            return serviceInstance;
+        }
+        String serviceName = serviceNames.computeIfAbsent(serviceInstance.getServiceName(), Function.identity());
+        int slot = allocateSlot();
+        boolean fits = writeRecord(slot, serviceInstance, now);
+        OffHeapServiceInstance stored = new OffHeapServiceInstance(this, slot, readGeneration(slot), serviceName,
+                serviceInstance, !fits);
+        instancePages[slot >>> PAGE_BITS].set(slot & PAGE_MASK, stored);
+
+        int hash = hash(serviceName, serviceInstance.getInstanceId());
+        if (oldInstance != null) {
+            OffHeapServiceInstance old = (OffHeapServiceInstance) oldInstance;
+            replaceEntry(hash, old.getSlot(), slot);
+            release(old);
+        } else {
+            insertEntry(hash, slot);
+        }
+        return stored;
+    }
+
+    @Override
+    public synchronized ServiceInstance remove(String serviceName, String instanceId) {
+        OffHeapServiceInstance serviceInstance = find(serviceName, instanceId);
+        if (serviceInstance == null) {
+            return null;
+        }
+        replaceEntry(hash(serviceName, instanceId), serviceInstance.getSlot(), -1);
+        release(serviceInstance);
+        return serviceInstance;
+    }
+
+    @Override
+    public boolean renew(String serviceName, String instanceId, long now) {
+        OffHeapServiceInstance serviceInstance = find(serviceName, instanceId);
+        return serviceInstance != null && renew(serviceInstance, now);
+    }
+
+    /**
+     * 给查到的实例续约,实例已经被摘除时什么也不写
+     *
+     * @param serviceInstance 查到的实例,可能已经不在存储里了
+     * @param now             当前时间戳
+     * @return 是否续约成功
+     */
+    boolean renew(OffHeapServiceInstance serviceInstance, long now) {
+        int slot = serviceInstance.getSlot();
+        synchronized (leaseLock(slot)) {
+            if (readGeneration(slot) != serviceInstance.getGeneration()) {
+                return false;
+            }
+            writeLease(slot, now);
+            return true;
+        }
+    }
+
+    @Override
+    public long getLastRenewTimestamp(ServiceInstance serviceInstance) {
+        if (!(serviceInstance instanceof OffHeapServiceInstance)) {
+            return -1L;
+        }
+        OffHeapServiceInstance stored = (OffHeapServiceInstance) serviceInstance;
+        int slot = stored.getSlot();
+        synchronized (leaseLock(slot)) {
+            if (readGeneration(slot) != stored.getGeneration()) {
+                return -1L;
+            }
+            return recordPages[slot >>> PAGE_BITS].getLong(offset(slot) + LEASE_OFFSET);
+        }
+    }
+
+    @Override
+    public Map<String, ServiceInstance> immutableInstances(Collection<ServiceInstance> instances) {
+        return new InstanceArrayMap(instances.toArray(new ServiceInstance[0]));
+    }
+
+    @Override
+    public synchronized void clear() {
+        AtomicReferenceArray<OffHeapServiceInstance>[] pages = instancePages;
+        for (int slot = 0; slot < nextSlot; slot++) {
+            OffHeapServiceInstance serviceInstance = pages[slot >>> PAGE_BITS].get(slot & PAGE_MASK);
+            if (serviceInstance != null) {
+                nextGeneration(slot);
+                serviceInstance.detach();
+                pages[slot >>> PAGE_BITS].set(slot & PAGE_MASK, null);
+            }
+        }
+        index = newIndex(MIN_INDEX_CAPACITY);
+        size = 0;
+        deleted = 0;
+        nextSlot = 0;
+        freeCount = 0;
+    }
+
+    /**
+     * 实例个数
+     *
+     * @return 个数
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * 已经分配的堆外内存,包括记录和哈希表
+     *
+     * @return 字节数
+     */
+    public long getOffHeapBytes() {
+        return (long) recordPages.length * PAGE_SIZE * recordSize + (long) index.capacity() * Long.BYTES;
+    }
+
+    /**
+     * 按(服务名称, 服务实例ID)查找,不加锁也不分配对象
+     */
+    private OffHeapServiceInstance find(String serviceName, String instanceId) {
+        LongBuffer table = index;
+        int mask = table.capacity() - 1;
+        int hash = hash(serviceName, instanceId);
+        for (int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+            long entry = table.get(i);
+            if (entry == EMPTY) {
+                return null;
+            }
+            if (entry != DELETED && (int) (entry >>> 32) == hash) {
+                OffHeapServiceInstance serviceInstance = instanceAt((int) entry - 1);
+                if (serviceInstance != null && serviceInstance.getServiceName().equals(serviceName)
+                        && serviceInstance.hasInstanceId(instanceId)) {
+                    return serviceInstance;
+                }
+            }
+        }
+    }
+
+    private OffHeapServiceInstance instanceAt(int slot) {
+        AtomicReferenceArray<OffHeapServiceInstance>[] pages = instancePages;
+        int page = slot >>> PAGE_BITS;
+        // 哈希表里的记录编号可能比读到的页更新
+        return page < pages.length ? pages[page].get(slot & PAGE_MASK) : null;
+    }
+
+    /**
+     * 在哈希表里加一项,调用方持有锁
+     */
+    private void insertEntry(int hash, int slot) {
+        LongBuffer table = index;
+        int mask = table.capacity() - 1;
+        int i = spread(hash) & mask;
+        while (table.get(i) != EMPTY && table.get(i) != DELETED) {
+            i = (i + 1) & mask;
+        }
+        if (table.get(i) == DELETED) {
+            deleted--;
+        }
+        table.put(i, entry(hash, slot));
+        size++;
+        if ((size + deleted) * 2 > table.capacity()) {
+            rebuildIndex();
+        }
+    }
+
+    /**
+     * 把哈希表里指向某条记录的项改成指向另一条记录,newSlot为-1时删除这一项,调用方持有锁
+     * <p>
+     * 最多探测整张表,遇到空项或者探测完还没找到说明索引和记录对不上,直接抛异常
+     */
+    private void replaceEntry(int hash, int oldSlot, int newSlot) {
+        LongBuffer table = index;
+        int mask = table.capacity() - 1;
+        long oldEntry = entry(hash, oldSlot);
+        int i = spread(hash) & mask;
+        for (int probes = 0; table.get(i) != oldEntry; probes++) {
+            if (table.get(i) == EMPTY || probes == mask) {
+                throw new IllegalStateException("no index entry for slot " + oldSlot);
+            }
+            i = (i + 1) & mask;
+        }
+        if (newSlot >= 0) {
+            table.put(i, entry(hash, newSlot));
+            return;
+        }
+        table.put(i, DELETED);
+        size--;
+        deleted++;
+        if (deleted * 4 > table.capacity()) {
+            rebuildIndex();
+        }
+    }
+
+    /**
+     * 按实例个数重建哈希表,去掉删除过的项,调用方持有锁
+     */
+    private void rebuildIndex() {
+        LongBuffer table = index;
+        int capacity = MIN_INDEX_CAPACITY;
+        while (capacity < size * 4) {
+            capacity <<= 1;
+        }
+        LongBuffer rebuilt = newIndex(capacity);
+        int mask = capacity - 1;
+        for (int j = 0; j < table.capacity(); j++) {
+            long entry = table.get(j);
+            if (entry != EMPTY && entry != DELETED) {
+                int i = spread((int) (entry >>> 32)) & mask;
+                while (rebuilt.get(i) != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                rebuilt.put(i, entry);
+            }
+        }
+        deleted = 0;
+        index = rebuilt;
+    }
+
+    private int allocateSlot() {
+        if (freeCount > 0) {
+            return freeSlots[--freeCount];
+        }
+        int slot = nextSlot++;
+        if ((slot >>> PAGE_BITS) >= recordPages.length) {
+            int pages = recordPages.length;
+            ByteBuffer[] grownRecords = Arrays.copyOf(recordPages, pages + 1);
+            grownRecords[pages] = ByteBuffer.allocateDirect(PAGE_SIZE * recordSize).order(ByteOrder.nativeOrder());
+            AtomicReferenceArray<OffHeapServiceInstance>[] grownInstances = Arrays.copyOf(instancePages, pages + 1);
+            grownInstances[pages] = new AtomicReferenceArray<>(PAGE_SIZE);
+            recordPages = grownRecords;
+            instancePages = grownInstances;
+        }
+        return slot;
+    }
+
+    /**
+     * 回收实例的记录,先让代数加1、把字段复制到堆上,调用方持有锁
+     */
+    private void release(OffHeapServiceInstance serviceInstance) {
+        int slot = serviceInstance.getSlot();
+        nextGeneration(slot);
+        serviceInstance.detach();
+        instancePages[slot >>> PAGE_BITS].set(slot & PAGE_MASK, null);
+        if (freeCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+        }
+        freeSlots[freeCount++] = slot;
+    }
+
+    private void writeLease(int slot, long now) {
+        recordPages[slot >>> PAGE_BITS].putLong(offset(slot) + LEASE_OFFSET, now);
+    }
+
+    private int readGeneration(int slot) {
+        return recordPages[slot >>> PAGE_BITS].getInt(offset(slot) + GENERATION_OFFSET);
+    }
+
+    /**
+     * 记录回收时代数加1,之前查到这条记录的续约都会失败,调用方持有存储的锁
+     */
+    private void nextGeneration(int slot) {
+        synchronized (leaseLock(slot)) {
+            ByteBuffer page = recordPages[slot >>> PAGE_BITS];
+            int position = offset(slot) + GENERATION_OFFSET;
+            page.putInt(position, page.getInt(position) + 1);
+        }
+    }
+
+    private Object leaseLock(int slot) {
+        return leaseLocks[slot & (LEASE_LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * 写一条记录
+     *
+     * @return 字段是否放得下, 放不下时只写租约; 代数是回收时改的,这里不动
+     */
+    private boolean writeRecord(int slot, ServiceInstance serviceInstance, long now) {
+        ByteBuffer page = recordPages[slot >>> PAGE_BITS];
+        int base = offset(slot);
+        page.putLong(base + LEASE_OFFSET, now);
+        byte[][] fields = {bytes(serviceInstance.getInstanceId()), bytes(serviceInstance.getIp()),
+                bytes(serviceInstance.getHostname())};
+        int length = FIELDS_OFFSET;
+        for (byte[] field : fields) {
+            length += 2 + (field == null ? 0 : field.length);
+        }
+        if (length > recordSize) {
+            return false;
+        }
+        int position = base + FIELDS_OFFSET;
+        for (byte[] field : fields) {
+            if (field == null) {
+                page.putShort(position, (short) -1);
+                position += 2;
+                continue;
+            }
+            page.putShort(position, (short) field.length);
+            position += 2;
+            for (byte b : field) {
+                page.put(position++, b);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 读记录里的一个字段
+     * <p>
+     * 记录可能正在被复用,长度不合法时返回null,不会越界,调用方会发现实例已经被摘除而丢掉这个值
+     */
+    String readString(int slot, int field) {
+        ByteBuffer page = recordPages[slot >>> PAGE_BITS];
+        int end = offset(slot) + recordSize;
+        int position = fieldPosition(page, offset(slot), field, end);
+        if (position < 0) {
+            return null;
+        }
+        int length = page.getShort(position);
+        if (length < 0 || position + 2 + length > end) {
+            return null;
+        }
+        byte[] value = new byte[length];
+        for (int i = 0; i < length; i++) {
+            value[i] = page.get(position + 2 + i);
+        }
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 记录里的一个字段是否等于给定的字符串,都是ASCII时逐个字节比较,不分配对象
+     */
+    boolean stringEquals(int slot, int field, String value) {
+        ByteBuffer page = recordPages[slot >>> PAGE_BITS];
+        int end = offset(slot) + recordSize;
+        int position = fieldPosition(page, offset(slot), field, end);
+        if (position < 0) {
+            return false;
+        }
+        int length = page.getShort(position);
+        if (value == null || length < 0) {
+            return value == null && length == -1;
+        }
+        if (position + 2 + length > end) {
+            return false;
+        }
+        if (length != value.length()) {
+            // 不是ASCII时字节数和字符数不一样
+            return length > value.length() && value.equals(readString(slot, field));
+        }
+        for (int i = 0; i < length; i++) {
+            byte b = page.get(position + 2 + i);
+            if (b < 0) {
+                return value.equals(readString(slot, field));
+            }
+            if (b != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 字段长度所在的位置,记录不合法时返回-1
+     */
+    private static int fieldPosition(ByteBuffer page, int base, int field, int end) {
+        int position = base + FIELDS_OFFSET;
+        for (int i = 0; i < field; i++) {
+            int length = page.getShort(position);
+            position += 2 + Math.max(0, length);
+            if (position + 2 > end) {
+                return -1;
+            }
+        }
+        return position;
+    }
+
+    private int offset(int slot) {
+        return (slot & PAGE_MASK) * recordSize;
+    }
+
+    private static byte[] bytes(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int hash(String serviceName, String instanceId) {
+        return serviceName.hashCode() * 31 + instanceId.hashCode();
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static long entry(int hash, int slot) {
+        return ((long) hash << 32) | ((slot + 1) & 0xFFFFFFFFL);
+    }
+
+    private static LongBuffer newIndex(int capacity) {
+        return ByteBuffer.allocateDirect(capacity * Long.BYTES).order(ByteOrder.nativeOrder()).asLongBuffer();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static AtomicReferenceArray<OffHeapServiceInstance>[] newInstancePages(int length) {
+        return (AtomicReferenceArray<OffHeapServiceInstance>[]) new AtomicReferenceArray<?>[length];
+    }
+}
@@ -0,0 +1,160 @@
+package com.jonnyliu.proj.register.server;
+
+import com.jonnyliu.proj.register.commons.ServiceInstance;
+
+/**
+ * {@link OffHeapInstanceStore}里的服务实例: 服务实例ID、ip、主机名不放在对象里,每次从堆外的记录里解码
+ * <p>
+ * 服务名称是存储里共享的字符串,端口直接放在对象里。实例被摘除之前,存储调用{@link #detach()}
+ * 把字段复制到堆上,之后读到的都是堆上的值,和记录是否已经被别的实例复用无关
+ *
+ * @author liujie
+ */
+final class OffHeapServiceInstance extends ServiceInstance {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient OffHeapInstanceStore store;
+    /**
+     * 在存储里的记录编号,摘除之后也不变
+     */
+    private final int slot;
+    /**
+     * 注册时记录的代数,记录被回收之后就对不上了
+     */
+    private final int generation;
+    /**
+     * 为true时字段在堆上,不再读记录
+     */
+    private volatile boolean fieldsOnHeap;
+
+    /**
+     * @param store        所属的存储
+     * @param slot         记录编号
+     * @param generation   记录当前的代数
+     * @param serviceName  共享的服务名称
+     * @param source       注册时传进来的实例
+     * @param fieldsOnHeap 记录放不下这个实例的字段,直接放在堆上
+     */
+    OffHeapServiceInstance(OffHeapInstanceStore store, int slot, int generation, String serviceName,
+            ServiceInstance source, boolean fieldsOnHeap) {
+        this.store = store;
+        this.slot = slot;
+        this.generation = generation;
+        super.setServiceName(serviceName);
+        super.setPort(source.getPort());
+        if (fieldsOnHeap) {
+            super.setInstanceId(source.getInstanceId());
+            super.setIp(source.getIp());
+            super.setHostname(source.getHostname());
+        }
+        this.fieldsOnHeap = fieldsOnHeap;
+    }
+
+    int getSlot() {
+        return slot;
+    }
+
+    int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * 把字段复制到堆上,由存储在回收记录之前调用
+     */
+    void detach() {
+        if (!fieldsOnHeap) {
+            super.setInstanceId(store.readString(slot, OffHeapInstanceStore.INSTANCE_ID));
+            super.setIp(store.readString(slot, OffHeapInstanceStore.IP));
+            super.setHostname(store.readString(slot, OffHeapInstanceStore.HOSTNAME));
+            fieldsOnHeap = true;
+        }
+    }
+
+    /**
+     * 服务实例ID是否相同,字段在记录里时不需要解码
+     *
+     * @param instanceId 服务实例ID
+     * @return 是否相同
+     */
+    boolean hasInstanceId(String instanceId) {
+        if (!fieldsOnHeap) {
+            boolean equal = store.stringEquals(slot, OffHeapInstanceStore.INSTANCE_ID, instanceId);
+            // 读记录的时候被摘除了,记录可能已经被复用,以堆上的值为准
+            if (!fieldsOnHeap) {
+                return equal;
+            }
+        }
+        return instanceId.equals(super.getInstanceId());
+    }
+
+    @Override
+    public String getInstanceId() {
+        return read(OffHeapInstanceStore.INSTANCE_ID);
+    }
+
+    @Override
+    public String getIp() {
+        return read(OffHeapInstanceStore.IP);
+    }
+
+    @Override
+    public String getHostname() {
+        return read(OffHeapInstanceStore.HOSTNAME);
+    }
+
+    private String read(int field) {
+        if (!fieldsOnHeap) {
+            String value = store.readString(slot, field);
+            if (!fieldsOnHeap) {
+                return value;
+            }
+        }
+        switch (field) {
+            case OffHeapInstanceStore.INSTANCE_ID:
+                return super.getInstanceId();
+            case OffHeapInstanceStore.IP:
+                return super.getIp();
+            default:
+                return super.getHostname();
+        }
+    }
+
+    @Override
+    public void setServiceName(String serviceName) {
+        throw new UnsupportedOperationException("instances in the registry are read-only");
+    }
+
+    @Override
+    public void setIp(String ip) {
+        throw new UnsupportedOperationException("instances in the registry are read-only");
+    }
+
+    @Override
+    public void setHostname(String hostname) {
+        throw new UnsupportedOperationException("instances in the registry are read-only");
+    }
+
+    @Override
+    public void setPort(int port) {
+        throw new UnsupportedOperationException("instances in the registry are read-only");
+    }
+
+    @Override
+    public void setInstanceId(String instanceId) {
+        throw new UnsupportedOperationException("instances in the registry are read-only");
+    }
+
+    /**
+     * 序列化成普通的服务实例
+     */
+    private Object writeReplace() {
+        ServiceInstance copy = new ServiceInstance();
+        copy.setServiceName(getServiceName());
+        copy.setInstanceId(getInstanceId());
+        copy.setIp(getIp());
+        copy.setHostname(getHostname());
+        copy.setPort(getPort());
+        return copy;
+    }
+}
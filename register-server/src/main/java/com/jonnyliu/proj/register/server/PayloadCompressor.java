@@ -0,0 +1,156 @@
+package com.jonnyliu.proj.register.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 注册表payload的压缩,同时统计压缩率和压缩花掉的cpu时间
+ * <p>
+ * 压缩好的payload和编码好的payload一样放在{@link ResponseCache}里,注册表版本号不变就不会重新压缩
+ *
+ * @author liujie
+ */
+public class PayloadCompressor {
+
+    /**
+     * http的Content-Encoding
+     */
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final Metrics gzipMetrics = new Metrics();
+    private final Metrics deflateMetrics = new Metrics();
+
+    /**
+     * 压缩
+     *
+     * @param payload  编码好的payload,不会改变它的position
+     * @param encoding {@link #GZIP} 或者 {@link #DEFLATE}
+     * @return 压缩之后的只读buffer
+     */
+    public ByteBuffer compress(ByteBuffer payload, String encoding) {
+        Metrics metrics = metrics(encoding);
+        long cpuStart = currentThreadCpuTime();
+        ByteBuffer source = payload.duplicate();
+        int uncompressedSize = source.remaining();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(64, uncompressedSize / 4));
+        try (OutputStream out = GZIP.equals(encoding) ? new GZIPOutputStream(bytes, CHUNK_SIZE)
+                : new DeflaterOutputStream(bytes)) {
+            byte[] chunk = new byte[Math.min(CHUNK_SIZE, Math.max(1, uncompressedSize))];
+            while (source.hasRemaining()) {
+                int length = Math.min(chunk.length, source.remaining());
+                source.get(chunk, 0, length);
+                out.write(chunk, 0, length);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("compress payload with " + encoding + " error", e);
+        }
+        ByteBuffer compressed = ByteBuffer.wrap(bytes.toByteArray()).asReadOnlyBuffer();
+        metrics.record(uncompressedSize, compressed.remaining(), currentThreadCpuTime() - cpuStart);
+        return compressed;
+    }
+
+    /**
+     * 从Accept-Encoding里选一个支持的压缩方式,优先gzip
+     *
+     * @param acceptEncoding 请求头Accept-Encoding,可以为null
+     * @return {@link #GZIP}、{@link #DEFLATE},不接受压缩返回null
+     */
+    public static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        boolean deflate = false;
+        for (String token : acceptEncoding.split(",")) {
+            String[] parts = token.split(";");
+            String coding = parts[0].trim().toLowerCase();
+            if (parts.length > 1 && parts[1].trim().matches("q\\s*=\\s*0(\\.0*)?")) {
+                continue;
+            }
+            if (GZIP.equals(coding)) {
+                return GZIP;
+            }
+            if (DEFLATE.equals(coding)) {
+                deflate = true;
+            }
+        }
+        return deflate ? DEFLATE : null;
+    }
+
+    /**
+     * 压缩率,即压缩之后的字节数/压缩之前的字节数,越小越好;还没压缩过返回0
+     *
+     * @param encoding 压缩方式
+     * @return 压缩率
+     */
+    public double getCompressionRatio(String encoding) {
+        Metrics metrics = metrics(encoding);
+        long uncompressed = metrics.uncompressedBytes.get();
+        return uncompressed == 0 ? 0D : (double) metrics.compressedBytes.get() / uncompressed;
+    }
+
+    /**
+     * 压缩累计花掉的cpu时间
+     *
+     * @param encoding 压缩方式
+     * @return 纳秒
+     */
+    public long getCompressCpuNanos(String encoding) {
+        return metrics(encoding).cpuNanos.get();
+    }
+
+    /**
+     * 累计压缩了多少次,正常情况下每个注册表版本最多一次
+     *
+     * @param encoding 压缩方式
+     * @return 压缩次数
+     */
+    public long getCompressCount(String encoding) {
+        return metrics(encoding).count.get();
+    }
+
+    private Metrics metrics(String encoding) {
+        if (GZIP.equals(encoding)) {
+            return gzipMetrics;
+        }
+        if (DEFLATE.equals(encoding)) {
+            return deflateMetrics;
+        }
+        throw new IllegalArgumentException("unsupported encoding: " + encoding);
+    }
+
+    private static long currentThreadCpuTime() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean.isCurrentThreadCpuTimeSupported()) {
+            return threadMXBean.getCurrentThreadCpuTime();
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * 一种压缩方式的统计
+     */
+    private static class Metrics {
+
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong uncompressedBytes = new AtomicLong();
+        private final AtomicLong compressedBytes = new AtomicLong();
+        private final AtomicLong cpuNanos = new AtomicLong();
+
+        void record(long uncompressed, long compressed, long nanos) {
+            count.incrementAndGet();
+            uncompressedBytes.addAndGet(uncompressed);
+            compressedBytes.addAndGet(compressed);
+            cpuNanos.addAndGet(nanos);
+        }
+    }
+}
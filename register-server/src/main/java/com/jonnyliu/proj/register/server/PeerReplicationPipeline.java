@@ -0,0 +1,330 @@
+package com.jonnyliu.proj.register.server;
+
+import com.jonnyliu.proj.register.commons.HeartbeatResponse;
+import com.jonnyliu.proj.register.commons.ServiceInstance;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 到一个对等节点的异步复制管道
+ * <p>
+ * 处理客户端请求的线程只把操作放进一个有界队列就返回,由这个节点专属的后台线程攒成批量发给对等节点,
+ * 同一时刻最多只有一批在路上。还在队列里没发出去的续约,同一个实例再续约只保留一个。
+ * <p>
+ * 对等节点处理得慢、队列满了的时候,放入操作的线程最多等待一小段时间,把压力传回给客户端请求;
+ * 对等节点连不上的时候不再等待,队列满了直接丢弃。丢掉的续约由下一次心跳补上,
+ * 丢掉的注册会在续约复制失败时重新复制
+ *
+ * @author liujie
+ */
+public class PeerReplicationPipeline {
+
+    private static final Logger log = LoggerFactory.getLogger(PeerReplicationPipeline.class);
+
+    /**
+     * 默认的队列长度
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    /**
+     * 队列满时放入操作默认最多等待的毫秒数
+     */
+    public static final long DEFAULT_OFFER_TIMEOUT = 10L;
+    /**
+     * 一批最多的操作个数
+     */
+    public static final int MAX_BATCH_SIZE = 250;
+    /**
+     * 拿到第一个操作之后最多再等这么久凑成一批
+     */
+    private static final long BATCH_WINDOW = 20L;
+    /**
+     * 一批发送失败之后的重试次数和间隔
+     */
+    private static final int MAX_RETRIES = 3;
+    private static final long RETRY_INTERVAL = 1000L;
+    private static final int CONNECT_TIMEOUT = 3000;
+    private static final int READ_TIMEOUT = 10000;
+    private static final String THREAD_PEER_REPLICATION = "THREAD-PEER-REPLICATION-";
+
+    private final String peerAddress;
+    private final ServiceRegistry registry;
+    private final BlockingQueue<ReplicationOperation> queue;
+    private final long offerTimeoutMillis;
+
+    /**
+     * 已经在队列里的续约
+     */
+    private final Set<String> pendingRenews = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 最近一批是否发送成功,对等节点连不上的时候放入操作不再等待
+     */
+    private volatile boolean peerAvailable = true;
+
+    private final LongAdder replicatedCount = new LongAdder();
+    private final LongAdder coalescedCount = new LongAdder();
+    private final LongAdder droppedCount = new LongAdder();
+    private final LongAdder batchCount = new LongAdder();
+
+    private final Worker worker;
+
+    public PeerReplicationPipeline(String peerAddress, ServiceRegistry registry) {
+        this(peerAddress, registry, DEFAULT_QUEUE_CAPACITY, DEFAULT_OFFER_TIMEOUT);
+    }
+
+    /**
+     * @param peerAddress        对等节点的地址,比如http://192.168.31.208:8080
+     * @param registry           本节点的注册表,续约复制失败时从这里取实例重新复制注册
+     * @param queueCapacity      队列长度
+     * @param offerTimeoutMillis 队列满时放入操作最多等待的毫秒数
+     */
+    public PeerReplicationPipeline(String peerAddress, ServiceRegistry registry, int queueCapacity,
+            long offerTimeoutMillis) {
+        this.peerAddress = peerAddress;
+        this.registry = registry;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.offerTimeoutMillis = offerTimeoutMillis;
+        this.worker = new Worker(THREAD_PEER_REPLICATION + peerAddress);
+        this.worker.setDaemon(true);
+    }
+
+    public void start() {
+        worker.start();
+    }
+
+    public void stop() {
+        worker.interrupt();
+    }
+
+    /**
+     * 放入一个复制操作
+     *
+     * @param operation 复制操作
+     * @return 是否放入了队列(或者合并到了队列里已有的续约), 队列满了被丢弃返回false
+     */
+    public boolean offer(ReplicationOperation operation) {
+        String renewKey = null;
+        if (operation.getAction() == ReplicationOperation.RENEW) {
+            renewKey = renewKey(operation);
+            if (!pendingRenews.add(renewKey)) {
+                coalescedCount.increment();
+                return true;
+            }
+        }
+        boolean accepted = queue.offer(operation);
+        if (!accepted && peerAvailable) {
+            try {
+                accepted = queue.offer(operation, offerTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (!accepted) {
+            if (renewKey != null) {
+                pendingRenews.remove(renewKey);
+            }
+            droppedCount.increment();
+        }
+        return accepted;
+    }
+
+    private static String renewKey(ReplicationOperation operation) {
+        return operation.getServiceName() + '/' + operation.getInstanceId();
+    }
+
+    /**
+     * 发送一批操作,失败时重试
+     *
+     * @param batch 复制操作
+     * @throws InterruptedException 重试等待时被打断
+     */
+    private void send(List<ReplicationOperation> batch) throws InterruptedException {
+        byte[] body = ReplicationBatch.encode(batch);
+        for (int attempt = 0; attempt <= MAX_RETRIES; attempt++) {
+            if (attempt > 0) {
+                Thread.sleep(RETRY_INTERVAL);
+            }
+            try {
+                String[] statuses = post(body).split("\n");
+                peerAvailable = true;
+                batchCount.increment();
+                replicatedCount.add(batch.size());
+                reRegisterUnknownInstances(batch, statuses);
+                return;
+            } catch (IOException e) {
+                peerAvailable = false;
+                log.warn("replicate {} operations to {} failed, attempt: {}", batch.size(), peerAddress, attempt + 1,
+                        e);
+            }
+        }
+        droppedCount.add(batch.size());
+    }
+
+    /**
+     * 对等节点上没有这个实例所以续约失败了(比如对等节点重启过、或者注册操作被丢弃了),从本节点重新复制注册
+     */
+    private void reRegisterUnknownInstances(List<ReplicationOperation> batch, String[] statuses) {
+        for (int i = 0; i < batch.size() && i < statuses.length; i++) {
+            ReplicationOperation operation = batch.get(i);
+            if (operation.getAction() != ReplicationOperation.RENEW || !HeartbeatResponse.FAILURE.equals(
+                    statuses[i])) {
+                continue;
+            }
+            ServiceInstance serviceInstance = registry.getServiceInstance(operation.getServiceName(),
+                    operation.getInstanceId());
+            if (serviceInstance != null) {
+                offer(ReplicationOperation.register(serviceInstance));
+            }
+        }
+    }
+
+    private String post(byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(peerAddress
+                + RegisterServerHttpHandler.PATH_REPLICATION_BATCH).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", HttpResponse.OCTET_STREAM);
+        connection.setFixedLengthStreamingMode(body.length);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body);
+        }
+        int status = connection.getResponseCode();
+        InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        String response = readFully(in);
+        if (status >= 400) {
+            throw new IOException("peer " + peerAddress + " response status " + status + ": " + response);
+        }
+        return response;
+    }
+
+    /**
+     * 读完响应体并关闭输入流,连接才会被放回连接池
+     */
+    private static String readFully(InputStream in) throws IOException {
+        if (in == null) {
+            return "";
+        }
+        try (InputStream input = in) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = input.read(buffer)) != -1) {
+                bytes.write(buffer, 0, n);
+            }
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    public String getPeerAddress() {
+        return peerAddress;
+    }
+
+    /**
+     * 队列里还没发出去的操作个数
+     *
+     * @return 队列长度
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * 已经成功复制的操作个数
+     *
+     * @return 操作个数
+     */
+    public long getReplicatedCount() {
+        return replicatedCount.sum();
+    }
+
+    /**
+     * 合并到队列里已有续约的续约个数
+     *
+     * @return 续约个数
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.sum();
+    }
+
+    /**
+     * 队列满了或者重试之后仍然发送失败而丢弃的操作个数
+     *
+     * @return 操作个数
+     */
+    public long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    /**
+     * 成功发送的批次数
+     *
+     * @return 批次数
+     */
+    public long getBatchCount() {
+        return batchCount.sum();
+    }
+
+    /**
+     * 把队列里的操作攒成批量发给对等节点的后台线程
+     */
+    private class Worker extends Thread {
+
+        public Worker(String name) {
+            super(name);
+        }
+
+        @Override
+        public void run() {
+            List<ReplicationOperation> batch = new ArrayList<>(MAX_BATCH_SIZE);
+            while (!isInterrupted()) {
+                try {
+                    batch.add(queue.take());
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BATCH_WINDOW);
+                    while (batch.size() < MAX_BATCH_SIZE) {
+                        queue.drainTo(batch, MAX_BATCH_SIZE - batch.size());
+                        long remaining = deadline - System.nanoTime();
+                        if (batch.size() >= MAX_BATCH_SIZE || remaining <= 0) {
+                            break;
+                        }
+                        ReplicationOperation next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                    }
+                    // 出了队列的续约就不能再合并了,之后的续约要重新排队
+                    for (ReplicationOperation operation : batch) {
+                        if (operation.getAction() == ReplicationOperation.RENEW) {
+                            pendingRenews.remove(renewKey(operation));
+                        }
+                    }
+                    send(batch);
+                } catch (InterruptedException e) {
+                    log.info("线程:[{}],被打断......", getName());
+                    return;
+                } catch (Exception e) {
+                    log.error("error.", e);
+                } finally {
+                    batch.clear();
+                }
+            }
+        }
+    }
+}
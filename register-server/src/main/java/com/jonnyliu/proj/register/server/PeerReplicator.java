@@ -0,0 +1,78 @@
+package com.jonnyliu.proj.register.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 把客户端发到本节点的注册、续约、下线复制给所有对等节点
+ * <p>
+ * 只复制客户端直接发来的操作,从对等节点复制过来的操作不会再复制出去,避免在节点之间来回传播
+ *
+ * @author liujie
+ */
+public class PeerReplicator {
+
+    private final List<PeerReplicationPipeline> pipelines;
+
+    /**
+     * @param registry      本节点的注册表
+     * @param peerAddresses 对等节点的地址,不包括本节点
+     */
+    public PeerReplicator(ServiceRegistry registry, List<String> peerAddresses) {
+        List<PeerReplicationPipeline> pipelines = new ArrayList<>(peerAddresses.size());
+        for (String peerAddress : peerAddresses) {
+            pipelines.add(new PeerReplicationPipeline(peerAddress, registry));
+        }
+        this.pipelines = Collections.unmodifiableList(pipelines);
+    }
+
+    /**
+     * 没有对等节点,什么都不复制
+     *
+     * @param registry 本节点的注册表
+     * @return 复制器
+     */
+    public static PeerReplicator none(ServiceRegistry registry) {
+        return new PeerReplicator(registry, Collections.<String>emptyList());
+    }
+
+    public void start() {
+        for (PeerReplicationPipeline pipeline : pipelines) {
+            pipeline.start();
+        }
+    }
+
+    public void stop() {
+        for (PeerReplicationPipeline pipeline : pipelines) {
+            pipeline.stop();
+        }
+    }
+
+    /**
+     * 把一个操作放进所有对等节点的复制队列
+     *
+     * @param operation 复制操作
+     */
+    public void replicate(ReplicationOperation operation) {
+        for (PeerReplicationPipeline pipeline : pipelines) {
+            pipeline.offer(operation);
+        }
+    }
+
+    /**
+     * 复制一次续约,没有对等节点时不创建复制操作,单节点部署时心跳路径上不分配对象
+     *
+     * @param serviceName 服务名称
+     * @param instanceId  服务实例ID
+     */
+    public void replicateRenew(String serviceName, String instanceId) {
+        if (!pipelines.isEmpty()) {
+            replicate(ReplicationOperation.renew(serviceName, instanceId));
+        }
+    }
+
+    public List<PeerReplicationPipeline> getPipelines() {
+        return pipelines;
+    }
+}
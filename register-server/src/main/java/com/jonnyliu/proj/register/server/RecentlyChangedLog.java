@@ -0,0 +1,205 @@
+package com.jonnyliu.proj.register.server;
+
+import com.jonnyliu.proj.register.commons.RecentlyChangedServiceInstance;
+import com.jonnyliu.proj.register.commons.ServiceInstance;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 最近变更的服务实例日志,是一个有界的环形缓冲区
+ * <p>
+ * 每条变更都有一个单调递增的序列号,客户端带上自己最后看到的序列号来拉取增量,
+ * 写入是串行的,读取不加锁
+ * <p>
+ * 环里保留每一条变更,读取时同一个服务实例只返回最后一条变更:客户端按顺序合并之后的结果只取决于每个实例的最后一条变更,
+ * 不同实例的变更之间互不影响,所以实例反复注册、下线时,增量的大小不超过这段时间内发生过变更的实例个数
+ *
+ * @author liujie
+ */
+public class RecentlyChangedLog {
+
+    /**
+     * 默认保留的变更条数
+     */
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private final AtomicReferenceArray<RecentlyChangedServiceInstance> ring;
+    private final int mask;
+    private final Clock clock;
+
+    /**
+     * 最后一条已发布变更的序列号,0表示还没有任何变更
+     */
+    private volatile long lastVersion;
+    /**
+     * 上一次清空日志时的序列号,它之前的变更都不在环里
+     */
+    private volatile long resetVersion;
+
+    public RecentlyChangedLog() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity 保留的变更条数,必须是2的幂
+     */
+    public RecentlyChangedLog(int capacity) {
+        this(capacity, CoarseClock.getInstance());
+    }
+
+    /**
+     * @param capacity 保留的变更条数,必须是2的幂
+     * @param clock    记录变更时间用的时钟
+     */
+    public RecentlyChangedLog(int capacity, Clock clock) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        this.ring = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+        this.clock = clock;
+    }
+
+    /**
+     * 追加一条变更
+     *
+     * @param serviceInstance 服务实例
+     * @param changedType     变更类型
+     * @return 这条变更的序列号
+     */
+    public synchronized long append(ServiceInstance serviceInstance, String changedType) {
+        long version = lastVersion + 1;
+        ring.set(indexOf(version), new RecentlyChangedServiceInstance(serviceInstance, changedType, version,
+                clock.currentTimeMillis()));
+        lastVersion = version;
+        return version;
+    }
+
+    /**
+     * 一次追加一批同类型的变更,每个实例仍然占一个序列号,读取方要么一条都看不到,要么全部看到
+     *
+     * @param serviceInstances 服务实例
+     * @param changedType      变更类型
+     * @return 最后一条变更的序列号, 第一条是它减去实例个数再加1
+     */
+    public synchronized long appendAll(List<ServiceInstance> serviceInstances, String changedType) {
+        long version = lastVersion;
+        long now = clock.currentTimeMillis();
+        for (ServiceInstance serviceInstance : serviceInstances) {
+            version++;
+            ring.set(indexOf(version), new RecentlyChangedServiceInstance(serviceInstance, changedType, version, now));
+        }
+        lastVersion = version;
+        return version;
+    }
+
+    /**
+     * 环里保留的变更条数
+     *
+     * @return 条数, 不超过容量
+     */
+    public int size() {
+        return (int) Math.min(lastVersion - resetVersion, ring.length());
+    }
+
+    /**
+     * 获取指定序列号之后的所有变更,每个服务实例只保留最后一条
+     *
+     * @param sinceVersion 客户端最后看到的序列号
+     * @return 按序列号排序的变更, 如果需要的变更已经被覆盖了返回null, 客户端应该全量拉取
+     */
+    public LinkedList<RecentlyChangedServiceInstance> since(long sinceVersion) {
+        return since(sinceVersion, lastVersion);
+    }
+
+    /**
+     * 获取两个序列号之间的所有变更,每个服务实例只保留最后一条
+     *
+     * @param sinceVersion 客户端最后看到的序列号(不包含)
+     * @param last         截止的序列号(包含)
+     * @return 按序列号排序的变更, 如果需要的变更已经被覆盖了返回null, 客户端应该全量拉取
+     */
+    public LinkedList<RecentlyChangedServiceInstance> since(long sinceVersion, long last) {
+        if (sinceVersion > last || sinceVersion < last - ring.length()) {
+            return null;
+        }
+        LinkedList<RecentlyChangedServiceInstance> changes = new LinkedList<>();
+        Map<String, Set<String>> seen = new HashMap<>();
+        // 从后往前读,先读到的就是每个实例最后一条变更
+        for (long version = last; version > sinceVersion; version--) {
+            RecentlyChangedServiceInstance item = ring.get(indexOf(version));
+            // 读的过程中被写入方覆盖了
+            if (item == null || item.getVersion() != version) {
+                return null;
+            }
+            if (isLatestChange(seen, item)) {
+                changes.addFirst(item);
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * 获取最近一段时间内的变更,每个服务实例只保留最后一条
+     *
+     * @param retentionMillis 时间窗口
+     * @return 按序列号排序的变更
+     */
+    public LinkedList<RecentlyChangedServiceInstance> recent(long retentionMillis) {
+        long last = lastVersion;
+        long oldest = Math.max(1L, last - ring.length() + 1);
+        long now = clock.currentTimeMillis();
+        LinkedList<RecentlyChangedServiceInstance> changes = new LinkedList<>();
+        Map<String, Set<String>> seen = new HashMap<>();
+        for (long version = last; version >= oldest; version--) {
+            RecentlyChangedServiceInstance item = ring.get(indexOf(version));
+            if (item == null || item.getVersion() != version
+                    || now - item.getChangedTimestamp() > retentionMillis) {
+                break;
+            }
+            if (isLatestChange(seen, item)) {
+                changes.addFirst(item);
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * 从后往前读变更时,判断这条变更是不是这个服务实例最后一条变更
+     *
+     * @param seen 已经读到过变更的服务实例,key是服务名称,value是服务实例ID
+     * @param item 变更
+     * @return 之前没有读到过这个服务实例时返回true
+     */
+    private static boolean isLatestChange(Map<String, Set<String>> seen, RecentlyChangedServiceInstance item) {
+        ServiceInstance serviceInstance = item.getServiceInstance();
+        return seen.computeIfAbsent(serviceInstance.getServiceName(), k -> new HashSet<>())
+                .add(serviceInstance.getInstanceId());
+    }
+
+    /**
+     * 清空日志,之后的变更从指定的序列号之后开始编号,只在启动恢复时使用
+     *
+     * @param version 最后一条变更的序列号
+     */
+    public synchronized void reset(long version) {
+        for (int i = 0; i < ring.length(); i++) {
+            ring.set(i, null);
+        }
+        resetVersion = version;
+        lastVersion = version;
+    }
+
+    public long getLastVersion() {
+        return lastVersion;
+    }
+
+    private int indexOf(long version) {
+        return (int) (version & mask);
+    }
+}
@@ -0,0 +1,144 @@
+package com.jonnyliu.proj.register.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * register-server的启动入口,对外提供http服务,并启动服务存活检测和到对等节点的复制
+ *
+ * @author liujie
+ */
+public class RegisterServer {
+
+    /**
+     * 默认监听的端口
+     */
+    public static final int DEFAULT_PORT = 8080;
+    /**
+     * 默认的工作线程数
+     */
+    public static final int DEFAULT_WORKER_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    /**
+     * 默认的数据目录,存放注册表的快照和预写日志
+     */
+    public static final String DEFAULT_DATA_DIRECTORY = "register-data";
+
+    private final ServiceRegistry registry;
+    private final NioHttpServer httpServer;
+    private final ServiceAliveMonitor serviceAliveMonitor;
+    private final RegistryWatchManager watchManager;
+    private final RegistryPersistence persistence;
+    private final PeerReplicator replicator;
+    private final RegisterServerMetrics metrics;
+
+    public RegisterServer(int port) {
+        this(port, DEFAULT_WORKER_THREADS);
+    }
+
+    public RegisterServer(int port, int workerThreads) {
+        this(port, workerThreads, null);
+    }
+
+    /**
+     * @param port          监听的端口
+     * @param workerThreads 工作线程数
+     * @param dataDirectory 数据目录,为null时注册表只保存在内存里
+     */
+    public RegisterServer(int port, int workerThreads, File dataDirectory) {
+        this(ServiceRegistry.getInstance(), port, workerThreads, dataDirectory, Collections.<String>emptyList());
+    }
+
+    /**
+     * @param registry      这个节点的注册表
+     * @param port          监听的端口
+     * @param workerThreads 工作线程数
+     * @param dataDirectory 数据目录,为null时注册表只保存在内存里
+     * @param peerAddresses 对等节点的地址,比如http://192.168.31.208:8080,不包括本节点
+     */
+    public RegisterServer(ServiceRegistry registry, int port, int workerThreads, File dataDirectory,
+            List<String> peerAddresses) {
+        this.registry = registry;
+        this.replicator = new PeerReplicator(registry, peerAddresses);
+        this.serviceAliveMonitor = new ServiceAliveMonitor(registry, ServiceAliveMonitor.DEFAULT_CHECK_TICK);
+        this.metrics = new RegisterServerMetrics(registry, serviceAliveMonitor);
+        RegisterServerController controller = new RegisterServerController(registry, replicator, metrics);
+        this.watchManager = new RegistryWatchManager(registry);
+        registry.addChangeListener(watchManager);
+        this.httpServer = new NioHttpServer(port, new RegisterServerHttpHandler(controller, watchManager),
+                workerThreads);
+        this.persistence = dataDirectory == null ? null : new RegistryPersistence(dataDirectory, registry);
+    }
+
+    /**
+     * 启动
+     *
+     * @throws IOException 端口绑定失败或者恢复注册表失败
+     */
+    public void start() throws IOException {
+        // 先恢复注册表再对外提供服务
+        if (persistence != null) {
+            persistence.start();
+        }
+        watchManager.start();
+        replicator.start();
+        httpServer.start();
+        serviceAliveMonitor.start();
+    }
+
+    /**
+     * 停止对外提供服务
+     */
+    public void stop() {
+        httpServer.stop();
+        serviceAliveMonitor.stop();
+        replicator.stop();
+        registry.removeChangeListener(watchManager);
+        watchManager.stop();
+        if (persistence != null) {
+            persistence.stop();
+        }
+        registry.getResponseCache().stop();
+    }
+
+    /**
+     * 实际监听的端口
+     *
+     * @return 端口
+     */
+    public int getPort() {
+        return httpServer.getPort();
+    }
+
+    public ServiceRegistry getRegistry() {
+        return registry;
+    }
+
+    public PeerReplicator getReplicator() {
+        return replicator;
+    }
+
+    public RegisterServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        File dataDirectory = new File(args.length > 1 ? args[1] : DEFAULT_DATA_DIRECTORY);
+        // 第三个参数是逗号分隔的对等节点地址
+        List<String> peerAddresses = new ArrayList<>();
+        if (args.length > 2) {
+            for (String peerAddress : args[2].split(",")) {
+                if (!peerAddress.trim().isEmpty()) {
+                    peerAddresses.add(peerAddress.trim());
+                }
+            }
+        }
+        RegisterServer registerServer = new RegisterServer(ServiceRegistry.getInstance(), port,
+                DEFAULT_WORKER_THREADS, dataDirectory, peerAddresses);
+        registerServer.start();
+        Thread.currentThread().join();
+    }
+}
@@ -1,12 +1,19 @@
 package com.jonnyliu.proj.register.server;
 
+import com.jonnyliu.proj.register.commons.Applications;
+import com.jonnyliu.proj.register.commons.BatchHeartbeatRequest;
+import com.jonnyliu.proj.register.commons.BatchHeartbeatResponse;
 import com.jonnyliu.proj.register.commons.DeltaRegistry;
 import com.jonnyliu.proj.register.commons.HeartbeatRequest;
 import com.jonnyliu.proj.register.commons.HeartbeatResponse;
 import com.jonnyliu.proj.register.commons.RegisterRequest;
 import com.jonnyliu.proj.register.commons.RegisterResponse;
 import com.jonnyliu.proj.register.commons.ServiceInstance;
-import java.util.Map;
+import com.jonnyliu.proj.register.server.RegisterServerMetrics.Operation;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -21,7 +28,36 @@ public class RegisterServerController {
 
 	private static final Logger log = LoggerFactory.getLogger(RegisterServerController.class);
 
-	private final ServiceRegistry registry = ServiceRegistry.getInstance();
+	private final ServiceRegistry registry;
+
+	/**
+	 * 把客户端直接发来的注册、续约、下线复制给对等节点
+	 */
+	private final PeerReplicator replicator;
+
+	/**
+	 * 每种操作的延迟
+	 */
+	private final RegisterServerMetrics metrics;
+
+	public RegisterServerController() {
+		this(ServiceRegistry.getInstance(), PeerReplicator.none(ServiceRegistry.getInstance()));
+	}
+
+	public RegisterServerController(ServiceRegistry registry, PeerReplicator replicator) {
+		this(registry, replicator, new RegisterServerMetrics(registry));
+	}
+
+	public RegisterServerController(ServiceRegistry registry, PeerReplicator replicator,
+			RegisterServerMetrics metrics) {
+		this.registry = registry;
+		this.replicator = replicator;
+		this.metrics = metrics;
+	}
+
+	public RegisterServerMetrics getMetrics() {
+		return metrics;
+	}
 
 	/**
 	 * 服务注册
@@ -30,6 +66,7 @@ public class RegisterServerController {
 	 * @return 注册响应
 	 */
 	public RegisterResponse register(RegisterRequest registerRequest) {
+		long start = System.nanoTime();
 		RegisterResponse registerResponse = new RegisterResponse();
 
 		try {
@@ -41,18 +78,14 @@ public class RegisterServerController {
 			serviceInstance.setServiceName(registerRequest.getServiceName());
 
 			registry.register(serviceInstance);
-			//自我保护阈值的修改
-			synchronized (SelfProtectionPolicy.class) {
-				SelfProtectionPolicy selfProtectionPolicy = SelfProtectionPolicy.getInstance();
-				selfProtectionPolicy.setExpectedHeartbeatRate(selfProtectionPolicy.getExpectedHeartbeatRate() + 2);
-				log.info("当前实例最近一分钟心跳次数为:{}", selfProtectionPolicy);
-			}
+			replicator.replicate(ReplicationOperation.register(serviceInstance));
 			registerResponse.setStatus(RegisterResponse.SUCCESS);
 		} catch (Exception e) {
 			e.printStackTrace();
 			registerResponse.setStatus(RegisterResponse.FAILURE);
 		}
 
+		metrics.record(Operation.REGISTER, start);
 		return registerResponse;
 	}
 
@@ -64,32 +97,103 @@ public class RegisterServerController {
 	 */
 	public HeartbeatResponse heartbeat(HeartbeatRequest heartbeatRequest) {
 		HeartbeatResponse heartbeatResponse = new HeartbeatResponse();
+		heartbeatResponse.setStatus(renew(heartbeatRequest.getServiceName(),
+				heartbeatRequest.getServiceInstanceId()) ? HeartbeatResponse.SUCCESS : HeartbeatResponse.FAILURE);
+		return heartbeatResponse;
+	}
 
-		try {
-			ServiceInstance serviceInstance = registry.getServiceInstance(
-					heartbeatRequest.getServiceName(), heartbeatRequest.getServiceInstanceId());
-			serviceInstance.renew();
+	/**
+	 * 为一个服务实例续约
+	 * <p>
+	 * 这是心跳的热点路径:查找实例、更新租约、心跳计数和记录延迟都不分配对象,也不打日志,
+	 * 只有存在对等节点时才会创建复制操作
+	 *
+	 * @param serviceName       服务名称
+	 * @param serviceInstanceId 服务实例ID
+	 * @return 是否续约成功, 实例不存在时返回false
+	 */
+	public boolean renew(String serviceName, String serviceInstanceId) {
+		long start = System.nanoTime();
+		if (!registry.renew(serviceName, serviceInstanceId)) {
+			metrics.record(Operation.HEARTBEAT, start);
+			return false;
+		}
+		replicator.replicateRenew(serviceName, serviceInstanceId);
 
-			//记录一下每分钟的心跳次数
-			HeartbeatCounter heartbeatMeasuredRate = HeartbeatCounter.getInstance();
-			heartbeatMeasuredRate.increment();
-			log.info("当前服务实例每分钟心跳次数：{}", heartbeatMeasuredRate.getLastMinuteHeartbeatRate());
+		//记录一下每分钟的心跳次数
+		registry.getHeartbeatCounter().increment();
+		metrics.record(Operation.HEARTBEAT, start);
+		return true;
+	}
 
-			heartbeatResponse.setStatus(HeartbeatResponse.SUCCESS);
-		} catch (Exception e) {
-			log.error("error.", e);
-			heartbeatResponse.setStatus(HeartbeatResponse.FAILURE);
+	/**
+	 * 接受批量心跳请求,一次为多个服务实例续约
+	 *
+	 * @param batchHeartbeatRequest 批量心跳请求
+	 * @return 每个服务实例的心跳结果, 顺序与请求一致
+	 */
+	public BatchHeartbeatResponse heartbeat(BatchHeartbeatRequest batchHeartbeatRequest) {
+		long start = System.nanoTime();
+		List<HeartbeatRequest> heartbeatRequests = batchHeartbeatRequest.getHeartbeatRequests();
+		List<String> statuses = new ArrayList<>(heartbeatRequests.size());
+		long successCount = 0;
+		for (HeartbeatRequest heartbeatRequest : heartbeatRequests) {
+			if (!registry.renew(heartbeatRequest.getServiceName(), heartbeatRequest.getServiceInstanceId())) {
+				statuses.add(HeartbeatResponse.FAILURE);
+				continue;
+			}
+			replicator.replicateRenew(heartbeatRequest.getServiceName(), heartbeatRequest.getServiceInstanceId());
+			statuses.add(HeartbeatResponse.SUCCESS);
+			successCount++;
 		}
-		return heartbeatResponse;
+
+		//整批只记录一次心跳次数
+		HeartbeatCounter heartbeatMeasuredRate = registry.getHeartbeatCounter();
+		heartbeatMeasuredRate.increment(successCount);
+		log.debug("批量心跳,实例个数:{},成功个数:{}", heartbeatRequests.size(), successCount);
+
+		BatchHeartbeatResponse batchHeartbeatResponse = new BatchHeartbeatResponse();
+		batchHeartbeatResponse.setStatuses(statuses);
+		metrics.record(Operation.BATCH_HEARTBEAT, start);
+		return batchHeartbeatResponse;
 	}
 
 	/**
 	 * 拉取全量注册表
 	 *
-	 * @return 全量注册表
+	 * @return 全量注册表, 带有注册表的版本号
+	 */
+	public Applications fetchFullRegistry() {
+		long start = System.nanoTime();
+		Applications applications = registry.getResponseCache().getFullRegistry();
+		metrics.record(Operation.FETCH_FULL, start);
+		return applications;
+	}
+
+	/**
+	 * 拉取压缩好的全量注册表
+	 *
+	 * @param encoding 压缩方式, null表示不压缩
+	 * @return 全量注册表的字节, 可以直接写到网络上
 	 */
-	public Map<String, Map<String, ServiceInstance>> fetchFullRegistry() {
-		return registry.getFullRegistry();
+	public ByteBuffer fetchFullRegistryPayload(String encoding) {
+		long start = System.nanoTime();
+		ByteBuffer payload = registry.getResponseCache().getFullRegistryPayload(encoding);
+		metrics.record(Operation.FETCH_FULL, start);
+		return payload;
+	}
+
+	/**
+	 * 拉取只包含订阅的服务的全量注册表
+	 *
+	 * @param serviceNames 订阅的服务名称
+	 * @return 全量注册表的字节, 可以直接写到网络上
+	 */
+	public ByteBuffer fetchFullRegistryPayload(Collection<String> serviceNames) {
+		long start = System.nanoTime();
+		ByteBuffer payload = registry.getResponseCache().getServiceRegistryPayload(serviceNames);
+		metrics.record(Operation.FETCH_FULL, start);
+		return payload;
 	}
 
 	/**
@@ -98,7 +202,37 @@ public class RegisterServerController {
 	 * @return 增量注册表
 	 */
 	public DeltaRegistry fetchDeltaRegistry() {
-		return registry.getDeltaRegistry();
+		long start = System.nanoTime();
+		DeltaRegistry deltaRegistry = registry.getResponseCache().getDeltaRegistry();
+		metrics.record(Operation.FETCH_DELTA, start);
+		return deltaRegistry;
+	}
+
+	/**
+	 * 拉取指定版本号之后的增量注册表
+	 *
+	 * @param sinceVersion 客户端最后看到的注册表版本号
+	 * @return 增量注册表, 如果版本号太旧则需要客户端全量拉取
+	 */
+	public DeltaRegistry fetchDeltaRegistry(long sinceVersion) {
+		long start = System.nanoTime();
+		DeltaRegistry deltaRegistry = registry.getDeltaRegistry(sinceVersion);
+		metrics.record(Operation.FETCH_DELTA, start);
+		return deltaRegistry;
+	}
+
+	/**
+	 * 拉取指定版本号之后、只涉及订阅的服务的增量注册表
+	 *
+	 * @param sinceVersion 客户端最后看到的注册表版本号
+	 * @param serviceNames 订阅的服务名称
+	 * @return 增量注册表, 如果版本号太旧则需要客户端全量拉取
+	 */
+	public DeltaRegistry fetchDeltaRegistry(long sinceVersion, Collection<String> serviceNames) {
+		long start = System.nanoTime();
+		DeltaRegistry deltaRegistry = registry.getDeltaRegistry(sinceVersion, serviceNames);
+		metrics.record(Operation.FETCH_DELTA, start);
+		return deltaRegistry;
 	}
 
 	/**
@@ -108,12 +242,49 @@ public class RegisterServerController {
 	 * @param instanceId  服务实例ID
 	 */
 	public void unregister(String serviceName, String instanceId) {
+		long start = System.nanoTime();
 		registry.remove(serviceName, instanceId);
-		//自我保护阈值的修改
-		synchronized (SelfProtectionPolicy.class) {
-			SelfProtectionPolicy selfProtectionPolicy = SelfProtectionPolicy.getInstance();
-			selfProtectionPolicy.setExpectedHeartbeatRate(selfProtectionPolicy.getExpectedHeartbeatRate() - 2);
-			log.info("当前实例最近一分钟心跳次数为:{}", selfProtectionPolicy);
+		replicator.replicate(ReplicationOperation.cancel(serviceName, instanceId));
+		metrics.record(Operation.CANCEL, start);
+	}
+
+	/**
+	 * 接受对等节点复制过来的一批操作,只在本节点执行,不再复制给其他节点
+	 *
+	 * @param operations 复制操作
+	 * @return 每个操作的结果, 顺序与请求一致; 续约的实例不存在时是失败, 对等节点会重新复制注册
+	 */
+	public List<String> replicate(List<ReplicationOperation> operations) {
+		long start = System.nanoTime();
+		List<String> statuses = new ArrayList<>(operations.size());
+		long renewCount = 0;
+		for (ReplicationOperation operation : operations) {
+			switch (operation.getAction()) {
+				case ReplicationOperation.REGISTER:
+					registry.register(operation.toServiceInstance());
+					statuses.add(HeartbeatResponse.SUCCESS);
+					break;
+				case ReplicationOperation.RENEW:
+					if (!registry.renew(operation.getServiceName(), operation.getInstanceId())) {
+						statuses.add(HeartbeatResponse.FAILURE);
+						break;
+					}
+					renewCount++;
+					statuses.add(HeartbeatResponse.SUCCESS);
+					break;
+				case ReplicationOperation.CANCEL:
+					registry.remove(operation.getServiceName(), operation.getInstanceId());
+					statuses.add(HeartbeatResponse.SUCCESS);
+					break;
+				default:
+					statuses.add(HeartbeatResponse.FAILURE);
+			}
 		}
+
+		//复制过来的续约也是这个节点上的实例的心跳
+		registry.getHeartbeatCounter().increment(renewCount);
+		log.debug("接受对等节点复制的操作,个数:{}", operations.size());
+		metrics.record(Operation.REPLICATE, start);
+		return statuses;
 	}
 }
\ No newline at end of file
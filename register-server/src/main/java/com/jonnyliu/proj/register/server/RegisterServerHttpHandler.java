@@ -0,0 +1,206 @@
+package com.jonnyliu.proj.register.server;
+
+import com.jonnyliu.proj.register.commons.BatchHeartbeatRequest;
+import com.jonnyliu.proj.register.commons.BatchHeartbeatResponse;
+import com.jonnyliu.proj.register.commons.HeartbeatResponse;
+import com.jonnyliu.proj.register.commons.RegisterRequest;
+import com.jonnyliu.proj.register.commons.RegistryCodec;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 把http请求路由到{@link RegisterServerController}
+ * <p>
+ * 注册、心跳、下线的参数都是表单参数;拉取注册表时可以带上多个serviceName参数,只拉取订阅的服务;
+ * 注册表用{@link RegistryCodec}编码,对等节点之间的复制用{@link ReplicationBatch}编码;
+ * /metrics输出Prometheus文本格式的监控指标
+ * <p>
+ * 缺少必填参数、数字参数格式不对时返回400,不会抛到{@link NioHttpServer}变成500
+ *
+ * @author liujie
+ */
+public class RegisterServerHttpHandler implements HttpHandler {
+
+    public static final String PATH_REGISTER = "/register";
+    public static final String PATH_HEARTBEAT = "/heartbeat";
+    public static final String PATH_BATCH_HEARTBEAT = "/heartbeat/batch";
+    public static final String PATH_CANCEL = "/cancel";
+    public static final String PATH_FULL_REGISTRY = "/registry/full";
+    public static final String PATH_DELTA_REGISTRY = "/registry/delta";
+    public static final String PATH_WATCH_REGISTRY = "/registry/watch";
+    public static final String PATH_REPLICATION_BATCH = "/replication/batch";
+    public static final String PATH_METRICS = "/metrics";
+
+    public static final String PARAM_SERVICE_NAME = "serviceName";
+    public static final String PARAM_SERVICE_INSTANCE_ID = "serviceInstanceId";
+    public static final String PARAM_IP = "ip";
+    public static final String PARAM_HOSTNAME = "hostname";
+    public static final String PARAM_PORT = "port";
+    public static final String PARAM_SINCE_VERSION = "sinceVersion";
+    public static final String PARAM_TIMEOUT = "timeout";
+
+    private final RegisterServerController controller;
+    private final RegistryWatchManager watchManager;
+
+    public RegisterServerHttpHandler(RegisterServerController controller, RegistryWatchManager watchManager) {
+        this.controller = controller;
+        this.watchManager = watchManager;
+    }
+
+    @Override
+    public void handle(HttpRequest request, HttpResponder responder) {
+        HttpResponse response;
+        try {
+            // 长轮询的请求会被挂起,由RegistryWatchManager异步响应
+            if (PATH_WATCH_REGISTRY.equals(request.getPath())) {
+                watch(request, responder);
+                return;
+            }
+            response = route(request);
+        } catch (NumberFormatException e) {
+            response = HttpResponse.badRequest("invalid number: " + e.getMessage());
+        }
+        responder.respond(response);
+    }
+
+    private HttpResponse route(HttpRequest request) {
+        switch (request.getPath()) {
+            case PATH_REGISTER:
+                return register(request);
+            case PATH_HEARTBEAT:
+                return heartbeat(request);
+            case PATH_BATCH_HEARTBEAT:
+                return batchHeartbeat(request);
+            case PATH_CANCEL:
+                return cancel(request);
+            case PATH_FULL_REGISTRY:
+                return fullRegistry(request);
+            case PATH_DELTA_REGISTRY:
+                return deltaRegistry(request);
+            case PATH_REPLICATION_BATCH:
+                return replicationBatch(request);
+            case PATH_METRICS:
+                return HttpResponse.ok(controller.getMetrics().scrape().getBytes(StandardCharsets.UTF_8),
+                        RegisterServerMetrics.CONTENT_TYPE);
+            default:
+                return HttpResponse.notFound();
+        }
+    }
+
+    private HttpResponse register(HttpRequest request) {
+        RegisterRequest registerRequest = new RegisterRequest();
+        registerRequest.setServiceName(request.getParameter(PARAM_SERVICE_NAME));
+        registerRequest.setServiceInstanceId(request.getParameter(PARAM_SERVICE_INSTANCE_ID));
+        registerRequest.setIp(request.getParameter(PARAM_IP));
+        registerRequest.setHostname(request.getParameter(PARAM_HOSTNAME));
+        String port = request.getParameter(PARAM_PORT);
+        if (registerRequest.getServiceName() == null || registerRequest.getServiceInstanceId() == null
+                || port == null) {
+            return HttpResponse.badRequest("serviceName, serviceInstanceId and port are required");
+        }
+        registerRequest.setPort(Integer.parseInt(port));
+        return HttpResponse.ok(controller.register(registerRequest).getStatus());
+    }
+
+    private HttpResponse heartbeat(HttpRequest request) {
+        String serviceName = request.getParameter(PARAM_SERVICE_NAME);
+        String serviceInstanceId = request.getParameter(PARAM_SERVICE_INSTANCE_ID);
+        if (serviceName == null || serviceInstanceId == null) {
+            return HttpResponse.badRequest("serviceName and serviceInstanceId are required");
+        }
+        boolean renewed = controller.renew(serviceName, serviceInstanceId);
+        return HttpResponse.ok(renewed ? HeartbeatResponse.SUCCESS : HeartbeatResponse.FAILURE);
+    }
+
+    private HttpResponse cancel(HttpRequest request) {
+        String serviceName = request.getParameter(PARAM_SERVICE_NAME);
+        String serviceInstanceId = request.getParameter(PARAM_SERVICE_INSTANCE_ID);
+        if (serviceName == null || serviceInstanceId == null) {
+            return HttpResponse.badRequest("serviceName and serviceInstanceId are required");
+        }
+        controller.unregister(serviceName, serviceInstanceId);
+        return HttpResponse.ok("success");
+    }
+
+    /**
+     * 批量心跳, serviceName和serviceInstanceId参数按顺序一一对应, 响应每行一个状态
+     */
+    private HttpResponse batchHeartbeat(HttpRequest request) {
+        List<String> serviceNames = request.getParameters(PARAM_SERVICE_NAME);
+        List<String> serviceInstanceIds = request.getParameters(PARAM_SERVICE_INSTANCE_ID);
+        if (serviceNames.size() != serviceInstanceIds.size()) {
+            return HttpResponse.badRequest("serviceName and serviceInstanceId count mismatch");
+        }
+        BatchHeartbeatRequest batchHeartbeatRequest = new BatchHeartbeatRequest();
+        for (int i = 0; i < serviceNames.size(); i++) {
+            batchHeartbeatRequest.add(serviceNames.get(i), serviceInstanceIds.get(i));
+        }
+        BatchHeartbeatResponse batchHeartbeatResponse = controller.heartbeat(batchHeartbeatRequest);
+        return HttpResponse.ok(String.join("\n", batchHeartbeatResponse.getStatuses()));
+    }
+
+    /**
+     * 对等节点复制过来的一批操作, 请求体用{@link ReplicationBatch}编码, 响应每行一个状态
+     */
+    private HttpResponse replicationBatch(HttpRequest request) {
+        List<String> statuses = controller.replicate(ReplicationBatch.decode(request.getBody()));
+        return HttpResponse.ok(String.join("\n", statuses));
+    }
+
+    /**
+     * 全量注册表,客户端接受压缩时返回预先压缩好的字节;
+     * 只订阅了部分服务时由每个服务缓存好的字节拼成,不压缩
+     */
+    private HttpResponse fullRegistry(HttpRequest request) {
+        Set<String> serviceNames = subscribedServiceNames(request);
+        if (serviceNames != null) {
+            return HttpResponse.ok(controller.fetchFullRegistryPayload(serviceNames), HttpResponse.OCTET_STREAM);
+        }
+        String encoding = PayloadCompressor.negotiate(request.getHeader("Accept-Encoding"));
+        HttpResponse response = HttpResponse.ok(controller.fetchFullRegistryPayload(encoding),
+                HttpResponse.OCTET_STREAM).header("Vary", "Accept-Encoding");
+        if (encoding != null) {
+            response.header("Content-Encoding", encoding);
+        }
+        return response;
+    }
+
+    /**
+     * 长轮询增量注册表, sinceVersion必填, timeout是最长挂起的毫秒数
+     */
+    private void watch(HttpRequest request, HttpResponder responder) {
+        String sinceVersion = request.getParameter(PARAM_SINCE_VERSION);
+        if (sinceVersion == null) {
+            responder.respond(HttpResponse.badRequest("sinceVersion is required"));
+            return;
+        }
+        String timeout = request.getParameter(PARAM_TIMEOUT);
+        watchManager.watch(Long.parseLong(sinceVersion),
+                timeout == null ? RegistryWatchManager.DEFAULT_WATCH_TIMEOUT : Long.parseLong(timeout),
+                subscribedServiceNames(request), responder);
+    }
+
+    private HttpResponse deltaRegistry(HttpRequest request) {
+        String sinceVersion = request.getParameter(PARAM_SINCE_VERSION);
+        if (sinceVersion == null) {
+            return HttpResponse.ok(RegistryCodec.encode(controller.fetchDeltaRegistry()), HttpResponse.OCTET_STREAM);
+        }
+        Set<String> serviceNames = subscribedServiceNames(request);
+        return HttpResponse.ok(RegistryCodec.encode(serviceNames == null
+                ? controller.fetchDeltaRegistry(Long.parseLong(sinceVersion))
+                : controller.fetchDeltaRegistry(Long.parseLong(sinceVersion), serviceNames)),
+                HttpResponse.OCTET_STREAM);
+    }
+
+    /**
+     * 客户端订阅的服务名称
+     *
+     * @return 服务名称, 没有带serviceName参数表示订阅所有服务, 返回null
+     */
+    private static Set<String> subscribedServiceNames(HttpRequest request) {
+        List<String> serviceNames = request.getParameters(PARAM_SERVICE_NAME);
+        return serviceNames.isEmpty() ? null : new LinkedHashSet<>(serviceNames);
+    }
+}
@@ -0,0 +1,155 @@
+package com.jonnyliu.proj.register.server;
+
+import java.util.Locale;
+
+/**
+ * 注册中心的监控指标: 每种操作的延迟直方图,加上注册表和自我保护的几个瞬时值
+ * <p>
+ * 请求线程只往{@link LatencyHistogram}里记一次延迟,不加锁也不分配对象;瞬时值在抓取的时候才去读。
+ * {@link #scrape()}输出Prometheus的文本格式,延迟的百分位是从启动以来的累计分布
+ *
+ * @author liujie
+ */
+public class RegisterServerMetrics {
+
+    /**
+     * Prometheus文本格式的Content-Type
+     */
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final double[] QUANTILES = {0.5D, 0.99D, 0.999D};
+
+    /**
+     * 统计延迟的操作
+     */
+    public enum Operation {
+        REGISTER("register"),
+        HEARTBEAT("heartbeat"),
+        BATCH_HEARTBEAT("batch_heartbeat"),
+        CANCEL("cancel"),
+        FETCH_FULL("fetch_full"),
+        FETCH_DELTA("fetch_delta"),
+        REPLICATE("replicate");
+
+        private final String label;
+
+        Operation(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private final ServiceRegistry registry;
+    /**
+     * 检测服务存活的后台线程,为null时不输出摘除的计数
+     */
+    private final ServiceAliveMonitor aliveMonitor;
+    /**
+     * 按{@link Operation#ordinal()}下标
+     */
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+
+    public RegisterServerMetrics(ServiceRegistry registry) {
+        this(registry, null);
+    }
+
+    /**
+     * @param registry     注册表
+     * @param aliveMonitor 检测服务存活的后台线程,可以为null
+     */
+    public RegisterServerMetrics(ServiceRegistry registry, ServiceAliveMonitor aliveMonitor) {
+        this.registry = registry;
+        this.aliveMonitor = aliveMonitor;
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * 记录一次操作的延迟
+     *
+     * @param operation  操作
+     * @param startNanos 操作开始时{@link System#nanoTime()}的值
+     */
+    public void record(Operation operation, long startNanos) {
+        latencies[operation.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    public LatencyHistogram getLatency(Operation operation) {
+        return latencies[operation.ordinal()];
+    }
+
+    /**
+     * 输出所有指标
+     *
+     * @return Prometheus文本格式
+     */
+    public String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        out.append("# HELP register_operation_latency_seconds Latency of register server operations.\n");
+        out.append("# TYPE register_operation_latency_seconds summary\n");
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram.Snapshot snapshot = getLatency(operation).snapshot();
+            String label = "operation=\"" + operation.getLabel() + "\"";
+            for (double quantile : QUANTILES) {
+                sample(out, "register_operation_latency_seconds", label + ",quantile=\"" + quantile + "\"",
+                        seconds(snapshot.getValueAtQuantile(quantile)));
+            }
+            sample(out, "register_operation_latency_seconds_sum", label, seconds(snapshot.getSum()));
+            sample(out, "register_operation_latency_seconds_count", label, Long.toString(snapshot.getCount()));
+        }
+
+        SelfProtectionPolicy selfProtectionPolicy = registry.getSelfProtectionPolicy();
+        gauge(out, "register_instances", "Service instances in the registry.",
+                registry.getSnapshot().getInstanceCount());
+        gauge(out, "register_registry_version", "Sequence number of the last registry change.",
+                registry.getVersion());
+        gauge(out, "register_change_log_entries", "Changes retained for delta fetches.",
+                registry.getChangeLogSize());
+        gauge(out, "register_heartbeats_last_minute", "Heartbeats received in the last minute.",
+                registry.getHeartbeatCounter().getLastMinuteHeartbeatRate());
+        gauge(out, "register_heartbeats_expected_per_minute", "Heartbeats expected per minute.",
+                selfProtectionPolicy.getExpectedHeartbeatRate());
+        gauge(out, "register_heartbeats_threshold_per_minute",
+                "Heartbeats per minute below which self-protection is activated.",
+                selfProtectionPolicy.getExpectedHeartbeatThreshold());
+        gauge(out, "register_self_protection_active", "1 when self-protection is activated.",
+                selfProtectionPolicy.isSelfProtectionActivated() ? 1L : 0L);
+        if (aliveMonitor != null) {
+            counter(out, "register_evictions_total", "Instances removed because their lease expired.",
+                    aliveMonitor.getEvictedCount());
+            counter(out, "register_evictions_suppressed_total",
+                    "Expired leases kept because self-protection was activated.",
+                    aliveMonitor.getProtectedCount());
+            counter(out, "register_evictions_deferred_total",
+                    "Expired leases postponed to a later round by the eviction rate limit.",
+                    aliveMonitor.getDeferredCount());
+        }
+        return out.toString();
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        metric(out, name, help, "gauge", value);
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        metric(out, name, help, "counter", value);
+    }
+
+    private static void metric(StringBuilder out, String name, String help, String type, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, String value) {
+        out.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9D);
+    }
+}
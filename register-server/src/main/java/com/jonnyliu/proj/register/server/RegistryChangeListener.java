@@ -0,0 +1,18 @@
+package com.jonnyliu.proj.register.server;
+
+/**
+ * 注册表变更的监听器
+ * <p>
+ * 在注册、下线的线程里同步回调,实现里不能有耗时的操作
+ *
+ * @author liujie
+ */
+public interface RegistryChangeListener {
+
+    /**
+     * 注册表发生了变更
+     *
+     * @param version 变更之后注册表的版本号
+     */
+    void onRegistryChanged(long version);
+}
@@ -0,0 +1,174 @@
+package com.jonnyliu.proj.register.server;
+
+import com.jonnyliu.proj.register.commons.Applications;
+import com.jonnyliu.proj.register.commons.ChangedType;
+import com.jonnyliu.proj.register.commons.RegistryHash;
+import com.jonnyliu.proj.register.commons.ServiceInstance;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 注册表的持久化
+ * <p>
+ * 每次变更按版本号顺序追加到{@link WriteAheadLog},后台线程每秒刷一次盘,每隔一段时间把注册表快照写到
+ * {@link MappedSnapshotFile}并删掉快照已经包含的日志段。启动时先读快照,再重放快照之后的日志
+ *
+ * @author liujie
+ */
+public class RegistryPersistence {
+
+    private static final Logger log = LoggerFactory.getLogger(RegistryPersistence.class);
+
+    /**
+     * 默认的快照间隔
+     */
+    public static final long DEFAULT_SNAPSHOT_INTERVAL = 5 * 60 * 1000L;
+    /**
+     * 预写日志的刷盘间隔
+     */
+    public static final long FLUSH_INTERVAL = 1000L;
+
+    private static final String SNAPSHOT_FILE_NAME = "snapshot.dat";
+    private static final String THREAD_REGISTRY_PERSISTENCE = "THREAD-REGISTRY-PERSISTENCE";
+
+    private final File directory;
+    private final ServiceRegistry registry;
+    private final MappedSnapshotFile snapshotFile;
+    private final long snapshotInterval;
+
+    private WriteAheadLog writeAheadLog;
+    private Daemon daemon;
+
+    public RegistryPersistence(File directory, ServiceRegistry registry) {
+        this(directory, registry, DEFAULT_SNAPSHOT_INTERVAL);
+    }
+
+    public RegistryPersistence(File directory, ServiceRegistry registry, long snapshotInterval) {
+        this.directory = directory;
+        this.registry = registry;
+        this.snapshotFile = new MappedSnapshotFile(new File(directory, SNAPSHOT_FILE_NAME));
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    /**
+     * 从快照和预写日志恢复注册表
+     *
+     * @return 恢复出来的注册表, 没有任何持久化数据时是一个版本号为0的空注册表
+     * @throws IOException 读文件失败
+     */
+    public Applications recover() throws IOException {
+        Applications applications = snapshotFile.read();
+        if (applications == null) {
+            applications = new Applications(new ConcurrentHashMap<>(), 0L, 0L);
+        }
+        long snapshotVersion = applications.getVersion();
+        Map<String, Map<String, ServiceInstance>> registryMap = applications.getRegistry();
+        long version = WriteAheadLog.replay(directory, snapshotVersion, record -> {
+            ServiceInstance serviceInstance = record.getServiceInstance();
+            if (ChangedType.REMOVE.equals(record.getChangedType())) {
+                Map<String, ServiceInstance> instances = registryMap.get(serviceInstance.getServiceName());
+                if (instances != null) {
+                    instances.remove(serviceInstance.getInstanceId());
+                    if (instances.isEmpty()) {
+                        registryMap.remove(serviceInstance.getServiceName());
+                    }
+                }
+            } else {
+                registryMap.computeIfAbsent(serviceInstance.getServiceName(), k -> new ConcurrentHashMap<>())
+                        .put(serviceInstance.getInstanceId(), serviceInstance);
+            }
+        });
+        log.info("从快照(版本号: {})和预写日志恢复注册表,恢复到版本号: {}", snapshotVersion, version);
+        return new Applications(registryMap, version, RegistryHash.compute(registryMap));
+    }
+
+    /**
+     * 恢复注册表,之后的变更开始写预写日志,并启动后台刷盘和快照线程
+     *
+     * @throws IOException 读写文件失败
+     */
+    public void start() throws IOException {
+        registry.restore(recover());
+        registry.getSelfProtectionPolicy().recompute();
+        writeAheadLog = new WriteAheadLog(directory, registry.getVersion());
+        registry.setWriteAheadLog(writeAheadLog);
+        daemon = new Daemon(THREAD_REGISTRY_PERSISTENCE);
+        daemon.setDaemon(true);
+        daemon.start();
+    }
+
+    /**
+     * 停止后台线程,做最后一次快照并关闭预写日志
+     */
+    public void stop() {
+        if (daemon == null) {
+            return;
+        }
+        daemon.interrupt();
+        try {
+            daemon.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            snapshot();
+        } catch (IOException e) {
+            log.error("write registry snapshot error.", e);
+        }
+        registry.setWriteAheadLog(null);
+        writeAheadLog.close();
+    }
+
+    /**
+     * 把当前的注册表写成快照,并删除快照已经包含的日志段
+     * <p>
+     * 先切换日志段再取快照,快照的版本号一定不小于旧日志段里的所有记录,旧日志段都可以删除
+     *
+     * @throws IOException 写文件失败
+     */
+    public synchronized void snapshot() throws IOException {
+        writeAheadLog.rotate();
+        RegistrySnapshot snapshot = registry.getSnapshot();
+        long start = System.nanoTime();
+        snapshotFile.write(new Applications(snapshot.getRegistry(), snapshot.getVersion(),
+                snapshot.getRegistryHash()));
+        writeAheadLog.deleteSegmentsCoveredBy(snapshot.getVersion());
+        log.info("注册表快照已写入,版本号: {}, 服务实例个数: {}, 耗时: {} ms", snapshot.getVersion(),
+                snapshot.getInstanceCount(), (System.nanoTime() - start) / 1000000L);
+    }
+
+    /**
+     * 定时刷盘和快照的后台线程
+     */
+    private class Daemon extends Thread {
+
+        public Daemon(String name) {
+            super(name);
+        }
+
+        @Override
+        public void run() {
+            long lastSnapshotTime = System.currentTimeMillis();
+            while (!isInterrupted()) {
+                try {
+                    Thread.sleep(FLUSH_INTERVAL);
+                    writeAheadLog.flush();
+                    // 预写日志写失败过,日志里有缺口,马上做一次快照把它盖住
+                    if (writeAheadLog.isSnapshotRequired()
+                            || System.currentTimeMillis() - lastSnapshotTime >= snapshotInterval) {
+                        snapshot();
+                        lastSnapshotTime = System.currentTimeMillis();
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                } catch (Exception e) {
+                    log.error("error.", e);
+                }
+            }
+        }
+    }
+}
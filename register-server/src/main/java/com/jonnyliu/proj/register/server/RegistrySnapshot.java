@@ -0,0 +1,231 @@
+package com.jonnyliu.proj.register.server;
+
+import com.jonnyliu.proj.register.commons.RegistryHash;
+import com.jonnyliu.proj.register.commons.ServiceInstance;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 注册表某一时刻的不可变快照
+ * <p>
+ * 每次变更只重建发生变更的那个服务的实例表,其他服务的实例表直接复用上一个快照的
+ *
+ * @author liujie
+ */
+public final class RegistrySnapshot {
+
+    /**
+     * 空的注册表快照
+     */
+    public static final RegistrySnapshot EMPTY = new RegistrySnapshot(
+            Collections.<String, Map<String, ServiceInstance>>emptyMap(), Collections.<String, ServiceState>emptyMap(),
+            0L, 0L, 0L);
+
+    /**
+     * 不可变的注册表, key是服务名称,value是这个服务的所有实例
+     */
+    private final Map<String, Map<String, ServiceInstance>> registry;
+    /**
+     * 每个服务的版本号和哈希值
+     */
+    private final Map<String, ServiceState> services;
+    /**
+     * 快照的版本号,即快照已经包含的最后一次变更的序列号
+     */
+    private final long version;
+    /**
+     * 服务实例总数
+     */
+    private final long instanceCount;
+    /**
+     * 注册表内容的哈希值,参见{@link RegistryHash}
+     */
+    private final long registryHash;
+
+    private RegistrySnapshot(Map<String, Map<String, ServiceInstance>> registry, Map<String, ServiceState> services,
+            long version, long instanceCount, long registryHash) {
+        this.registry = registry;
+        this.services = services;
+        this.version = version;
+        this.instanceCount = instanceCount;
+        this.registryHash = registryHash;
+    }
+
+    /**
+     * 根据一个完整的注册表生成快照,是O(N)的,只在启动恢复时使用
+     *
+     * @param registry 注册表,每个服务的实例表必须是不可变的
+     * @param version  快照的版本号
+     * @return 快照
+     */
+    public static RegistrySnapshot of(Map<String, Map<String, ServiceInstance>> registry, long version) {
+        Map<String, Map<String, ServiceInstance>> newRegistry = new HashMap<>();
+        Map<String, ServiceState> newServices = new HashMap<>();
+        long count = 0;
+        long registryHash = 0;
+        for (Map.Entry<String, Map<String, ServiceInstance>> service : registry.entrySet()) {
+            if (!service.getValue().isEmpty()) {
+                Map<String, ServiceInstance> instances = service.getValue();
+                newRegistry.put(service.getKey(), instances);
+                long serviceHash = RegistryHash.compute(Collections.singletonMap(service.getKey(), instances));
+                newServices.put(service.getKey(), new ServiceState(version, serviceHash));
+                count += instances.size();
+                registryHash += serviceHash;
+            }
+        }
+        return new RegistrySnapshot(Collections.unmodifiableMap(newRegistry),
+                Collections.unmodifiableMap(newServices), version, count, registryHash);
+    }
+
+    /**
+     * 替换某个服务的实例表,生成一个新的快照
+     *
+     * @param serviceName 服务名称
+     * @param instances   这个服务最新的实例表,必须是不可变的
+     * @param version     新快照的版本号
+     * @param oldInstance 这次变更中被替换或者被删除的实例,可以为null
+     * @param newInstance 这次变更中新加入的实例,可以为null
+     * @return 新快照
+     */
+    public RegistrySnapshot withService(String serviceName, Map<String, ServiceInstance> instances, long version,
+            ServiceInstance oldInstance, ServiceInstance newInstance) {
+        Map<String, Map<String, ServiceInstance>> newRegistry = new HashMap<>(registry);
+        Map<String, ServiceState> newServices = new HashMap<>(services);
+        Map<String, ServiceInstance> oldInstances = newRegistry.remove(serviceName);
+        ServiceState oldService = newServices.remove(serviceName);
+        long count = instanceCount - (oldInstances == null ? 0 : oldInstances.size());
+        if (!instances.isEmpty()) {
+            newRegistry.put(serviceName, instances);
+            newServices.put(serviceName, new ServiceState(version,
+                    RegistryHash.update(oldService == null ? 0L : oldService.hash, oldInstance, newInstance)));
+            count += instances.size();
+        }
+        return new RegistrySnapshot(Collections.unmodifiableMap(newRegistry),
+                Collections.unmodifiableMap(newServices), version, count,
+                RegistryHash.update(registryHash, oldInstance, newInstance));
+    }
+
+    /**
+     * 一次删除多个服务里的一批实例,生成一个新的快照
+     *
+     * @param services         发生变更的服务最新的实例表,key是服务名称,实例表必须是不可变的
+     * @param removedInstances 被删除的实例
+     * @param version          新快照的版本号
+     * @return 新快照
+     */
+    public RegistrySnapshot withoutInstances(Map<String, Map<String, ServiceInstance>> services,
+            Collection<ServiceInstance> removedInstances, long version) {
+        Map<String, Map<String, ServiceInstance>> newRegistry = new HashMap<>(registry);
+        Map<String, ServiceState> newServices = new HashMap<>(this.services);
+        long count = instanceCount;
+        long newRegistryHash = registryHash;
+        for (ServiceInstance removed : removedInstances) {
+            String serviceName = removed.getServiceName();
+            ServiceState oldService = newServices.get(serviceName);
+            newServices.put(serviceName, new ServiceState(version,
+                    RegistryHash.update(oldService == null ? 0L : oldService.hash, removed, null)));
+            newRegistryHash = RegistryHash.update(newRegistryHash, removed, null);
+        }
+        for (Map.Entry<String, Map<String, ServiceInstance>> service : services.entrySet()) {
+            Map<String, ServiceInstance> oldInstances = newRegistry.remove(service.getKey());
+            count -= oldInstances == null ? 0 : oldInstances.size();
+            if (service.getValue().isEmpty()) {
+                newServices.remove(service.getKey());
+            } else {
+                newRegistry.put(service.getKey(), service.getValue());
+                count += service.getValue().size();
+            }
+        }
+        return new RegistrySnapshot(Collections.unmodifiableMap(newRegistry),
+                Collections.unmodifiableMap(newServices), version, count, newRegistryHash);
+    }
+
+    /**
+     * 某个服务最后一次变更的版本号
+     *
+     * @param serviceName 服务名称
+     * @return 版本号, 这个服务没有实例时返回-1
+     */
+    public long getServiceVersion(String serviceName) {
+        ServiceState service = services.get(serviceName);
+        return service == null ? -1L : service.version;
+    }
+
+    /**
+     * 某个服务所有实例的哈希值之和
+     *
+     * @param serviceName 服务名称
+     * @return 哈希值, 这个服务没有实例时返回0
+     */
+    public long getServiceHash(String serviceName) {
+        ServiceState service = services.get(serviceName);
+        return service == null ? 0L : service.hash;
+    }
+
+    /**
+     * 只包含这些服务的注册表的哈希值,哈希值是可加的,就是每个服务的哈希值之和
+     *
+     * @param serviceNames 服务名称
+     * @return 哈希值
+     */
+    public long getRegistryHash(Collection<String> serviceNames) {
+        long hash = 0L;
+        for (String serviceName : serviceNames) {
+            hash += getServiceHash(serviceName);
+        }
+        return hash;
+    }
+
+    /**
+     * 这些服务的实例个数之和
+     *
+     * @param serviceNames 服务名称
+     * @return 实例个数
+     */
+    public long getInstanceCount(Collection<String> serviceNames) {
+        long count = 0L;
+        for (String serviceName : serviceNames) {
+            Map<String, ServiceInstance> instances = registry.get(serviceName);
+            count += instances == null ? 0 : instances.size();
+        }
+        return count;
+    }
+
+    public Map<String, Map<String, ServiceInstance>> getRegistry() {
+        return registry;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public long getInstanceCount() {
+        return instanceCount;
+    }
+
+    public long getRegistryHash() {
+        return registryHash;
+    }
+
+    /**
+     * 一个服务的版本号和哈希值
+     */
+    private static final class ServiceState {
+
+        /**
+         * 这个服务最后一次变更的序列号,服务端按它缓存每个服务编码好的字节
+         */
+        private final long version;
+        /**
+         * 这个服务所有实例的哈希值之和
+         */
+        private final long hash;
+
+        ServiceState(long version, long hash) {
+            this.version = version;
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package com.jonnyliu.proj.register.server;
+
+import com.jonnyliu.proj.register.commons.DeltaRegistry;
+import com.jonnyliu.proj.register.commons.RegistryCodec;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 增量注册表的长轮询
+ * <p>
+ * 客户端带上自己最后看到的版本号来watch,如果服务端已经有更新的版本就马上返回增量,
+ * 否则把请求挂起,直到注册表发生变更或者超时再返回增量。
+ * 挂起的请求只是一个放在集合和时间轮里的对象,不占用线程,所有挂起的请求由一个后台线程统一唤醒:
+ * 注册表变更时批量返回,同一个版本号的增量只编码一次;超时由时间轮处理。
+ * 只订阅了部分服务的请求,在变更和订阅的服务无关时继续挂起,只把请求的版本号往前推
+ *
+ * @author liujie
+ */
+public class RegistryWatchManager implements RegistryChangeListener {
+
+    private static final Logger log = LoggerFactory.getLogger(RegistryWatchManager.class);
+
+    /**
+     * 默认的最长挂起时间
+     */
+    public static final long DEFAULT_WATCH_TIMEOUT = 30 * 1000L;
+    /**
+     * 允许客户端指定的最长挂起时间
+     */
+    public static final long MAX_WATCH_TIMEOUT = 90 * 1000L;
+    /**
+     * 超时检测的精度
+     */
+    private static final long WATCH_TICK = 100L;
+    private static final String THREAD_REGISTRY_WATCH_DISPATCHER = "THREAD-REGISTRY-WATCH-DISPATCHER";
+
+    private final ServiceRegistry registry;
+
+    /**
+     * 挂起的请求
+     */
+    private final Set<Watch> parkedWatches = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 挂起请求的超时时间
+     */
+    private final HierarchicalTimingWheel<Watch> timeoutWheel;
+
+    /**
+     * 注册表发生了变更,还没有唤醒挂起的请求
+     */
+    private final AtomicBoolean changed = new AtomicBoolean();
+
+    private final Dispatcher dispatcher;
+
+    public RegistryWatchManager(ServiceRegistry registry) {
+        this.registry = registry;
+        this.timeoutWheel = new HierarchicalTimingWheel<>(WATCH_TICK, System.currentTimeMillis());
+        this.dispatcher = new Dispatcher(THREAD_REGISTRY_WATCH_DISPATCHER);
+        this.dispatcher.setDaemon(true);
+    }
+
+    public void start() {
+        dispatcher.start();
+    }
+
+    /**
+     * 停止后台线程,还挂起的请求不再响应
+     */
+    public void stop() {
+        dispatcher.interrupt();
+    }
+
+    /**
+     * 长轮询增量注册表
+     *
+     * @param sinceVersion  客户端最后看到的注册表版本号
+     * @param timeoutMillis 最长挂起时间
+     * @param responder     用来返回增量注册表,可能在别的线程调用
+     */
+    public void watch(long sinceVersion, long timeoutMillis, HttpResponder responder) {
+        watch(sinceVersion, timeoutMillis, null, responder);
+    }
+
+    /**
+     * 长轮询只涉及订阅的服务的增量注册表
+     *
+     * @param sinceVersion  客户端最后看到的注册表版本号
+     * @param timeoutMillis 最长挂起时间
+     * @param serviceNames  订阅的服务名称, null表示订阅所有服务
+     * @param responder     用来返回增量注册表,可能在别的线程调用
+     */
+    public void watch(long sinceVersion, long timeoutMillis, Set<String> serviceNames, HttpResponder responder) {
+        long timeout = Math.min(timeoutMillis, MAX_WATCH_TIMEOUT);
+        Watch watch = new Watch(sinceVersion, serviceNames, responder);
+        // 客户端落后了(或者比服务端还新,比如服务端重启过),马上返回
+        DeltaRegistry deltaRegistry = delta(watch, null);
+        if (hasNews(watch, deltaRegistry) || timeout <= 0) {
+            responder.respond(HttpResponse.ok(RegistryCodec.encode(deltaRegistry), HttpResponse.OCTET_STREAM));
+            return;
+        }
+        watch.sinceVersion = deltaRegistry.getVersion();
+        parkedWatches.add(watch);
+        timeoutWheel.schedule(watch, System.currentTimeMillis() + timeout);
+        // 挂起的过程中注册表可能已经变了,变更通知可能已经错过了这个请求
+        if (registry.getVersion() != watch.sinceVersion) {
+            onRegistryChanged(registry.getVersion());
+        }
+    }
+
+    @Override
+    public void onRegistryChanged(long version) {
+        if (changed.compareAndSet(false, true)) {
+            LockSupport.unpark(dispatcher);
+        }
+    }
+
+    /**
+     * 当前挂起的请求个数
+     *
+     * @return 挂起的请求个数
+     */
+    public int getParkedCount() {
+        return parkedWatches.size();
+    }
+
+    /**
+     * 唤醒所有落后于当前版本的挂起请求
+     */
+    private void dispatchChanged() {
+        long currentVersion = registry.getVersion();
+        // 同一个版本号(和同一组订阅)的增量只计算、编码一次
+        Map<Object, DeltaRegistry> deltas = new HashMap<>();
+        Map<Object, ByteBuffer> payloads = new HashMap<>();
+        int dispatched = 0;
+        for (Watch watch : parkedWatches) {
+            if (watch.sinceVersion == currentVersion) {
+                continue;
+            }
+            DeltaRegistry deltaRegistry = delta(watch, deltas);
+            // 变更都和订阅的服务无关,继续挂起
+            if (!hasNews(watch, deltaRegistry)) {
+                watch.sinceVersion = deltaRegistry.getVersion();
+                continue;
+            }
+            if (!watch.complete()) {
+                continue;
+            }
+            parkedWatches.remove(watch);
+            ByteBuffer payload = payloads.get(watch.key());
+            if (payload == null) {
+                payload = RegistryCodec.encode(deltaRegistry);
+                payloads.put(watch.key(), payload);
+            }
+            watch.responder.respond(HttpResponse.ok(payload.duplicate(), HttpResponse.OCTET_STREAM));
+            dispatched++;
+        }
+        if (dispatched > 0) {
+            log.info("注册表版本号变为: {}, 唤醒挂起的watch请求: {} 个", currentVersion, dispatched);
+        }
+    }
+
+    /**
+     * 挂起的请求超时了,返回当时的增量(通常是空的)
+     *
+     * @param watch 挂起的请求
+     */
+    private void onTimeout(Watch watch) {
+        if (watch.complete()) {
+            parkedWatches.remove(watch);
+            watch.responder.respond(HttpResponse.ok(RegistryCodec.encode(delta(watch, null)),
+                    HttpResponse.OCTET_STREAM));
+        }
+    }
+
+    /**
+     * 挂起的请求版本号之后的增量
+     *
+     * @param watch  挂起的请求
+     * @param deltas 这一轮已经算好的增量, 可以为null
+     * @return 增量注册表
+     */
+    private DeltaRegistry delta(Watch watch, Map<Object, DeltaRegistry> deltas) {
+        Object key = watch.key();
+        DeltaRegistry deltaRegistry = deltas == null ? null : deltas.get(key);
+        if (deltaRegistry == null) {
+            deltaRegistry = watch.serviceNames == null ? registry.getDeltaRegistry(watch.sinceVersion)
+                    : registry.getDeltaRegistry(watch.sinceVersion, watch.serviceNames);
+            if (deltas != null) {
+                deltas.put(key, deltaRegistry);
+            }
+        }
+        return deltaRegistry;
+    }
+
+    /**
+     * 增量里有没有客户端需要知道的东西
+     */
+    private static boolean hasNews(Watch watch, DeltaRegistry deltaRegistry) {
+        if (watch.serviceNames == null) {
+            return deltaRegistry.getVersion() != watch.sinceVersion;
+        }
+        return deltaRegistry.isFullFetchRequired() || !deltaRegistry.getRecentlyChangedServiceInstances().isEmpty()
+                || deltaRegistry.getVersion() < watch.sinceVersion;
+    }
+
+    /**
+     * 一个挂起的请求
+     */
+    private static class Watch {
+
+        /**
+         * 客户端已经知道的版本号,订阅的服务没有变更时由后台线程往前推
+         */
+        private volatile long sinceVersion;
+        /**
+         * 订阅的服务名称, null表示订阅所有服务
+         */
+        private final Set<String> serviceNames;
+        private final HttpResponder responder;
+        private final AtomicBoolean completed = new AtomicBoolean();
+
+        Watch(long sinceVersion, Set<String> serviceNames, HttpResponder responder) {
+            this.sinceVersion = sinceVersion;
+            this.serviceNames = serviceNames;
+            this.responder = responder;
+        }
+
+        /**
+         * 版本号和订阅都相同的请求,增量也相同
+         */
+        Object key() {
+            return serviceNames == null ? (Object) sinceVersion
+                    : new AbstractMap.SimpleImmutableEntry<>(sinceVersion, serviceNames);
+        }
+
+        /**
+         * 变更和超时只有一个能响应这个请求
+         *
+         * @return 是否抢到了响应的机会
+         */
+        boolean complete() {
+            return completed.compareAndSet(false, true);
+        }
+    }
+
+    /**
+     * 唤醒挂起请求的后台线程
+     */
+    private class Dispatcher extends Thread {
+
+        public Dispatcher(String name) {
+            super(name);
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                try {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(WATCH_TICK));
+                    if (changed.getAndSet(false)) {
+                        dispatchChanged();
+                    }
+                    timeoutWheel.advance(System.currentTimeMillis(), RegistryWatchManager.this::onTimeout);
+                } catch (Exception e) {
+                    log.error("error.", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.jonnyliu.proj.register.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 一批复制操作的编码
+ * <p>
+ * 格式: 操作个数(4字节), 然后每个操作: 类型(1字节) serviceName instanceId,注册操作再跟上 ip hostname port(4字节);
+ * 字符串是长度(4字节,-1表示null)加UTF-8字节
+ *
+ * @author liujie
+ */
+public final class ReplicationBatch {
+
+    private ReplicationBatch() {
+    }
+
+    /**
+     * 编码一批复制操作
+     *
+     * @param operations 复制操作
+     * @return 编码后的字节
+     */
+    public static byte[] encode(List<ReplicationOperation> operations) {
+        int size = 4;
+        List<byte[]> strings = new ArrayList<>(operations.size() * 4);
+        for (ReplicationOperation operation : operations) {
+            size += 1;
+            size += addString(strings, operation.getServiceName());
+            size += addString(strings, operation.getInstanceId());
+            if (operation.getAction() == ReplicationOperation.REGISTER) {
+                size += addString(strings, operation.getIp());
+                size += addString(strings, operation.getHostname());
+                size += 4;
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(operations.size());
+        int next = 0;
+        for (ReplicationOperation operation : operations) {
+            buffer.put(operation.getAction());
+            putString(buffer, strings.get(next++));
+            putString(buffer, strings.get(next++));
+            if (operation.getAction() == ReplicationOperation.REGISTER) {
+                putString(buffer, strings.get(next++));
+                putString(buffer, strings.get(next++));
+                buffer.putInt(operation.getPort());
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * 解码一批复制操作
+     *
+     * @param bytes 编码后的字节
+     * @return 按原来顺序排列的复制操作
+     */
+    public static List<ReplicationOperation> decode(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int count = buffer.getInt();
+        List<ReplicationOperation> operations = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte action = buffer.get();
+            String serviceName = getString(buffer);
+            String instanceId = getString(buffer);
+            if (action == ReplicationOperation.REGISTER) {
+                String ip = getString(buffer);
+                String hostname = getString(buffer);
+                operations.add(new ReplicationOperation(action, serviceName, instanceId, ip, hostname,
+                        buffer.getInt()));
+            } else {
+                operations.add(new ReplicationOperation(action, serviceName, instanceId, null, null, 0));
+            }
+        }
+        return operations;
+    }
+
+    private static int addString(List<byte[]> strings, String value) {
+        byte[] bytes = value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+        strings.add(bytes);
+        return 4 + (bytes == null ? 0 : bytes.length);
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+            return;
+        }
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,93 @@
+package com.jonnyliu.proj.register.server;
+
+import com.jonnyliu.proj.register.commons.ServiceInstance;
+
+/**
+ * 复制给其他注册中心节点的一次操作: 注册、续约或者下线
+ *
+ * @author liujie
+ */
+public class ReplicationOperation {
+
+    public static final byte REGISTER = 1;
+    public static final byte RENEW = 2;
+    public static final byte CANCEL = 3;
+
+    private final byte action;
+    private final String serviceName;
+    private final String instanceId;
+    /**
+     * 只有注册操作带有实例的地址信息
+     */
+    private final String ip;
+    private final String hostname;
+    private final int port;
+
+    public ReplicationOperation(byte action, String serviceName, String instanceId, String ip, String hostname,
+            int port) {
+        this.action = action;
+        this.serviceName = serviceName;
+        this.instanceId = instanceId;
+        this.ip = ip;
+        this.hostname = hostname;
+        this.port = port;
+    }
+
+    public static ReplicationOperation register(ServiceInstance serviceInstance) {
+        return new ReplicationOperation(REGISTER, serviceInstance.getServiceName(), serviceInstance.getInstanceId(),
+                serviceInstance.getIp(), serviceInstance.getHostname(), serviceInstance.getPort());
+    }
+
+    public static ReplicationOperation renew(String serviceName, String instanceId) {
+        return new ReplicationOperation(RENEW, serviceName, instanceId, null, null, 0);
+    }
+
+    public static ReplicationOperation cancel(String serviceName, String instanceId) {
+        return new ReplicationOperation(CANCEL, serviceName, instanceId, null, null, 0);
+    }
+
+    /**
+     * 注册操作对应的服务实例
+     *
+     * @return 新的服务实例
+     */
+    public ServiceInstance toServiceInstance() {
+        ServiceInstance serviceInstance = new ServiceInstance();
+        serviceInstance.setServiceName(serviceName);
+        serviceInstance.setInstanceId(instanceId);
+        serviceInstance.setIp(ip);
+        serviceInstance.setHostname(hostname);
+        serviceInstance.setPort(port);
+        return serviceInstance;
+    }
+
+    public byte getAction() {
+        return action;
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    public String getIp() {
+        return ip;
+    }
+
+    public String getHostname() {
+        return hostname;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    @Override
+    public String toString() {
+        return "ReplicationOperation [action=" + action + ", serviceName=" + serviceName + ", instanceId="
+                + instanceId + "]";
+    }
+}
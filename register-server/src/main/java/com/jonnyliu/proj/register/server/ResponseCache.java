@@ -0,0 +1,364 @@
+package com.jonnyliu.proj.register.server;
+
+import com.jonnyliu.proj.register.commons.Applications;
+import com.jonnyliu.proj.register.commons.DeltaRegistry;
+import com.jonnyliu.proj.register.commons.RegistryCodec;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 注册表的响应缓存,分为两级:
+ * <p>
+ * readOnlyCache: 只读缓存,读请求优先从这里无锁读取,由后台线程定时从readWriteCache同步
+ * <p>
+ * readWriteCache: 读写缓存,服务注册、下线时失效,未命中时从注册表重新构建
+ * <p>
+ * 另外按服务缓存每个服务单独编码好的字节,只订阅了部分服务的客户端拉取全量时直接拼起来,
+ * 一个服务的缓存只在这个服务自己变更之后才重新编码
+ * <p>
+ * 同步只读缓存的后台线程要用{@link #stop()}停掉,停掉之后只读缓存清空,读请求直接读读写缓存
+ *
+ * @author liujie
+ */
+public class ResponseCache {
+
+    private static final Logger log = LoggerFactory.getLogger(ResponseCache.class);
+
+    /**
+     * 全量注册表的缓存key
+     */
+    public static final String FULL_REGISTRY = "FULL_REGISTRY";
+    /**
+     * 增量注册表的缓存key
+     */
+    public static final String DELTA_REGISTRY = "DELTA_REGISTRY";
+    /**
+     * 编码好的全量注册表的缓存key
+     */
+    public static final String FULL_REGISTRY_PAYLOAD = "FULL_REGISTRY_PAYLOAD";
+    /**
+     * gzip压缩之后的全量注册表的缓存key
+     */
+    public static final String FULL_REGISTRY_PAYLOAD_GZIP = "FULL_REGISTRY_PAYLOAD_GZIP";
+    /**
+     * deflate压缩之后的全量注册表的缓存key
+     */
+    public static final String FULL_REGISTRY_PAYLOAD_DEFLATE = "FULL_REGISTRY_PAYLOAD_DEFLATE";
+
+    /**
+     * 只读缓存与读写缓存的同步间隔
+     */
+    public static final Long READ_ONLY_CACHE_UPDATE_INTERVAL = 30 * 1000L;
+    private static final String THREAD_READ_ONLY_CACHE_UPDATER = "THREAD-READ-ONLY-CACHE-UPDATER";
+
+    /**
+     * 只读缓存
+     */
+    private final Map<String, Object> readOnlyCache = new ConcurrentHashMap<>();
+    /**
+     * 读写缓存
+     */
+    private final Map<String, Object> readWriteCache = new ConcurrentHashMap<>();
+
+    /**
+     * 缓存命中次数
+     */
+    private final AtomicLong hitCount = new AtomicLong();
+    /**
+     * 缓存未命中次数
+     */
+    private final AtomicLong missCount = new AtomicLong();
+    /**
+     * 读写缓存的代数,每次失效加1;构建期间代数变了,说明构建用的快照已经过时,不能放进缓存
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * 每个服务编码好的字节, key是服务名称
+     */
+    private final Map<String, ServicePayload> servicePayloads = new ConcurrentHashMap<>();
+
+    private final ServiceRegistry registry;
+    private final PayloadCompressor compressor = new PayloadCompressor();
+    private final ReadOnlyCacheUpdater updater;
+
+    /**
+     * 同步只读缓存的后台线程是否已经停止,停止之后不再使用只读缓存
+     */
+    private volatile boolean stopped;
+
+    public ResponseCache(ServiceRegistry registry) {
+        this.registry = registry;
+        //启动后台线程定时同步只读缓存
+        this.updater = new ReadOnlyCacheUpdater(THREAD_READ_ONLY_CACHE_UPDATER);
+        this.updater.setDaemon(true);
+        this.updater.start();
+    }
+
+    /**
+     * 停止同步只读缓存的后台线程,并清空只读缓存,之后的读请求都直接读读写缓存,不会读到过时的响应
+     */
+    public void stop() {
+        stopped = true;
+        updater.interrupt();
+        try {
+            updater.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        readOnlyCache.clear();
+    }
+
+    /**
+     * 获取全量注册表
+     *
+     * @return 全量注册表
+     */
+    public Applications getFullRegistry() {
+        return (Applications) get(FULL_REGISTRY);
+    }
+
+    /**
+     * 获取编码好的全量注册表,直接写到网络上
+     *
+     * @return 全量注册表的字节,是共享的只读buffer
+     */
+    public ByteBuffer getFullRegistryPayload() {
+        return ((ByteBuffer) get(FULL_REGISTRY_PAYLOAD)).duplicate();
+    }
+
+    /**
+     * 获取压缩好的全量注册表,同一个注册表版本只压缩一次,所有客户端共享
+     *
+     * @param encoding {@link PayloadCompressor#GZIP}、{@link PayloadCompressor#DEFLATE},null表示不压缩
+     * @return 全量注册表的字节,是共享的只读buffer
+     */
+    public ByteBuffer getFullRegistryPayload(String encoding) {
+        if (encoding == null) {
+            return getFullRegistryPayload();
+        }
+        String key = PayloadCompressor.GZIP.equals(encoding) ? FULL_REGISTRY_PAYLOAD_GZIP
+                : FULL_REGISTRY_PAYLOAD_DEFLATE;
+        return ((ByteBuffer) get(key)).duplicate();
+    }
+
+    /**
+     * 获取只包含订阅的服务的全量注册表,代价只和订阅的服务的大小有关
+     * <p>
+     * 直接读注册表当前的快照,版本号和客户端接下来的增量拉取对得上,不经过两级缓存
+     *
+     * @param serviceNames 订阅的服务名称
+     * @return 编码好的全量注册表
+     */
+    public ByteBuffer getServiceRegistryPayload(Collection<String> serviceNames) {
+        RegistrySnapshot snapshot = registry.getSnapshot();
+        List<ByteBuffer> services = new ArrayList<>(serviceNames.size());
+        for (String serviceName : serviceNames) {
+            ByteBuffer service = getServicePayload(snapshot, serviceName);
+            if (service != null) {
+                services.add(service);
+            }
+        }
+        return RegistryCodec.encodeServices(snapshot.getVersion(), snapshot.getRegistryHash(serviceNames),
+                services);
+    }
+
+    /**
+     * 获取一个服务编码好的字节,缓存的版本号和快照里这个服务的版本号不一样时重新编码
+     *
+     * @param snapshot    注册表快照
+     * @param serviceName 服务名称
+     * @return 编码好的字节, 这个服务没有实例时返回null
+     */
+    private ByteBuffer getServicePayload(RegistrySnapshot snapshot, String serviceName) {
+        long serviceVersion = snapshot.getServiceVersion(serviceName);
+        if (serviceVersion < 0) {
+            servicePayloads.remove(serviceName);
+            return null;
+        }
+        ServicePayload cached = servicePayloads.get(serviceName);
+        if (cached != null && cached.version == serviceVersion) {
+            hitCount.incrementAndGet();
+            return cached.payload.duplicate();
+        }
+        missCount.incrementAndGet();
+        ByteBuffer payload = RegistryCodec.encodeService(serviceName, snapshot.getRegistry().get(serviceName))
+                .asReadOnlyBuffer();
+        // 并发拉取时只用更新的版本覆盖
+        servicePayloads.merge(serviceName, new ServicePayload(serviceVersion, payload),
+                (old, current) -> old.version > current.version ? old : current);
+        return payload.duplicate();
+    }
+
+    /**
+     * 获取增量注册表
+     *
+     * @return 增量注册表
+     */
+    public DeltaRegistry getDeltaRegistry() {
+        return (DeltaRegistry) get(DELTA_REGISTRY);
+    }
+
+    /**
+     * 先读只读缓存,未命中再读读写缓存
+     *
+     * @param key 缓存key
+     * @return 缓存的响应
+     */
+    private Object get(String key) {
+        if (stopped) {
+            missCount.incrementAndGet();
+            return getFromReadWriteCache(key);
+        }
+        Object value = readOnlyCache.get(key);
+        if (value != null) {
+            hitCount.incrementAndGet();
+            return value;
+        }
+        missCount.incrementAndGet();
+        long current = generation.get();
+        value = getFromReadWriteCache(key);
+        if (generation.get() == current && !stopped) {
+            readOnlyCache.put(key, value);
+        }
+        return value;
+    }
+
+    /**
+     * 读取读写缓存,未命中则从注册表构建
+     * <p>
+     * 这里不能用computeIfAbsent,构建时会访问注册表,而注册表变更时又会来失效缓存,会造成死锁。
+     * 构建前后比较代数:构建期间发生过失效,构建出来的响应只返回给这一次调用,不放进缓存
+     *
+     * @param key 缓存key
+     * @return 缓存的响应
+     */
+    private Object getFromReadWriteCache(String key) {
+        Object value = readWriteCache.get(key);
+        if (value == null) {
+            long current = generation.get();
+            value = load(key);
+            if (generation.get() != current) {
+                return value;
+            }
+            Object existing = readWriteCache.putIfAbsent(key, value);
+            if (existing != null) {
+                value = existing;
+            } else if (generation.get() != current) {
+                // 放进去之前刚好失效了一次,失效时可能还没看到这个值
+                readWriteCache.remove(key, value);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * 注册表发生变更,失效读写缓存,先增加代数再删除,正在构建的旧响应不会再被放进来
+     */
+    public void invalidate() {
+        generation.incrementAndGet();
+        readWriteCache.remove(FULL_REGISTRY);
+        readWriteCache.remove(DELTA_REGISTRY);
+        readWriteCache.remove(FULL_REGISTRY_PAYLOAD);
+        readWriteCache.remove(FULL_REGISTRY_PAYLOAD_GZIP);
+        readWriteCache.remove(FULL_REGISTRY_PAYLOAD_DEFLATE);
+    }
+
+    /**
+     * 根据缓存key从注册表构建响应
+     *
+     * @param key 缓存key
+     * @return 响应
+     */
+    private Object load(String key) {
+        if (FULL_REGISTRY.equals(key)) {
+            RegistrySnapshot snapshot = registry.getSnapshot();
+            return new Applications(snapshot.getRegistry(), snapshot.getVersion(), snapshot.getRegistryHash());
+        }
+        if (FULL_REGISTRY_PAYLOAD.equals(key)) {
+            return RegistryCodec.encode((Applications) getFromReadWriteCache(FULL_REGISTRY)).asReadOnlyBuffer();
+        }
+        if (FULL_REGISTRY_PAYLOAD_GZIP.equals(key)) {
+            return compress(PayloadCompressor.GZIP);
+        }
+        if (FULL_REGISTRY_PAYLOAD_DEFLATE.equals(key)) {
+            return compress(PayloadCompressor.DEFLATE);
+        }
+        if (DELTA_REGISTRY.equals(key)) {
+            return registry.getDeltaRegistry();
+        }
+        throw new IllegalArgumentException("unknown cache key: " + key);
+    }
+
+    private ByteBuffer compress(String encoding) {
+        ByteBuffer payload = (ByteBuffer) getFromReadWriteCache(FULL_REGISTRY_PAYLOAD);
+        ByteBuffer compressed = compressor.compress(payload, encoding);
+        log.debug("全量注册表{}压缩: {} -> {} 字节, 累计压缩率: {}, 累计cpu时间: {} ms", encoding, payload.remaining(),
+                compressed.remaining(), String.format("%.3f", compressor.getCompressionRatio(encoding)),
+                compressor.getCompressCpuNanos(encoding) / 1000000);
+        return compressed;
+    }
+
+    public PayloadCompressor getCompressor() {
+        return compressor;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * 一个服务编码好的字节和对应的版本号
+     */
+    private static final class ServicePayload {
+
+        private final long version;
+        private final ByteBuffer payload;
+
+        ServicePayload(long version, ByteBuffer payload) {
+            this.version = version;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * 定时将读写缓存同步到只读缓存的后台线程
+     */
+    private class ReadOnlyCacheUpdater extends Thread {
+
+        public ReadOnlyCacheUpdater(String name) {
+            super(name);
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                try {
+                    Thread.sleep(READ_ONLY_CACHE_UPDATE_INTERVAL);
+                    for (String key : readOnlyCache.keySet()) {
+                        long current = generation.get();
+                        Object currentValue = getFromReadWriteCache(key);
+                        if (generation.get() == current && currentValue != readOnlyCache.get(key)) {
+                            readOnlyCache.put(key, currentValue);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                } catch (Exception e) {
+                    log.error("error.", e);
+                }
+            }
+        }
+    }
+}
@@ -1,10 +1,10 @@
 package com.jonnyliu.proj.register.server;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
 /**
  * 自我保护机制
+ * <p>
+ * 期望的心跳次数不再随注册、下线加减,而是由{@link ServiceAliveMonitor}按注册表的时钟定时根据实际的实例个数重新计算,
+ * 判断是否进入自我保护只是读两个volatile变量,可以在任何地方调用。每个注册表有自己的自我保护状态
  *
  * @author liujie
  */
@@ -14,48 +14,72 @@ public class SelfProtectionPolicy {
      * 自我保护机制的阈值，当 实际的心跳次数  < 每分钟期望的心跳次数 * 0.85，则注册中心会自动进入自我保护机制
      */
     public static final double THRESHOLD_SELF_PROTECTION = 0.85F;
-    private static final Logger log = LoggerFactory.getLogger(SelfProtectionPolicy.class);
-    private static final SelfProtectionPolicy INSTANCE = new SelfProtectionPolicy();
+    /**
+     * 客户端发送心跳的间隔
+     */
+    public static final long HEARTBEAT_INTERVAL = 30 * 1000L;
+    /**
+     * 重新计算期望心跳次数的间隔
+     */
+    public static final long EXPECTED_HEARTBEAT_RATE_UPDATE_INTERVAL = 60 * 1000L;
+    private static final long ONE_MINUTE = 60 * 1000L;
 
-    private SelfProtectionPolicy() {
+    private final ServiceRegistry registry;
+    private final HeartbeatCounter heartbeatCounter;
+
+    /**
+     * @param registry         注册表
+     * @param heartbeatCounter 这个注册表的心跳计数器
+     */
+    public SelfProtectionPolicy(ServiceRegistry registry, HeartbeatCounter heartbeatCounter) {
+        this.registry = registry;
+        this.heartbeatCounter = heartbeatCounter;
     }
 
     /**
      * 期望的一个心跳次数,如果你有10个服务实例,此时这个值就是10 * 2 = 20
      */
-    private long expectedHeartbeatRate;
+    private volatile long expectedHeartbeatRate;
 
     /**
      * 期望的心跳次数阈值, 10 * 2 * 0.85 = 17, 每分钟至少有17次心跳,才不会进入自我保护机制
      */
-    private long expectedHeartbeatThreshold = 0L;
+    private volatile long expectedHeartbeatThreshold = 0L;
 
+    /**
+     * 默认注册表的自我保护机制
+     *
+     * @return 自我保护机制
+     */
     public static SelfProtectionPolicy getInstance() {
-        return INSTANCE;
+        return ServiceRegistry.getInstance().getSelfProtectionPolicy();
     }
 
     public long getExpectedHeartbeatRate() {
         return expectedHeartbeatRate;
     }
 
-    public void setExpectedHeartbeatRate(long expectedHeartbeatRate) {
-        this.expectedHeartbeatRate = expectedHeartbeatRate;
-        this.expectedHeartbeatThreshold = (long) (this.expectedHeartbeatRate * THRESHOLD_SELF_PROTECTION);
-    }
-
     public long getExpectedHeartbeatThreshold() {
         return this.expectedHeartbeatThreshold;
     }
 
+    /**
+     * 根据注册表中的实例个数重新计算期望的心跳次数
+     */
+    public void recompute() {
+        long instanceCount = registry.getSnapshot().getInstanceCount();
+        long rate = instanceCount * (ONE_MINUTE / HEARTBEAT_INTERVAL);
+        // 先写阈值再写期望值,两个值都是由这一个线程写的
+        this.expectedHeartbeatThreshold = (long) (rate * THRESHOLD_SELF_PROTECTION);
+        this.expectedHeartbeatRate = rate;
+    }
+
     /**
      * 判断自我保护机制是否激活
      *
      * @return
      */
     public boolean isSelfProtectionActivated() {
-        HeartbeatCounter heartbeatCounter = HeartbeatCounter.getInstance();
-        log.info("最近一分钟的心跳次数为: {}, 期望的最小心跳次数为: {}", heartbeatCounter.getLastMinuteHeartbeatRate(),
-                expectedHeartbeatThreshold);
         return heartbeatCounter.getLastMinuteHeartbeatRate() < expectedHeartbeatThreshold;
     }
 
@@ -66,4 +90,4 @@ public class SelfProtectionPolicy {
                 ", expectedHeartbeatThreshold=" + expectedHeartbeatThreshold +
                 '}';
     }
-}
\ No newline at end of file
+}
@@ -1,14 +1,31 @@
 package com.jonnyliu.proj.register.server;
 
 
+import com.jonnyliu.proj.register.commons.ChangedType;
+import com.jonnyliu.proj.register.commons.DeltaRegistry;
+import com.jonnyliu.proj.register.commons.RecentlyChangedServiceInstance;
 import com.jonnyliu.proj.register.commons.ServiceInstance;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * 检测服务是否存活的后台线程
+ * <p>
+ * 每个服务实例的租约到期时间都放在一个分层时间轮里,时间轮每个tick推进一次,
+ * 只处理到期的实例:如果期间续约过,就按新的到期时间重新放回时间轮,否则摘除。
+ * 续约本身不需要操作时间轮。每隔一段时间顺便重新计算自我保护的期望心跳次数。
+ * <p>
+ * 一轮里过期的实例先经过{@link EvictionRateLimiter}限流,再用{@link ServiceRegistry#evict}一次摘除,
+ * 超出限额的下一个tick再处理
+ * <p>
+ * 时间都取自注册表的{@link Clock};用{@link VirtualClock}时不启动后台线程,而是推进时钟之后调用{@link #check()}
  *
  * @author liujie
  */
@@ -16,13 +33,58 @@ public class ServiceAliveMonitor {
 
     private static final Logger log = LoggerFactory.getLogger(ServiceAliveMonitor.class);
 
+    /**
+     * 默认的检测精度,即时间轮的tick
+     */
+    public static final long DEFAULT_CHECK_TICK = 1000L;
+    /**
+     * 自我保护期间,到期的实例隔多久再检测一次
+     */
     private static final long CHECK_ALIVE_INTERVAL = 60 * 1000;
     private static final String THREAD_SERVICE_ALIVE_MONITOR = "THREAD-SERVICE-ALIVE-MONITOR";
 
     private final Daemon daemon;
 
+    /**
+     * 因为租约过期被摘除的实例个数
+     */
+    private final LongAdder evictedCount = new LongAdder();
+    /**
+     * 租约过期、但因为自我保护没有被摘除的次数
+     */
+    private final LongAdder protectedCount = new LongAdder();
+    /**
+     * 租约过期、但超出摘除限额推迟摘除的次数
+     */
+    private final LongAdder deferredCount = new LongAdder();
+
     public ServiceAliveMonitor() {
-        this.daemon = new Daemon(THREAD_SERVICE_ALIVE_MONITOR);
+        this(DEFAULT_CHECK_TICK);
+    }
+
+    /**
+     * @param checkTickMillis 检测精度,实例过期之后最多延迟这么久被发现
+     */
+    public ServiceAliveMonitor(long checkTickMillis) {
+        this(ServiceRegistry.getInstance(), checkTickMillis);
+    }
+
+    /**
+     * @param registry        检测的注册表
+     * @param checkTickMillis 检测精度,实例过期之后最多延迟这么久被发现
+     */
+    public ServiceAliveMonitor(ServiceRegistry registry, long checkTickMillis) {
+        this(registry, checkTickMillis, new EvictionRateLimiter());
+    }
+
+    /**
+     * @param registry            检测的注册表
+     * @param checkTickMillis     检测精度,实例过期之后最多延迟这么久被发现
+     * @param evictionRateLimiter 摘除过期实例的限流
+     */
+    public ServiceAliveMonitor(ServiceRegistry registry, long checkTickMillis,
+            EvictionRateLimiter evictionRateLimiter) {
+        this.daemon = new Daemon(THREAD_SERVICE_ALIVE_MONITOR, registry, checkTickMillis, evictionRateLimiter);
         this.daemon.setDaemon(true);
     }
 
@@ -30,51 +92,234 @@ public class ServiceAliveMonitor {
         daemon.start();
     }
 
+    public void stop() {
+        daemon.interrupt();
+    }
+
+    public long getEvictedCount() {
+        return evictedCount.sum();
+    }
+
+    public long getProtectedCount() {
+        return protectedCount.sum();
+    }
+
+    public long getDeferredCount() {
+        return deferredCount.sum();
+    }
+
+    /**
+     * 时间轮里的租约个数,每个实例最多一个
+     *
+     * @return 个数
+     */
+    public int getScheduledCount() {
+        return daemon.leaseExpiryWheel.size();
+    }
+
+    /**
+     * 按注册表时钟的当前时间检测一次,不能和后台线程同时使用,给用{@link VirtualClock}的测试和模拟调用
+     */
+    public void check() {
+        daemon.check();
+    }
+
     /**
      * 检验服务是否存活的后台线程
      */
     private class Daemon extends Thread {
 
-        private final ServiceRegistry registry = ServiceRegistry.getInstance();
+        private final ServiceRegistry registry;
+        private final Clock clock;
+        private final SelfProtectionPolicy selfProtectionPolicy;
+        private final EvictionRateLimiter evictionRateLimiter;
 
+        private final long checkTickMillis;
+        private final HierarchicalTimingWheel<ServiceInstance> leaseExpiryWheel;
 
-        public Daemon(String name) {
+        /**
+         * 已经放入时间轮的注册表版本号,-1表示还没有放过
+         */
+        private long scheduledVersion = -1L;
+        /**
+         * 上一次重新计算期望心跳次数的时间
+         */
+        private long lastRecomputeTime;
+
+        /**
+         * 这一轮推进中自我保护是否激活,null表示这一轮还没判断过
+         */
+        private Boolean selfProtectionActivated;
+        /**
+         * 这一轮推进中确认过期、等待摘除的实例
+         */
+        private final List<ServiceInstance> expired = new ArrayList<>();
+        /**
+         * 已经放入时间轮的实例,变更日志被覆盖、重新全部放一遍时跳过它们;实例到期后不再放回时间轮时移除
+         */
+        private final Set<ServiceInstance> scheduled = Collections.newSetFromMap(
+                new IdentityHashMap<ServiceInstance, Boolean>());
+
+        public Daemon(String name, ServiceRegistry registry, long checkTickMillis,
+                EvictionRateLimiter evictionRateLimiter) {
             super(name);
+            this.registry = registry;
+            this.clock = registry.getClock();
+            this.selfProtectionPolicy = registry.getSelfProtectionPolicy();
+            this.evictionRateLimiter = evictionRateLimiter;
+            this.checkTickMillis = checkTickMillis;
+            this.lastRecomputeTime = clock.currentTimeMillis();
+            this.leaseExpiryWheel = new HierarchicalTimingWheel<>(checkTickMillis, lastRecomputeTime);
         }
 
         @Override
         public void run() {
-            SelfProtectionPolicy selfProtectionPolicy = SelfProtectionPolicy.getInstance();
-
             while (true) {
                 try {
-                    //判断是否进入自我保护机制
-                    if (selfProtectionPolicy.isSelfProtectionActivated()) {
-                        log.warn("注册中心进入自我保护机制....");
-                        Thread.sleep(CHECK_ALIVE_INTERVAL);
-                        continue;
-                    }
-                    Map<String, Map<String, ServiceInstance>> fullRegistry = registry.getFullRegistry();
-                    for (Entry<String, Map<String, ServiceInstance>> entry : fullRegistry.entrySet()) {
-                        log.info("服务:{},实例个数：>>>>>> {}", entry.getKey(), entry.getValue().size());
-                        Map<String, ServiceInstance> instanceMap = entry.getValue();
-                        for (Entry<String, ServiceInstance> instanceEntry : instanceMap.entrySet()) {
-                            ServiceInstance instance = instanceEntry.getValue();
-                            if (!instance.isAlive()) {
-                                registry.remove(instance.getServiceName(), instance.getInstanceId());
-                                //自我保护阈值的修改
-                                synchronized (SelfProtectionPolicy.class) {
-                                    selfProtectionPolicy.setExpectedHeartbeatRate(
-                                            selfProtectionPolicy.getExpectedHeartbeatRate() - 2);
-                                }
-                            }
+                    Thread.sleep(checkTickMillis);
+                    check();
+                } catch (InterruptedException e) {
+                    log.info("线程:[{}],被打断......", Thread.currentThread().getName());
+                    return;
+                } catch (Exception e) {
+                    log.error("error.", e);
+                }
+            }
+        }
+
+        /**
+         * 把新注册的实例放入时间轮,推进到当前时间,处理到期的实例,最后一次摘除这一轮过期的实例
+         */
+        void check() {
+            if (scheduledVersion < 0) {
+                scheduleAll();
+            } else {
+                scheduleRecentlyRegistered();
+            }
+            long now = clock.currentTimeMillis();
+            if (now - lastRecomputeTime >= SelfProtectionPolicy.EXPECTED_HEARTBEAT_RATE_UPDATE_INTERVAL) {
+                selfProtectionPolicy.recompute();
+                lastRecomputeTime = now;
+                log.info("重新计算期望的心跳次数: {}, 最近一分钟的心跳次数为: {}", selfProtectionPolicy,
+                        registry.getHeartbeatCounter().getLastMinuteHeartbeatRate());
+            }
+            selfProtectionActivated = null;
+            leaseExpiryWheel.advance(now, this::onLeaseExpired);
+            if (!expired.isEmpty()) {
+                evictExpired(now);
+            }
+        }
+
+        /**
+         * 在限额之内一次摘除这一轮过期的实例,超出限额的放到下一个tick
+         */
+        private void evictExpired(long now) {
+            int granted = evictionRateLimiter.acquire(expired.size(), registry.getSnapshot().getInstanceCount(), now);
+            if (granted < expired.size()) {
+                log.warn("{}个过期的服务实例超出了摘除限额,稍后再摘除", expired.size() - granted);
+                deferredCount.add(expired.size() - granted);
+                for (ServiceInstance instance : expired.subList(granted, expired.size())) {
+                    leaseExpiryWheel.schedule(instance, now + checkTickMillis);
+                }
+            }
+            if (granted > 0) {
+                List<ServiceInstance> batch = expired.subList(0, granted);
+                List<ServiceInstance> evicted = registry.evict(batch);
+                evictedCount.add(evicted.size());
+                scheduled.removeAll(evicted);
+                if (evicted.size() < batch.size()) {
+                    // 检测之后又续约了的,按新的到期时间放回去,已经不在注册表里的不再跟踪
+                    Set<ServiceInstance> removed = Collections.newSetFromMap(
+                            new IdentityHashMap<ServiceInstance, Boolean>());
+                    removed.addAll(evicted);
+                    for (ServiceInstance instance : batch) {
+                        if (removed.contains(instance)) {
+                            continue;
+                        }
+                        if (registry.getServiceInstance(instance.getServiceName(), instance.getInstanceId())
+                                == instance) {
+                            leaseExpiryWheel.schedule(instance, registry.getLeaseExpirationTimestamp(instance));
+                        } else {
+                            scheduled.remove(instance);
                         }
                     }
-                    Thread.sleep(CHECK_ALIVE_INTERVAL);
-                } catch (Exception e) {
-                    log.info("线程:[{}],被打断......", Thread.currentThread().getName());
                 }
             }
+            expired.clear();
+        }
+
+        /**
+         * 把注册表快照里的所有实例放入时间轮
+         */
+        private void scheduleAll() {
+            RegistrySnapshot snapshot = registry.getSnapshot();
+            for (Map<String, ServiceInstance> instances : snapshot.getRegistry().values()) {
+                for (ServiceInstance instance : instances.values()) {
+                    scheduleNew(instance);
+                }
+            }
+            scheduledVersion = snapshot.getVersion();
+        }
+
+        /**
+         * 从变更日志里找到新注册的实例放入时间轮
+         */
+        private void scheduleRecentlyRegistered() {
+            DeltaRegistry deltaRegistry = registry.getDeltaRegistry(scheduledVersion);
+            if (deltaRegistry.isFullFetchRequired()) {
+                // 变更太多,日志已经被覆盖了,重新全部放一遍,已经在时间轮里的实例会被跳过
+                scheduleAll();
+                return;
+            }
+            for (RecentlyChangedServiceInstance changed : deltaRegistry.getRecentlyChangedServiceInstances()) {
+                if (ChangedType.REGISTER.equals(changed.getChangedType())) {
+                    scheduleNew(changed.getServiceInstance());
+                }
+            }
+            scheduledVersion = deltaRegistry.getVersion();
+        }
+
+        /**
+         * 把一个还不在时间轮里的实例放进去
+         */
+        private void scheduleNew(ServiceInstance instance) {
+            if (scheduled.add(instance)) {
+                leaseExpiryWheel.schedule(instance, registry.getLeaseExpirationTimestamp(instance));
+            }
+        }
+
+        /**
+         * 时间轮中某个实例的租约到期了
+         *
+         * @param instance 服务实例
+         */
+        private void onLeaseExpired(ServiceInstance instance) {
+            // 已经下线或者重新注册了,由新注册的实例负责
+            if (registry.getServiceInstance(instance.getServiceName(), instance.getInstanceId()) != instance) {
+                scheduled.remove(instance);
+                return;
+            }
+            long now = clock.currentTimeMillis();
+            long expirationTimestamp = registry.getLeaseExpirationTimestamp(instance);
+            // 期间续约过,按新的到期时间重新放回去
+            if (expirationTimestamp > now) {
+                leaseExpiryWheel.schedule(instance, expirationTimestamp);
+                return;
+            }
+            //判断是否进入自我保护机制
+            if (selfProtectionActivated == null) {
+                selfProtectionActivated = selfProtectionPolicy.isSelfProtectionActivated();
+                if (selfProtectionActivated) {
+                    log.warn("注册中心进入自我保护机制....");
+                }
+            }
+            if (selfProtectionActivated) {
+                protectedCount.increment();
+                leaseExpiryWheel.schedule(instance, now + CHECK_ALIVE_INTERVAL);
+                return;
+            }
+            log.info("服务实例【{}】，不再存活", instance.getInstanceId());
+            expired.add(instance);
         }
     }
-}
\ No newline at end of file
+}
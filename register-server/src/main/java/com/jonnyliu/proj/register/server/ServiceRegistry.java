@@ -1,17 +1,32 @@
 package com.jonnyliu.proj.register.server;
 
+import com.jonnyliu.proj.register.commons.Applications;
 import com.jonnyliu.proj.register.commons.ChangedType;
 import com.jonnyliu.proj.register.commons.DeltaRegistry;
 import com.jonnyliu.proj.register.commons.RecentlyChangedServiceInstance;
 import com.jonnyliu.proj.register.commons.ServiceInstance;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * 服务注册中心,他是一个单例
+ * 服务注册中心
+ * <p>
+ * 一个进程里通常只有{@link #getInstance()}这一个注册表;同一个JVM里启动多个注册中心节点(比如测试集群复制)时,
+ * 每个节点new一个自己的注册表
+ * <p>
+ * 实例和租约保存在{@link InstanceStore}里,默认放在堆上;默认注册表在启动时指定
+ * {@code -Dregister.storage=offheap}可以改成{@link OffHeapInstanceStore}。
+ * 租约、变更时间都按注册表的{@link Clock}计算,心跳计数和自我保护状态也是每个注册表一份
  *
  * @author liujie
  */
@@ -19,70 +34,218 @@ public class ServiceRegistry {
 
     private static final Logger log = LoggerFactory.getLogger(ServiceRegistry.class);
 
-    public static final Long RECENTLY_CHANGED_ITEM_CHECK_INTERVAL = 3 * 1000L;
     public static final Long RECENTLY_CHANGED_ITEM_EXPIRED = 3 * 60 * 1000L;
-    private static final String RECENTLY_CHANGED_SERVICE_INSTANCE_MONITOR = "RECENTLY_CHANGED_SERVICE_INSTANCE_MONITOR";
+    /**
+     * 指定默认注册表存储方式的系统属性,值为offheap时使用堆外存储
+     */
+    public static final String STORAGE_PROPERTY = "register.storage";
+    /**
+     * 分段锁的个数,必须是2的幂
+     */
+    private static final int LOCK_STRIPES = 64;
+
+    /**
+     * 服务实例和租约的存储
+     */
+    private final InstanceStore instanceStore;
 
+    /**
+     * 注册表的不可变快照,读请求和存活检测都读这个快照,不需要加锁
+     */
+    private volatile RegistrySnapshot snapshot = RegistrySnapshot.EMPTY;
 
     /**
-     * 核心的内存数据结构：注册表
-     * <p>
-     * Map：key是服务名称，value是这个服务的所有的服务实例
-     * Map<String, ServiceInstance>：key是服务实例id，value是服务实例的信息
+     * 追加变更日志和发布快照必须是原子的,这样快照的版本号和变更日志的序列号才能对得上
+     */
+    private final Object publishLock = new Object();
+
+    /**
+     * 最近变更的服务实例日志
+     */
+    private final RecentlyChangedLog recentlyChangedLog;
+
+    private final Clock clock;
+    private final HeartbeatCounter heartbeatCounter;
+    private final SelfProtectionPolicy selfProtectionPolicy;
+
+    /**
+     * 按服务名称分段的锁,同一个服务的注册、下线是串行的,不同服务之间互不影响
+     */
+    private final Object[] serviceLocks = new Object[LOCK_STRIPES];
+
+    /**
+     * 默认的注册表
      */
-    private static final Map<String, Map<String, ServiceInstance>> REGISTER_MAP = new ConcurrentHashMap<>();
+    private static final ServiceRegistry INSTANCE = new ServiceRegistry(defaultInstanceStore(),
+            CoarseClock.getInstance(), HeartbeatCounter.getInstance());
 
     /**
-     * 最近变更的服务实例的队列
+     * 注册表的响应缓存
      */
-    private LinkedList<RecentlyChangedServiceInstance> recentlyChangedQueue = new LinkedList<>();
+    private final ResponseCache responseCache;
 
     /**
-     * 注册表是个单例
+     * 预写日志,为null表示不持久化
      */
-    private static final ServiceRegistry INSTANCE = new ServiceRegistry();
+    private volatile WriteAheadLog writeAheadLog;
 
-    private ServiceRegistry() {
-        //启动后台线程监控最近变更的队列
-        RecentlyChangedQueueMonitor recentlyChangedQueueMonitor = new RecentlyChangedQueueMonitor(
-                RECENTLY_CHANGED_SERVICE_INSTANCE_MONITOR);
-        recentlyChangedQueueMonitor.setDaemon(true);
-        recentlyChangedQueueMonitor.start();
+    /**
+     * 注册表变更的监听器
+     */
+    private final List<RegistryChangeListener> changeListeners = new CopyOnWriteArrayList<>();
+
+    public ServiceRegistry() {
+        this(new HeapInstanceStore());
+    }
+
+    /**
+     * @param instanceStore 服务实例和租约的存储
+     */
+    public ServiceRegistry(InstanceStore instanceStore) {
+        this(instanceStore, CoarseClock.getInstance());
+    }
+
+    /**
+     * @param instanceStore 服务实例和租约的存储
+     * @param clock         时钟
+     */
+    public ServiceRegistry(InstanceStore instanceStore, Clock clock) {
+        this(instanceStore, clock, new HeartbeatCounter(clock));
+    }
+
+    private ServiceRegistry(InstanceStore instanceStore, Clock clock, HeartbeatCounter heartbeatCounter) {
+        this.instanceStore = instanceStore;
+        this.clock = clock;
+        this.heartbeatCounter = heartbeatCounter;
+        this.selfProtectionPolicy = new SelfProtectionPolicy(this, heartbeatCounter);
+        this.recentlyChangedLog = new RecentlyChangedLog(RecentlyChangedLog.DEFAULT_CAPACITY, clock);
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            serviceLocks[i] = new Object();
+        }
+        this.responseCache = new ResponseCache(this);
     }
 
     public static ServiceRegistry getInstance() {
         return INSTANCE;
     }
 
+    private static InstanceStore defaultInstanceStore() {
+        if ("offheap".equalsIgnoreCase(System.getProperty(STORAGE_PROPERTY))) {
+            return new OffHeapInstanceStore();
+        }
+        return new HeapInstanceStore();
+    }
+
+    public InstanceStore getInstanceStore() {
+        return instanceStore;
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    public HeartbeatCounter getHeartbeatCounter() {
+        return heartbeatCounter;
+    }
+
+    public SelfProtectionPolicy getSelfProtectionPolicy() {
+        return selfProtectionPolicy;
+    }
+
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * 设置预写日志,之后的每次变更都会按版本号顺序追加到日志里
+     *
+     * @param writeAheadLog 预写日志,null表示不再持久化
+     */
+    public void setWriteAheadLog(WriteAheadLog writeAheadLog) {
+        this.writeAheadLog = writeAheadLog;
+    }
+
     /**
-     * 服务实例个数
+     * 用持久化恢复出来的注册表替换当前的注册表,只能在启动时、对外提供服务之前调用
+     * <p>
+     * 恢复出来的实例都从现在开始重新计算租约;变更日志从恢复的版本号之后重新开始,
+     * 版本号更旧的客户端会被要求全量拉取
+     *
+     * @param applications 恢复出来的注册表
      */
-    private Long getServiceInstanceTotalCount() {
-        long total = 0L;
-        for (Map<String, ServiceInstance> map : REGISTER_MAP.values()) {
-            total += map.size();
+    public void restore(Applications applications) {
+        synchronized (publishLock) {
+            instanceStore.clear();
+            long now = clock.currentTimeMillis();
+            Map<String, Map<String, ServiceInstance>> restored = new HashMap<>();
+            for (Map.Entry<String, Map<String, ServiceInstance>> service : applications.getRegistry().entrySet()) {
+                List<ServiceInstance> instances = new ArrayList<>(service.getValue().size());
+                for (ServiceInstance serviceInstance : service.getValue().values()) {
+                    instances.add(instanceStore.put(serviceInstance, null, now));
+                }
+                restored.put(service.getKey(), instanceStore.immutableInstances(instances));
+            }
+            recentlyChangedLog.reset(applications.getVersion());
+            snapshot = RegistrySnapshot.of(restored, applications.getVersion());
         }
-        return total;
+        log.info("注册表已恢复,版本号: {}, 服务实例个数: {}", snapshot.getVersion(), snapshot.getInstanceCount());
+        responseCache.invalidate();
+        notifyChanged();
     }
 
+    /**
+     * 添加注册表变更的监听器
+     *
+     * @param listener 监听器
+     */
+    public void addChangeListener(RegistryChangeListener listener) {
+        changeListeners.add(listener);
+    }
+
+    /**
+     * 移除注册表变更的监听器
+     *
+     * @param listener 监听器
+     */
+    public void removeChangeListener(RegistryChangeListener listener) {
+        changeListeners.remove(listener);
+    }
+
+    /**
+     * 获取服务名称对应的分段锁
+     *
+     * @param serviceName 服务名称
+     * @return 分段锁
+     */
+    private Object lockFor(String serviceName) {
+        return serviceLocks[stripeOf(serviceName)];
+    }
+
+    private static int stripeOf(String serviceName) {
+        int h = serviceName.hashCode();
+        h ^= (h >>> 16);
+        return h & (LOCK_STRIPES - 1);
+    }
+
+
     /**
      * 服务实例注册
      *
      * @param serviceInstance 服务实例
      */
-    public synchronized void register(ServiceInstance serviceInstance) {
+    public void register(ServiceInstance serviceInstance) {
         log.info("注册服务,服务名称:[{}], 服务实例ID: [{}] ", serviceInstance.getServiceName(), serviceInstance.getInstanceId());
-        Map<String, ServiceInstance> serviceInstanceMap;
-        if (!REGISTER_MAP.containsKey(serviceInstance.getServiceName())) {
-            serviceInstanceMap = new ConcurrentHashMap<>();
-        } else {
-            serviceInstanceMap = REGISTER_MAP.get(serviceInstance.getServiceName());
-        }
-        serviceInstanceMap.put(serviceInstance.getInstanceId(), serviceInstance);
-        REGISTER_MAP.put(serviceInstance.getServiceName(), serviceInstanceMap);
+        synchronized (lockFor(serviceInstance.getServiceName())) {
+            ServiceInstance oldInstance = instanceStore.get(serviceInstance.getServiceName(),
+                    serviceInstance.getInstanceId());
+            //注册相当于一次心跳,开始计算租约
+            ServiceInstance registered = instanceStore.put(serviceInstance, oldInstance, clock.currentTimeMillis());
 
-        //将新注册的服务实例加入最近变更的服务实例队列中区
-        addRecentlyChangedQueue(serviceInstance, ChangedType.REGISTER);
+            //将新注册的服务实例加入最近变更的服务实例队列中区,并发布新的快照
+            publish(registered, ChangedType.REGISTER, oldInstance, registered);
+        }
+        responseCache.invalidate();
+        notifyChanged();
     }
 
     /**
@@ -91,47 +254,260 @@ public class ServiceRegistry {
      * @param serviceName 服务名称
      * @param instanceId  服务实例id
      */
-    public synchronized void remove(String serviceName, String instanceId) {
+    public void remove(String serviceName, String instanceId) {
         log.info("服务名称:[{}],服务实例ID: [{}]从注册中心被摘除", serviceName, instanceId);
-        if (!REGISTER_MAP.containsKey(serviceName)) {
+        synchronized (lockFor(serviceName)) {
+            ServiceInstance serviceInstance = instanceStore.remove(serviceName, instanceId);
+            if (serviceInstance == null) {
+                return;
+            }
+            //添加服务实例到最近变更的服务实例队列中,并发布新的快照
+            publish(serviceInstance, ChangedType.REMOVE, serviceInstance, null);
+        }
+        responseCache.invalidate();
+        notifyChanged();
+    }
+
+    /**
+     * 一次摘除一批租约过期的实例
+     * <p>
+     * 只摘除仍然在注册表里、并且租约仍然过期的实例。整批变更一次写入变更日志、发布成一个新快照,
+     * 响应缓存和监听器也只通知一次,不会因为同时摘除很多实例让注册、下线排队,客户端的长轮询也只被唤醒一次
+     *
+     * @param expiredInstances 租约过期的实例
+     * @return 真正被摘除的实例
+     */
+    public List<ServiceInstance> evict(Collection<ServiceInstance> expiredInstances) {
+        Map<String, List<ServiceInstance>> byService = new HashMap<>();
+        for (ServiceInstance serviceInstance : expiredInstances) {
+            byService.computeIfAbsent(serviceInstance.getServiceName(), k -> new ArrayList<>()).add(serviceInstance);
+        }
+        // 按下标从小到大依次加分段锁,其他线程最多只持有一个分段锁,不会死锁
+        int[] stripes = byService.keySet().stream().mapToInt(ServiceRegistry::stripeOf).distinct().sorted()
+                .toArray();
+        List<ServiceInstance> evicted = new ArrayList<>();
+        evictLocked(stripes, 0, byService, evicted);
+        if (evicted.isEmpty()) {
+            return evicted;
+        }
+        log.info("{}个服务实例从注册中心被摘除,版本号: {}", evicted.size(), snapshot.getVersion());
+        responseCache.invalidate();
+        notifyChanged();
+        return evicted;
+    }
+
+    /**
+     * 持有涉及到的所有分段锁之后再摘除,保证和同一个服务的注册、下线是串行发布的
+     */
+    private void evictLocked(int[] stripes, int next, Map<String, List<ServiceInstance>> byService,
+            List<ServiceInstance> evicted) {
+        if (next < stripes.length) {
+            synchronized (serviceLocks[stripes[next]]) {
+                evictLocked(stripes, next + 1, byService, evicted);
+            }
+            return;
+        }
+        long now = clock.currentTimeMillis();
+        Map<String, Map<String, ServiceInstance>> services = new HashMap<>();
+        for (Map.Entry<String, List<ServiceInstance>> service : byService.entrySet()) {
+            Set<ServiceInstance> removed = Collections.newSetFromMap(new IdentityHashMap<ServiceInstance, Boolean>());
+            for (ServiceInstance serviceInstance : service.getValue()) {
+                // 检测之后又续约、重新注册或者已经下线了
+                if (instanceStore.get(service.getKey(), serviceInstance.getInstanceId()) != serviceInstance
+                        || getLeaseExpirationTimestamp(serviceInstance) > now) {
+                    continue;
+                }
+                instanceStore.remove(service.getKey(), serviceInstance.getInstanceId());
+                removed.add(serviceInstance);
+                evicted.add(serviceInstance);
+            }
+            if (removed.isEmpty()) {
+                continue;
+            }
+            Map<String, ServiceInstance> published = snapshot.getRegistry().get(service.getKey());
+            List<ServiceInstance> changed = new ArrayList<>(published.size());
+            for (ServiceInstance instance : published.values()) {
+                if (!removed.contains(instance)) {
+                    changed.add(instance);
+                }
+            }
+            services.put(service.getKey(), instanceStore.immutableInstances(changed));
+        }
+        if (evicted.isEmpty()) {
             return;
         }
-        Map<String, ServiceInstance> serviceInstances = REGISTER_MAP.get(serviceName);
+        synchronized (publishLock) {
+            long version = recentlyChangedLog.appendAll(evicted, ChangedType.REMOVE);
+            WriteAheadLog wal = writeAheadLog;
+            if (wal != null) {
+                long first = version - evicted.size() + 1;
+                for (int i = 0; i < evicted.size(); i++) {
+                    wal.append(ChangedType.REMOVE, evicted.get(i), first + i);
+                }
+            }
+            snapshot = snapshot.withoutInstances(services, evicted, version);
+        }
+    }
 
-        ServiceInstance serviceInstance = serviceInstances.remove(instanceId);
-        //添加服务实例到最近变更的服务实例队列中
-        addRecentlyChangedQueue(serviceInstance, ChangedType.REMOVE);
+    /**
+     * 为一个服务实例续约,查到实例之后只是在存储里写一个时间戳
+     *
+     * @param serviceName       服务名称
+     * @param serviceInstanceId 服务实例ID
+     * @return 是否续约成功, 实例不存在时返回false
+     */
+    public boolean renew(String serviceName, String serviceInstanceId) {
+        return instanceStore.renew(serviceName, serviceInstanceId, clock.currentTimeMillis());
     }
 
     /**
-     * 将最近变更的服务实例加入最近变更服务实例队列中去
+     * 服务实例租约到期的时间戳,即最后一次心跳时间加上存活阈值
+     *
+     * @param serviceInstance 服务实例
+     * @return 租约到期的时间戳, 实例已经不在注册表里时返回0
+     */
+    public long getLeaseExpirationTimestamp(ServiceInstance serviceInstance) {
+        long lastRenewTimestamp = instanceStore.getLastRenewTimestamp(serviceInstance);
+        if (lastRenewTimestamp < 0) {
+            return 0L;
+        }
+        return lastRenewTimestamp + ServiceInstance.ALIVE_TIME_THRESHOLD;
+    }
+
+    /**
+     * 通知监听器注册表发生了变更,在分段锁之外调用
+     */
+    private void notifyChanged() {
+        long version = snapshot.getVersion();
+        for (RegistryChangeListener listener : changeListeners) {
+            listener.onRegistryChanged(version);
+        }
+    }
+
+    /**
+     * 将最近变更的服务实例加入最近变更服务实例队列中去,并发布包含这次变更的新快照
+     * <p>
+     * 调用方必须持有这个服务的分段锁,只有这个服务的实例表会被复制: 同一个服务的变更是串行发布的,
+     * 上一个快照里这个服务的实例表去掉被替换或者被删除的实例、加上新加入的实例,就是它变更之后的实例表
      *
      * @param serviceInstance 服务实例
      * @param changedType     变更类型
+     * @param oldInstance     被替换或者被删除的实例
+     * @param newInstance     新加入的实例
      */
-    private void addRecentlyChangedQueue(ServiceInstance serviceInstance, String changedType) {
-        RecentlyChangedServiceInstance changedServiceInstance = new RecentlyChangedServiceInstance(serviceInstance,
-                changedType);
-        recentlyChangedQueue.offer(changedServiceInstance);
+    private void publish(ServiceInstance serviceInstance, String changedType, ServiceInstance oldInstance,
+            ServiceInstance newInstance) {
+        Map<String, ServiceInstance> published = snapshot.getRegistry().get(serviceInstance.getServiceName());
+        List<ServiceInstance> changed = new ArrayList<>(published == null ? 1 : published.size() + 1);
+        if (published != null) {
+            for (ServiceInstance instance : published.values()) {
+                if (instance != oldInstance) {
+                    changed.add(instance);
+                }
+            }
+        }
+        if (newInstance != null) {
+            changed.add(newInstance);
+        }
+        Map<String, ServiceInstance> instances = instanceStore.immutableInstances(changed);
+        synchronized (publishLock) {
+            long version = recentlyChangedLog.append(serviceInstance, changedType);
+            WriteAheadLog wal = writeAheadLog;
+            if (wal != null) {
+                wal.append(changedType, serviceInstance, version);
+            }
+            snapshot = snapshot.withService(serviceInstance.getServiceName(), instances, version, oldInstance,
+                    newInstance);
+        }
     }
 
     /**
-     * 获取全量注册表
+     * 获取全量注册表, 是一个不可变的快照
      *
      * @return 获取注册表
      */
-    public synchronized Map<String, Map<String, ServiceInstance>> getFullRegistry() {
-        return REGISTER_MAP;
+    public Map<String, Map<String, ServiceInstance>> getFullRegistry() {
+        return snapshot.getRegistry();
+    }
+
+    /**
+     * 获取注册表当前的快照
+     *
+     * @return 注册表快照
+     */
+    public RegistrySnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * 变更日志里保留的变更条数
+     *
+     * @return 条数
+     */
+    public int getChangeLogSize() {
+        return recentlyChangedLog.size();
     }
 
     /**
-     * 获取增量注册表
+     * 获取注册表当前的版本号
      *
-     * @return
+     * @return 最后一次变更的序列号
      */
-    public synchronized DeltaRegistry getDeltaRegistry() {
-        Long totalCount = getServiceInstanceTotalCount();
-        return new DeltaRegistry(recentlyChangedQueue, totalCount);
+    public long getVersion() {
+        return snapshot.getVersion();
+    }
+
+    /**
+     * 获取最近3分钟的增量注册表
+     *
+     * @return 增量注册表
+     */
+    public DeltaRegistry getDeltaRegistry() {
+        RegistrySnapshot current = snapshot;
+        LinkedList<RecentlyChangedServiceInstance> changes = recentlyChangedLog.recent(RECENTLY_CHANGED_ITEM_EXPIRED);
+        return new DeltaRegistry(changes, current.getInstanceCount(), current.getVersion(),
+                current.getRegistryHash(), false);
+    }
+
+    /**
+     * 获取指定版本号之后的增量注册表
+     *
+     * @param sinceVersion 客户端最后看到的版本号
+     * @return 增量注册表, 版本号太旧时只带一个需要全量拉取的标识
+     */
+    public DeltaRegistry getDeltaRegistry(long sinceVersion) {
+        RegistrySnapshot current = snapshot;
+        LinkedList<RecentlyChangedServiceInstance> changes = recentlyChangedLog.since(sinceVersion,
+                current.getVersion());
+        if (changes == null) {
+            return new DeltaRegistry(new LinkedList<RecentlyChangedServiceInstance>(), current.getInstanceCount(),
+                    current.getVersion(), current.getRegistryHash(), true);
+        }
+        return new DeltaRegistry(changes, current.getInstanceCount(), current.getVersion(),
+                current.getRegistryHash(), false);
+    }
+
+    /**
+     * 获取指定版本号之后、只涉及订阅的服务的增量注册表
+     * <p>
+     * 版本号仍然是整个注册表的版本号,哈希值和实例总数只统计订阅的服务
+     *
+     * @param sinceVersion 客户端最后看到的版本号
+     * @param serviceNames 订阅的服务名称
+     * @return 增量注册表, 版本号太旧时只带一个需要全量拉取的标识
+     */
+    public DeltaRegistry getDeltaRegistry(long sinceVersion, Collection<String> serviceNames) {
+        RegistrySnapshot current = snapshot;
+        LinkedList<RecentlyChangedServiceInstance> changes = recentlyChangedLog.since(sinceVersion,
+                current.getVersion());
+        long instanceCount = current.getInstanceCount(serviceNames);
+        long registryHash = current.getRegistryHash(serviceNames);
+        if (changes == null) {
+            return new DeltaRegistry(new LinkedList<RecentlyChangedServiceInstance>(), instanceCount,
+                    current.getVersion(), registryHash, true);
+        }
+        changes.removeIf(change -> !serviceNames.contains(change.getServiceInstance().getServiceName()));
+        return new DeltaRegistry(changes, instanceCount, current.getVersion(), registryHash, false);
     }
 
     /**
@@ -141,44 +517,8 @@ public class ServiceRegistry {
      * @param serviceInstanceId 服务实例
      * @return 服务实例信息
      */
-    public synchronized ServiceInstance getServiceInstance(String serviceName, String serviceInstanceId) {
-        Map<String, ServiceInstance> serviceInstances = REGISTER_MAP.get(serviceName);
-        return serviceInstances.get(serviceInstanceId);
-    }
-
-    /**
-     * 最近变更的服务实例队列监控线程,将队列中服务实例的最近变更时间大于3分钟的实例移除
-     */
-    class RecentlyChangedQueueMonitor extends Thread {
-
-        public RecentlyChangedQueueMonitor(String name) {
-            super(name);
-        }
-
-        @Override
-        public void run() {
-            while (true) {
-                try {
-                    synchronized (INSTANCE) {
-                        RecentlyChangedServiceInstance recentlyChangedItem = null;
-                        Long currentTimestamp = System.currentTimeMillis();
-                        while ((recentlyChangedItem = recentlyChangedQueue.peek()) != null) {
-                            // 判断如果一个服务实例变更信息已经在队列里存在超过3分钟了
-                            // 就从队列中移除
-                            if (currentTimestamp - recentlyChangedItem.getChangedTimestamp()
-                                    > RECENTLY_CHANGED_ITEM_EXPIRED) {
-                                recentlyChangedQueue.pop();
-                            } else {
-                                break;
-                            }
-                        }
-                    }
-                    Thread.sleep(RECENTLY_CHANGED_ITEM_CHECK_INTERVAL);
-                } catch (Exception e) {
-                    log.error("error.", e);
-                }
-            }
-        }
+    public ServiceInstance getServiceInstance(String serviceName, String serviceInstanceId) {
+        return instanceStore.get(serviceName, serviceInstanceId);
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,45 @@
+package com.jonnyliu.proj.register.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 手动推进的时钟,给测试和模拟用
+ * <p>
+ * 配合{@link ServiceAliveMonitor#check()}逐个tick推进,一天的心跳、摘除和自我保护几秒钟就能跑完,
+ * 每次的结果都一样
+ *
+ * @author liujie
+ */
+public class VirtualClock implements Clock {
+
+    private final AtomicLong now;
+
+    public VirtualClock() {
+        this(0L);
+    }
+
+    /**
+     * @param startMillis 起始时间戳
+     */
+    public VirtualClock(long startMillis) {
+        this.now = new AtomicLong(startMillis);
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return now.get();
+    }
+
+    /**
+     * 时间向前推进
+     *
+     * @param millis 推进的毫秒数
+     * @return 推进之后的时间戳
+     */
+    public long advance(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("time cannot go backwards: " + millis);
+        }
+        return now.addAndGet(millis);
+    }
+}
@@ -0,0 +1,452 @@
+package com.jonnyliu.proj.register.server;
+
+import com.jonnyliu.proj.register.commons.ChangedType;
+import com.jonnyliu.proj.register.commons.RecentlyChangedServiceInstance;
+import com.jonnyliu.proj.register.commons.ServiceInstance;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 注册、下线的预写日志
+ * <p>
+ * 日志按版本号切分成多个段文件,文件名是这个段第一条记录的版本号;做完一次快照之后,
+ * 快照已经包含的段文件就可以删除了。每条记录都带长度和CRC校验,崩溃时写了一半的记录在恢复时会被识别出来丢弃。
+ * <p>
+ * 追加是在注册表的发布锁里调用的,只把编码好的记录放进内存里的缓冲区,不做任何系统调用;
+ * 由后台线程定时调用{@link #flush()},把这段时间攒下的记录一次写进段文件并刷盘。
+ * 进程崩溃或者机器掉电最多丢失一个刷盘间隔内的变更,丢失的实例会在下一次心跳失败之后重新注册
+ * <p>
+ * 一批记录写失败时,写了一半的字节会被截掉,但日志里从此有了一个版本号缺口,重放会停在那里;
+ * {@link #isSnapshotRequired()}会一直返回true,直到有一次快照包含了这批记录
+ *
+ * @author liujie
+ */
+public class WriteAheadLog {
+
+    private static final Logger log = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    /**
+     * 记录头: 长度(4字节) + CRC(4字节)
+     */
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 64 * 1024;
+    /**
+     * 攒记录的缓冲区的初始大小,写完之后超过最大保留大小的缓冲区会换回初始大小
+     */
+    private static final int INITIAL_PENDING_SIZE = 256 * 1024;
+    private static final int MAX_RETAINED_PENDING_SIZE = 16 * 1024 * 1024;
+
+    private static final byte TYPE_REGISTER = 1;
+    private static final byte TYPE_REMOVE = 2;
+
+    private final File directory;
+    private final ByteBuffer recordBuffer = ByteBuffer.allocate(MAX_RECORD_SIZE);
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * 写段文件的锁,刷盘、切换段文件、关闭都持有它;追加只持有this,不会等待写文件
+     */
+    private final Object writeLock = new Object();
+    /**
+     * 已经追加、还没有写进段文件的记录,由this保护
+     */
+    private ByteBuffer pending = ByteBuffer.allocate(INITIAL_PENDING_SIZE);
+    /**
+     * 正在写进段文件的一批记录,由writeLock保护,写完之后和pending交换
+     */
+    private ByteBuffer writing = ByteBuffer.allocate(INITIAL_PENDING_SIZE);
+
+    /**
+     * 当前的段文件,由writeLock保护
+     */
+    private FileChannel channel;
+    /**
+     * 最后一条追加的记录的版本号,包括写失败的
+     */
+    private long lastVersion;
+    /**
+     * 最后一条写失败的记录的版本号,0表示没有,由this保护
+     */
+    private long lastFailedVersion;
+    /**
+     * 已经落盘的快照的版本号
+     */
+    private long snapshotVersion;
+    /**
+     * 写失败之后没能截掉写了一半的记录,当前段文件不能再追加,切换到新的段文件之前的记录都直接丢弃,由writeLock保护
+     */
+    private boolean segmentBroken;
+
+    /**
+     * 打开一个新的段文件,从lastVersion之后开始追加;目录里版本号大于lastVersion的旧记录会被删除
+     *
+     * @param directory   日志目录
+     * @param lastVersion 恢复出来的注册表的版本号
+     * @throws IOException 创建文件失败
+     */
+    public WriteAheadLog(File directory, long lastVersion) throws IOException {
+        this.directory = directory;
+        this.lastVersion = lastVersion;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("can not create directory " + directory);
+        }
+        discardRecordsAfter(lastVersion);
+        this.channel = openSegment(lastVersion + 1);
+    }
+
+    /**
+     * 追加一条变更,调用方保证按版本号顺序调用
+     * <p>
+     * 只是把记录编码进内存里的缓冲区,下一次{@link #flush()}时才写进段文件。
+     * 记录编码失败不影响内存中的注册表,只是要求尽快做一次快照来弥补这个版本号缺口
+     *
+     * @param changedType     变更类型
+     * @param serviceInstance 服务实例
+     * @param version         这次变更的版本号
+     */
+    public synchronized void append(String changedType, ServiceInstance serviceInstance, long version) {
+        lastVersion = version;
+        try {
+            recordBuffer.clear();
+            recordBuffer.position(RECORD_HEADER_SIZE);
+            recordBuffer.put(ChangedType.REMOVE.equals(changedType) ? TYPE_REMOVE : TYPE_REGISTER);
+            recordBuffer.putLong(version);
+            recordBuffer.putLong(System.currentTimeMillis());
+            putString(serviceInstance.getServiceName());
+            putString(serviceInstance.getInstanceId());
+            putString(serviceInstance.getIp());
+            putString(serviceInstance.getHostname());
+            recordBuffer.putInt(serviceInstance.getPort());
+            int payloadLength = recordBuffer.position() - RECORD_HEADER_SIZE;
+
+            crc.reset();
+            crc.update(recordBuffer.array(), RECORD_HEADER_SIZE, payloadLength);
+            recordBuffer.putInt(0, payloadLength);
+            recordBuffer.putInt(4, (int) crc.getValue());
+            recordBuffer.flip();
+        } catch (Exception e) {
+            log.error("encode write-ahead log record error, version: {}", version, e);
+            lastFailedVersion = version;
+            return;
+        }
+        if (pending.remaining() < recordBuffer.remaining()) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2,
+                    pending.position() + recordBuffer.remaining()));
+            pending.flip();
+            bigger.put(pending);
+            pending = bigger;
+        }
+        pending.put(recordBuffer);
+    }
+
+    /**
+     * 把攒下的记录一次写进当前段文件,调用方持有writeLock
+     * <p>
+     * 写失败时截掉写了一半的字节,这批记录都算写失败
+     *
+     * @return 写进去(或者写失败)的最后一条记录的版本号
+     */
+    private long writePending() {
+        long batchLastVersion;
+        synchronized (this) {
+            ByteBuffer batch = pending;
+            pending = writing;
+            writing = batch;
+            batchLastVersion = lastVersion;
+        }
+        writing.flip();
+        if (!writing.hasRemaining()) {
+            writing.clear();
+            return batchLastVersion;
+        }
+        if (segmentBroken) {
+            markFailed(batchLastVersion);
+        } else {
+            long batchStart = -1L;
+            try {
+                batchStart = channel.position();
+                while (writing.hasRemaining()) {
+                    channel.write(writing);
+                }
+            } catch (Exception e) {
+                log.error("write write-ahead log error, last version: {}", batchLastVersion, e);
+                markFailed(batchLastVersion);
+                if (batchStart >= 0) {
+                    discardPartialRecord(batchStart);
+                }
+            }
+        }
+        if (writing.capacity() > MAX_RETAINED_PENDING_SIZE) {
+            writing = ByteBuffer.allocate(INITIAL_PENDING_SIZE);
+        } else {
+            writing.clear();
+        }
+        return batchLastVersion;
+    }
+
+    /**
+     * 截掉写了一半的记录,截不掉时当前段文件作废
+     */
+    private void discardPartialRecord(long recordStart) {
+        try {
+            channel.truncate(recordStart);
+            channel.position(recordStart);
+        } catch (IOException e) {
+            segmentBroken = true;
+            log.error("truncate write-ahead log at {} error, appending is suspended until the next rotation",
+                    recordStart, e);
+        }
+    }
+
+    private synchronized void markFailed(long version) {
+        lastFailedVersion = Math.max(lastFailedVersion, version);
+    }
+
+    /**
+     * 是否有写失败的记录还没有被快照包含,有的话从快照恢复时会停在这个缺口,需要尽快做一次快照
+     *
+     * @return 需要快照时返回true
+     */
+    public synchronized boolean isSnapshotRequired() {
+        return lastFailedVersion > snapshotVersion;
+    }
+
+    /**
+     * 把攒下的记录写进段文件并刷盘,一次系统调用写完一批
+     */
+    public void flush() {
+        synchronized (writeLock) {
+            writePending();
+            try {
+                channel.force(false);
+            } catch (IOException e) {
+                log.error("flush write-ahead log error", e);
+            }
+        }
+    }
+
+    /**
+     * 切换到一个新的段文件,之后的记录都写到新文件里
+     *
+     * @throws IOException 创建文件失败
+     */
+    public void rotate() throws IOException {
+        synchronized (writeLock) {
+            // 攒下的记录写进旧的段文件,之后追加的记录版本号都在新段文件的起始版本号之后
+            long writtenVersion = writePending();
+            try {
+                channel.force(false);
+                channel.close();
+            } catch (IOException e) {
+                if (!segmentBroken) {
+                    throw e;
+                }
+                log.warn("close broken write-ahead log segment error", e);
+            }
+            channel = openSegment(writtenVersion + 1);
+            segmentBroken = false;
+        }
+    }
+
+    /**
+     * 删除已经被快照完全包含的段文件
+     *
+     * @param snapshotVersion 已经落盘的快照的版本号
+     */
+    public void deleteSegmentsCoveredBy(long snapshotVersion) {
+        synchronized (this) {
+            this.snapshotVersion = Math.max(this.snapshotVersion, snapshotVersion);
+        }
+        synchronized (writeLock) {
+            List<File> segments = listSegments(directory);
+            // 下一个段的起始版本号不超过snapshotVersion + 1,说明这个段里的记录都已经在快照里了
+            for (int i = 0; i + 1 < segments.size(); i++) {
+                if (startVersionOf(segments.get(i + 1)) <= snapshotVersion + 1 && !segments.get(i).delete()) {
+                    log.warn("delete write-ahead log segment {} failed", segments.get(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * 写完攒下的记录,刷盘并关闭当前段文件
+     */
+    public void close() {
+        synchronized (writeLock) {
+            writePending();
+            try {
+                channel.force(false);
+                channel.close();
+            } catch (IOException e) {
+                log.error("close write-ahead log error", e);
+            }
+        }
+    }
+
+    /**
+     * 按顺序重放日志目录里所有版本号大于afterVersion的记录
+     * <p>
+     * 每个段文件读到第一条损坏或者不完整的记录为止;版本号不连续时停止重放
+     *
+     * @param directory    日志目录
+     * @param afterVersion 快照的版本号,这之前的记录跳过
+     * @param consumer     重放的变更
+     * @return 最后一条重放的记录的版本号
+     * @throws IOException 读文件失败
+     */
+    public static long replay(File directory, long afterVersion, Consumer<RecentlyChangedServiceInstance> consumer)
+            throws IOException {
+        long lastVersion = afterVersion;
+        for (File segment : listSegments(directory)) {
+            try (FileChannel segmentChannel = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer buffer = segmentChannel.map(FileChannel.MapMode.READ_ONLY, 0, segmentChannel.size());
+                RecentlyChangedServiceInstance record;
+                while ((record = readRecord(buffer)) != null) {
+                    if (record.getVersion() <= lastVersion) {
+                        continue;
+                    }
+                    if (record.getVersion() != lastVersion + 1) {
+                        log.warn("write-ahead log version gap: expected {}, found {} in {}, stop replaying",
+                                lastVersion + 1, record.getVersion(), segment);
+                        return lastVersion;
+                    }
+                    consumer.accept(record);
+                    lastVersion = record.getVersion();
+                }
+                if (buffer.hasRemaining()) {
+                    log.warn("write-ahead log segment {} has {} bytes of incomplete or corrupted tail",
+                            segment, buffer.remaining());
+                }
+            }
+        }
+        return lastVersion;
+    }
+
+    /**
+     * 读一条记录,记录不完整或者校验失败返回null
+     */
+    private static RecentlyChangedServiceInstance readRecord(ByteBuffer buffer) {
+        int start = buffer.position();
+        try {
+            int payloadLength = buffer.getInt();
+            int expectedCrc = buffer.getInt();
+            if (payloadLength <= 0 || payloadLength > MAX_RECORD_SIZE || payloadLength > buffer.remaining()) {
+                buffer.position(start);
+                return null;
+            }
+            ByteBuffer payload = buffer.slice();
+            payload.limit(payloadLength);
+            CRC32 crc = new CRC32();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != expectedCrc) {
+                buffer.position(start);
+                return null;
+            }
+            byte type = payload.get();
+            long version = payload.getLong();
+            long timestamp = payload.getLong();
+            ServiceInstance serviceInstance = new ServiceInstance();
+            serviceInstance.setServiceName(getString(payload));
+            serviceInstance.setInstanceId(getString(payload));
+            serviceInstance.setIp(getString(payload));
+            serviceInstance.setHostname(getString(payload));
+            serviceInstance.setPort(payload.getInt());
+            buffer.position(buffer.position() + payloadLength);
+            return new RecentlyChangedServiceInstance(serviceInstance,
+                    type == TYPE_REMOVE ? ChangedType.REMOVE : ChangedType.REGISTER, version, timestamp);
+        } catch (BufferUnderflowException e) {
+            buffer.position(start);
+            return null;
+        }
+    }
+
+    /**
+     * 删除版本号大于lastVersion的记录:起始版本号更大的段文件直接删除,其他段文件截掉这之后的记录和损坏的尾部。
+     * 重放停在损坏的记录或者版本号缺口时,后面残留的旧记录不能和接下来追加的新记录混在一起
+     *
+     * @param lastVersion 恢复出来的注册表的版本号
+     * @throws IOException 删除或者截断文件失败
+     */
+    private void discardRecordsAfter(long lastVersion) throws IOException {
+        for (File segment : listSegments(directory)) {
+            if (startVersionOf(segment) > lastVersion + 1) {
+                log.warn("delete write-ahead log segment {} after recovered version {}", segment, lastVersion);
+                if (!segment.delete()) {
+                    throw new IOException("can not delete " + segment);
+                }
+                continue;
+            }
+            try (FileChannel segmentChannel = FileChannel.open(segment.toPath(), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = segmentChannel.map(FileChannel.MapMode.READ_ONLY, 0, segmentChannel.size());
+                long validLength = 0L;
+                RecentlyChangedServiceInstance record;
+                while ((record = readRecord(buffer)) != null && record.getVersion() <= lastVersion) {
+                    validLength = buffer.position();
+                }
+                if (validLength < segmentChannel.size()) {
+                    log.warn("truncate write-ahead log segment {} from {} to {} bytes", segment,
+                            segmentChannel.size(), validLength);
+                    segmentChannel.truncate(validLength);
+                }
+            }
+        }
+    }
+
+    private FileChannel openSegment(long startVersion) throws IOException {
+        File segment = new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, startVersion, SEGMENT_SUFFIX));
+        // 同名的段文件只可能是上次崩溃前刚创建、没有完整记录的文件
+        return FileChannel.open(segment.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private static List<File> listSegments(File directory) {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX)
+                && name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        // 文件名里的版本号是补齐了0的,按名字排序就是按版本号排序
+        Arrays.sort(files);
+        return new ArrayList<>(Arrays.asList(files));
+    }
+
+    private static long startVersionOf(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private void putString(String value) {
+        if (value == null) {
+            recordBuffer.putInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        recordBuffer.putInt(bytes.length);
+        recordBuffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
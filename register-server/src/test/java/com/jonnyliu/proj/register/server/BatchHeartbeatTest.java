@@ -0,0 +1,35 @@
+package com.jonnyliu.proj.register.server;
+
+import static org.junit.Assert.assertEquals;
+
+import com.jonnyliu.proj.register.commons.BatchHeartbeatRequest;
+import com.jonnyliu.proj.register.commons.BatchHeartbeatResponse;
+import com.jonnyliu.proj.register.commons.HeartbeatResponse;
+import com.jonnyliu.proj.register.commons.RegisterRequest;
+import org.junit.Test;
+
+public class BatchHeartbeatTest {
+
+    @Test
+    public void renewsEveryKnownInstanceAndReportsUnknownOnes() {
+        RegisterServerController registerServerController = new RegisterServerController();
+        BatchHeartbeatRequest batchHeartbeatRequest = new BatchHeartbeatRequest();
+        for (int i = 0; i < 3; i++) {
+            RegisterRequest registerRequest = new RegisterRequest();
+            registerRequest.setServiceName("batch-heartbeat-service");
+            registerRequest.setServiceInstanceId("batch-heartbeat-instance-" + i);
+            registerRequest.setIp("192.168.16." + i);
+            registerRequest.setHostname("batch-heartbeat-" + i);
+            registerRequest.setPort(9000);
+            registerServerController.register(registerRequest);
+            batchHeartbeatRequest.add(registerRequest.getServiceName(), registerRequest.getServiceInstanceId());
+        }
+        batchHeartbeatRequest.add("batch-heartbeat-service", "unknown-instance");
+
+        BatchHeartbeatResponse response = registerServerController.heartbeat(batchHeartbeatRequest);
+
+        assertEquals(4, response.getStatuses().size());
+        assertEquals(3, response.getSuccessCount());
+        assertEquals(HeartbeatResponse.FAILURE, response.getStatuses().get(3));
+    }
+}
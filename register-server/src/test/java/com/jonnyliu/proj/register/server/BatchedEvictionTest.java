@@ -0,0 +1,134 @@
+package com.jonnyliu.proj.register.server;
+
+import static com.jonnyliu.proj.register.server.TestData.newInstance;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.jonnyliu.proj.register.commons.ChangedType;
+import com.jonnyliu.proj.register.commons.DeltaRegistry;
+import com.jonnyliu.proj.register.commons.RecentlyChangedServiceInstance;
+import com.jonnyliu.proj.register.commons.RegisterRequest;
+import com.jonnyliu.proj.register.commons.RegistryHash;
+import com.jonnyliu.proj.register.commons.ServiceInstance;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * 摘除的令牌桶限流,一批过期实例一次发布,以及大量实例同时过期时按限额分批摘除
+ */
+public class BatchedEvictionTest {
+
+    private static final long ONE_MINUTE = 60 * 1000L;
+
+    private final VirtualClock clock = new VirtualClock(1600000000000L);
+    private final ServiceRegistry registry = new ServiceRegistry(new HeapInstanceStore(), clock);
+
+    @After
+    public void tearDown() {
+        registry.getResponseCache().stop();
+    }
+
+    @Test
+    public void bucketIsCappedByCountAndPercentage() {
+        EvictionRateLimiter limiter = new EvictionRateLimiter(100, 0.1D, ONE_MINUTE);
+        assertEquals(100, limiter.capacity(5000));
+        assertEquals(50, limiter.capacity(500));
+        assertEquals(1, limiter.capacity(3));
+
+        long now = clock.currentTimeMillis();
+        assertEquals(50, limiter.acquire(80, 500, now));
+        assertEquals(0, limiter.acquire(80, 500, now));
+        assertEquals(25, limiter.acquire(80, 500, now + ONE_MINUTE / 2));
+        // 空闲很久也只补满到容量
+        assertEquals(50, limiter.acquire(80, 500, now + 10 * ONE_MINUTE));
+        assertEquals(3, limiter.acquire(3, 500, now + 20 * ONE_MINUTE));
+    }
+
+    @Test
+    public void evictPublishesOneSnapshotForTheWholeBatch() {
+        List<ServiceInstance> instances = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            registry.register(newInstance("service-" + i % 5, "instance-" + i));
+            instances.add(registry.getServiceInstance("service-" + i % 5, "instance-" + i));
+        }
+        AtomicInteger notifications = new AtomicInteger();
+        registry.addChangeListener(version -> notifications.incrementAndGet());
+        long before = registry.getVersion();
+
+        clock.advance(ServiceInstance.ALIVE_TIME_THRESHOLD + 1);
+        assertTrue(registry.renew("service-1", "instance-1"));
+        // instance-2已经重新注册,过期的是旧实例
+        registry.register(newInstance("service-2", "instance-2"));
+        before++;
+        notifications.set(0);
+
+        List<ServiceInstance> evicted = registry.evict(instances);
+        assertEquals(98, evicted.size());
+        assertEquals(1, notifications.get());
+        assertEquals(before + 98, registry.getVersion());
+        assertEquals(2, registry.getSnapshot().getInstanceCount());
+        assertEquals(RegistryHash.compute(registry.getFullRegistry()), registry.getSnapshot().getRegistryHash());
+        assertEquals(2, registry.getSnapshot().getRegistry().size());
+        assertEquals(-1L, registry.getSnapshot().getServiceVersion("service-0"));
+
+        DeltaRegistry deltaRegistry = registry.getDeltaRegistry(before);
+        assertFalse(deltaRegistry.isFullFetchRequired());
+        assertEquals(98, deltaRegistry.getRecentlyChangedServiceInstances().size());
+        for (RecentlyChangedServiceInstance changed : deltaRegistry.getRecentlyChangedServiceInstances()) {
+            assertEquals(ChangedType.REMOVE, changed.getChangedType());
+        }
+        assertTrue(registry.evict(instances).isEmpty());
+        assertEquals(1, notifications.get());
+    }
+
+    @Test
+    public void expiredInstancesAreEvictedAtTheLimitedRate() {
+        RegisterServerController controller = new RegisterServerController(registry, PeerReplicator.none(registry));
+        ServiceAliveMonitor monitor = new ServiceAliveMonitor(registry, ServiceAliveMonitor.DEFAULT_CHECK_TICK,
+                new EvictionRateLimiter(20, 0.15D, ONE_MINUTE));
+        for (int i = 0; i < 1000; i++) {
+            RegisterRequest registerRequest = new RegisterRequest();
+            registerRequest.setServiceName("service-" + i % 10);
+            registerRequest.setServiceInstanceId("instance-" + i);
+            controller.register(registerRequest);
+        }
+        AtomicInteger notifications = new AtomicInteger();
+        registry.addChangeListener(version -> notifications.incrementAndGet());
+
+        // 十分之一的实例一直没有心跳,在同一个tick里过期
+        runSeconds(controller, monitor, ServiceInstance.ALIVE_TIME_THRESHOLD / 1000 + 2);
+        assertEquals(20, monitor.getEvictedCount());
+        assertEquals(980, registry.getSnapshot().getInstanceCount());
+        assertEquals(1, notifications.get());
+        assertTrue(monitor.getDeferredCount() > 0);
+
+        runSeconds(controller, monitor, 60);
+        assertTrue(monitor.getEvictedCount() <= 41);
+
+        runSeconds(controller, monitor, 5 * 60);
+        assertEquals(100, monitor.getEvictedCount());
+        assertEquals(900, registry.getSnapshot().getInstanceCount());
+        assertEquals(0L, monitor.getProtectedCount());
+        assertTrue(notifications.get() < 100);
+    }
+
+    /**
+     * 每个虚拟秒里,心跳时间片落在这一秒的实例发心跳,然后时钟前进一秒、检测一次
+     */
+    private void runSeconds(RegisterServerController controller, ServiceAliveMonitor monitor, long seconds) {
+        for (long second = 0; second < seconds; second++) {
+            int slot = (int) (clock.currentTimeMillis() / 1000L % 30);
+            for (int i = slot; i < 1000; i += 30) {
+                if (i % 10 != 0) {
+                    controller.renew("service-" + i % 10, "instance-" + i);
+                }
+            }
+            clock.advance(1000L);
+            monitor.check();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.jonnyliu.proj.register.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Test;
+
+public class HierarchicalTimingWheelTest {
+
+    @Test
+    public void firesEveryTimeoutWithinOneTickOfItsDeadline() {
+        long tick = 10L;
+        long start = 1_000_003L;
+        HierarchicalTimingWheel<Long> wheel = new HierarchicalTimingWheel<>(tick, 8, start);
+        Random random = new Random(42);
+        int count = 5000;
+        for (int i = 0; i < count; i++) {
+            // 跨越多层时间轮: 8 * 8 * 8 * 10 = 5120
+            long deadline = start + random.nextInt(50_000);
+            wheel.schedule(deadline, deadline);
+        }
+        assertEquals(count, wheel.size());
+
+        int[] fired = new int[1];
+        for (long now = start; now <= start + 60_000; now += 7) {
+            long time = now;
+            wheel.advance(now, deadline -> {
+                fired[0]++;
+                assertTrue("fired early: " + deadline + " at " + time, deadline <= time);
+                assertTrue("fired late: " + deadline + " at " + time, time - deadline < tick + 7);
+            });
+        }
+        assertEquals(count, fired[0]);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void pastDeadlineFiresOnNextAdvance() {
+        HierarchicalTimingWheel<String> wheel = new HierarchicalTimingWheel<>(1000L, 0L);
+        wheel.schedule("expired", -5L);
+        int[] fired = new int[1];
+        wheel.advance(0L, item -> fired[0]++);
+        assertEquals(1, fired[0]);
+    }
+}
@@ -0,0 +1,97 @@
+package com.jonnyliu.proj.register.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+
+/**
+ * 延迟直方图的误差、百分位和并发计数
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsAreContiguousAndBoundRelativeError() {
+        int previous = -1;
+        for (long value = 0; value < 1 << 20; value++) {
+            int index = LatencyHistogram.bucketIndex(value);
+            assertTrue(index == previous || index == previous + 1);
+            long upperBound = LatencyHistogram.bucketUpperBound(index);
+            assertTrue(upperBound >= value);
+            assertTrue(upperBound - value <= value / 16);
+            previous = index;
+        }
+    }
+
+    @Test
+    public void percentilesOfUniformDistribution() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros <= 1000; micros++) {
+            histogram.record(micros * 1000L);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+        assertEquals(1000L, snapshot.getCount());
+        assertEquals(500500000L, snapshot.getSum());
+        assertWithin(500000L, snapshot.getValueAtQuantile(0.5D));
+        assertWithin(990000L, snapshot.getValueAtQuantile(0.99D));
+        assertWithin(1000000L, snapshot.getMax());
+    }
+
+    @Test
+    public void snapshotDifferenceCoversOnlyTheInterval() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 100; i++) {
+            histogram.record(1000000000L);
+        }
+        LatencyHistogram.Snapshot before = histogram.snapshot();
+        for (int i = 0; i < 100; i++) {
+            histogram.record(1000L);
+        }
+
+        LatencyHistogram.Snapshot interval = histogram.snapshot().since(before);
+        assertEquals(100L, interval.getCount());
+        assertWithin(1000L, interval.getMax());
+    }
+
+    @Test
+    public void concurrentRecordsAreNotLost() throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        int threads = 4;
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                for (int i = 0; i < 100000; i++) {
+                    histogram.record(i);
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        assertEquals(400000L, histogram.snapshot().getCount());
+    }
+
+    @Test
+    public void recordDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 200000; i++) {
+            histogram.record(i);
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 1000000; i++) {
+            histogram.record(i);
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("expected about " + expected + " but was " + actual,
+                actual >= expected && actual - expected <= expected / 16);
+    }
+}
@@ -0,0 +1,114 @@
+package com.jonnyliu.proj.register.server;
+
+import static com.jonnyliu.proj.register.server.TestData.newInstance;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.jonnyliu.proj.register.commons.ServiceInstance;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import org.junit.Test;
+
+/**
+ * 租约表的句柄分配回收、注册表的续约,以及和每个实例一个租约对象相比的内存占用
+ */
+public class LeaseTableTest {
+
+    private static final int INSTANCES = 1000000;
+
+    @Test
+    public void releasedHandlesAreReused() {
+        LeaseTable leaseTable = new LeaseTable();
+        int first = leaseTable.allocate(1L);
+        int second = leaseTable.allocate(2L);
+        assertEquals(1L, leaseTable.getLastRenewTimestamp(first));
+        assertEquals(2L, leaseTable.getLastRenewTimestamp(second));
+
+        leaseTable.release(first);
+        assertEquals(1, leaseTable.size());
+        assertEquals(first, leaseTable.allocate(3L));
+        assertEquals(3L, leaseTable.getLastRenewTimestamp(first));
+
+        leaseTable.renew(second, 4L);
+        assertEquals(4L, leaseTable.getLastRenewTimestamp(second));
+    }
+
+    @Test
+    public void growsOnePageAtATime() {
+        LeaseTable leaseTable = new LeaseTable();
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(i, leaseTable.allocate(i));
+        }
+        assertEquals(8192, leaseTable.capacity());
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(i, leaseTable.getLastRenewTimestamp(i));
+        }
+    }
+
+    @Test
+    public void registryRenewsThroughTheTable() {
+        HeapInstanceStore instanceStore = new HeapInstanceStore();
+        ServiceRegistry registry = new ServiceRegistry(instanceStore);
+        ServiceInstance serviceInstance = newInstance("order-1");
+        registry.register(serviceInstance);
+        assertEquals(1, instanceStore.getLeaseTable().size());
+        long expiration = registry.getLeaseExpirationTimestamp(serviceInstance);
+        assertTrue(expiration > System.currentTimeMillis());
+
+        assertTrue(registry.renew("order-service", "order-1"));
+        assertFalse(registry.renew("order-service", "order-2"));
+
+        // 同一个实例ID重新注册,旧实例的句柄被回收
+        ServiceInstance reRegistered = newInstance("order-1");
+        registry.register(reRegistered);
+        assertEquals(0L, registry.getLeaseExpirationTimestamp(serviceInstance));
+        assertTrue(registry.getLeaseExpirationTimestamp(reRegistered) > System.currentTimeMillis());
+        assertEquals(1, instanceStore.getLeaseTable().size());
+
+        registry.remove("order-service", "order-1");
+        assertEquals(0L, registry.getLeaseExpirationTimestamp(reRegistered));
+        assertEquals(0, instanceStore.getLeaseTable().size());
+        registry.getResponseCache().stop();
+    }
+
+    @Test
+    public void tableIsSmallerThanALeaseObjectPerInstance() {
+        long baseline = usedHeap();
+        ObjectLease[] leases = new ObjectLease[INSTANCES];
+        for (int i = 0; i < INSTANCES; i++) {
+            leases[i] = new ObjectLease();
+            // 不落在Long缓存里,和真实的时间戳一样每次装箱都是新对象
+            leases[i].lastHeartbeatTime = System.currentTimeMillis() + 1000L + i;
+        }
+        long objectBytes = usedHeap() - baseline;
+        assertEquals(INSTANCES, leases.length);
+        leases = null;
+
+        baseline = usedHeap();
+        LeaseTable leaseTable = new LeaseTable();
+        for (int i = 0; i < INSTANCES; i++) {
+            leaseTable.allocate(System.currentTimeMillis());
+        }
+        long tableBytes = usedHeap() - baseline;
+        assertEquals(INSTANCES, leaseTable.size());
+
+        assertTrue("lease table " + tableBytes + " bytes, lease objects " + objectBytes + " bytes",
+                tableBytes * 2 < objectBytes);
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * 原来挂在每个实例上的租约对象
+     */
+    private static final class ObjectLease {
+        private volatile Long lastHeartbeatTime;
+    }
+}
@@ -0,0 +1,216 @@
+package com.jonnyliu.proj.register.server;
+
+import static com.jonnyliu.proj.register.server.TestData.newInstance;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.jonnyliu.proj.register.commons.RegistryHash;
+import com.jonnyliu.proj.register.commons.ServiceInstance;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+/**
+ * 堆外存储的查找、替换、回收,注册表切换到堆外存储之后内容不变,以及和堆上存储相比的堆内存占用
+ */
+public class OffHeapInstanceStoreTest {
+
+    private static final int FOOTPRINT_INSTANCES = 200000;
+    private static final int FOOTPRINT_SERVICES = 1000;
+
+    private final OffHeapInstanceStore store = new OffHeapInstanceStore();
+
+    @Test
+    public void storesFieldsOffHeap() {
+        ServiceInstance registered = store.put(newInstance("order-service", "order-1", 8080), null, 1L);
+        assertSame(registered, store.get("order-service", "order-1"));
+        assertEquals("order-service", registered.getServiceName());
+        assertEquals("order-1", registered.getInstanceId());
+        assertEquals("10.0.31.144", registered.getIp());
+        assertEquals("host-order-1", registered.getHostname());
+        assertEquals(8080, registered.getPort());
+        assertEquals(1L, store.getLastRenewTimestamp(registered));
+
+        assertTrue(store.renew("order-service", "order-1", 2L));
+        assertEquals(2L, store.getLastRenewTimestamp(registered));
+        assertFalse(store.renew("order-service", "order-2", 2L));
+        assertNull(store.get("stock-service", "order-1"));
+    }
+
+    @Test
+    public void removedInstancesKeepTheirFieldsAfterTheRecordIsReused() {
+        ServiceInstance first = store.put(newInstance("order-service", "order-1", 8080), null, 1L);
+        assertSame(first, store.remove("order-service", "order-1"));
+        assertNull(store.get("order-service", "order-1"));
+        assertEquals(-1L, store.getLastRenewTimestamp(first));
+
+        // 复用同一条记录
+        ServiceInstance second = store.put(newInstance("order-service", "order-2", 8080), null, 2L);
+        assertEquals("order-1", first.getInstanceId());
+        assertEquals("host-order-1", first.getHostname());
+        assertEquals("order-2", second.getInstanceId());
+
+        ServiceInstance replaced = store.put(newInstance("order-service", "order-2", 8080), second, 3L);
+        assertSame(replaced, store.get("order-service", "order-2"));
+        assertEquals("order-2", second.getInstanceId());
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void staleRenewDoesNotTouchTheInstanceReusingTheRecord() {
+        OffHeapServiceInstance first = (OffHeapServiceInstance) store.put(
+                newInstance("order-service", "order-1", 8080), null, 1L);
+        store.remove("order-service", "order-1");
+        OffHeapServiceInstance second = (OffHeapServiceInstance) store.put(
+                newInstance("order-service", "order-2", 8080), null, 2L);
+        assertEquals(first.getSlot(), second.getSlot());
+
+        // 续约查到first之后记录才被回收、复用
+        assertFalse(store.renew(first, 10L));
+        assertEquals(2L, store.getLastRenewTimestamp(second));
+        assertEquals(-1L, store.getLastRenewTimestamp(first));
+        assertTrue(store.renew(second, 11L));
+        assertEquals(11L, store.getLastRenewTimestamp(second));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void replacingAnInstanceMissingFromTheIndexFails() {
+        ServiceInstance removed = store.put(newInstance("order-service", "order-1", 8080), null, 1L);
+        store.remove("order-service", "order-1");
+        store.put(newInstance("order-service", "order-1", 8080), removed, 2L);
+    }
+
+    @Test
+    public void indexSurvivesGrowthAndChurn() {
+        for (int i = 0; i < 20000; i++) {
+            store.put(newInstance("service-" + i % 7, "instance-" + i, 8080), null, i);
+        }
+        for (int i = 0; i < 20000; i += 2) {
+            assertTrue(store.remove("service-" + i % 7, "instance-" + i) != null);
+        }
+        for (int i = 0; i < 20000; i++) {
+            ServiceInstance serviceInstance = store.get("service-" + i % 7, "instance-" + i);
+            if (i % 2 == 0) {
+                assertNull(serviceInstance);
+            } else {
+                assertEquals("instance-" + i, serviceInstance.getInstanceId());
+                assertEquals(i, store.getLastRenewTimestamp(serviceInstance));
+            }
+        }
+        assertEquals(10000, store.size());
+    }
+
+    @Test
+    public void nonAsciiAndOversizedFields() {
+        ServiceInstance chinese = newInstance("订单服务", "订单-1", 8080);
+        ServiceInstance registered = store.put(chinese, null, 1L);
+        assertSame(registered, store.get("订单服务", "订单-1"));
+        assertEquals("host-订单-1", registered.getHostname());
+
+        StringBuilder longHostname = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            longHostname.append('h');
+        }
+        ServiceInstance oversized = newInstance("order-service", "order-1", 8080);
+        oversized.setHostname(longHostname.toString());
+        oversized.setIp(null);
+        registered = store.put(oversized, null, 5L);
+        assertSame(registered, store.get("order-service", "order-1"));
+        assertEquals(longHostname.toString(), registered.getHostname());
+        assertNull(registered.getIp());
+        assertTrue(store.renew("order-service", "order-1", 6L));
+        assertEquals(6L, store.getLastRenewTimestamp(registered));
+    }
+
+    @Test
+    public void registryContentDoesNotDependOnStorage() {
+        ServiceRegistry heap = new ServiceRegistry();
+        ServiceRegistry offHeap = new ServiceRegistry(store);
+        for (ServiceRegistry registry : new ServiceRegistry[]{heap, offHeap}) {
+            for (int i = 0; i < 50; i++) {
+                registry.register(newInstance("service-" + i % 5, "instance-" + i, 8080));
+            }
+            registry.register(newInstance("service-1", "instance-1", 8080));
+            registry.remove("service-2", "instance-2");
+            assertTrue(registry.renew("service-3", "instance-3"));
+        }
+        assertEquals(heap.getVersion(), offHeap.getVersion());
+        assertEquals(heap.getSnapshot().getInstanceCount(), offHeap.getSnapshot().getInstanceCount());
+        assertEquals(heap.getSnapshot().getRegistryHash(), offHeap.getSnapshot().getRegistryHash());
+        assertEquals(RegistryHash.compute(offHeap.getFullRegistry()), offHeap.getSnapshot().getRegistryHash());
+
+        ServiceInstance serviceInstance = offHeap.getServiceInstance("service-1", "instance-1");
+        assertSame(serviceInstance, offHeap.getFullRegistry().get("service-1").get("instance-1"));
+        assertTrue(offHeap.getLeaseExpirationTimestamp(serviceInstance) > System.currentTimeMillis());
+        assertEquals(heap.getDeltaRegistry(0L).getRecentlyChangedServiceInstances().size(),
+                offHeap.getDeltaRegistry(0L).getRecentlyChangedServiceInstances().size());
+        heap.getResponseCache().stop();
+        offHeap.getResponseCache().stop();
+    }
+
+    @Test
+    public void renewDoesNotAllocate() {
+        for (int i = 0; i < 1000; i++) {
+            store.put(newInstance("order-service", "order-" + i, 8080), null, i);
+        }
+        String[] instanceIds = new String[1000];
+        for (int i = 0; i < instanceIds.length; i++) {
+            instanceIds[i] = "order-" + i;
+        }
+        for (int i = 0; i < 200000; i++) {
+            store.renew("order-service", instanceIds[i % 1000], i);
+        }
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 1000000; i++) {
+            store.renew("order-service", instanceIds[i % 1000], i);
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+    }
+
+    @Test
+    public void offHeapStorageUsesLessHeap() {
+        long heapBytes = retainedHeap(new HeapInstanceStore());
+        long offHeapBytes = retainedHeap(store);
+        assertTrue("off-heap storage " + offHeapBytes + " bytes, heap storage " + heapBytes + " bytes",
+                offHeapBytes * 2 < heapBytes);
+    }
+
+    /**
+     * 注册一批实例并做成快照里的实例表之后,堆上增加的字节数
+     */
+    private static long retainedHeap(InstanceStore instanceStore) {
+        long baseline = usedHeap();
+        List<List<ServiceInstance>> services = new ArrayList<>();
+        for (int s = 0; s < FOOTPRINT_SERVICES; s++) {
+            services.add(new ArrayList<ServiceInstance>());
+        }
+        for (int i = 0; i < FOOTPRINT_INSTANCES; i++) {
+            ServiceInstance serviceInstance = newInstance("service-" + i % FOOTPRINT_SERVICES, "instance-" + i, 8080);
+            services.get(i % FOOTPRINT_SERVICES).add(instanceStore.put(serviceInstance, null, i));
+        }
+        List<Map<String, ServiceInstance>> snapshot = new ArrayList<>();
+        for (List<ServiceInstance> instances : services) {
+            snapshot.add(instanceStore.immutableInstances(instances));
+        }
+        services = null;
+        long retained = usedHeap() - baseline;
+        assertEquals(FOOTPRINT_SERVICES, snapshot.size());
+        return retained;
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,82 @@
+package com.jonnyliu.proj.register.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.jonnyliu.proj.register.commons.ServiceInstance;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import org.junit.Test;
+
+public class PayloadCompressorTest {
+
+    @Test
+    public void negotiatePrefersGzipAndHonoursZeroQuality() {
+        assertEquals(PayloadCompressor.GZIP, PayloadCompressor.negotiate("gzip, deflate"));
+        assertEquals(PayloadCompressor.GZIP, PayloadCompressor.negotiate("deflate, GZIP;q=0.5"));
+        assertEquals(PayloadCompressor.DEFLATE, PayloadCompressor.negotiate("gzip;q=0, deflate"));
+        assertNull(PayloadCompressor.negotiate("identity"));
+        assertNull(PayloadCompressor.negotiate(null));
+    }
+
+    @Test
+    public void compressedPayloadsDecodeBackToTheOriginal() throws IOException {
+        byte[] original = new byte[200000];
+        for (int i = 0; i < original.length; i++) {
+            original[i] = (byte) ("instance-" + (i % 977)).charAt(i % 9);
+        }
+        ByteBuffer direct = ByteBuffer.allocateDirect(original.length);
+        direct.put(original).flip();
+        PayloadCompressor compressor = new PayloadCompressor();
+
+        ByteBuffer gzip = compressor.compress(direct, PayloadCompressor.GZIP);
+        ByteBuffer deflate = compressor.compress(direct, PayloadCompressor.DEFLATE);
+
+        assertEquals(original.length, direct.remaining());
+        assertArrayEquals(original, readFully(new GZIPInputStream(new ByteArrayInputStream(toArray(gzip)))));
+        assertArrayEquals(original, readFully(new InflaterInputStream(new ByteArrayInputStream(toArray(deflate)))));
+        assertEquals(1, compressor.getCompressCount(PayloadCompressor.GZIP));
+        assertTrue(compressor.getCompressionRatio(PayloadCompressor.GZIP) < 0.5);
+        assertTrue(compressor.getCompressCpuNanos(PayloadCompressor.DEFLATE) >= 0);
+    }
+
+    @Test
+    public void fullRegistryIsCompressedOncePerVersion() {
+        ServiceRegistry registry = ServiceRegistry.getInstance();
+        ServiceInstance serviceInstance = new ServiceInstance();
+        serviceInstance.setServiceName("compressor-service");
+        serviceInstance.setInstanceId("compressor-instance");
+        registry.register(serviceInstance);
+        ResponseCache responseCache = registry.getResponseCache();
+        long before = responseCache.getCompressor().getCompressCount(PayloadCompressor.GZIP);
+
+        ByteBuffer first = responseCache.getFullRegistryPayload(PayloadCompressor.GZIP);
+        ByteBuffer second = responseCache.getFullRegistryPayload(PayloadCompressor.GZIP);
+
+        assertEquals(first, second);
+        assertEquals(before + 1, responseCache.getCompressor().getCompressCount(PayloadCompressor.GZIP));
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, n);
+        }
+        return bytes.toByteArray();
+    }
+}
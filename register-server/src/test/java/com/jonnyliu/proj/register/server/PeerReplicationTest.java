@@ -0,0 +1,202 @@
+package com.jonnyliu.proj.register.server;
+
+import static com.jonnyliu.proj.register.server.TestData.newInstance;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.jonnyliu.proj.register.commons.ServiceInstance;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 同一个JVM里通过loopback启动三个注册中心节点,验证节点之间的复制
+ */
+public class PeerReplicationTest {
+
+    private static final int NODE_COUNT = 3;
+
+    private final List<RegisterServer> nodes = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        int[] ports = new int[NODE_COUNT];
+        for (int i = 0; i < NODE_COUNT; i++) {
+            try (ServerSocket socket = new ServerSocket(0)) {
+                ports[i] = socket.getLocalPort();
+            }
+        }
+        for (int i = 0; i < NODE_COUNT; i++) {
+            List<String> peerAddresses = new ArrayList<>();
+            for (int j = 0; j < NODE_COUNT; j++) {
+                if (j != i) {
+                    peerAddresses.add("http://127.0.0.1:" + ports[j]);
+                }
+            }
+            nodes.add(new RegisterServer(new ServiceRegistry(), ports[i], 2, null, peerAddresses));
+        }
+        for (RegisterServer node : nodes) {
+            node.start();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (RegisterServer node : nodes) {
+            node.stop();
+        }
+    }
+
+    @Test
+    public void registerRenewAndCancelReachEveryPeer() throws Exception {
+        RegisterServer origin = nodes.get(0);
+        post(origin, "/register", "serviceName=order-service&serviceInstanceId=order-1&ip=10.0.0.1"
+                + "&hostname=order01&port=8080");
+
+        for (RegisterServer node : nodes) {
+            awaitTrue(() -> node.getRegistry().getServiceInstance("order-service", "order-1") != null);
+        }
+        ServiceInstance replica = nodes.get(1).getRegistry().getServiceInstance("order-service", "order-1");
+        assertEquals("10.0.0.1", replica.getIp());
+        assertEquals("order01", replica.getHostname());
+        assertEquals(8080, replica.getPort());
+
+        assertEquals("success", post(origin, "/heartbeat", "serviceName=order-service&serviceInstanceId=order-1"));
+        awaitTrue(() -> replicatedCount(origin) == 2L * (NODE_COUNT - 1));
+
+        post(origin, "/cancel", "serviceName=order-service&serviceInstanceId=order-1");
+        for (RegisterServer node : nodes) {
+            awaitTrue(() -> node.getRegistry().getServiceInstance("order-service", "order-1") == null);
+        }
+
+        // 复制过来的操作不会再复制出去: 每个节点上只有一次注册和一次下线
+        Thread.sleep(300);
+        for (RegisterServer node : nodes) {
+            assertEquals(2L, node.getRegistry().getVersion());
+        }
+        for (int i = 1; i < NODE_COUNT; i++) {
+            assertEquals(0L, replicatedCount(nodes.get(i)));
+        }
+    }
+
+    @Test
+    public void renewOfUnknownInstanceReRegistersOnPeer() throws Exception {
+        RegisterServer origin = nodes.get(0);
+        // 只注册在本节点,好比复制注册的时候对等节点正好宕机
+        ServiceInstance serviceInstance = new ServiceInstance();
+        serviceInstance.setServiceName("inventory-service");
+        serviceInstance.setInstanceId("inventory-1");
+        origin.getRegistry().register(serviceInstance);
+        assertNull(nodes.get(1).getRegistry().getServiceInstance("inventory-service", "inventory-1"));
+
+        post(origin, "/heartbeat", "serviceName=inventory-service&serviceInstanceId=inventory-1");
+
+        for (RegisterServer node : nodes) {
+            awaitTrue(() -> node.getRegistry().getServiceInstance("inventory-service", "inventory-1") != null);
+        }
+    }
+
+    @Test
+    public void repeatedRenewsCollapseWhileQueued() {
+        PeerReplicationPipeline pipeline = new PeerReplicationPipeline("http://127.0.0.1:1",
+                nodes.get(0).getRegistry());
+
+        assertTrue(pipeline.offer(ReplicationOperation.register(newInstance("order-1"))));
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(pipeline.offer(ReplicationOperation.renew("order-service", "order-1")));
+            assertTrue(pipeline.offer(ReplicationOperation.renew("order-service", "order-2")));
+        }
+
+        assertEquals(3, pipeline.getQueueSize());
+        assertEquals(1998L, pipeline.getCoalescedCount());
+    }
+
+    @Test
+    public void fullQueueShedsLoadInsteadOfGrowing() {
+        PeerReplicationPipeline pipeline = new PeerReplicationPipeline("http://127.0.0.1:1", nodes.get(0).getRegistry(),
+                2, 5L);
+
+        assertTrue(pipeline.offer(ReplicationOperation.register(newInstance("order-1"))));
+        assertTrue(pipeline.offer(ReplicationOperation.register(newInstance("order-2"))));
+        long start = System.nanoTime();
+        assertFalse(pipeline.offer(ReplicationOperation.renew("order-service", "order-3")));
+        assertTrue(System.nanoTime() - start >= 5000000L);
+
+        assertEquals(2, pipeline.getQueueSize());
+        assertEquals(1L, pipeline.getDroppedCount());
+        // 被丢弃的续约不占着合并的位置,下一次续约还能排队
+        assertFalse(pipeline.offer(ReplicationOperation.renew("order-service", "order-3")));
+        assertEquals(0L, pipeline.getCoalescedCount());
+    }
+
+    @Test
+    public void batchRoundTrip() {
+        List<ReplicationOperation> operations = Arrays.asList(
+                ReplicationOperation.register(newInstance("库存服务", "库存-1", "10.0.3.7", 7001)),
+                ReplicationOperation.renew("order-service", "order-1"),
+                ReplicationOperation.cancel("order-service", null));
+
+        List<ReplicationOperation> decoded = ReplicationBatch.decode(ReplicationBatch.encode(operations));
+
+        assertEquals(3, decoded.size());
+        assertEquals(ReplicationOperation.REGISTER, decoded.get(0).getAction());
+        assertEquals("库存服务", decoded.get(0).getServiceName());
+        assertEquals("库存-1", decoded.get(0).getInstanceId());
+        assertEquals("10.0.3.7", decoded.get(0).getIp());
+        assertEquals("host-库存-1", decoded.get(0).getHostname());
+        assertEquals(7001, decoded.get(0).getPort());
+        assertEquals(ReplicationOperation.RENEW, decoded.get(1).getAction());
+        assertEquals("order-1", decoded.get(1).getInstanceId());
+        assertEquals(ReplicationOperation.CANCEL, decoded.get(2).getAction());
+        assertNull(decoded.get(2).getInstanceId());
+    }
+
+    private static long replicatedCount(RegisterServer node) {
+        long count = 0;
+        for (PeerReplicationPipeline pipeline : node.getReplicator().getPipelines()) {
+            count += pipeline.getReplicatedCount();
+        }
+        return count;
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (!condition.getAsBoolean()) {
+            assertTrue("condition not met in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static String post(RegisterServer node, String path, String form) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + node.getPort() + path)
+                .openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(form.getBytes(StandardCharsets.UTF_8));
+        }
+        try (InputStream in = connection.getInputStream()) {
+            byte[] buffer = new byte[1024];
+            int length = 0;
+            int n;
+            while ((n = in.read(buffer, length, buffer.length - length)) > 0) {
+                length += n;
+            }
+            return new String(buffer, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.jonnyliu.proj.register.server;
+
+import static com.jonnyliu.proj.register.server.TestData.newInstance;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.jonnyliu.proj.register.commons.ChangedType;
+import com.jonnyliu.proj.register.commons.DeltaRegistry;
+import com.jonnyliu.proj.register.commons.RecentlyChangedServiceInstance;
+import com.jonnyliu.proj.register.commons.RegistryHash;
+import com.jonnyliu.proj.register.commons.ServiceInstance;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import org.junit.Test;
+
+public class RecentlyChangedLogTest {
+
+    @Test
+    public void sinceReturnsOnlyNewerChanges() {
+        RecentlyChangedLog changedLog = new RecentlyChangedLog(8);
+        for (int i = 0; i < 5; i++) {
+            changedLog.append(newInstance("instance-" + i), ChangedType.REGISTER);
+        }
+
+        LinkedList<RecentlyChangedServiceInstance> changes = changedLog.since(3);
+        assertEquals(2, changes.size());
+        assertEquals(4L, changes.getFirst().getVersion());
+        assertEquals(5L, changes.getLast().getVersion());
+        assertEquals(0, changedLog.since(5).size());
+    }
+
+    @Test
+    public void sinceSignalsFullFetchWhenVersionIsOverwrittenOrUnknown() {
+        RecentlyChangedLog changedLog = new RecentlyChangedLog(4);
+        for (int i = 0; i < 10; i++) {
+            changedLog.append(newInstance("instance-" + i), ChangedType.REGISTER);
+        }
+
+        assertNull(changedLog.since(5));
+        assertEquals(4, changedLog.since(6).size());
+        assertNull(changedLog.since(11));
+    }
+
+    @Test
+    public void onlyTheLatestChangeOfEachInstanceIsReturned() {
+        RecentlyChangedLog changedLog = new RecentlyChangedLog(16);
+        ServiceInstance a = newInstance("instance-a");
+        ServiceInstance b = newInstance("instance-b");
+        ServiceInstance c = newInstance("instance-c");
+        ServiceInstance reRegisteredA = newInstance("instance-a");
+        changedLog.append(a, ChangedType.REGISTER);
+        changedLog.append(b, ChangedType.REGISTER);
+        changedLog.append(a, ChangedType.REMOVE);
+        changedLog.append(c, ChangedType.REGISTER);
+        changedLog.append(reRegisteredA, ChangedType.REGISTER);
+        changedLog.append(b, ChangedType.REMOVE);
+
+        LinkedList<RecentlyChangedServiceInstance> changes = changedLog.since(0);
+        assertEquals(3, changes.size());
+        assertSame(c, changes.get(0).getServiceInstance());
+        assertSame(reRegisteredA, changes.get(1).getServiceInstance());
+        assertEquals(5L, changes.get(1).getVersion());
+        assertEquals(ChangedType.REMOVE, changes.get(2).getChangedType());
+        assertEquals(6L, changes.get(2).getVersion());
+
+        assertEquals(1, changedLog.since(5).size());
+        assertEquals(3, changedLog.recent(60 * 1000L).size());
+    }
+
+    @Test
+    public void deltaIsBoundedByTheInstancesThatChanged() {
+        ServiceRegistry registry = new ServiceRegistry();
+        for (int i = 0; i < 100; i++) {
+            registry.register(newInstance("order-service", "order-" + i));
+        }
+        long sinceVersion = registry.getVersion();
+        Map<String, ServiceInstance> client = new HashMap<>(registry.getFullRegistry().get("order-service"));
+
+        // 10个实例反复下线、重新注册,最后一半在线
+        for (int round = 0; round < 50; round++) {
+            for (int i = 0; i < 10; i++) {
+                registry.remove("order-service", "order-" + i);
+                if (round < 49 || i % 2 == 0) {
+                    registry.register(newInstance("order-service", "order-" + i));
+                }
+            }
+        }
+
+        DeltaRegistry deltaRegistry = registry.getDeltaRegistry(sinceVersion);
+        assertEquals(10, deltaRegistry.getRecentlyChangedServiceInstances().size());
+        for (RecentlyChangedServiceInstance changed : deltaRegistry.getRecentlyChangedServiceInstances()) {
+            ServiceInstance serviceInstance = changed.getServiceInstance();
+            if (ChangedType.REGISTER.equals(changed.getChangedType())) {
+                client.put(serviceInstance.getInstanceId(), serviceInstance);
+            } else {
+                client.remove(serviceInstance.getInstanceId());
+            }
+        }
+        assertEquals(95, client.size());
+        Map<String, Map<String, ServiceInstance>> merged = new HashMap<>();
+        merged.put("order-service", client);
+        assertEquals(deltaRegistry.getRegistryHash(), RegistryHash.compute(merged));
+        registry.getResponseCache().stop();
+    }
+}
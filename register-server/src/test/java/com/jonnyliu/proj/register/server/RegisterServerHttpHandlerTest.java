@@ -0,0 +1,73 @@
+package com.jonnyliu.proj.register.server;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * 缺少参数、数字参数格式不对的请求返回400;空闲的keep-alive连接会被服务端关闭
+ */
+public class RegisterServerHttpHandlerTest {
+
+    private final ServiceRegistry registry = new ServiceRegistry();
+    private final RegistryWatchManager watchManager = new RegistryWatchManager(registry);
+    private final RegisterServerHttpHandler handler = new RegisterServerHttpHandler(
+            new RegisterServerController(registry, PeerReplicator.none(registry)), watchManager);
+
+    @After
+    public void tearDown() {
+        registry.getResponseCache().stop();
+    }
+
+    @Test
+    public void badParametersAreRejected() {
+        assertEquals(400, status("/cancel?serviceInstanceId=order-1"));
+        assertEquals(400, status("/heartbeat"));
+        assertEquals(400, status("/register?serviceName=order-service&serviceInstanceId=order-1&port=abc"));
+        assertEquals(400, status("/registry/delta?sinceVersion=abc"));
+        assertEquals(400, status("/registry/watch?sinceVersion=abc"));
+        assertEquals(400, status("/registry/watch?sinceVersion=0&timeout=abc"));
+
+        assertEquals(200, status("/register?serviceName=order-service&serviceInstanceId=order-1&port=9000"));
+        assertEquals(200, status("/heartbeat?serviceName=order-service&serviceInstanceId=order-1"));
+        assertEquals(200, status("/cancel?serviceName=order-service&serviceInstanceId=order-1"));
+    }
+
+    @Test
+    public void idleConnectionIsClosed() throws IOException {
+        NioHttpServer server = new NioHttpServer(0, handler, 1, 200L);
+        server.start();
+        try (Socket socket = new Socket("127.0.0.1", server.getPort())) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET /cancel?serviceName=order-service&serviceInstanceId=order-1 HTTP/1.1\r\n"
+                    + "Host: localhost\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            // 读完响应之后服务端关闭连接,读到-1;超时说明连接一直没有被关闭
+            InputStream in = socket.getInputStream();
+            StringBuilder response = new StringBuilder();
+            int b;
+            while ((b = in.read()) >= 0) {
+                response.append((char) b);
+            }
+            assertEquals("HTTP/1.1 200 OK", response.substring(0, response.indexOf("\r\n")));
+        } finally {
+            server.stop();
+        }
+    }
+
+    private int status(String uri) {
+        AtomicReference<HttpResponse> response = new AtomicReference<>();
+        handler.handle(new HttpRequest("GET", uri, Collections.<String, String>emptyMap(), new byte[0]),
+                response::set);
+        return response.get().getStatus();
+    }
+}
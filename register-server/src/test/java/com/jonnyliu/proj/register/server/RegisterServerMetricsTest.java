@@ -0,0 +1,99 @@
+package com.jonnyliu.proj.register.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.jonnyliu.proj.register.commons.HeartbeatRequest;
+import com.jonnyliu.proj.register.commons.RegisterRequest;
+import com.jonnyliu.proj.register.server.RegisterServerMetrics.Operation;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * 控制器的每种操作都记录延迟,/metrics输出Prometheus文本格式
+ */
+public class RegisterServerMetricsTest {
+
+    private final ServiceRegistry registry = new ServiceRegistry();
+
+    @After
+    public void tearDown() {
+        registry.getResponseCache().stop();
+    }
+
+    @Test
+    public void controllerRecordsEveryOperation() {
+        RegisterServerController controller = new RegisterServerController(registry, PeerReplicator.none(registry));
+        register(controller, "order-1");
+        register(controller, "order-2");
+        for (int i = 0; i < 3; i++) {
+            controller.heartbeat(heartbeatRequest("order-1"));
+        }
+        controller.fetchDeltaRegistry(0L);
+        controller.fetchFullRegistryPayload((String) null);
+        controller.unregister("order-service", "order-2");
+
+        RegisterServerMetrics metrics = controller.getMetrics();
+        assertEquals(2L, metrics.getLatency(Operation.REGISTER).snapshot().getCount());
+        assertEquals(3L, metrics.getLatency(Operation.HEARTBEAT).snapshot().getCount());
+        assertEquals(1L, metrics.getLatency(Operation.FETCH_DELTA).snapshot().getCount());
+        assertEquals(1L, metrics.getLatency(Operation.FETCH_FULL).snapshot().getCount());
+        assertEquals(1L, metrics.getLatency(Operation.CANCEL).snapshot().getCount());
+
+        String text = metrics.scrape();
+        assertTrue(text, text.contains("register_operation_latency_seconds_count{operation=\"heartbeat\"} 3\n"));
+        assertTrue(text, text.contains("register_operation_latency_seconds{operation=\"heartbeat\",quantile=\"0.99\"} "));
+        assertTrue(text, text.contains("\nregister_instances 1\n"));
+        assertTrue(text, text.contains("\nregister_change_log_entries 3\n"));
+        assertTrue(text, text.contains("# TYPE register_self_protection_active gauge\n"));
+    }
+
+    @Test
+    public void metricsEndpointServesPrometheusText() throws Exception {
+        RegisterServer server = new RegisterServer(registry, 0, 2, null, Collections.<String>emptyList());
+        server.start();
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + server.getPort()
+                    + RegisterServerHttpHandler.PATH_METRICS).openConnection();
+            assertEquals(200, connection.getResponseCode());
+            assertEquals(RegisterServerMetrics.CONTENT_TYPE, connection.getContentType());
+            String text = readFully(connection.getInputStream());
+            assertTrue(text, text.contains("# TYPE register_evictions_total counter\nregister_evictions_total 0\n"));
+            assertTrue(text, text.contains("register_operation_latency_seconds_count{operation=\"register\"} 0\n"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static void register(RegisterServerController controller, String instanceId) {
+        RegisterRequest registerRequest = new RegisterRequest();
+        registerRequest.setServiceName("order-service");
+        registerRequest.setServiceInstanceId(instanceId);
+        controller.register(registerRequest);
+    }
+
+    private static HeartbeatRequest heartbeatRequest(String instanceId) {
+        HeartbeatRequest heartbeatRequest = new HeartbeatRequest();
+        heartbeatRequest.setServiceName("order-service");
+        heartbeatRequest.setServiceInstanceId(instanceId);
+        return heartbeatRequest;
+    }
+
+    private static String readFully(InputStream in) throws Exception {
+        try (InputStream input = in) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = input.read(buffer)) != -1) {
+                bytes.write(buffer, 0, n);
+            }
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.jonnyliu.proj.register.server;
+
+import static com.jonnyliu.proj.register.server.TestData.newInstance;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.jonnyliu.proj.register.commons.Applications;
+import com.jonnyliu.proj.register.commons.ChangedType;
+import com.jonnyliu.proj.register.commons.RegistryHash;
+import com.jonnyliu.proj.register.commons.ServiceInstance;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * 崩溃一致性: 不管崩溃发生在写日志还是写快照的哪一步,恢复出来的都是最后一次完整提交的注册表
+ */
+public class RegistryPersistenceTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void emptyDirectoryRecoversEmptyRegistry() throws Exception {
+        Applications recovered = recover(temporaryFolder.getRoot());
+
+        assertEquals(0L, recovered.getVersion());
+        assertTrue(recovered.getRegistry().isEmpty());
+    }
+
+    @Test
+    public void tornTailRecordIsDiscarded() throws Exception {
+        File directory = temporaryFolder.getRoot();
+        Map<String, Map<String, ServiceInstance>> expected = new HashMap<>();
+        WriteAheadLog writeAheadLog = new WriteAheadLog(directory, 0L);
+        long version = applyChanges(writeAheadLog, expected, 0L, 100);
+        writeAheadLog.close();
+
+        // 崩溃时最后一条记录只写了一半,后面还跟着垃圾数据
+        appendToLatestSegment(directory, new byte[]{0, 0, 0, 40, 1, 2, 3, 4, 1, 0, 0});
+
+        Applications recovered = recover(directory);
+        assertEquals(version, recovered.getVersion());
+        assertEquals(RegistryHash.compute(expected), recovered.getRegistryHash());
+    }
+
+    @Test
+    public void corruptedRecordStopsReplay() throws Exception {
+        File directory = temporaryFolder.getRoot();
+        Map<String, Map<String, ServiceInstance>> expected = new HashMap<>();
+        WriteAheadLog writeAheadLog = new WriteAheadLog(directory, 0L);
+        long version = applyChanges(writeAheadLog, expected, 0L, 50);
+        writeAheadLog.flush();
+        File segment = latestSegment(directory);
+        long committedLength = segment.length();
+        applyChanges(writeAheadLog, new HashMap<>(), version, 1);
+        writeAheadLog.close();
+
+        // 最后一条记录的内容被破坏,CRC对不上
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(committedLength + 20);
+            file.write(0xff);
+        }
+
+        Applications recovered = recover(directory);
+        assertEquals(version, recovered.getVersion());
+        assertEquals(RegistryHash.compute(expected), recovered.getRegistryHash());
+    }
+
+    @Test
+    public void snapshotPlusLogTailEqualsOriginal() throws Exception {
+        File directory = temporaryFolder.getRoot();
+        Map<String, Map<String, ServiceInstance>> expected = new HashMap<>();
+        WriteAheadLog writeAheadLog = new WriteAheadLog(directory, 0L);
+        long version = applyChanges(writeAheadLog, expected, 0L, 200);
+
+        // 按RegistryPersistence.snapshot()的顺序: 切换日志段、写快照、删除旧日志段
+        writeAheadLog.rotate();
+        new MappedSnapshotFile(new File(directory, "snapshot.dat")).write(
+                new Applications(copy(expected), version, RegistryHash.compute(expected)));
+        writeAheadLog.deleteSegmentsCoveredBy(version);
+        version = applyChanges(writeAheadLog, expected, version, 100);
+        writeAheadLog.close();
+
+        // 崩溃时下一次快照只写了一半,还停留在临时文件里
+        try (FileOutputStream out = new FileOutputStream(new File(directory, "snapshot.dat.tmp"))) {
+            out.write(new byte[]{0x52, 0x53, 0x4e, 0x50, 0, 0, 1});
+        }
+
+        Applications recovered = recover(directory);
+        assertEquals(version, recovered.getVersion());
+        assertEquals(RegistryHash.compute(expected), recovered.getRegistryHash());
+        assertEquals(RegistryHash.compute(expected), RegistryHash.compute(recovered.getRegistry()));
+    }
+
+    @Test
+    public void corruptedSnapshotFallsBackToLog() throws Exception {
+        File directory = temporaryFolder.getRoot();
+        Map<String, Map<String, ServiceInstance>> expected = new HashMap<>();
+        WriteAheadLog writeAheadLog = new WriteAheadLog(directory, 0L);
+        long version = applyChanges(writeAheadLog, expected, 0L, 100);
+        writeAheadLog.close();
+
+        File snapshot = new File(directory, "snapshot.dat");
+        new MappedSnapshotFile(snapshot).write(new Applications(copy(expected), version,
+                RegistryHash.compute(expected)));
+        try (RandomAccessFile file = new RandomAccessFile(snapshot, "rw")) {
+            file.seek(file.length() - 1);
+            file.write(file.read() ^ 0xff);
+        }
+
+        Applications recovered = recover(directory);
+        assertEquals(version, recovered.getVersion());
+        assertEquals(RegistryHash.compute(expected), recovered.getRegistryHash());
+    }
+
+    @Test
+    public void failedAppendRequiresSnapshotToCloseTheGap() throws Exception {
+        File directory = temporaryFolder.getRoot();
+        Map<String, Map<String, ServiceInstance>> expected = new HashMap<>();
+        WriteAheadLog writeAheadLog = new WriteAheadLog(directory, 0L);
+        long version = applyChanges(writeAheadLog, expected, 0L, 10);
+
+        // 记录太大写不进缓冲区,这个版本号在日志里缺失了
+        ServiceInstance oversized = newInstance("persistence-service-0", "oversized", 1);
+        oversized.setHostname(new String(new char[70 * 1024]).replace('\0', 'h'));
+        writeAheadLog.append(ChangedType.REGISTER, oversized, ++version);
+        expected.computeIfAbsent("persistence-service-0", k -> new HashMap<>()).put("oversized", oversized);
+        assertTrue(writeAheadLog.isSnapshotRequired());
+        version = applyChanges(writeAheadLog, expected, version, 10);
+        writeAheadLog.flush();
+        assertEquals(10L, recover(directory).getVersion());
+
+        writeAheadLog.rotate();
+        new MappedSnapshotFile(new File(directory, "snapshot.dat")).write(
+                new Applications(copy(expected), version, RegistryHash.compute(expected)));
+        writeAheadLog.deleteSegmentsCoveredBy(version);
+        assertFalse(writeAheadLog.isSnapshotRequired());
+        version = applyChanges(writeAheadLog, expected, version, 10);
+        writeAheadLog.close();
+
+        Applications recovered = recover(directory);
+        assertEquals(version, recovered.getVersion());
+        assertEquals(RegistryHash.compute(expected), recovered.getRegistryHash());
+    }
+
+    @Test
+    public void appendedRecordsReachTheSegmentOnFlush() throws Exception {
+        File directory = temporaryFolder.getRoot();
+        Map<String, Map<String, ServiceInstance>> expected = new HashMap<>();
+        WriteAheadLog writeAheadLog = new WriteAheadLog(directory, 0L);
+        long version = applyChanges(writeAheadLog, expected, 0L, 100);
+        // 追加只放进内存里的缓冲区
+        assertEquals(0L, latestSegment(directory).length());
+        assertEquals(0L, recover(directory).getVersion());
+
+        writeAheadLog.flush();
+        Applications recovered = recover(directory);
+        assertEquals(version, recovered.getVersion());
+        assertEquals(RegistryHash.compute(expected), recovered.getRegistryHash());
+        writeAheadLog.close();
+    }
+
+    @Test
+    public void reopeningDiscardsRecordsAfterTheRecoveredVersion() throws Exception {
+        File directory = temporaryFolder.getRoot();
+        Map<String, Map<String, ServiceInstance>> expected = new HashMap<>();
+        WriteAheadLog writeAheadLog = new WriteAheadLog(directory, 0L);
+        long version = applyChanges(writeAheadLog, expected, 0L, 20);
+        writeAheadLog.close();
+        // 版本号21到30的段丢了,31到50的段还在
+        writeAheadLog = new WriteAheadLog(directory, 30L);
+        applyChanges(writeAheadLog, new HashMap<>(), 30L, 20);
+        writeAheadLog.close();
+        assertEquals(version, recover(directory).getVersion());
+
+        // 从恢复出来的版本号继续写,旧的31到50不能再被重放
+        writeAheadLog = new WriteAheadLog(directory, version);
+        version = applyChanges(writeAheadLog, expected, version, 20);
+        writeAheadLog.close();
+
+        Applications recovered = recover(directory);
+        assertEquals(version, recovered.getVersion());
+        assertEquals(RegistryHash.compute(expected), recovered.getRegistryHash());
+    }
+
+    /**
+     * 模拟一段注册、下线交替发生的变更,同时写到日志和期望的注册表里
+     *
+     * @return 最后一次变更的版本号
+     */
+    private static long applyChanges(WriteAheadLog writeAheadLog, Map<String, Map<String, ServiceInstance>> expected,
+            long version, int changes) {
+        for (int i = 0; i < changes; i++) {
+            long current = version + i + 1;
+            String serviceName = "persistence-service-" + (current % 7);
+            String instanceId = "instance-" + (current % 23);
+            Map<String, ServiceInstance> instances = expected.get(serviceName);
+            if (current % 5 == 0 && instances != null && instances.containsKey(instanceId)) {
+                ServiceInstance removed = instances.remove(instanceId);
+                if (instances.isEmpty()) {
+                    expected.remove(serviceName);
+                }
+                writeAheadLog.append(ChangedType.REMOVE, removed, current);
+            } else {
+                ServiceInstance serviceInstance = newInstance(serviceName, instanceId, (int) current);
+                expected.computeIfAbsent(serviceName, k -> new HashMap<>()).put(instanceId, serviceInstance);
+                writeAheadLog.append(ChangedType.REGISTER, serviceInstance, current);
+            }
+        }
+        return version + changes;
+    }
+
+    private static Applications recover(File directory) throws IOException {
+        ServiceRegistry registry = new ServiceRegistry();
+        try {
+            return new RegistryPersistence(directory, registry).recover();
+        } finally {
+            registry.getResponseCache().stop();
+        }
+    }
+
+    private static void appendToLatestSegment(File directory, byte[] bytes) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(latestSegment(directory), true)) {
+            out.write(bytes);
+        }
+    }
+
+    private static File latestSegment(File directory) {
+        File latest = null;
+        for (File file : directory.listFiles((dir, name) -> name.startsWith("wal-"))) {
+            if (latest == null || file.getName().compareTo(latest.getName()) > 0) {
+                latest = file;
+            }
+        }
+        return latest;
+    }
+
+    private static Map<String, Map<String, ServiceInstance>> copy(Map<String, Map<String, ServiceInstance>> registry) {
+        Map<String, Map<String, ServiceInstance>> copy = new HashMap<>();
+        for (Map.Entry<String, Map<String, ServiceInstance>> service : registry.entrySet()) {
+            copy.put(service.getKey(), new HashMap<>(service.getValue()));
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,69 @@
+package com.jonnyliu.proj.register.server;
+
+import static org.junit.Assert.assertEquals;
+
+import com.jonnyliu.proj.register.commons.Applications;
+import com.jonnyliu.proj.register.commons.ChangedType;
+import com.jonnyliu.proj.register.commons.RegistryHash;
+import com.jonnyliu.proj.register.commons.ServiceInstance;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * 10万个实例的快照加上1万条预写日志,恢复出来的注册表和写入时一致,并且能装进一个新的注册表
+ * <p>
+ * 快照写入、日志追加和恢复的耗时在register-benchmarks的RegistryRecoveryBenchmark里测
+ */
+public class RegistryRecoveryTest {
+
+    private static final int SERVICE_COUNT = 1000;
+    private static final int INSTANCE_PER_SERVICE = 100;
+    private static final int LOG_TAIL = 10000;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void recoverHundredThousandInstances() throws Exception {
+        File directory = temporaryFolder.getRoot();
+        Map<String, Map<String, ServiceInstance>> registry = new HashMap<>();
+        int port = 0;
+        for (int i = 0; i < SERVICE_COUNT; i++) {
+            String serviceName = "recovery-service-" + i;
+            Map<String, ServiceInstance> instances = new HashMap<>();
+            for (int j = 0; j < INSTANCE_PER_SERVICE; j++) {
+                instances.put("instance-" + j, TestData.newInstance(serviceName, "instance-" + j,
+                        ++port));
+            }
+            registry.put(serviceName, instances);
+        }
+        long version = SERVICE_COUNT * INSTANCE_PER_SERVICE;
+        new MappedSnapshotFile(new File(directory, "snapshot.dat")).write(
+                new Applications(registry, version, RegistryHash.compute(registry)));
+
+        WriteAheadLog writeAheadLog = new WriteAheadLog(directory, version);
+        for (int i = 0; i < LOG_TAIL; i++) {
+            String serviceName = "recovery-service-" + (i % SERVICE_COUNT);
+            ServiceInstance serviceInstance = TestData.newInstance(serviceName, "tail-" + i, ++port);
+            registry.get(serviceName).put(serviceInstance.getInstanceId(), serviceInstance);
+            writeAheadLog.append(ChangedType.REGISTER, serviceInstance, ++version);
+        }
+        writeAheadLog.flush();
+        writeAheadLog.close();
+
+        ServiceRegistry serviceRegistry = new ServiceRegistry();
+        Applications recovered = new RegistryPersistence(directory, serviceRegistry).recover();
+        assertEquals(version, recovered.getVersion());
+        assertEquals(RegistryHash.compute(registry), recovered.getRegistryHash());
+
+        serviceRegistry.restore(recovered);
+        assertEquals(version, serviceRegistry.getVersion());
+        assertEquals(SERVICE_COUNT * INSTANCE_PER_SERVICE + LOG_TAIL, serviceRegistry.getSnapshot().getInstanceCount());
+        assertEquals(recovered.getRegistryHash(), serviceRegistry.getSnapshot().getRegistryHash());
+        serviceRegistry.getResponseCache().stop();
+    }
+}
@@ -0,0 +1,65 @@
+package com.jonnyliu.proj.register.server;
+
+import static com.jonnyliu.proj.register.server.TestData.newInstance;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import com.jonnyliu.proj.register.commons.RegistryHash;
+import com.jonnyliu.proj.register.commons.ServiceInstance;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+
+/**
+ * 快照重建: 一次变更只替换发生变更的服务的实例表,其他服务的实例表原样复用,版本号、实例数、哈希值增量维护
+ * <p>
+ * 不同注册表规模下重建的耗时在register-benchmarks的RegistrySnapshotBenchmark里测
+ */
+public class RegistrySnapshotTest {
+
+    private static final int INSTANCE_PER_SERVICE = 10;
+    private static final int REBUILD_TIMES = 2000;
+
+    @Test
+    public void rebuildOnlyReplacesTheChangedService() {
+        for (int serviceCount : new int[]{100, 1000, 10000}) {
+            RegistrySnapshot snapshot = RegistrySnapshot.EMPTY;
+            Map<String, Map<String, ServiceInstance>> live = new HashMap<>();
+            long version = 0;
+            for (int i = 0; i < serviceCount; i++) {
+                String serviceName = "snapshot-service-" + i;
+                Map<String, ServiceInstance> instances = new HashMap<>();
+                for (int j = 0; j < INSTANCE_PER_SERVICE; j++) {
+                    instances.put("instance-" + j, newInstance(serviceName, "instance-" + j));
+                }
+                live.put(serviceName, instances);
+                snapshot = snapshot.withService(serviceName, Collections.unmodifiableMap(new HashMap<>(instances)),
+                        ++version, null, null);
+            }
+
+            // 初始化时没有逐个实例累加哈希值,只校验后面增量维护的部分
+            RegistrySnapshot initial = snapshot;
+
+            for (int n = 0; n < REBUILD_TIMES; n++) {
+                String serviceName = "snapshot-service-" + (n % serviceCount);
+                String untouched = "snapshot-service-" + ((n + 1) % serviceCount);
+                Map<String, ServiceInstance> instances = live.get(serviceName);
+                ServiceInstance churn = newInstance(serviceName, "churn");
+                ServiceInstance old = instances.put("churn", churn);
+                RegistrySnapshot rebuilt = snapshot.withService(serviceName,
+                        Collections.unmodifiableMap(new HashMap<>(instances)), ++version, old, churn);
+                assertNotSame(snapshot.getRegistry().get(serviceName), rebuilt.getRegistry().get(serviceName));
+                assertSame(snapshot.getRegistry().get(untouched), rebuilt.getRegistry().get(untouched));
+                snapshot = rebuilt;
+            }
+
+            assertEquals(version, snapshot.getVersion());
+            assertEquals((long) serviceCount * INSTANCE_PER_SERVICE + Math.min(serviceCount, REBUILD_TIMES),
+                    snapshot.getInstanceCount());
+            assertEquals(RegistryHash.compute(snapshot.getRegistry()) - RegistryHash.compute(initial.getRegistry()),
+                    snapshot.getRegistryHash() - initial.getRegistryHash());
+        }
+    }
+}
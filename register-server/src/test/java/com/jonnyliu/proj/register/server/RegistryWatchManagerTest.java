@@ -0,0 +1,131 @@
+package com.jonnyliu.proj.register.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.jonnyliu.proj.register.commons.ChangedType;
+import com.jonnyliu.proj.register.commons.DeltaRegistry;
+import com.jonnyliu.proj.register.commons.RegistryCodec;
+import com.jonnyliu.proj.register.commons.ServiceInstance;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RegistryWatchManagerTest {
+
+    private final ServiceRegistry registry = ServiceRegistry.getInstance();
+    private RegistryWatchManager watchManager;
+
+    @Before
+    public void setUp() {
+        watchManager = new RegistryWatchManager(registry);
+        registry.addChangeListener(watchManager);
+        watchManager.start();
+    }
+
+    @After
+    public void tearDown() {
+        registry.removeChangeListener(watchManager);
+        watchManager.stop();
+    }
+
+    @Test
+    public void answersImmediatelyWhenClientIsBehind() throws Exception {
+        register("watch-service", "behind-instance");
+        CapturingResponder responder = new CapturingResponder(1);
+
+        watchManager.watch(registry.getVersion() - 1, 10000L, responder);
+
+        assertTrue(responder.await(0));
+        assertEquals(0, watchManager.getParkedCount());
+        assertEquals(1, responder.delta().getRecentlyChangedServiceInstances().size());
+    }
+
+    @Test
+    public void parkedUntilRegistryChanges() throws Exception {
+        long version = registry.getVersion();
+        CapturingResponder responder = new CapturingResponder(1);
+
+        watchManager.watch(version, 10000L, responder);
+        assertFalse(responder.await(300));
+        assertEquals(1, watchManager.getParkedCount());
+
+        register("watch-service", "parked-instance");
+
+        assertTrue(responder.await(2000));
+        DeltaRegistry delta = responder.delta();
+        assertEquals(version + 1, delta.getVersion());
+        assertEquals(ChangedType.REGISTER, delta.getRecentlyChangedServiceInstances().get(0).getChangedType());
+        assertEquals(0, watchManager.getParkedCount());
+    }
+
+    @Test
+    public void answersWithEmptyDeltaOnTimeout() throws Exception {
+        long version = registry.getVersion();
+        CapturingResponder responder = new CapturingResponder(1);
+
+        watchManager.watch(version, 300L, responder);
+
+        assertTrue(responder.await(2000));
+        assertTrue(responder.delta().getRecentlyChangedServiceInstances().isEmpty());
+        assertEquals(version, responder.delta().getVersion());
+        assertEquals(0, watchManager.getParkedCount());
+    }
+
+    @Test
+    public void fiftyThousandParkedWatchesNeedNoThreads() throws Exception {
+        int watchers = 50000;
+        int threadsBefore = Thread.activeCount();
+        long version = registry.getVersion();
+        CapturingResponder responder = new CapturingResponder(watchers);
+
+        for (int i = 0; i < watchers; i++) {
+            watchManager.watch(version, 60000L, responder);
+        }
+        assertEquals(watchers, watchManager.getParkedCount());
+        assertEquals(threadsBefore, Thread.activeCount());
+
+        register("watch-service", "wake-everyone");
+        assertTrue(responder.await(10000));
+        assertEquals(0, watchManager.getParkedCount());
+        DeltaRegistry delta = responder.delta();
+        assertEquals(1, delta.getRecentlyChangedServiceInstances().size());
+        assertEquals("wake-everyone",
+                delta.getRecentlyChangedServiceInstances().get(0).getServiceInstance().getInstanceId());
+    }
+
+    private void register(String serviceName, String instanceId) {
+        ServiceInstance serviceInstance = new ServiceInstance();
+        serviceInstance.setServiceName(serviceName);
+        serviceInstance.setInstanceId(instanceId);
+        registry.register(serviceInstance);
+    }
+
+    private static class CapturingResponder implements HttpResponder {
+
+        private final CountDownLatch latch;
+        private final AtomicReference<HttpResponse> lastResponse = new AtomicReference<>();
+
+        CapturingResponder(int expectedResponses) {
+            this.latch = new CountDownLatch(expectedResponses);
+        }
+
+        @Override
+        public void respond(HttpResponse response) {
+            lastResponse.set(response);
+            latch.countDown();
+        }
+
+        boolean await(long millis) throws InterruptedException {
+            return latch.await(millis, TimeUnit.MILLISECONDS);
+        }
+
+        DeltaRegistry delta() {
+            return RegistryCodec.decodeDeltaRegistry(lastResponse.get().getBody());
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.jonnyliu.proj.register.server;
+
+import static com.jonnyliu.proj.register.server.TestData.newInstance;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * 响应缓存停止之后不再读只读缓存,注册表的变更马上就能读到
+ */
+public class ResponseCacheTest {
+
+    @Test
+    public void stoppedCacheServesTheLatestRegistry() {
+        ServiceRegistry registry = new ServiceRegistry();
+        ResponseCache responseCache = registry.getResponseCache();
+        registry.register(newInstance("order-1"));
+        assertEquals(1L, responseCache.getFullRegistry().getVersion());
+
+        responseCache.stop();
+        registry.register(newInstance("order-2"));
+        assertEquals(2L, responseCache.getFullRegistry().getVersion());
+        assertEquals(2L, responseCache.getDeltaRegistry().getVersion());
+    }
+}
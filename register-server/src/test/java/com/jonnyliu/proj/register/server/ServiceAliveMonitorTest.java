@@ -0,0 +1,54 @@
+package com.jonnyliu.proj.register.server;
+
+import static com.jonnyliu.proj.register.server.TestData.newInstance;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.jonnyliu.proj.register.commons.ServiceInstance;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * 变更日志被覆盖之后重新全部放入时间轮,已经在时间轮里的实例不会重复放入
+ */
+public class ServiceAliveMonitorTest {
+
+    private final VirtualClock clock = new VirtualClock(1600000000000L);
+    private final ServiceRegistry registry = new ServiceRegistry(new HeapInstanceStore(), clock);
+    private final ServiceAliveMonitor monitor = new ServiceAliveMonitor(registry, ServiceAliveMonitor.DEFAULT_CHECK_TICK);
+
+    @After
+    public void tearDown() {
+        registry.getResponseCache().stop();
+    }
+
+    @Test
+    public void changeLogOverrunDoesNotDuplicateScheduledLeases() {
+        for (int i = 0; i < 100; i++) {
+            registry.register(newInstance("order-" + i));
+        }
+        clock.advance(1000L);
+        monitor.check();
+        assertEquals(100, monitor.getScheduledCount());
+
+        // 同一个临时实例反复注册、下线,把变更日志整个覆盖掉
+        for (int i = 0; i <= RecentlyChangedLog.DEFAULT_CAPACITY / 2; i++) {
+            registry.register(newInstance("temporary"));
+            registry.remove("order-service", "temporary");
+        }
+        assertTrue(registry.getDeltaRegistry(registry.getVersion() - RecentlyChangedLog.DEFAULT_CAPACITY - 1)
+                .isFullFetchRequired());
+        for (int round = 0; round < 3; round++) {
+            clock.advance(1000L);
+            monitor.check();
+            assertEquals(100, monitor.getScheduledCount());
+        }
+
+        // 全部过期时没有心跳,进入自我保护,每个实例只到期一次
+        clock.advance(ServiceInstance.ALIVE_TIME_THRESHOLD);
+        monitor.check();
+        assertEquals(100, monitor.getProtectedCount());
+        assertEquals(100, monitor.getScheduledCount());
+        assertEquals(100, registry.getSnapshot().getInstanceCount());
+    }
+}
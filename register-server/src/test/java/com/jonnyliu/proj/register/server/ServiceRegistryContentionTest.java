@@ -0,0 +1,103 @@
+package com.jonnyliu.proj.register.server;
+
+import static com.jonnyliu.proj.register.server.TestData.newInstance;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.jonnyliu.proj.register.commons.RegistryHash;
+import com.jonnyliu.proj.register.commons.ServiceInstance;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+
+/**
+ * 多个线程在同一批服务上并发注册、续约、下线,分段锁下不丢失变更,快照和版本号与串行执行的结果一致
+ * <p>
+ * 吞吐量随线程数的变化在register-benchmarks的ServiceRegistryBenchmark里测
+ */
+public class ServiceRegistryContentionTest {
+
+    private static final int THREADS = 8;
+    private static final int SERVICE_COUNT = 16;
+    private static final int INSTANCES_PER_THREAD = 1000;
+
+    @Test
+    public void concurrentRegisterAndRenewLoseNoUpdates() throws Exception {
+        ServiceRegistry registry = new ServiceRegistry();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<Integer>> results = new ArrayList<>();
+        try {
+            for (int t = 0; t < THREADS; t++) {
+                int thread = t;
+                results.add(executor.submit(() -> {
+                    start.await();
+                    int failedRenews = 0;
+                    for (int i = 0; i < INSTANCES_PER_THREAD; i++) {
+                        String serviceName = serviceName(i);
+                        String instanceId = instanceId(thread, i);
+                        registry.register(newInstance(serviceName, instanceId));
+                        if (!registry.renew(serviceName, instanceId)) {
+                            failedRenews++;
+                        }
+                        if (i % 5 == 0) {
+                            registry.remove(serviceName, instanceId);
+                        }
+                    }
+                    return failedRenews;
+                }));
+            }
+            start.countDown();
+            for (Future<Integer> result : results) {
+                assertEquals(Integer.valueOf(0), result.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        int removedPerThread = (INSTANCES_PER_THREAD + 4) / 5;
+        int expectedInstances = THREADS * (INSTANCES_PER_THREAD - removedPerThread);
+        assertEquals(THREADS * (INSTANCES_PER_THREAD + removedPerThread), registry.getVersion());
+        assertEquals(expectedInstances, registry.getSnapshot().getInstanceCount());
+
+        Map<String, Map<String, ServiceInstance>> fullRegistry = registry.getFullRegistry();
+        assertEquals(SERVICE_COUNT, fullRegistry.size());
+        int instances = 0;
+        for (Map<String, ServiceInstance> serviceInstances : fullRegistry.values()) {
+            instances += serviceInstances.size();
+        }
+        assertEquals(expectedInstances, instances);
+        assertEquals(RegistryHash.compute(fullRegistry), registry.getSnapshot().getRegistryHash());
+
+        for (int t = 0; t < THREADS; t++) {
+            for (int i = 0; i < INSTANCES_PER_THREAD; i++) {
+                String serviceName = serviceName(i);
+                String instanceId = instanceId(t, i);
+                if (i % 5 == 0) {
+                    assertNull(registry.getServiceInstance(serviceName, instanceId));
+                    assertFalse(registry.renew(serviceName, instanceId));
+                } else {
+                    assertNotNull(registry.getServiceInstance(serviceName, instanceId));
+                    assertTrue(registry.renew(serviceName, instanceId));
+                }
+            }
+        }
+        registry.getResponseCache().stop();
+    }
+
+    private static String serviceName(int i) {
+        return "contention-service-" + i % SERVICE_COUNT;
+    }
+
+    private static String instanceId(int thread, int i) {
+        return "contention-instance-" + thread + "-" + i;
+    }
+}
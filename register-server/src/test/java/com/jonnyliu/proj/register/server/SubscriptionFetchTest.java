@@ -0,0 +1,149 @@
+package com.jonnyliu.proj.register.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.jonnyliu.proj.register.commons.Applications;
+import com.jonnyliu.proj.register.commons.DeltaRegistry;
+import com.jonnyliu.proj.register.commons.RecentlyChangedServiceInstance;
+import com.jonnyliu.proj.register.commons.RegistryCodec;
+import com.jonnyliu.proj.register.commons.RegistryHash;
+import com.jonnyliu.proj.register.commons.ServiceInstance;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * 只订阅部分服务的客户端,拉取的代价只和订阅的服务有关
+ */
+public class SubscriptionFetchTest {
+
+    private static final Set<String> SUBSCRIBED = new HashSet<>(Arrays.asList("service-1", "service-2"));
+
+    private final ServiceRegistry registry = new ServiceRegistry();
+
+    @After
+    public void tearDown() {
+        registry.getResponseCache().stop();
+    }
+
+    @Test
+    public void filteredDeltaOnlyCarriesSubscribedServices() {
+        registerServices(10, 3);
+
+        DeltaRegistry deltaRegistry = registry.getDeltaRegistry(0L, SUBSCRIBED);
+
+        assertEquals(30L, deltaRegistry.getVersion());
+        assertEquals(6, deltaRegistry.getRecentlyChangedServiceInstances().size());
+        for (RecentlyChangedServiceInstance change : deltaRegistry.getRecentlyChangedServiceInstances()) {
+            assertTrue(SUBSCRIBED.contains(change.getServiceInstance().getServiceName()));
+        }
+        assertEquals(6L, (long) deltaRegistry.getServiceInstanceTotalCount());
+        assertEquals(RegistryHash.compute(subscribedPart(registry.getFullRegistry())),
+                deltaRegistry.getRegistryHash());
+    }
+
+    @Test
+    public void filteredFullFetchScalesWithSubscriptions() {
+        registerServices(1000, 10);
+        ResponseCache responseCache = registry.getResponseCache();
+
+        ByteBuffer full = responseCache.getFullRegistryPayload();
+        ByteBuffer subscribed = responseCache.getServiceRegistryPayload(SUBSCRIBED);
+        assertTrue("subscribed " + subscribed.remaining() + " bytes, full " + full.remaining() + " bytes",
+                subscribed.remaining() * 100 < full.remaining());
+
+        Applications applications = RegistryCodec.decodeApplications(subscribed);
+        assertEquals(SUBSCRIBED, applications.getRegistry().keySet());
+        assertEquals(registry.getVersion(), applications.getVersion());
+        assertEquals(RegistryHash.compute(applications.getRegistry()), applications.getRegistryHash());
+    }
+
+    @Test
+    public void servicePayloadIsReEncodedOnlyAfterItsOwnChange() {
+        registerServices(100, 10);
+        ResponseCache responseCache = registry.getResponseCache();
+        responseCache.getServiceRegistryPayload(SUBSCRIBED);
+
+        long missCount = responseCache.getMissCount();
+        register("service-50", "instance-new");
+        responseCache.getServiceRegistryPayload(SUBSCRIBED);
+        assertEquals(missCount, responseCache.getMissCount());
+
+        register("service-1", "instance-new");
+        Applications applications = RegistryCodec.decodeApplications(
+                responseCache.getServiceRegistryPayload(SUBSCRIBED));
+        assertEquals(missCount + 1, responseCache.getMissCount());
+        assertEquals(11, applications.getRegistry().get("service-1").size());
+
+        registry.remove("service-2", "instance-0");
+        for (int i = 1; i < 10; i++) {
+            registry.remove("service-2", "instance-" + i);
+        }
+        applications = RegistryCodec.decodeApplications(responseCache.getServiceRegistryPayload(SUBSCRIBED));
+        assertEquals(Collections.singleton("service-1"), applications.getRegistry().keySet());
+        assertEquals(RegistryHash.compute(applications.getRegistry()), applications.getRegistryHash());
+    }
+
+    @Test
+    public void filteredWatchSleepsThroughUnrelatedChanges() throws Exception {
+        RegistryWatchManager watchManager = new RegistryWatchManager(registry);
+        registry.addChangeListener(watchManager);
+        watchManager.start();
+        try {
+            CountDownLatch answered = new CountDownLatch(1);
+            AtomicReference<HttpResponse> response = new AtomicReference<>();
+            watchManager.watch(registry.getVersion(), 10000L, SUBSCRIBED, r -> {
+                response.set(r);
+                answered.countDown();
+            });
+
+            register("service-99", "instance-0");
+            register("service-98", "instance-0");
+            assertFalse(answered.await(500, TimeUnit.MILLISECONDS));
+            assertEquals(1, watchManager.getParkedCount());
+
+            register("service-1", "instance-0");
+            assertTrue(answered.await(2000, TimeUnit.MILLISECONDS));
+            DeltaRegistry deltaRegistry = RegistryCodec.decodeDeltaRegistry(response.get().getBody());
+            assertEquals(3L, deltaRegistry.getVersion());
+            assertEquals(1, deltaRegistry.getRecentlyChangedServiceInstances().size());
+            assertEquals("service-1",
+                    deltaRegistry.getRecentlyChangedServiceInstances().get(0).getServiceInstance().getServiceName());
+        } finally {
+            registry.removeChangeListener(watchManager);
+            watchManager.stop();
+        }
+    }
+
+    private void registerServices(int serviceCount, int instancePerService) {
+        for (int i = 0; i < serviceCount; i++) {
+            for (int j = 0; j < instancePerService; j++) {
+                register("service-" + i, "instance-" + j);
+            }
+        }
+    }
+
+    private void register(String serviceName, String instanceId) {
+        ServiceInstance serviceInstance = new ServiceInstance();
+        serviceInstance.setServiceName(serviceName);
+        serviceInstance.setInstanceId(instanceId);
+        registry.register(serviceInstance);
+    }
+
+    private static Map<String, Map<String, ServiceInstance>> subscribedPart(
+            Map<String, Map<String, ServiceInstance>> registry) {
+        return registry.entrySet().stream().filter(e -> SUBSCRIBED.contains(e.getKey()))
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+    }
+}
@@ -0,0 +1,49 @@
+package com.jonnyliu.proj.register.server;
+
+import com.jonnyliu.proj.register.commons.ServiceInstance;
+
+/**
+ * 测试用的服务实例
+ *
+ * @author liujie
+ */
+final class TestData {
+
+    private TestData() {
+    }
+
+    /**
+     * order-service的一个服务实例
+     */
+    static ServiceInstance newInstance(String instanceId) {
+        return newInstance("order-service", instanceId);
+    }
+
+    /**
+     * 只有服务名称和实例ID的服务实例
+     */
+    static ServiceInstance newInstance(String serviceName, String instanceId) {
+        ServiceInstance serviceInstance = new ServiceInstance();
+        serviceInstance.setServiceName(serviceName);
+        serviceInstance.setInstanceId(instanceId);
+        return serviceInstance;
+    }
+
+    /**
+     * ip由端口推出来的服务实例,端口不同ip也不同,主机名是host-实例ID
+     */
+    static ServiceInstance newInstance(String serviceName, String instanceId, int port) {
+        return newInstance(serviceName, instanceId, "10.0." + (port / 256 % 256) + "." + (port % 256), port);
+    }
+
+    /**
+     * 指定ip和端口的服务实例,主机名是host-实例ID
+     */
+    static ServiceInstance newInstance(String serviceName, String instanceId, String ip, int port) {
+        ServiceInstance serviceInstance = newInstance(serviceName, instanceId);
+        serviceInstance.setIp(ip);
+        serviceInstance.setHostname("host-" + instanceId);
+        serviceInstance.setPort(port);
+        return serviceInstance;
+    }
+}
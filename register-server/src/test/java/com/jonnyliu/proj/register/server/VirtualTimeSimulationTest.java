@@ -0,0 +1,90 @@
+package com.jonnyliu.proj.register.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.jonnyliu.proj.register.commons.RegisterRequest;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * 用虚拟时钟模拟一整天的心跳、摘除和自我保护,不需要真的等待
+ */
+public class VirtualTimeSimulationTest {
+
+    private static final int INSTANCES = 1000;
+    private static final int HEARTBEAT_INTERVAL_SECONDS =
+            (int) TimeUnit.MILLISECONDS.toSeconds(SelfProtectionPolicy.HEARTBEAT_INTERVAL);
+    private static final long ONE_HOUR_SECONDS = TimeUnit.HOURS.toSeconds(1);
+
+    private final VirtualClock clock = new VirtualClock(TimeUnit.DAYS.toMillis(20000));
+    private final ServiceRegistry registry = new ServiceRegistry(new HeapInstanceStore(), clock);
+    private final RegisterServerController controller = new RegisterServerController(registry,
+            PeerReplicator.none(registry));
+    private final ServiceAliveMonitor monitor = new ServiceAliveMonitor(registry, ServiceAliveMonitor.DEFAULT_CHECK_TICK);
+
+    /**
+     * 百分之多少的实例不再发心跳
+     */
+    private int silentPercent;
+
+    @After
+    public void tearDown() {
+        registry.getResponseCache().stop();
+    }
+
+    @Test
+    public void oneDayOfHeartbeatsEvictionAndSelfProtection() {
+        for (int i = 0; i < INSTANCES; i++) {
+            RegisterRequest registerRequest = new RegisterRequest();
+            registerRequest.setServiceName("service-" + i % 10);
+            registerRequest.setServiceInstanceId("instance-" + i);
+            controller.register(registerRequest);
+        }
+
+        runHours(6);
+        assertEquals(INSTANCES, registry.getSnapshot().getInstanceCount());
+        assertEquals(0L, monitor.getEvictedCount());
+        assertEquals(INSTANCES * 2L, registry.getSelfProtectionPolicy().getExpectedHeartbeatRate());
+
+        // 少量实例下线,心跳次数仍在阈值之上,租约到期后被摘除
+        silentPercent = 5;
+        runHours(6);
+        assertEquals(INSTANCES * 95 / 100, registry.getSnapshot().getInstanceCount());
+        assertEquals(INSTANCES * 5 / 100, monitor.getEvictedCount());
+        assertFalse(registry.getSelfProtectionPolicy().isSelfProtectionActivated());
+
+        // 大量实例同时失联,先于租约到期进入自我保护,一个都不摘除
+        silentPercent = 45;
+        runHours(6);
+        assertTrue(registry.getSelfProtectionPolicy().isSelfProtectionActivated());
+        assertEquals(INSTANCES * 95 / 100, registry.getSnapshot().getInstanceCount());
+        assertEquals(INSTANCES * 5 / 100, monitor.getEvictedCount());
+        assertTrue(monitor.getProtectedCount() > 0);
+
+        // 网络恢复,退出自我保护
+        silentPercent = 5;
+        runHours(6);
+        assertFalse(registry.getSelfProtectionPolicy().isSelfProtectionActivated());
+        assertEquals(INSTANCES * 95 / 100, registry.getSnapshot().getInstanceCount());
+        assertEquals(INSTANCES * 5 / 100, monitor.getEvictedCount());
+    }
+
+    /**
+     * 每个虚拟秒里,心跳时间片落在这一秒的实例发心跳,然后时钟前进一秒、检测一次
+     */
+    private void runHours(int hours) {
+        for (long second = 0; second < hours * ONE_HOUR_SECONDS; second++) {
+            int slot = (int) (clock.currentTimeMillis() / 1000L % HEARTBEAT_INTERVAL_SECONDS);
+            for (int i = slot; i < INSTANCES; i += HEARTBEAT_INTERVAL_SECONDS) {
+                if (i % 100 >= silentPercent) {
+                    controller.renew("service-" + i % 10, "instance-" + i);
+                }
+            }
+            clock.advance(1000L);
+            monitor.check();
+        }
+    }
+}